@@ -1,9 +0,0 @@
-package org.example.cartservice.dto;
-
-
-import lombok.Data;
-
-@Data
-public class Product {
-    private int quantity;
-}
@@ -0,0 +1,16 @@
+package org.example.cartservice.dto;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReservationBody {
+
+    private String owner;
+
+    private int quantity;
+}
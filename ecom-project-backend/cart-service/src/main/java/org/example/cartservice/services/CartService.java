@@ -4,7 +4,7 @@ package org.example.cartservice.services;
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
 import org.example.cartservice.dto.CartItemBodyDto;
-import org.example.cartservice.dto.Product;
+import org.example.cartservice.dto.ReservationBody;
 import org.example.cartservice.entities.Cart;
 import org.example.cartservice.entities.CartItem;
 import org.example.cartservice.exception.customExceptions.BaseException;
@@ -16,6 +16,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
 
@@ -61,26 +62,47 @@ public class CartService {
         }
     }
 
-    public Product getProductDetails(String productId) {
+    // owner of the stock holds this service makes in product-service, order-service confirms them under the same name
+    private String reservationOwner(int userId) {
+        return "user:" + userId;
+    }
+
+    // hold stock in product-service while it sits in the cart
+    private void reserveStock(int userId, String productId, int quantity) {
         try {
-            return webClient.get()
-                    .uri(uriBuilder -> uriBuilder.pathSegment("products", "{productId}", "quantity").build(productId))
+            webClient.post()
+                    .uri(uriBuilder -> uriBuilder.pathSegment("products", "{productId}", "reservations").build(productId))
+                    .body(BodyInserters.fromValue(new ReservationBody(reservationOwner(userId), quantity)))
                     .retrieve()
+                    .onStatus(status -> status.value() == HttpStatus.CONFLICT.value(),
+                            error -> Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Product has limited stock")))
                     .onStatus(HttpStatusCode::is5xxServerError,
                             error -> Mono.error(new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, "Service down. Try again later.")))
                     .onStatus(HttpStatusCode::is4xxClientError,
                             error -> Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Invalid Product Id")))
-                    .bodyToMono(Product.class).block();
-
-
+                    .toBodilessEntity().block();
         } catch (BaseException exception) {
             throw exception;
         } catch (Exception exception) {
-            logger.error("getProductDetails - error while fetching products : {}", exception.getMessage());
+            logger.error("reserveStock - error while reserving stock : {}", exception.getMessage());
             throw exception;
         }
     }
 
+    // give held stock back, holds that already expired or were confirmed by an order give back nothing
+    private void releaseStock(int userId, String productId, int quantity) {
+        try {
+            webClient.post()
+                    .uri(uriBuilder -> uriBuilder.pathSegment("products", "{productId}", "reservations", "release").build(productId))
+                    .body(BodyInserters.fromValue(new ReservationBody(reservationOwner(userId), quantity)))
+                    .retrieve()
+                    .toBodilessEntity().block();
+        } catch (Exception exception) {
+            // the hold runs out on its own
+            logger.error("releaseStock - error while releasing stock : {}", exception.getMessage());
+        }
+    }
+
     public void addToCart(int userId, CartItemBodyDto addToCartBody) {
 
         try {
@@ -90,28 +112,27 @@ public class CartService {
 
             Optional<CartItem> existingCartItem = cartItemRepository.findByCartAndProductAndSize(cart.getId(), addToCartBody.getProductId(),addToCartBody.getSize());
 
-            Product product = getProductDetails(addToCartBody.getProductId());
+            // the hold is the stock check, product-service refuses it when there is not enough
+            reserveStock(userId, addToCartBody.getProductId(), addToCartBody.getQuantity());
 
-            int quantityAvailable = product.getQuantity();
-
-            if (quantityAvailable < addToCartBody.getQuantity()) {
-                logger.error("addToCart - error while adding to cart : Product has limited stock");
-                throw new BaseException(HttpStatus.BAD_REQUEST, "Product has limited stock");
-            }
-
-            if (existingCartItem.isPresent()) {
-                CartItem cartItem = existingCartItem.get();
-                cartItem.setQuantity(cartItem.getQuantity() + addToCartBody.getQuantity());
-                cartItemRepository.save(cartItem);
-            } else {
-                CartItem newCartItem = new CartItem();
-                newCartItem.setQuantity(addToCartBody.getQuantity());
-                newCartItem.setProductId(addToCartBody.getProductId());
-                newCartItem.setSize(addToCartBody.getSize());
+            try {
+                if (existingCartItem.isPresent()) {
+                    CartItem cartItem = existingCartItem.get();
+                    cartItem.setQuantity(cartItem.getQuantity() + addToCartBody.getQuantity());
+                    cartItemRepository.save(cartItem);
+                } else {
+                    CartItem newCartItem = new CartItem();
+                    newCartItem.setQuantity(addToCartBody.getQuantity());
+                    newCartItem.setProductId(addToCartBody.getProductId());
+                    newCartItem.setSize(addToCartBody.getSize());
 
-                newCartItem.setCart(cart);
+                    newCartItem.setCart(cart);
 
-                cartItemRepository.save(newCartItem);
+                    cartItemRepository.save(newCartItem);
+                }
+            } catch (Exception exception) {
+                releaseStock(userId, addToCartBody.getProductId(), addToCartBody.getQuantity());
+                throw exception;
             }
         } catch (BaseException exception) {
             throw exception;
@@ -165,6 +186,8 @@ public class CartService {
                     cartItemRepository.save(cartItem);
                 }
 
+                releaseStock(userId, addToCartBody.getProductId(), addToCartBody.getQuantity());
+
             } else {
                 throw new BaseException(HttpStatus.BAD_REQUEST, "Cannot decrease quantity");
             }
@@ -181,7 +204,10 @@ public class CartService {
         try {
             Optional<Cart> cart = cartRepository.findByUserId(userId);
 
-            cart.ifPresent(value -> cartRepository.deleteById(value.getId()));
+            cart.ifPresent(value -> {
+                value.getCartItems().forEach(cartItem -> releaseStock(userId, cartItem.getProductId(), cartItem.getQuantity()));
+                cartRepository.deleteById(value.getId());
+            });
 
             createNewCart(userId);
         } catch (BaseException exception) {
@@ -0,0 +1,22 @@
+package org.example.orderservice.configuration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class JpaConfig {
+
+    // an order is written at commit as one batched insert per table instead of a statement per row. ordering the inserts
+    // keeps rows of the same table together so the batches are not cut short. on mysql the jdbc url also needs
+    // rewriteBatchedStatements=true for a batch to go out as one statement
+    @Bean
+    public HibernatePropertiesCustomizer batchInserts(@Value("${order.jdbc.batch-size:50}") int batchSize) {
+        return properties -> {
+            properties.put("hibernate.jdbc.batch_size", batchSize);
+            properties.put("hibernate.order_inserts", true);
+            properties.put("hibernate.order_updates", true);
+        };
+    }
+}
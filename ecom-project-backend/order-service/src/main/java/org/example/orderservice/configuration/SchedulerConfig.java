@@ -0,0 +1,19 @@
+package org.example.orderservice.configuration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+@Configuration
+public class SchedulerConfig {
+
+    // jpa calls block, so orders placed without a request thread run them here and never on the event loop.
+    // as many threads as the hikari pool has connections, more would only wait for one
+    @Bean(destroyMethod = "dispose")
+    public Scheduler jdbcScheduler(@Value("${order.jdbc.threads:10}") int threads,
+                                   @Value("${order.jdbc.queue-size:10000}") int queueSize) {
+        return Schedulers.newBoundedElastic(threads, queueSize, "order-jdbc");
+    }
+}
@@ -0,0 +1,54 @@
+package org.example.orderservice.configuration;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManagerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+// mysql has no sequences, hibernate keeps the next id of Order, OrderItem and the stock outbox in a one row table each.
+// tables that were filled while their ids were IDENTITY would get ids handed out again, so every start creates the
+// sequence tables when missing and moves them past the largest id of their table. they only ever move up, so this is
+// safe to run on every instance and on every start. runs before the web server takes requests
+@Component
+public class SequenceMigration {
+
+    // as the @SequenceGenerator of the entities
+    private static final int ALLOCATION_SIZE = 50;
+
+    // sequence table -> table it hands out ids for
+    private static final Map<String, String> SEQUENCES = Map.of(
+            "orders_seq", "orders",
+            "order_item_seq", "order_item",
+            "stock_outbox_seq", "stock_outbox");
+
+    private final JdbcTemplate jdbcTemplate;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    // the entity manager factory is taken so hibernate has created or updated the schema before this runs
+    @Autowired
+    public SequenceMigration(JdbcTemplate jdbcTemplate, EntityManagerFactory entityManagerFactory) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void migrate() {
+        SEQUENCES.forEach((sequence, table) -> {
+            jdbcTemplate.execute("create table if not exists " + sequence + " (next_val bigint)");
+            jdbcTemplate.update("insert into " + sequence + " (next_val) select 1 from dual where not exists (select * from " + sequence + ")");
+            // the pooled optimizer hands out the ALLOCATION_SIZE ids up to the value it reads, so that value has to
+            // be a whole allocation above the largest id
+            int moved = jdbcTemplate.update("update " + sequence + " set next_val = (select coalesce(max(id), 0) + " + (ALLOCATION_SIZE + 1) + " from " + table + ")"
+                    + " where next_val < (select coalesce(max(id), 0) + " + (ALLOCATION_SIZE + 1) + " from " + table + ")");
+            if (moved > 0) {
+                logger.info("migrateSequences - moved {} past the ids of {}", sequence, table);
+            }
+        });
+    }
+
+}
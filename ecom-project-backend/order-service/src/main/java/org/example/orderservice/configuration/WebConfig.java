@@ -1,8 +1,12 @@
 package org.example.orderservice.configuration;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 @Configuration
 public class WebConfig {
@@ -10,13 +14,30 @@ public class WebConfig {
     private static String PRODUCT_SERVICE_URL = "http://localhost:8060/products" ;
     private static String USER_SERVICE_URL = "http://localhost:8080/users" ;
 
+    // shared by both clients. the default pool lets only a few dozen requests wait for a connection,
+    // checkouts that do not hold a thread keep many more in flight
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider connectionProvider(@Value("${order.client.max-connections:500}") int maxConnections) {
+        return ConnectionProvider.builder("order-clients")
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(-1)
+                .build();
+    }
+
     @Bean
-    public WebClient productClient() {
-        return WebClient.create(PRODUCT_SERVICE_URL);
+    public WebClient productClient(ConnectionProvider connectionProvider) {
+        return client(PRODUCT_SERVICE_URL, connectionProvider);
     }
 
     @Bean
-    public WebClient userClient() {
-        return WebClient.create(USER_SERVICE_URL);
+    public WebClient userClient(ConnectionProvider connectionProvider) {
+        return client(USER_SERVICE_URL, connectionProvider);
+    }
+
+    private WebClient client(String baseUrl, ConnectionProvider connectionProvider) {
+        return WebClient.builder()
+                .baseUrl(baseUrl)
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connectionProvider)))
+                .build();
     }
 }
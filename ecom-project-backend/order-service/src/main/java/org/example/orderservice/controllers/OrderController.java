@@ -14,6 +14,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
 
 import java.util.HashMap;
 import java.util.List;
@@ -34,18 +35,21 @@ public class OrderController {
     }
 
 
-    // create order
+    // create order. a client that retries sends the same Idempotency-Key and gets the order of its first attempt back
     @PostMapping("/createOrder")
-    public ResponseEntity<Object> createOrder(@RequestBody @Valid OrderRequestBody orderRequestBody, HttpServletRequest request) {
+    public ResponseEntity<Object> createOrder(@RequestBody @Valid OrderRequestBody orderRequestBody,
+                                              @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+                                              HttpServletRequest request) {
         try {
             String token = orderService.extractTokenFromRequest(request);
 
             int userId = JwtUtil.getUserIdFromToken(token);
 
-            orderService.createOrder(userId, orderRequestBody);
+            Order order = orderService.createOrder(userId, orderRequestBody, idempotencyKey);
 
             Map<String, Object> response = new HashMap<>();
             response.put("message", "Order placed successfully");
+            response.put("orderId", order.getId());
 
             return new ResponseEntity<>(response, HttpStatus.CREATED);
         } catch (Exception exception) {
@@ -56,6 +60,32 @@ public class OrderController {
 
     }
 
+    // create order without holding the request thread: spring hands the request back to tomcat when the mono is
+    // returned and answers it once the order is placed, so waiting checkouts cost no thread each
+    @PostMapping("/createOrderReactive")
+    public Mono<ResponseEntity<Object>> createOrderReactive(@RequestBody @Valid OrderRequestBody orderRequestBody,
+                                                            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+                                                            HttpServletRequest request) {
+        try {
+            String token = orderService.extractTokenFromRequest(request);
+
+            int userId = JwtUtil.getUserIdFromToken(token);
+
+            return orderService.placeOrder(userId, orderRequestBody, idempotencyKey)
+                    .map(order -> {
+                        Map<String, Object> response = new HashMap<>();
+                        response.put("message", "Order placed successfully");
+                        response.put("orderId", order.getId());
+
+                        return new ResponseEntity<Object>(response, HttpStatus.CREATED);
+                    })
+                    .doOnError(exception -> logger.error("createOrderReactive - error while creating order : {}", exception.getMessage()));
+        } catch (Exception exception) {
+            logger.error("createOrderReactive - error while creating order : {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
     // get all orders
     @GetMapping("/all")
     public ResponseEntity<Object> getAllOrders(HttpServletRequest request) {
@@ -6,6 +6,7 @@ import lombok.Data;
 @Data
 public class ProductBody {
 
+    private String id;
     private String name;
     private String category;
     private String img;
@@ -1,10 +0,0 @@
-package org.example.orderservice.dto;
-
-
-import lombok.Data;
-
-@Data
-public class ProductUpdateBody {
-
-    private String quantity;
-}
@@ -0,0 +1,23 @@
+package org.example.orderservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.example.orderservice.entities.StockMovementType;
+
+// a stock movement as product-service takes it. the id stays the same on every delivery, so product-service applies
+// the movement once however often it is sent
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockMovementBody {
+
+    private String id;
+
+    private StockMovementType type;
+
+    private String owner;
+
+    private int quantity;
+
+}
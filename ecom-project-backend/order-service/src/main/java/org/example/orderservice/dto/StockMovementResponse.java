@@ -0,0 +1,13 @@
+package org.example.orderservice.dto;
+
+import lombok.Data;
+
+import java.util.Map;
+
+// product-service's answer to a batch of stock movements: the outcome of each one by its id
+@Data
+public class StockMovementResponse {
+
+    private Map<String, String> outcomes;
+
+}
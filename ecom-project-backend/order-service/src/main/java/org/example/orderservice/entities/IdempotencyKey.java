@@ -0,0 +1,33 @@
+package org.example.orderservice.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+
+// the Idempotency-Key a user sent with a checkout and the order it placed. the unique key lets only one request place
+// the order, the ones sent again while it runs or after it are answered from here. removed once expired
+@Data
+@Entity(name = "idempotency_keys")
+@Table(uniqueConstraints = @UniqueConstraint(name = "user_key", columnNames = {"userId", "idempotencyKey"}),
+        indexes = @Index(name = "expires", columnList = "expiresAt"))
+public class IdempotencyKey {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    private int userId;
+
+    private String idempotencyKey;
+
+    // fingerprint of the request body, the same key with another body is refused
+    private String requestHash;
+
+    // null while the order is being placed
+    private Integer orderId;
+
+    private LocalDateTime createdAt;
+
+    private LocalDateTime expiresAt;
+}
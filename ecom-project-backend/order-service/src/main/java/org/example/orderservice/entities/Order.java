@@ -13,8 +13,10 @@ import java.util.List;
 @Data
 @Entity(name = "orders")
 public class Order {
+    // ids come from a sequence a block at a time instead of from the insert, so hibernate can batch the inserts
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "orders_seq")
+    @SequenceGenerator(name = "orders_seq", allocationSize = 50)
     private int id;
 
     @NotNull(message = "User id field cannot be empty")
@@ -7,12 +7,15 @@ import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
 import jakarta.validation.constraints.Positive;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 
 @Data
 @Entity
 public class OrderItem {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "order_item_seq")
+    @SequenceGenerator(name = "order_item_seq", allocationSize = 50)
     private int id;
 
     @NotNull(message = "Product field cannot be null")
@@ -38,7 +41,10 @@ public class OrderItem {
     @Min(value = 1, message = "Quantity should be greater than 0")
     private int quantity;
 
+    // left out of equals, hashCode and toString, the order lists its items and would go round in circles
     @ManyToOne
     @JsonIgnore
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
     private Order order;
 }
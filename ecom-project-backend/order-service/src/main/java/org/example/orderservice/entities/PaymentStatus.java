@@ -3,5 +3,7 @@ package org.example.orderservice.entities;
 
 public enum PaymentStatus {
     PENDING,
-    PAID
+    PAID,
+    // paid for an order that was cancelled
+    REFUNDED
 }
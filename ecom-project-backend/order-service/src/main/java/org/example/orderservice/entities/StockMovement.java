@@ -0,0 +1,44 @@
+package org.example.orderservice.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+
+// outbox row of a stock change product-service still has to apply. written in the same transaction as the order it
+// belongs to, so an order never exists without its stock movements, and delivered by StockOutboxRelay
+@Data
+@Entity(name = "stock_outbox")
+@Table(indexes = @Index(name = "pending", columnList = "deliveredAt, nextAttemptAt"))
+public class StockMovement {
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "stock_outbox_seq")
+    @SequenceGenerator(name = "stock_outbox_seq", allocationSize = 50)
+    private long id;
+
+    private int orderId;
+
+    private String productId;
+
+    @Enumerated(EnumType.STRING)
+    private StockMovementType type;
+
+    // the hold a confirm takes from
+    private String owner;
+
+    private int quantity;
+
+    private LocalDateTime createdAt;
+
+    // null while the movement is pending
+    private LocalDateTime deliveredAt;
+
+    // a relay claims a movement by moving this past the time it needs to deliver it, failed attempts back off with it
+    private LocalDateTime nextAttemptAt;
+
+    private int attempts;
+
+    // why the last attempt failed, or why a delivered movement moved no stock
+    private String lastError;
+}
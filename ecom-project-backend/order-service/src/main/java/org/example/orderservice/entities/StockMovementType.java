@@ -0,0 +1,8 @@
+package org.example.orderservice.entities;
+
+public enum StockMovementType {
+    // take the stock of an order line out of the user's hold
+    CONFIRM,
+    // give stock back, for lines of an order that was cancelled
+    RESTOCK
+}
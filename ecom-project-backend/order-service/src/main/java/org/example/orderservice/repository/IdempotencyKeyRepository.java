@@ -0,0 +1,42 @@
+package org.example.orderservice.repository;
+
+import org.example.orderservice.entities.IdempotencyKey;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+
+@Repository
+public interface IdempotencyKeyRepository extends JpaRepository<IdempotencyKey, Long> {
+
+    Optional<IdempotencyKey> findByUserIdAndIdempotencyKey(int userId, String idempotencyKey);
+
+    // 1 when this request took over a key whose request stopped without placing the order, 0 when another one did
+    @Modifying
+    @Transactional
+    @Query("update idempotency_keys k set k.createdAt = :now where k.id = :id and k.orderId is null and k.createdAt < :staleBefore")
+    int takeOver(@Param("id") long id, @Param("now") LocalDateTime now, @Param("staleBefore") LocalDateTime staleBefore);
+
+    // 1 when the key still belongs to the request that reserved it at createdAt, 0 when another one took it over since
+    @Modifying
+    @Transactional
+    @Query("update idempotency_keys k set k.orderId = :orderId where k.id = :id and k.orderId is null and k.createdAt = :createdAt")
+    int complete(@Param("id") long id, @Param("orderId") int orderId, @Param("createdAt") LocalDateTime createdAt);
+
+    @Modifying
+    @Transactional
+    @Query("delete from idempotency_keys k where k.id = :id and k.orderId is null and k.createdAt = :createdAt")
+    int release(@Param("id") long id, @Param("createdAt") LocalDateTime createdAt);
+
+    @Modifying
+    @Transactional
+    @Query("delete from idempotency_keys k where k.expiresAt < :now")
+    int deleteExpired(@Param("now") LocalDateTime now);
+
+}
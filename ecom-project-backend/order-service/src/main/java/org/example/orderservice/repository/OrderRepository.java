@@ -1,14 +1,24 @@
 package org.example.orderservice.repository;
 
+import jakarta.persistence.LockModeType;
 import org.example.orderservice.entities.Order;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
+import java.util.Optional;
 
 
 @Repository
 public interface OrderRepository extends JpaRepository<Order,Integer> {
     List<Order> findByUserId(int userId);
 
+    // select ... for update: the order stays locked until the transaction ends
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select o from orders o where o.id = :id")
+    Optional<Order> findByIdForUpdate(@Param("id") int id);
+
 }
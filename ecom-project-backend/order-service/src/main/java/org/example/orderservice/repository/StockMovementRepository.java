@@ -0,0 +1,31 @@
+package org.example.orderservice.repository;
+
+import org.example.orderservice.entities.StockMovement;
+import org.example.orderservice.entities.StockMovementType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+
+@Repository
+public interface StockMovementRepository extends JpaRepository<StockMovement, Long> {
+
+    // pending movements that are due, oldest first
+    List<StockMovement> findByDeliveredAtIsNullAndNextAttemptAtLessThanEqualOrderByIdAsc(LocalDateTime now, Pageable pageable);
+
+    List<StockMovement> findByOrderIdAndType(int orderId, StockMovementType type);
+
+    // 1 when this relay got the movement, 0 when another one claimed it first
+    @Modifying
+    @Transactional
+    @Query("update stock_outbox m set m.nextAttemptAt = :claimedUntil where m.id = :id and m.deliveredAt is null and m.nextAttemptAt <= :now")
+    int claim(@Param("id") long id, @Param("now") LocalDateTime now, @Param("claimedUntil") LocalDateTime claimedUntil);
+
+}
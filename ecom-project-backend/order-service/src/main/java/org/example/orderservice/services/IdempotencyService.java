@@ -0,0 +1,140 @@
+package org.example.orderservice.services;
+
+import org.example.orderservice.dto.OrderRequestBody;
+import org.example.orderservice.entities.IdempotencyKey;
+import org.example.orderservice.exception.customExceptions.BaseException;
+import org.example.orderservice.repository.IdempotencyKeyRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.HexFormat;
+
+
+// Idempotency-Key support for checkouts. The first request with a key stores it before placing the order, the order
+// fills it in the transaction it is written in, and a request sent again with the key gets that order back without
+// calling user-service or product-service. A failed checkout gives its key back so the client can retry it.
+@Service
+public class IdempotencyService {
+
+    static final int MAX_KEY_LENGTH = 255;
+    // a key still without an order after this long belongs to a request that died, the next one with it takes over
+    static final Duration IN_PROGRESS_TIMEOUT = Duration.ofMinutes(1);
+
+    private final IdempotencyKeyRepository idempotencyKeyRepository;
+    private final Duration ttl;
+    private final Clock clock;
+
+    private Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public IdempotencyService(IdempotencyKeyRepository idempotencyKeyRepository, @Value("${order.idempotency.ttl-hours:24}") long ttlHours) {
+        this(idempotencyKeyRepository, Duration.ofHours(ttlHours), Clock.systemDefaultZone());
+    }
+
+    IdempotencyService(IdempotencyKeyRepository idempotencyKeyRepository, Duration ttl, Clock clock) {
+        this.idempotencyKeyRepository = idempotencyKeyRepository;
+        this.ttl = ttl;
+        this.clock = clock;
+    }
+
+
+    // the key to place the order under, or the key of the order an earlier request placed with it when its order id is set
+    public IdempotencyKey reserve(int userId, String key, OrderRequestBody orderRequestBody) {
+        if (key.isBlank() || key.length() > MAX_KEY_LENGTH) {
+            logger.error("reserve - Invalid idempotency key");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Idempotency key should have 1 to " + MAX_KEY_LENGTH + " characters");
+        }
+
+        String requestHash = fingerprint(orderRequestBody);
+        // complete and release match the key on it, so it is kept at a precision the column stores exactly
+        LocalDateTime now = LocalDateTime.now(clock).truncatedTo(ChronoUnit.MILLIS);
+
+        IdempotencyKey reservation = new IdempotencyKey();
+        reservation.setUserId(userId);
+        reservation.setIdempotencyKey(key);
+        reservation.setRequestHash(requestHash);
+        reservation.setCreatedAt(now);
+        reservation.setExpiresAt(now.plus(ttl));
+
+        try {
+            return idempotencyKeyRepository.saveAndFlush(reservation);
+        } catch (DataIntegrityViolationException exception) {
+            // an earlier request has the key
+            IdempotencyKey existing = idempotencyKeyRepository.findByUserIdAndIdempotencyKey(userId, key).orElse(null);
+            if (existing == null) {
+                // given back in between
+                logger.error("reserve - idempotency key {} released while reserving", key);
+                throw new BaseException(HttpStatus.CONFLICT, "A request with this idempotency key is in progress");
+            }
+            if (!existing.getRequestHash().equals(requestHash)) {
+                logger.error("reserve - idempotency key {} reused with another request", key);
+                throw new BaseException(HttpStatus.UNPROCESSABLE_ENTITY, "Idempotency key was already used with another request");
+            }
+            if (existing.getOrderId() != null) {
+                return existing;
+            }
+            if (idempotencyKeyRepository.takeOver(existing.getId(), now, now.minus(IN_PROGRESS_TIMEOUT)) == 1) {
+                existing.setCreatedAt(now);
+                return existing;
+            }
+            logger.error("reserve - idempotency key {} in progress", key);
+            throw new BaseException(HttpStatus.CONFLICT, "A request with this idempotency key is in progress");
+        }
+    }
+
+    // runs inside the transaction that writes the order, so the key and its order are stored together. A request that
+    // was taken over for being stale fails here and its order is rolled back, the one that took the key over places it
+    public void complete(IdempotencyKey reservation, int orderId) {
+        if (idempotencyKeyRepository.complete(reservation.getId(), orderId, reservation.getCreatedAt()) == 0) {
+            logger.error("complete - idempotency key {} taken over by another request", reservation.getIdempotencyKey());
+            throw new BaseException(HttpStatus.CONFLICT, "A request with this idempotency key is in progress");
+        }
+        reservation.setOrderId(orderId);
+    }
+
+    // the checkout failed, the key may be used again unless another request took it over in the meantime
+    public void release(IdempotencyKey reservation) {
+        try {
+            idempotencyKeyRepository.release(reservation.getId(), reservation.getCreatedAt());
+        } catch (Exception exception) {
+            // the key is taken over once it is stale
+            logger.error("release - {}", exception.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${order.idempotency.cleanup-interval-ms:3600000}")
+    public void removeExpired() {
+        try {
+            int removed = idempotencyKeyRepository.deleteExpired(LocalDateTime.now(clock));
+            if (removed > 0) {
+                logger.info("removeExpired - removed {} idempotency keys", removed);
+            }
+        } catch (Exception exception) {
+            logger.error("removeExpired - {}", exception.getMessage());
+        }
+    }
+
+    // lombok's toString lists every field of the body and its items in a fixed order
+    static String fingerprint(OrderRequestBody orderRequestBody) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(orderRequestBody.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+}
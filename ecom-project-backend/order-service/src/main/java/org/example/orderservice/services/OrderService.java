@@ -3,44 +3,73 @@ package org.example.orderservice.services;
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
 import org.example.orderservice.dto.*;
+import org.example.orderservice.entities.IdempotencyKey;
 import org.example.orderservice.entities.Order;
 import org.example.orderservice.entities.OrderItem;
 import org.example.orderservice.entities.OrderStatus;
 import org.example.orderservice.entities.PaymentStatus;
+import org.example.orderservice.entities.StockMovement;
+import org.example.orderservice.entities.StockMovementType;
 import org.example.orderservice.exception.customExceptions.BaseException;
-import org.example.orderservice.repository.OrderItemRepository;
 import org.example.orderservice.repository.OrderRepository;
+import org.example.orderservice.repository.StockMovementRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.function.Tuple3;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeoutException;
 
 
 
 @Service
 public class OrderService {
     private final OrderRepository orderRepository;
-    private final OrderItemRepository orderItemRepository;
 
     private Logger logger = LoggerFactory.getLogger(Logger.class);
 
     private final WebClient productClient;
     private final WebClient userClient;
 
+    // deadline for all lookups of one order together
+    private final Duration lookupTimeout;
+
+    // where the blocking jpa calls of an order run
+    private final Scheduler jdbcScheduler;
+
+    private final StockMovementRepository stockMovementRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final IdempotencyService idempotencyService;
+    private final StockOutboxRelay stockOutboxRelay;
+
     @Autowired
-    public OrderService(WebClient userClient, WebClient productClient, OrderRepository orderRepository, OrderItemRepository orderItemRepository) {
+    public OrderService(WebClient userClient, WebClient productClient, OrderRepository orderRepository,
+                        StockMovementRepository stockMovementRepository, TransactionTemplate transactionTemplate, Scheduler jdbcScheduler,
+                        IdempotencyService idempotencyService, StockOutboxRelay stockOutboxRelay,
+                        @Value("${order.lookup.timeout-ms:5000}") long lookupTimeoutMs) {
+        this.idempotencyService = idempotencyService;
+        this.stockOutboxRelay = stockOutboxRelay;
+        this.stockMovementRepository = stockMovementRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.jdbcScheduler = jdbcScheduler;
+        this.lookupTimeout = Duration.ofMillis(lookupTimeoutMs);
         this.orderRepository = orderRepository;
-        this.orderItemRepository = orderItemRepository;
         this.userClient = userClient;
         this.productClient = productClient;
     }
@@ -72,139 +101,81 @@ public class OrderService {
 
 
     // get payment method from user-service
-    public PaymentBody getPaymentDetails(int paymentMethodId) {
-        try {
-            return userClient.get()
-                    .uri(uriBuilder -> uriBuilder.pathSegment("paymentMethods", "{paymentMethodId}", "string").build(paymentMethodId))
-                    .retrieve()
-                    .onStatus(HttpStatusCode::is5xxServerError,
-                            error -> Mono.error(new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, "Service down. Try again later.")))
-                    .onStatus(HttpStatusCode::is4xxClientError,
-                            error -> Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Invalid payment method id")))
-                    .bodyToMono(PaymentBody.class).block();
-
-
-        } catch (BaseException exception) {
-            throw exception;
-        } catch (Exception exception) {
-            logger.error("getPaymentDetails - error while fetching payment details : {}", exception.getMessage());
-            throw exception;
-        }
+    private Mono<PaymentBody> getPaymentDetails(int paymentMethodId) {
+        return userClient.get()
+                .uri(uriBuilder -> uriBuilder.pathSegment("paymentMethods", "{paymentMethodId}", "string").build(paymentMethodId))
+                .retrieve()
+                .onStatus(HttpStatusCode::is5xxServerError,
+                        error -> Mono.error(new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, "Service down. Try again later.")))
+                .onStatus(HttpStatusCode::is4xxClientError,
+                        error -> Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Invalid payment method id")))
+                .bodyToMono(PaymentBody.class)
+                .doOnError(exception -> !(exception instanceof BaseException),
+                        exception -> logger.error("getPaymentDetails - error while fetching payment details : {}", exception.getMessage()));
     }
 
     // get address from user-service
-    private AddressBody getAddressDetails(int addressId) {
-        try {
-            return userClient.get()
-                    .uri(uriBuilder -> uriBuilder.pathSegment("addresses", "{addressId}", "string").build(addressId))
-                    .retrieve()
-                    .onStatus(HttpStatusCode::is5xxServerError,
-                            error -> Mono.error(new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, "Service down. Try again later.")))
-                    .onStatus(HttpStatusCode::is4xxClientError,
-                            error -> Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Invalid address id")))
-                    .bodyToMono(AddressBody.class).block();
-
-
-        } catch (BaseException exception) {
-            throw exception;
-        } catch (Exception exception) {
-            logger.error("getAddressDetails - error while fetching address : {}", exception.getMessage());
-            throw exception;
-        }
+    private Mono<AddressBody> getAddressDetails(int addressId) {
+        return userClient.get()
+                .uri(uriBuilder -> uriBuilder.pathSegment("addresses", "{addressId}", "string").build(addressId))
+                .retrieve()
+                .onStatus(HttpStatusCode::is5xxServerError,
+                        error -> Mono.error(new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, "Service down. Try again later.")))
+                .onStatus(HttpStatusCode::is4xxClientError,
+                        error -> Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Invalid address id")))
+                .bodyToMono(AddressBody.class)
+                .doOnError(exception -> !(exception instanceof BaseException),
+                        exception -> logger.error("getAddressDetails - error while fetching address : {}", exception.getMessage()));
     }
 
-    // get product details from product-service
-    private ProductBody getProductDetails(String productId) {
-        try {
-            return productClient.get()
-                    .uri(uriBuilder -> uriBuilder.pathSegment("products", "{productId}", "detailsForOrder").build(productId))
-                    .retrieve()
-                    .onStatus(HttpStatusCode::is5xxServerError,
-                            error -> Mono.error(new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, "Service down. Try again later.")))
-                    .onStatus(HttpStatusCode::is4xxClientError,
-                            error -> Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Invalid product id")))
-                    .bodyToMono(ProductBody.class).block();
-
-
-        } catch (BaseException exception) {
-            throw exception;
-        } catch (Exception exception) {
-            logger.error("getAddressDetails - error while fetching address : {}", exception.getMessage());
-            throw exception;
-        }
+    // get details of every product of an order from product-service in one request, keyed by product id
+    private Mono<Map<String, ProductBody>> getProductDetails(List<String> productIds) {
+        return productClient.post()
+                .uri(uriBuilder -> uriBuilder.pathSegment("products", "detailsForOrder").build())
+                .body(BodyInserters.fromValue(productIds))
+                .retrieve()
+                .onStatus(HttpStatusCode::is5xxServerError,
+                        error -> Mono.error(new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, "Service down. Try again later.")))
+                .onStatus(HttpStatusCode::is4xxClientError,
+                        error -> Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Invalid product id")))
+                .bodyToFlux(ProductBody.class)
+                .collectMap(ProductBody::getId)
+                .doOnError(exception -> !(exception instanceof BaseException),
+                        exception -> logger.error("getProductDetails - error while fetching product details : {}", exception.getMessage()));
     }
 
-    // change quantity using product-service
-    private void updateQuantity(String productId, int quantity) {
-        try {
-            ProductUpdateBody productUpdateBody = new ProductUpdateBody();
-            productUpdateBody.setQuantity("" + quantity);
-            productClient.post()
-
-                    .uri(uriBuilder -> uriBuilder.pathSegment("products", "{productId}", "updateQuantity").build(productId))
-                    .body(BodyInserters.fromValue(productUpdateBody))
-                    .retrieve()
-
-                    .toBodilessEntity()
-                    .subscribe(
-                            responseEntity -> {
-                                // Success response handled here
-                                HttpStatusCode status = responseEntity.getStatusCode();
-                                System.out.println(status);
-                            },
-
-                            error -> {
-                                throw new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, error.getMessage());
-                            }
-                    );
-
-        } catch (BaseException exception) {
-            throw exception;
-        } catch (Exception exception) {
-            logger.error("getAddressDetails - error while fetching address : {}", exception.getMessage());
-            throw exception;
-        }
+    // the lookups of an order do not depend on each other, so they run at the same time and the order waits for the slowest
+    // one. zip cancels the others as soon as one fails, and the timeout bounds the whole fan-out
+    private Mono<Tuple3<Map<String, ProductBody>, AddressBody, PaymentBody>> getOrderDetails(OrderRequestBody orderRequestBody) {
+        return Mono.zip(
+                        getProductDetails(orderRequestBody.getOrderItemList().stream().map(OrderItemRequestBody::getProductId).distinct().toList()),
+                        getAddressDetails(orderRequestBody.getAddressId()),
+                        getPaymentDetails(orderRequestBody.getPaymentMethodId()))
+                .timeout(lookupTimeout)
+                .onErrorMap(TimeoutException.class, exception -> {
+                    logger.error("getOrderDetails - no answer within {} ms", lookupTimeout.toMillis());
+                    return new BaseException(HttpStatus.GATEWAY_TIMEOUT, "Service down. Try again later.");
+                })
+                // an empty body from any of them
+                .switchIfEmpty(Mono.error(() -> {
+                    logger.error("getOrderDetails - empty response while fetching order details");
+                    return new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, "Service down. Try again later.");
+                }));
     }
 
-
-    // create order
-    public void createOrder(int userId, OrderRequestBody orderRequestBody) {
-
-        try {
-            if (orderRequestBody.getAddressId() == 0) {
-                throw new BaseException(HttpStatus.BAD_REQUEST, "Address id field cannot be empty");
-
-            }
-
-            if (orderRequestBody.getPaymentMethodId() == 0) {
-                throw new BaseException(HttpStatus.BAD_REQUEST, "Payment method id field cannot be empty");
-
-            }
-
-            // creating new order
-            Order order = new Order();
-            order.setUserId(userId);
-            order.setAddressDetails(getAddressDetails(orderRequestBody.getAddressId()).getAddressDetails());
-            order.setPaymentDetails(getPaymentDetails(orderRequestBody.getPaymentMethodId()).getPaymentDetails());
-            order.setOrderStatus(OrderStatus.PLACED);
-            order.setPaymentStatus(PaymentStatus.PAID);
-            order.setOrderDate(LocalDateTime.now());
-            order.setTotalPrice(0.01);
-
-            orderRepository.save(order);
-
+    // the order, its items and the stock movements of its lines in one transaction, so an order is never stored without
+    // the stock it takes, nor the other way round. the idempotency key, if any, is given its order in the same transaction.
+    // the items are persisted with the order and all ids come from sequences, so nothing is inserted before the commit,
+    // where hibernate sends the rows of each table as one batch. jpa blocks, so this only runs on jdbcScheduler
+    private Order saveOrder(Order order, List<OrderItemRequestBody> orderItemRequests, Map<String, ProductBody> products,
+                            IdempotencyKey reservation) {
+        return transactionTemplate.execute(status -> {
             double totalPrice = 0.0;
 
-            for (OrderItemRequestBody orderItemRequest : orderRequestBody.getOrderItemList()) {
+            for (OrderItemRequestBody orderItemRequest : orderItemRequests) {
                 OrderItem orderItem = new OrderItem();
 
-                // fetching individual product details
-                ProductBody productDetails = getProductDetails(orderItemRequest.getProductId());
-                if (productDetails.getQuantity() < orderItemRequest.getQuantity()) {
-                    orderRepository.deleteById(order.getId());
-                    logger.error("createOrder : error while saving order - {}", productDetails.getName() + " has limited stock");
-                    throw new BaseException(HttpStatus.BAD_REQUEST, productDetails.getName() + " has limited stock");
-                }
+                ProductBody productDetails = products.get(orderItemRequest.getProductId());
 
                 // setting order item details
                 orderItem.setImg(productDetails.getImg());
@@ -213,32 +184,127 @@ public class OrderService {
                 orderItem.setPrice(productDetails.getPrice());
                 orderItem.setProductId(orderItemRequest.getProductId());
                 orderItem.setQuantity(orderItemRequest.getQuantity());
-                orderItem.setPrice(productDetails.getPrice());
                 orderItem.setOrder(order);
                 orderItem.setSize(orderItemRequest.getSize());
 
                 totalPrice+=productDetails.getPrice();
 
+                order.getOrderItems().add(orderItem);
+            }
+            order.setTotalPrice(totalPrice*1.1);
 
-                // save order item
-                orderItemRepository.save(orderItem);
+            // save order, its items cascade
+            Order saved = orderRepository.save(order);
+
+            // the stock of every line is taken out of the user's hold by confirmStock once this commits. the confirms are
+            // written claimed for as long as a relay claims them, so the scheduled relay only sends them if the checkout
+            // stopped before it did
+            LocalDateTime now = LocalDateTime.now();
+            List<StockMovement> stockMovements = new ArrayList<>(orderItemRequests.size());
+            for (OrderItemRequestBody orderItemRequest : orderItemRequests) {
+                StockMovement stockMovement = new StockMovement();
+                stockMovement.setOrderId(saved.getId());
+                stockMovement.setProductId(orderItemRequest.getProductId());
+                stockMovement.setType(StockMovementType.CONFIRM);
+                stockMovement.setOwner("user:" + saved.getUserId());
+                stockMovement.setQuantity(orderItemRequest.getQuantity());
+                stockMovement.setCreatedAt(now);
+                stockMovement.setNextAttemptAt(now.plus(StockOutboxRelay.CLAIM_DURATION));
+                stockMovements.add(stockMovement);
+            }
+            stockMovementRepository.saveAll(stockMovements);
 
-                // update quantity after order item is saved
-                updateQuantity(orderItemRequest.getProductId(), productDetails.getQuantity() - orderItemRequest.getQuantity());
+            if (reservation != null) {
+                idempotencyService.complete(reservation, saved.getId());
+            }
+            return saved;
+        });
+    }
 
 
+    // the cart's holds become the order's stock before the order is acknowledged, since the cart is cleared right after
+    // and gives back whatever it still holds. an order that did not get the stock of every line is cancelled and
+    // refused. the relay blocks on product-service, so this only runs on jdbcScheduler
+    private Order confirmStock(Order order, Map<String, ProductBody> products) {
+        StockOutboxRelay.Confirmation confirmation = stockOutboxRelay.confirmOrder(order.getId());
 
-            }
-            order.setTotalPrice(totalPrice*1.1);
-            orderRepository.save(order);
-        } catch (BaseException exception) {
-            throw exception;
-        } catch (Exception exception) {
-            logger.error("createOrder : error while saving order - {}", exception.getMessage());
-            throw exception;
+        if (!confirmation.rejectedProductIds().isEmpty()) {
+            String productName = products.get(confirmation.rejectedProductIds().get(0)).getName();
+            logger.error("createOrder : error while saving order - {}", productName + " has limited stock");
+            throw new BaseException(HttpStatus.BAD_REQUEST, productName + " has limited stock");
+        }
+
+        if (!confirmation.delivered()) {
+            logger.error("createOrder : error while saving order - stock of order {} not confirmed", order.getId());
+            throw new BaseException(HttpStatus.INTERNAL_SERVER_ERROR, "Service down. Try again later.");
         }
+        return order;
+    }
+
 
+    // place an order without blocking the calling thread. the web calls complete on the http client's event loop and the
+    // jpa writes run on jdbcScheduler, so a waiting checkout holds no thread at all. the stock is not moved before the
+    // order is stored: the cart's holds already took it off the products, and they are confirmed through the outbox
+    // right after, before the order is acknowledged
+    public Mono<Order> placeOrder(int userId, OrderRequestBody orderRequestBody) {
+        return placeOrder(userId, orderRequestBody, null);
+    }
+
+    // place an order once per idempotency key. a request sent again with the key gets the order the first one placed,
+    // without any lookup; without a key every request places an order
+    public Mono<Order> placeOrder(int userId, OrderRequestBody orderRequestBody, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return placeNewOrder(userId, orderRequestBody, null);
+        }
+
+        return Mono.fromCallable(() -> idempotencyService.reserve(userId, idempotencyKey, orderRequestBody)).subscribeOn(jdbcScheduler)
+                .flatMap(reservation -> {
+                    if (reservation.getOrderId() != null) {
+                        logger.info("placeOrder - order {} placed before with idempotency key {}", reservation.getOrderId(), idempotencyKey);
+                        return Mono.fromCallable(() -> getOrderById(userId, reservation.getOrderId())).subscribeOn(jdbcScheduler);
+                    }
+                    return placeNewOrder(userId, orderRequestBody, reservation)
+                            .onErrorResume(exception -> Mono.fromRunnable(() -> idempotencyService.release(reservation))
+                                    .subscribeOn(jdbcScheduler)
+                                    .then(Mono.error(exception)));
+                });
+    }
+
+    private Mono<Order> placeNewOrder(int userId, OrderRequestBody orderRequestBody, IdempotencyKey reservation) {
+        if (orderRequestBody.getAddressId() == 0) {
+            return Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Address id field cannot be empty"));
+        }
+
+        if (orderRequestBody.getPaymentMethodId() == 0) {
+            return Mono.error(new BaseException(HttpStatus.BAD_REQUEST, "Payment method id field cannot be empty"));
+        }
+
+        // fetching the products, address and payment method of the order at once
+        return getOrderDetails(orderRequestBody).flatMap(details -> {
+            Map<String, ProductBody> products = details.getT1();
+
+            // creating new order
+            Order order = new Order();
+            order.setUserId(userId);
+            order.setAddressDetails(details.getT2().getAddressDetails());
+            order.setPaymentDetails(details.getT3().getPaymentDetails());
+            order.setOrderStatus(OrderStatus.PLACED);
+            order.setPaymentStatus(PaymentStatus.PAID);
+            order.setOrderDate(LocalDateTime.now());
+
+            return Mono.fromCallable(() -> saveOrder(order, orderRequestBody.getOrderItemList(), products, reservation)).subscribeOn(jdbcScheduler)
+                    .flatMap(saved -> Mono.fromCallable(() -> confirmStock(saved, products)).subscribeOn(jdbcScheduler));
+        }).doOnError(exception -> !(exception instanceof BaseException),
+                exception -> logger.error("createOrder : error while saving order - {}", exception.getMessage()));
+    }
+
+    // create order, on the calling thread
+    public void createOrder(int userId, OrderRequestBody orderRequestBody) {
+        createOrder(userId, orderRequestBody, null);
+    }
 
+    public Order createOrder(int userId, OrderRequestBody orderRequestBody, String idempotencyKey) {
+        return placeOrder(userId, orderRequestBody, idempotencyKey).block();
     }
 
 
@@ -0,0 +1,281 @@
+package org.example.orderservice.services;
+
+import org.example.orderservice.dto.StockMovementBody;
+import org.example.orderservice.dto.StockMovementResponse;
+import org.example.orderservice.entities.Order;
+import org.example.orderservice.entities.OrderStatus;
+import org.example.orderservice.entities.PaymentStatus;
+import org.example.orderservice.entities.StockMovement;
+import org.example.orderservice.entities.StockMovementType;
+import org.example.orderservice.repository.OrderRepository;
+import org.example.orderservice.repository.StockMovementRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+// Delivers the stock outbox to product-service. Due movements are read a batch at a time, grouped by product, and
+// claimed and sent as one request per product. product-service answers an outcome per movement and does not apply an id twice, so a
+// movement sent again after a failed attempt or a crash moves the stock once. Failed attempts back off up to MAX_BACKOFF
+// and are retried until they get through.
+@Component
+public class StockOutboxRelay {
+
+    static final int RELAY_BATCH_SIZE = 100;
+    // how long other relays leave a claimed movement alone, well over REQUEST_TIMEOUT
+    static final Duration CLAIM_DURATION = Duration.ofSeconds(30);
+    static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    static final String APPLIED = "APPLIED";
+    static final String INSUFFICIENT_STOCK = "INSUFFICIENT_STOCK";
+    static final String PRODUCT_NOT_FOUND = "PRODUCT_NOT_FOUND";
+
+    private final WebClient productClient;
+    private final StockMovementRepository stockMovementRepository;
+    private final OrderRepository orderRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final Clock clock;
+
+    private Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public StockOutboxRelay(WebClient productClient, StockMovementRepository stockMovementRepository, OrderRepository orderRepository,
+                            TransactionTemplate transactionTemplate) {
+        this(productClient, stockMovementRepository, orderRepository, transactionTemplate, Clock.systemDefaultZone());
+    }
+
+    StockOutboxRelay(WebClient productClient, StockMovementRepository stockMovementRepository, OrderRepository orderRepository,
+                     TransactionTemplate transactionTemplate, Clock clock) {
+        this.productClient = productClient;
+        this.stockMovementRepository = stockMovementRepository;
+        this.orderRepository = orderRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.clock = clock;
+    }
+
+
+    @Scheduled(fixedDelayString = "${order.outbox.relay-interval-ms:1000}")
+    public void relay() {
+        try {
+            int delivered = relayPending();
+            if (delivered > 0) {
+                logger.info("relay - delivered {} stock movements", delivered);
+            }
+        } catch (Exception exception) {
+            // whatever is left is picked up by the next run
+            logger.error("relay - {}", exception.getMessage());
+        }
+    }
+
+    // returns how many movements were delivered
+    public int relayPending() {
+        int delivered = 0;
+
+        while (true) {
+            LocalDateTime now = LocalDateTime.now(clock);
+            List<StockMovement> due = stockMovementRepository.findByDeliveredAtIsNullAndNextAttemptAtLessThanEqualOrderByIdAsc(now,
+                    PageRequest.of(0, RELAY_BATCH_SIZE));
+
+            // each product's movements are claimed right before they are sent, so a claim only has to outlast one request
+            // and never runs out while earlier products of the batch are still being delivered
+            for (Map.Entry<String, List<StockMovement>> product : byProduct(due).entrySet()) {
+                List<StockMovement> claimed = claim(product.getValue());
+                if (!claimed.isEmpty()) {
+                    delivered += deliver(product.getKey(), claimed);
+                }
+            }
+
+            // failed and claimed movements are no longer due, so this ends
+            if (due.size() < RELAY_BATCH_SIZE) {
+                return delivered;
+            }
+        }
+    }
+
+    // delivers the confirms of an order that was just stored, for the checkout to answer with. they are written already
+    // claimed (see OrderService.saveOrder), so no other relay sends them in the meantime. an order that did not get the
+    // stock of every line is cancelled, also when product-service could not be reached, so a checkout is only ever
+    // acknowledged with its stock taken. confirms still undelivered are sent by the scheduled runs and given back then
+    public Confirmation confirmOrder(int orderId) {
+        List<StockMovement> movements = stockMovementRepository.findByOrderIdAndType(orderId, StockMovementType.CONFIRM);
+        byProduct(movements).forEach(this::deliver);
+
+        List<String> rejectedProductIds = new ArrayList<>();
+        boolean delivered = true;
+        for (StockMovement movement : movements) {
+            StockMovement current = stockMovementRepository.findById(movement.getId()).orElse(movement);
+            if (current.getDeliveredAt() == null) {
+                delivered = false;
+            } else if (current.getLastError() != null) {
+                rejectedProductIds.add(current.getProductId());
+            }
+        }
+
+        if (!delivered) {
+            transactionTemplate.executeWithoutResult(status -> orderRepository.findByIdForUpdate(orderId)
+                    .ifPresent(order -> cancelOrder(order, LocalDateTime.now(clock))));
+        }
+        return new Confirmation(rejectedProductIds, delivered);
+    }
+
+    // the products whose confirm was refused, and whether every confirm got an answer
+    public record Confirmation(List<String> rejectedProductIds, boolean delivered) {
+    }
+
+    private static Map<String, List<StockMovement>> byProduct(List<StockMovement> movements) {
+        Map<String, List<StockMovement>> byProduct = new LinkedHashMap<>();
+        for (StockMovement movement : movements) {
+            byProduct.computeIfAbsent(movement.getProductId(), productId -> new ArrayList<>()).add(movement);
+        }
+        return byProduct;
+    }
+
+    // the movements this relay got, the others were claimed by another relay since they were read
+    private List<StockMovement> claim(List<StockMovement> movements) {
+        LocalDateTime now = LocalDateTime.now(clock);
+
+        List<StockMovement> claimed = new ArrayList<>();
+        for (StockMovement movement : movements) {
+            if (stockMovementRepository.claim(movement.getId(), now, now.plus(CLAIM_DURATION)) == 1) {
+                claimed.add(movement);
+            }
+        }
+        return claimed;
+    }
+
+    private int deliver(String productId, List<StockMovement> movements) {
+        Map<String, String> outcomes;
+        try {
+            StockMovementResponse response = productClient.post()
+                    .uri(uriBuilder -> uriBuilder.pathSegment("products", "{productId}", "stockMovements").build(productId))
+                    .body(BodyInserters.fromValue(movements.stream()
+                            .map(movement -> new StockMovementBody(key(movement), movement.getType(), movement.getOwner(), movement.getQuantity()))
+                            .toList()))
+                    .retrieve()
+                    .bodyToMono(StockMovementResponse.class)
+                    .block(REQUEST_TIMEOUT);
+            outcomes = response == null || response.getOutcomes() == null ? Map.of() : response.getOutcomes();
+        } catch (Exception exception) {
+            logger.error("deliver - stock movements of {} not delivered : {}", productId, exception.getMessage());
+            movements.forEach(movement -> retryLater(movement.getId(), exception.getMessage()));
+            return 0;
+        }
+
+        int delivered = 0;
+        for (StockMovement movement : movements) {
+            String outcome = outcomes.get(key(movement));
+            if (outcome == null) {
+                retryLater(movement.getId(), "No outcome for the movement");
+                continue;
+            }
+            transactionTemplate.executeWithoutResult(status -> markDelivered(movement, outcome));
+            delivered++;
+        }
+        return delivered;
+    }
+
+    // the id product-service knows the movement by
+    static String key(StockMovement movement) {
+        return "order-service:" + movement.getId();
+    }
+
+    // 1s, 2s, 4s and so on up to MAX_BACKOFF
+    static Duration backoff(int attempts) {
+        long seconds = 1L << Math.min(Math.max(attempts - 1, 0), 20);
+        return seconds >= MAX_BACKOFF.toSeconds() ? MAX_BACKOFF : Duration.ofSeconds(seconds);
+    }
+
+    private void retryLater(long movementId, String error) {
+        stockMovementRepository.findById(movementId).filter(movement -> movement.getDeliveredAt() == null).ifPresent(movement -> {
+            movement.setAttempts(movement.getAttempts() + 1);
+            movement.setLastError(error);
+            movement.setNextAttemptAt(LocalDateTime.now(clock).plus(backoff(movement.getAttempts())));
+            stockMovementRepository.save(movement);
+        });
+    }
+
+    // read again inside the transaction, the order may have been cancelled since the batch was claimed. the order of a
+    // confirm is locked before anything else is read, so a cancel and the confirms of the order's lines take turns: a
+    // confirm that commits first is seen as delivered by the cancel, which gives its stock back, and one that waits for
+    // the cancel sees the order cancelled and gives it back itself
+    private void markDelivered(StockMovement delivered, String outcome) {
+        Order order = delivered.getType() == StockMovementType.CONFIRM ? orderRepository.findByIdForUpdate(delivered.getOrderId()).orElse(null) : null;
+
+        StockMovement movement = stockMovementRepository.findById(delivered.getId()).orElse(null);
+        if (movement == null || movement.getDeliveredAt() != null) {
+            return;
+        }
+
+        LocalDateTime now = LocalDateTime.now(clock);
+        movement.setDeliveredAt(now);
+        movement.setAttempts(movement.getAttempts() + 1);
+
+        switch (outcome) {
+            case APPLIED -> {
+                movement.setLastError(null);
+                if (order != null && order.getOrderStatus() == OrderStatus.CANCELLED) {
+                    restock(movement, now);
+                }
+            }
+            case INSUFFICIENT_STOCK, PRODUCT_NOT_FOUND -> {
+                movement.setLastError(INSUFFICIENT_STOCK.equals(outcome) ? "Insufficient stock" : "Product not found");
+                // the line can never be shipped either way
+                if (order != null) {
+                    cancelOrder(order, now);
+                }
+            }
+            default -> movement.setLastError(outcome);
+        }
+        stockMovementRepository.save(movement);
+    }
+
+    // a line that could not get its stock means the order cannot be shipped. it is cancelled and refunded, and the lines
+    // that already took their stock give it back; lines still on their way give it back when they are delivered. the
+    // order is locked by the caller
+    private void cancelOrder(Order order, LocalDateTime now) {
+        if (order.getOrderStatus() == OrderStatus.CANCELLED) {
+            return;
+        }
+
+        int orderId = order.getId();
+        logger.error("cancelOrder - order {} cancelled, not enough stock", orderId);
+        order.setOrderStatus(OrderStatus.CANCELLED);
+        if (order.getPaymentStatus() == PaymentStatus.PAID) {
+            order.setPaymentStatus(PaymentStatus.REFUNDED);
+        }
+        orderRepository.save(order);
+
+        for (StockMovement confirmed : stockMovementRepository.findByOrderIdAndType(orderId, StockMovementType.CONFIRM)) {
+            if (confirmed.getDeliveredAt() != null && confirmed.getLastError() == null) {
+                restock(confirmed, now);
+            }
+        }
+    }
+
+    private void restock(StockMovement confirmed, LocalDateTime now) {
+        StockMovement restock = new StockMovement();
+        restock.setOrderId(confirmed.getOrderId());
+        restock.setProductId(confirmed.getProductId());
+        restock.setType(StockMovementType.RESTOCK);
+        restock.setQuantity(confirmed.getQuantity());
+        restock.setCreatedAt(now);
+        restock.setNextAttemptAt(now);
+        stockMovementRepository.save(restock);
+    }
+
+}
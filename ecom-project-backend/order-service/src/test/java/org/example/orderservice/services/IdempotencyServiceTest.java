@@ -0,0 +1,138 @@
+package org.example.orderservice.services;
+
+import org.example.orderservice.dto.OrderItemRequestBody;
+import org.example.orderservice.dto.OrderRequestBody;
+import org.example.orderservice.entities.IdempotencyKey;
+import org.example.orderservice.exception.customExceptions.BaseException;
+import org.example.orderservice.repository.IdempotencyKeyRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class IdempotencyServiceTest {
+
+    private final Clock clock = Clock.fixed(Instant.parse("2024-03-01T10:00:00Z"), ZoneOffset.UTC);
+    private final LocalDateTime now = LocalDateTime.now(clock);
+
+    private final IdempotencyKeyRepository idempotencyKeyRepository = Mockito.mock(IdempotencyKeyRepository.class);
+    private final IdempotencyService idempotencyService = new IdempotencyService(idempotencyKeyRepository, Duration.ofHours(24), clock);
+
+    @BeforeEach
+    void setUp() {
+        Mockito.when(idempotencyKeyRepository.saveAndFlush(Mockito.any())).thenThrow(new DataIntegrityViolationException("Duplicate entry"));
+    }
+
+    private OrderRequestBody orderRequest(int quantity) {
+        OrderItemRequestBody item = new OrderItemRequestBody();
+        item.setProductId("p1");
+        item.setSize("42");
+        item.setQuantity(quantity);
+
+        OrderRequestBody orderRequestBody = new OrderRequestBody();
+        orderRequestBody.setOrderItemList(List.of(item));
+        orderRequestBody.setAddressId(1);
+        orderRequestBody.setPaymentMethodId(2);
+        return orderRequestBody;
+    }
+
+    private IdempotencyKey stored(OrderRequestBody orderRequestBody, Integer orderId, LocalDateTime createdAt) {
+        IdempotencyKey key = new IdempotencyKey();
+        key.setId(3);
+        key.setUserId(7);
+        key.setIdempotencyKey("checkout-1");
+        key.setRequestHash(IdempotencyService.fingerprint(orderRequestBody));
+        key.setOrderId(orderId);
+        key.setCreatedAt(createdAt);
+        Mockito.when(idempotencyKeyRepository.findByUserIdAndIdempotencyKey(7, "checkout-1")).thenReturn(Optional.of(key));
+        return key;
+    }
+
+
+    @Test
+    void reserve_newKey() {
+        Mockito.doAnswer(invocation -> invocation.getArgument(0)).when(idempotencyKeyRepository).saveAndFlush(Mockito.any());
+
+        IdempotencyKey reservation = idempotencyService.reserve(7, "checkout-1", orderRequest(1));
+
+        assertNull(reservation.getOrderId());
+        assertEquals(now.plusHours(24), reservation.getExpiresAt());
+    }
+
+    @Test
+    void reserve_placedBefore() {
+        stored(orderRequest(1), 42, now.minusMinutes(5));
+
+        assertEquals(42, idempotencyService.reserve(7, "checkout-1", orderRequest(1)).getOrderId());
+    }
+
+    @Test
+    void reserve_anotherRequest() {
+        stored(orderRequest(1), 42, now.minusMinutes(5));
+
+        BaseException exception = assertThrows(BaseException.class, () -> idempotencyService.reserve(7, "checkout-1", orderRequest(2)));
+
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, exception.getStatus());
+    }
+
+    // a request still running keeps the key, one that stopped long ago hands it over
+    @Test
+    void reserve_inProgress() {
+        stored(orderRequest(1), null, now.minusSeconds(5));
+        Mockito.when(idempotencyKeyRepository.takeOver(3, now, now.minus(IdempotencyService.IN_PROGRESS_TIMEOUT))).thenReturn(0);
+
+        BaseException exception = assertThrows(BaseException.class, () -> idempotencyService.reserve(7, "checkout-1", orderRequest(1)));
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+
+        Mockito.when(idempotencyKeyRepository.takeOver(3, now, now.minus(IdempotencyService.IN_PROGRESS_TIMEOUT))).thenReturn(1);
+        IdempotencyKey reservation = idempotencyService.reserve(7, "checkout-1", orderRequest(1));
+        assertNull(reservation.getOrderId());
+        assertEquals(now, reservation.getCreatedAt());
+    }
+
+    @Test
+    void reserve_invalidKey() {
+        BaseException exception = assertThrows(BaseException.class, () -> idempotencyService.reserve(7, "x".repeat(IdempotencyService.MAX_KEY_LENGTH + 1), orderRequest(1)));
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        assertThrows(BaseException.class, () -> idempotencyService.reserve(7, " ", orderRequest(1)));
+    }
+
+    // the order is stored with the key only while the key is still the one this request reserved
+    @Test
+    void complete_takenOver() {
+        IdempotencyKey reservation = stored(orderRequest(1), null, now);
+        Mockito.when(idempotencyKeyRepository.complete(3, 42, now)).thenReturn(0);
+
+        BaseException exception = assertThrows(BaseException.class, () -> idempotencyService.complete(reservation, 42));
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+        assertNull(reservation.getOrderId());
+
+        Mockito.when(idempotencyKeyRepository.complete(3, 42, now)).thenReturn(1);
+        idempotencyService.complete(reservation, 42);
+        assertEquals(42, reservation.getOrderId());
+    }
+
+    @Test
+    void release_onlyOwnReservation() {
+        IdempotencyKey reservation = stored(orderRequest(1), null, now.minusSeconds(5));
+
+        idempotencyService.release(reservation);
+
+        Mockito.verify(idempotencyKeyRepository).release(3, now.minusSeconds(5));
+        Mockito.verify(idempotencyKeyRepository, Mockito.never()).deleteById(Mockito.anyLong());
+    }
+
+}
@@ -0,0 +1,515 @@
+package org.example.orderservice.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.example.orderservice.dto.OrderItemRequestBody;
+import org.example.orderservice.dto.OrderRequestBody;
+import org.example.orderservice.entities.IdempotencyKey;
+import org.example.orderservice.entities.Order;
+import org.example.orderservice.entities.OrderItem;
+import org.example.orderservice.entities.OrderStatus;
+import org.example.orderservice.entities.PaymentStatus;
+import org.example.orderservice.entities.StockMovement;
+import org.example.orderservice.entities.StockMovementType;
+import org.example.orderservice.exception.customExceptions.BaseException;
+import org.example.orderservice.repository.IdempotencyKeyRepository;
+import org.example.orderservice.repository.OrderRepository;
+import org.example.orderservice.repository.StockMovementRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+// createOrder against local stand-ins of user-service and product-service that answer after a set delay
+class OrderServiceTest {
+
+    private static final long DELAY_MS = 500;
+
+    private final OrderRepository orderRepository = Mockito.mock(OrderRepository.class);
+    private final StockMovementRepository stockMovementRepository = Mockito.mock(StockMovementRepository.class);
+    private final PlatformTransactionManager transactionManager = Mockito.mock(PlatformTransactionManager.class);
+    private final IdempotencyKeyRepository idempotencyKeyRepository = Mockito.mock(IdempotencyKeyRepository.class);
+    private final IdempotencyService idempotencyService = new IdempotencyService(idempotencyKeyRepository, Duration.ofHours(24), Clock.systemDefaultZone());
+
+    private final Scheduler jdbcScheduler = Schedulers.newBoundedElastic(4, 10000, "test-jdbc");
+    private final ConnectionProvider connectionProvider = ConnectionProvider.builder("test-clients").maxConnections(1000).pendingAcquireMaxCount(-1).build();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    // delay and status per path, every path not listed answers at once with 200
+    private final Map<String, Long> delays = new ConcurrentHashMap<>();
+    private final Map<String, Integer> statuses = new ConcurrentHashMap<>();
+    // calls to the stock endpoints of product-service
+    private final AtomicInteger stockCalls = new AtomicInteger();
+    // stock product-service has free and what user 7 holds of it, per product
+    private final Map<String, Integer> available = new ConcurrentHashMap<>();
+    private final Map<String, Integer> held = new ConcurrentHashMap<>();
+    private final Map<Long, StockMovement> outbox = new ConcurrentHashMap<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // calls to any stand-in
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @BeforeEach
+    void startStandIns() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1000);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+
+        server.createContext("/users/addresses/", exchange -> answer(exchange, "{\"addressDetails\":\"1 Main Street\"}"));
+        server.createContext("/users/paymentMethods/", exchange -> answer(exchange, "{\"paymentDetails\":\"Visa 4242\"}"));
+        server.createContext("/products/products/detailsForOrder", exchange -> answer(exchange,
+                "[{\"id\":\"p1\",\"name\":\"Air Max\",\"category\":\"Shoes\",\"img\":\"a.png\",\"quantity\":5,\"price\":100.0},"
+                        + "{\"id\":\"p2\",\"name\":\"Tee\",\"category\":\"Shirts\",\"img\":\"b.png\",\"quantity\":5,\"price\":20.0}]"));
+        server.createContext("/products/products/", this::applyStockMovements);
+        server.start();
+
+        Mockito.when(orderRepository.save(Mockito.any())).thenAnswer(invocation -> invocation.getArgument(0));
+    }
+
+    @AfterEach
+    void stopStandIns() {
+        server.stop(0);
+        executor.shutdownNow();
+        jdbcScheduler.dispose();
+        connectionProvider.dispose();
+    }
+
+    private void answer(HttpExchange exchange, String body) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        calls.incrementAndGet();
+        exchange.getRequestBody().readAllBytes();
+        try {
+            Thread.sleep(delays.entrySet().stream().filter(entry -> path.startsWith(entry.getKey())).mapToLong(Map.Entry::getValue).sum());
+        } catch (InterruptedException exception) {
+            exchange.close();
+            return;
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        int status = statuses.getOrDefault(path, 200);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+
+    // product-service's stock movements of one product: a confirm takes from the user's hold, or from the free stock
+    // when the hold is short, and a restock puts it back
+    private void applyStockMovements(HttpExchange exchange) throws IOException {
+        stockCalls.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        String productId = path.split("/")[3];
+        List<Map<String, Object>> movements = objectMapper.readValue(exchange.getRequestBody().readAllBytes(), new TypeReference<>() {
+        });
+
+        Map<String, String> outcomes = new LinkedHashMap<>();
+        if (!statuses.containsKey(path)) {
+            synchronized (held) {
+                for (Map<String, Object> movement : movements) {
+                    int quantity = (Integer) movement.get("quantity");
+                    String outcome = StockOutboxRelay.APPLIED;
+                    if ("RESTOCK".equals(movement.get("type"))) {
+                        available.merge(productId, quantity, Integer::sum);
+                    } else if (held.getOrDefault(productId, 0) >= quantity) {
+                        held.merge(productId, -quantity, Integer::sum);
+                    } else if (available.getOrDefault(productId, 0) >= quantity) {
+                        available.merge(productId, -quantity, Integer::sum);
+                    } else {
+                        outcome = StockOutboxRelay.INSUFFICIENT_STOCK;
+                    }
+                    outcomes.put((String) movement.get("id"), outcome);
+                }
+            }
+        }
+        answer(exchange, objectMapper.writeValueAsString(Map.of("message", "Stock movements applied successfully", "outcomes", outcomes)));
+    }
+
+    // what cart-service does when the frontend clears the cart after checkout: every hold goes back to the free stock
+    private void clearCart() {
+        synchronized (held) {
+            held.forEach((productId, quantity) -> available.merge(productId, quantity, Integer::sum));
+            held.clear();
+        }
+    }
+
+    // the first order of a client pays for setting up netty and its connections, so one is placed before anything is timed
+    private OrderService orderService(long lookupTimeoutMs) {
+        String baseUrl = "http://localhost:" + server.getAddress().getPort();
+        ReactorClientHttpConnector connector = new ReactorClientHttpConnector(HttpClient.create(connectionProvider));
+        WebClient userClient = WebClient.builder().baseUrl(baseUrl + "/users").clientConnector(connector).build();
+        WebClient productClient = WebClient.builder().baseUrl(baseUrl + "/products").clientConnector(connector).build();
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        StockOutboxRelay stockOutboxRelay = new StockOutboxRelay(productClient, stockMovementRepository, orderRepository, transactionTemplate);
+
+        new OrderService(userClient, productClient, orderRepository, stockMovementRepository, transactionTemplate, jdbcScheduler,
+                idempotencyService, stockOutboxRelay, 10000)
+                .createOrder(7, orderRequest());
+        Mockito.clearInvocations(orderRepository, stockMovementRepository, transactionManager);
+        calls.set(0);
+        return new OrderService(userClient, productClient, orderRepository, stockMovementRepository, transactionTemplate, jdbcScheduler,
+                idempotencyService, stockOutboxRelay, lookupTimeoutMs);
+    }
+
+    private OrderRequestBody orderRequest() {
+        OrderItemRequestBody shoes = new OrderItemRequestBody();
+        shoes.setProductId("p1");
+        shoes.setSize("42");
+        shoes.setQuantity(1);
+        OrderItemRequestBody shirt = new OrderItemRequestBody();
+        shirt.setProductId("p2");
+        shirt.setSize("M");
+        shirt.setQuantity(2);
+
+        OrderRequestBody orderRequestBody = new OrderRequestBody();
+        orderRequestBody.setOrderItemList(List.of(shoes, shirt));
+        orderRequestBody.setAddressId(1);
+        orderRequestBody.setPaymentMethodId(2);
+        return orderRequestBody;
+    }
+
+
+    // address, payment method and products are fetched at the same time, so the order waits about one delay instead of three
+    @Test
+    void createOrder_lookupsInParallel() {
+        OrderService orderService = orderService(5000);
+        delays.put("/users/addresses/", DELAY_MS);
+        delays.put("/users/paymentMethods/", DELAY_MS);
+        delays.put("/products/products/detailsForOrder", DELAY_MS);
+
+        long start = System.nanoTime();
+        orderService.createOrder(7, orderRequest());
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsedMs >= DELAY_MS, "took " + elapsedMs + " ms");
+        assertTrue(elapsedMs < 2 * DELAY_MS, "took " + elapsedMs + " ms, the lookups ran one after another");
+
+        ArgumentCaptor<Order> order = ArgumentCaptor.forClass(Order.class);
+        Mockito.verify(orderRepository, Mockito.times(1)).save(order.capture());
+        assertEquals("1 Main Street", order.getValue().getAddressDetails());
+        assertEquals("Visa 4242", order.getValue().getPaymentDetails());
+        assertEquals(120.0 * 1.1, order.getValue().getTotalPrice(), 0.0001);
+        assertEquals(List.of("p1", "p2"), order.getValue().getOrderItems().stream().map(OrderItem::getProductId).toList());
+    }
+
+    // a lookup that does not answer in time fails the order at the deadline, before anything is stored
+    @Test
+    void createOrder_deadline() {
+        OrderService orderService = orderService(300);
+        delays.put("/users/paymentMethods/", 5000L);
+
+        long start = System.nanoTime();
+        BaseException exception = assertThrows(BaseException.class, () -> orderService.createOrder(7, orderRequest()));
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(HttpStatus.GATEWAY_TIMEOUT, exception.getStatus());
+        assertTrue(elapsedMs < 1500, "took " + elapsedMs + " ms");
+        Mockito.verify(orderRepository, Mockito.never()).save(Mockito.any());
+        Mockito.verify(stockMovementRepository, Mockito.never()).saveAll(Mockito.any());
+    }
+
+    // the first failed lookup fails the order at once, the slower ones are not waited for
+    @Test
+    void createOrder_firstFailureCancelsRest() {
+        OrderService orderService = orderService(10000);
+        statuses.put("/users/addresses/1/string", 404);
+        delays.put("/products/products/detailsForOrder", 5000L);
+        delays.put("/users/paymentMethods/", 5000L);
+
+        long start = System.nanoTime();
+        BaseException exception = assertThrows(BaseException.class, () -> orderService.createOrder(7, orderRequest()));
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        assertEquals("Invalid address id", exception.getMessage());
+        assertTrue(elapsedMs < 1500, "took " + elapsedMs + " ms");
+        Mockito.verify(orderRepository, Mockito.never()).save(Mockito.any());
+    }
+
+    // placeOrder holds no thread while it waits, so a whole burst of checkouts waits on the slow services at the same time.
+    // each checkout takes one delay for its lookups, one after another the burst would take checkouts times that
+    @Test
+    void placeOrder_concurrentCheckouts() {
+        OrderService orderService = orderService(10000);
+        delays.put("/users/addresses/", DELAY_MS);
+        delays.put("/users/paymentMethods/", DELAY_MS);
+        delays.put("/products/products/detailsForOrder", DELAY_MS);
+
+        Set<String> jdbcThreads = ConcurrentHashMap.newKeySet();
+        Mockito.when(orderRepository.save(Mockito.any())).thenAnswer(invocation -> {
+            jdbcThreads.add(Thread.currentThread().getName());
+            return invocation.getArgument(0);
+        });
+
+        int checkouts = 200;
+        long start = System.nanoTime();
+        List<Order> orders = Flux.range(0, checkouts)
+                .flatMap(checkout -> orderService.placeOrder(7, orderRequest()), checkouts)
+                .collectList()
+                .block();
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(checkouts, orders.size());
+        // far below one after another even on a single core, where the stand-ins themselves eat most of the time
+        assertTrue(elapsedMs < checkouts * DELAY_MS / 10, "took " + elapsedMs + " ms");
+        assertEquals(0, stockCalls.get());
+        Mockito.verify(orderRepository, Mockito.times(checkouts)).save(Mockito.any());
+        Mockito.verify(stockMovementRepository, Mockito.times(checkouts)).saveAll(Mockito.argThat(movements -> ((List<?>) movements).size() == 2));
+        assertTrue(jdbcThreads.stream().allMatch(thread -> thread.startsWith("test-jdbc")), jdbcThreads.toString());
+    }
+
+    // the order with its items and a confirm per line are written in one transaction, a single save each so hibernate can
+    // batch the rows; the confirms are written claimed, for the checkout to deliver once they are committed
+    @Test
+    void placeOrder_writesOutbox() {
+        OrderService orderService = orderService(10000);
+        List<StockMovement> movements = new ArrayList<>();
+        Mockito.when(stockMovementRepository.saveAll(Mockito.any())).thenAnswer(invocation -> {
+            invocation.<List<StockMovement>>getArgument(0).forEach(movements::add);
+            return invocation.getArgument(0);
+        });
+
+        orderService.placeOrder(7, orderRequest()).block();
+
+        assertEquals(List.of("p1", "p2"), movements.stream().map(StockMovement::getProductId).toList());
+        assertEquals(List.of(1, 2), movements.stream().map(StockMovement::getQuantity).toList());
+        assertTrue(movements.stream().allMatch(movement -> movement.getType() == StockMovementType.CONFIRM && movement.getOwner().equals("user:7")
+                && movement.getDeliveredAt() == null && movement.getNextAttemptAt().isAfter(LocalDateTime.now())));
+        Mockito.verify(transactionManager, Mockito.times(1)).commit(Mockito.any());
+    }
+
+    // an order that cannot be written leaves no stock movement behind
+    @Test
+    void placeOrder_rollsBackOutbox() {
+        OrderService orderService = orderService(10000);
+        Mockito.when(orderRepository.save(Mockito.any())).thenThrow(new IllegalStateException("down"));
+
+        assertThrows(IllegalStateException.class, () -> orderService.placeOrder(7, orderRequest()).block());
+
+        Mockito.verify(transactionManager, Mockito.times(1)).rollback(Mockito.any());
+        Mockito.verify(transactionManager, Mockito.never()).commit(Mockito.any());
+        Mockito.verify(stockMovementRepository, Mockito.never()).saveAll(Mockito.any());
+    }
+
+    // the stock outbox kept in memory
+    private void outboxInMemory() {
+        AtomicLong movementIds = new AtomicLong(1);
+        Mockito.when(stockMovementRepository.save(Mockito.any())).thenAnswer(invocation -> {
+            StockMovement movement = invocation.getArgument(0);
+            if (movement.getId() == 0) {
+                movement.setId(movementIds.getAndIncrement());
+            }
+            outbox.put(movement.getId(), movement);
+            return movement;
+        });
+        Mockito.when(stockMovementRepository.saveAll(Mockito.any())).thenAnswer(invocation -> {
+            invocation.<List<StockMovement>>getArgument(0).forEach(stockMovementRepository::save);
+            return invocation.getArgument(0);
+        });
+        Mockito.when(stockMovementRepository.findById(Mockito.anyLong())).thenAnswer(invocation -> Optional.ofNullable(outbox.get(invocation.<Long>getArgument(0))));
+        Mockito.when(stockMovementRepository.findByOrderIdAndType(Mockito.anyInt(), Mockito.any())).thenAnswer(invocation -> outbox.values().stream()
+                .filter(movement -> movement.getOrderId() == invocation.<Integer>getArgument(0) && movement.getType() == invocation.getArgument(1))
+                .sorted(Comparator.comparingLong(StockMovement::getId))
+                .toList());
+    }
+
+    // orders and idempotency keys kept in memory, with the unique key of the table
+    private void storeInMemory() {
+        Map<Integer, Order> orders = new ConcurrentHashMap<>();
+        AtomicInteger orderIds = new AtomicInteger(100);
+        Mockito.when(orderRepository.save(Mockito.any())).thenAnswer(invocation -> {
+            Order order = invocation.getArgument(0);
+            if (order.getId() == 0) {
+                order.setId(orderIds.incrementAndGet());
+            }
+            orders.put(order.getId(), order);
+            return order;
+        });
+        Mockito.when(orderRepository.findById(Mockito.anyInt())).thenAnswer(invocation -> Optional.ofNullable(orders.get(invocation.<Integer>getArgument(0))));
+        Mockito.when(orderRepository.findByIdForUpdate(Mockito.anyInt())).thenAnswer(invocation -> Optional.ofNullable(orders.get(invocation.<Integer>getArgument(0))));
+
+        Map<String, IdempotencyKey> keys = new ConcurrentHashMap<>();
+        Mockito.when(idempotencyKeyRepository.saveAndFlush(Mockito.any())).thenAnswer(invocation -> {
+            IdempotencyKey key = invocation.getArgument(0);
+            if (keys.putIfAbsent(key.getUserId() + ":" + key.getIdempotencyKey(), key) != null) {
+                throw new DataIntegrityViolationException("Duplicate entry for key 'user_key'");
+            }
+            key.setId(keys.size());
+            return key;
+        });
+        Mockito.when(idempotencyKeyRepository.findByUserIdAndIdempotencyKey(Mockito.anyInt(), Mockito.anyString()))
+                .thenAnswer(invocation -> Optional.ofNullable(keys.get(invocation.getArgument(0) + ":" + invocation.getArgument(1))));
+        Mockito.when(idempotencyKeyRepository.complete(Mockito.anyLong(), Mockito.anyInt(), Mockito.any())).thenAnswer(invocation -> {
+            IdempotencyKey key = keys.values().stream().filter(stored -> stored.getId() == invocation.<Long>getArgument(0)).findFirst().orElse(null);
+            if (key == null || key.getOrderId() != null || !key.getCreatedAt().equals(invocation.getArgument(2))) {
+                return 0;
+            }
+            key.setOrderId(invocation.getArgument(1));
+            return 1;
+        });
+        Mockito.when(idempotencyKeyRepository.release(Mockito.anyLong(), Mockito.any())).thenAnswer(invocation ->
+                keys.values().removeIf(key -> key.getId() == invocation.<Long>getArgument(0) && key.getOrderId() == null
+                        && key.getCreatedAt().equals(invocation.getArgument(1))) ? 1 : 0);
+    }
+
+    // a retry with the same key gets the first order back without calling any service or writing anything again
+    @Test
+    void placeOrder_idempotencyKeyReplay() {
+        OrderService orderService = orderService(10000);
+        storeInMemory();
+
+        Order first = orderService.createOrder(7, orderRequest(), "checkout-1");
+        int lookups = calls.get();
+        Order retried = orderService.createOrder(7, orderRequest(), "checkout-1");
+
+        assertEquals(first.getId(), retried.getId());
+        assertEquals(3, lookups);
+        assertEquals(lookups, calls.get());
+        Mockito.verify(orderRepository, Mockito.times(1)).save(Mockito.any());
+        Mockito.verify(stockMovementRepository, Mockito.times(1)).saveAll(Mockito.any());
+        // stored with the order, in its transaction
+        Mockito.verify(idempotencyKeyRepository).complete(Mockito.anyLong(), Mockito.eq(first.getId()), Mockito.any());
+        Mockito.verify(transactionManager, Mockito.times(1)).commit(Mockito.any());
+
+        // another key, or none, is another order
+        assertNotEquals(first.getId(), orderService.createOrder(7, orderRequest(), "checkout-2").getId());
+    }
+
+    // a checkout that failed gives its key back, so the retry places the order
+    @Test
+    void placeOrder_idempotencyKeyReleasedOnFailure() {
+        OrderService orderService = orderService(10000);
+        storeInMemory();
+        statuses.put("/users/addresses/1/string", 404);
+
+        assertThrows(BaseException.class, () -> orderService.createOrder(7, orderRequest(), "checkout-1"));
+        statuses.clear();
+        Order order = orderService.createOrder(7, orderRequest(), "checkout-1");
+
+        assertNotNull(order);
+        Mockito.verify(idempotencyKeyRepository, Mockito.times(1)).release(Mockito.anyLong(), Mockito.any());
+        Mockito.verify(idempotencyKeyRepository, Mockito.times(2)).saveAndFlush(Mockito.any());
+    }
+
+    // a request taken over for being stale while it placed its order loses it, the key stays with the one that took it over
+    @Test
+    void placeOrder_idempotencyKeyTakenOver() {
+        OrderService orderService = orderService(10000);
+        storeInMemory();
+        Mockito.when(idempotencyKeyRepository.complete(Mockito.anyLong(), Mockito.anyInt(), Mockito.any())).thenReturn(0);
+
+        BaseException exception = assertThrows(BaseException.class, () -> orderService.createOrder(7, orderRequest(), "checkout-1"));
+
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+        Mockito.verify(transactionManager).rollback(Mockito.any());
+        Mockito.verify(transactionManager, Mockito.never()).commit(Mockito.any());
+    }
+
+    // the checkout takes the stock out of the cart's holds before it answers, so clearing the cart right after, which
+    // gives back whatever is still held, cannot hand the order's stock to another buyer
+    @Test
+    void placeOrder_confirmsHoldsBeforeClearCart() {
+        OrderService orderService = orderService(10000);
+        storeInMemory();
+        outboxInMemory();
+        available.putAll(Map.of("p1", 0, "p2", 0));
+        held.putAll(Map.of("p1", 1, "p2", 2));
+
+        Order order = orderService.createOrder(7, orderRequest(), null);
+        clearCart();
+
+        assertEquals(OrderStatus.PLACED, order.getOrderStatus());
+        assertEquals(Map.of("p1", 0, "p2", 0), available);
+        assertEquals(2, outbox.size());
+        assertTrue(outbox.values().stream().allMatch(movement -> movement.getDeliveredAt() != null && movement.getLastError() == null));
+    }
+
+    // a line without stock refuses the checkout. the order is cancelled and refunded, and the line that got its stock
+    // gives it back through the outbox
+    @Test
+    void placeOrder_limitedStockRefused() {
+        OrderService orderService = orderService(10000);
+        storeInMemory();
+        outboxInMemory();
+        available.putAll(Map.of("p1", 0, "p2", 1));
+        held.put("p1", 1);
+
+        BaseException exception = assertThrows(BaseException.class, () -> orderService.createOrder(7, orderRequest(), null));
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        assertEquals("Tee has limited stock", exception.getMessage());
+        Order order = orderRepository.findById(101).orElseThrow();
+        assertEquals(OrderStatus.CANCELLED, order.getOrderStatus());
+        assertEquals(PaymentStatus.REFUNDED, order.getPaymentStatus());
+        assertEquals(List.of("p1"), outbox.values().stream()
+                .filter(movement -> movement.getType() == StockMovementType.RESTOCK).map(StockMovement::getProductId).toList());
+    }
+
+    // without an answer from product-service the checkout is not acknowledged either; the confirm stays in the outbox
+    // for the relay, which gives the stock back once it gets through
+    @Test
+    void placeOrder_stockNotConfirmedRefused() {
+        OrderService orderService = orderService(10000);
+        storeInMemory();
+        outboxInMemory();
+        held.putAll(Map.of("p1", 1, "p2", 2));
+        statuses.put("/products/products/p1/stockMovements", 503);
+
+        BaseException exception = assertThrows(BaseException.class, () -> orderService.createOrder(7, orderRequest(), null));
+
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, exception.getStatus());
+        Order order = orderRepository.findById(101).orElseThrow();
+        assertEquals(OrderStatus.CANCELLED, order.getOrderStatus());
+        assertEquals(PaymentStatus.REFUNDED, order.getPaymentStatus());
+        assertEquals(List.of("p1"), outbox.values().stream()
+                .filter(movement -> movement.getType() == StockMovementType.CONFIRM && movement.getDeliveredAt() == null)
+                .map(StockMovement::getProductId).toList());
+        // the line that got through gives its stock back
+        assertEquals(List.of("p2"), outbox.values().stream()
+                .filter(movement -> movement.getType() == StockMovementType.RESTOCK).map(StockMovement::getProductId).toList());
+    }
+
+}
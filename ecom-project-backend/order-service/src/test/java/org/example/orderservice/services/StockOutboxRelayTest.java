@@ -0,0 +1,342 @@
+package org.example.orderservice.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.example.orderservice.entities.Order;
+import org.example.orderservice.entities.OrderStatus;
+import org.example.orderservice.entities.PaymentStatus;
+import org.example.orderservice.entities.StockMovement;
+import org.example.orderservice.entities.StockMovementType;
+import org.example.orderservice.repository.OrderRepository;
+import org.example.orderservice.repository.StockMovementRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+// the relay against an in-memory outbox and a stand-in of product-service's stock movement endpoint
+class StockOutboxRelayTest {
+
+    private static final Instant START = Instant.parse("2024-03-01T10:00:00Z");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Map<Long, StockMovement> outbox = new TreeMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<Integer, Order> orders = new HashMap<>();
+
+    private final StockMovementRepository stockMovementRepository = Mockito.mock(StockMovementRepository.class);
+    private final OrderRepository orderRepository = Mockito.mock(OrderRepository.class);
+
+    private final MutableClock clock = new MutableClock(START);
+
+    private HttpServer server;
+    private StockOutboxRelay relay;
+
+    // every request the stand-in got, with the movements it carried
+    private final List<Request> requests = new ArrayList<>();
+    // what the stand-in answers per product: an outcome for all of its movements, or an http status
+    private final Map<String, String> outcomes = new HashMap<>();
+    private final Map<String, Integer> statuses = new HashMap<>();
+    // claims and requests in the order they happened
+    private final List<String> events = new ArrayList<>();
+
+    private record Request(String productId, List<Map<String, Object>> movements) {
+    }
+
+    private static final class MutableClock extends Clock {
+        private Instant now;
+
+        private MutableClock(Instant now) {
+            this.now = now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/products/products/", this::answer);
+        server.start();
+
+        Mockito.when(stockMovementRepository.save(ArgumentMatchers.any())).thenAnswer(invocation -> {
+            StockMovement movement = invocation.getArgument(0);
+            if (movement.getId() == 0) {
+                movement.setId(nextId.getAndIncrement());
+            }
+            outbox.put(movement.getId(), movement);
+            return movement;
+        });
+        Mockito.when(stockMovementRepository.findById(ArgumentMatchers.anyLong()))
+                .thenAnswer(invocation -> Optional.ofNullable(outbox.get(invocation.<Long>getArgument(0))));
+        Mockito.when(stockMovementRepository.findByDeliveredAtIsNullAndNextAttemptAtLessThanEqualOrderByIdAsc(ArgumentMatchers.any(), ArgumentMatchers.any()))
+                .thenAnswer(invocation -> {
+                    LocalDateTime now = invocation.getArgument(0);
+                    Pageable pageable = invocation.getArgument(1);
+                    return outbox.values().stream()
+                            .filter(movement -> movement.getDeliveredAt() == null && !movement.getNextAttemptAt().isAfter(now))
+                            .sorted(Comparator.comparingLong(StockMovement::getId))
+                            .limit(pageable.getPageSize())
+                            .toList();
+                });
+        Mockito.when(stockMovementRepository.claim(ArgumentMatchers.anyLong(), ArgumentMatchers.any(), ArgumentMatchers.any())).thenAnswer(invocation -> {
+            StockMovement movement = outbox.get(invocation.<Long>getArgument(0));
+            LocalDateTime now = invocation.getArgument(1);
+            if (movement == null || movement.getDeliveredAt() != null || movement.getNextAttemptAt().isAfter(now)) {
+                return 0;
+            }
+            movement.setNextAttemptAt(invocation.getArgument(2));
+            synchronized (events) {
+                events.add("claim " + movement.getProductId());
+            }
+            return 1;
+        });
+        Mockito.when(stockMovementRepository.findByOrderIdAndType(ArgumentMatchers.anyInt(), ArgumentMatchers.any())).thenAnswer(invocation ->
+                outbox.values().stream()
+                        .filter(movement -> movement.getOrderId() == invocation.<Integer>getArgument(0) && movement.getType() == invocation.getArgument(1))
+                        .toList());
+
+        Mockito.when(orderRepository.findById(ArgumentMatchers.anyInt())).thenAnswer(invocation -> Optional.ofNullable(orders.get(invocation.<Integer>getArgument(0))));
+        Mockito.when(orderRepository.findByIdForUpdate(ArgumentMatchers.anyInt())).thenAnswer(invocation -> Optional.ofNullable(orders.get(invocation.<Integer>getArgument(0))));
+        Mockito.when(orderRepository.save(ArgumentMatchers.any())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        WebClient productClient = WebClient.create("http://localhost:" + server.getAddress().getPort() + "/products");
+        relay = new StockOutboxRelay(productClient, stockMovementRepository, orderRepository,
+                new TransactionTemplate(Mockito.mock(PlatformTransactionManager.class)), clock);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        // /products/products/{productId}/stockMovements
+        String productId = exchange.getRequestURI().getPath().split("/")[3];
+        List<Map<String, Object>> movements = objectMapper.readValue(exchange.getRequestBody(), new TypeReference<>() {
+        });
+        synchronized (requests) {
+            requests.add(new Request(productId, movements));
+        }
+        synchronized (events) {
+            events.add("send " + productId);
+        }
+
+        int status = statuses.getOrDefault(productId, 200);
+        Map<String, String> answered = new LinkedHashMap<>();
+        movements.forEach(movement -> answered.put((String) movement.get("id"), outcomes.getOrDefault(productId, StockOutboxRelay.APPLIED)));
+        byte[] body = objectMapper.writeValueAsBytes(Map.of("message", "Stock movements applied successfully", "outcomes", answered));
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+        exchange.close();
+    }
+
+    private StockMovement pending(int orderId, String productId, int quantity) {
+        LocalDateTime now = LocalDateTime.now(clock);
+        StockMovement movement = new StockMovement();
+        movement.setOrderId(orderId);
+        movement.setProductId(productId);
+        movement.setType(StockMovementType.CONFIRM);
+        movement.setOwner("user:7");
+        movement.setQuantity(quantity);
+        movement.setCreatedAt(now);
+        movement.setNextAttemptAt(now);
+        return stockMovementRepository.save(movement);
+    }
+
+    private Order order(int id) {
+        Order order = new Order();
+        order.setId(id);
+        order.setOrderStatus(OrderStatus.PLACED);
+        orders.put(id, order);
+        return order;
+    }
+
+
+    // one request per product carries all of its due movements, and delivered ones are not sent again
+    @Test
+    void relay_batchesPerProduct() {
+        order(1);
+        order(2);
+        StockMovement first = pending(1, "p1", 1);
+        StockMovement second = pending(1, "p2", 2);
+        StockMovement third = pending(2, "p1", 3);
+
+        assertEquals(3, relay.relayPending());
+
+        assertEquals(List.of("p1", "p2"), requests.stream().map(Request::productId).toList());
+        assertEquals(List.of(StockOutboxRelay.key(first), StockOutboxRelay.key(third)),
+                requests.get(0).movements().stream().map(movement -> movement.get("id")).toList());
+        assertEquals(Map.of("id", StockOutboxRelay.key(second), "type", "CONFIRM", "owner", "user:7", "quantity", 2), requests.get(1).movements().get(0));
+        assertTrue(outbox.values().stream().allMatch(movement -> movement.getDeliveredAt() != null && movement.getLastError() == null));
+
+        assertEquals(0, relay.relayPending());
+        assertEquals(2, requests.size());
+    }
+
+    // a product's movements are claimed right before its request, so a slow product never eats into the claims of the next
+    @Test
+    void relay_claimsPerProductBeforeSending() {
+        order(1);
+        pending(1, "p1", 1);
+        pending(1, "p2", 2);
+        pending(1, "p1", 3);
+
+        assertEquals(3, relay.relayPending());
+
+        assertEquals(List.of("claim p1", "claim p1", "send p1", "claim p2", "send p2"), events);
+    }
+
+    // the order is locked before the outcome of its confirm is looked at, so a cancel of the order cannot slip in between
+    // the status read and the write that depends on it
+    @Test
+    void relay_locksOrderBeforeMarkingConfirm() {
+        order(1);
+        StockMovement movement = pending(1, "p1", 1);
+
+        assertEquals(1, relay.relayPending());
+
+        InOrder inOrder = Mockito.inOrder(orderRepository, stockMovementRepository);
+        inOrder.verify(orderRepository).findByIdForUpdate(1);
+        inOrder.verify(stockMovementRepository).findById(movement.getId());
+        Mockito.verify(orderRepository, Mockito.never()).findById(ArgumentMatchers.anyInt());
+    }
+
+    // a failed delivery is retried after a growing pause, with the same id so product-service applies it once
+    @Test
+    void relay_retriesWithBackoff() {
+        order(1);
+        StockMovement movement = pending(1, "p1", 1);
+        statuses.put("p1", 503);
+
+        assertEquals(0, relay.relayPending());
+        assertEquals(1, movement.getAttempts());
+        assertNull(movement.getDeliveredAt());
+        assertEquals(LocalDateTime.now(clock).plusSeconds(1), movement.getNextAttemptAt());
+
+        // not due yet
+        assertEquals(0, relay.relayPending());
+        assertEquals(1, requests.size());
+
+        clock.now = clock.now.plusSeconds(1);
+        assertEquals(0, relay.relayPending());
+        assertEquals(2, movement.getAttempts());
+        assertEquals(LocalDateTime.now(clock).plusSeconds(2), movement.getNextAttemptAt());
+
+        statuses.remove("p1");
+        clock.now = clock.now.plusSeconds(2);
+        assertEquals(1, relay.relayPending());
+        assertNotNull(movement.getDeliveredAt());
+        assertEquals(List.of(StockOutboxRelay.key(movement), StockOutboxRelay.key(movement), StockOutboxRelay.key(movement)),
+                requests.stream().map(request -> request.movements().get(0).get("id")).toList());
+    }
+
+    // a line without stock cancels its order, and the lines that took theirs give it back through the outbox
+    @Test
+    void relay_insufficientStockCancelsOrder() {
+        Order order = order(1);
+        pending(1, "p1", 1);
+        StockMovement short_ = pending(1, "p2", 2);
+        outcomes.put("p2", StockOutboxRelay.INSUFFICIENT_STOCK);
+
+        assertEquals(2, relay.relayPending());
+
+        assertEquals(OrderStatus.CANCELLED, order.getOrderStatus());
+        assertEquals("Insufficient stock", short_.getLastError());
+
+        // the restock is an outbox movement like any other, delivered by the next run
+        assertEquals(1, relay.relayPending());
+        Request restock = requests.get(2);
+        assertEquals("p1", restock.productId());
+        assertEquals("RESTOCK", restock.movements().get(0).get("type"));
+        assertEquals(1, restock.movements().get(0).get("quantity"));
+    }
+
+    // a line whose product is gone can never be shipped either, the order is cancelled and refunded the same way
+    @Test
+    void relay_productNotFoundCancelsOrder() {
+        Order order = order(1);
+        order.setPaymentStatus(PaymentStatus.PAID);
+        pending(1, "p1", 1);
+        StockMovement missing = pending(1, "p2", 2);
+        outcomes.put("p2", StockOutboxRelay.PRODUCT_NOT_FOUND);
+
+        assertEquals(2, relay.relayPending());
+
+        assertEquals(OrderStatus.CANCELLED, order.getOrderStatus());
+        assertEquals(PaymentStatus.REFUNDED, order.getPaymentStatus());
+        assertEquals("Product not found", missing.getLastError());
+        assertEquals(1, relay.relayPending());
+        assertEquals("RESTOCK", requests.get(2).movements().get(0).get("type"));
+    }
+
+    // a line that arrives after its order was cancelled gives its stock straight back
+    @Test
+    void relay_lateConfirmOfCancelledOrder() {
+        Order order = order(1);
+        order.setOrderStatus(OrderStatus.CANCELLED);
+        pending(1, "p1", 4);
+
+        relay.relayPending();
+        relay.relayPending();
+
+        assertEquals(List.of("CONFIRM", "RESTOCK"), requests.stream().map(request -> request.movements().get(0).get("type")).toList());
+    }
+
+    @Test
+    void backoff_doublesUpToMax() {
+        assertEquals(Duration.ofSeconds(1), StockOutboxRelay.backoff(1));
+        assertEquals(Duration.ofSeconds(4), StockOutboxRelay.backoff(3));
+        assertEquals(StockOutboxRelay.MAX_BACKOFF, StockOutboxRelay.backoff(12));
+        assertEquals(StockOutboxRelay.MAX_BACKOFF, StockOutboxRelay.backoff(500));
+    }
+
+}
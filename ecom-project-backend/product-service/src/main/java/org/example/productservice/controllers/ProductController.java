@@ -1,41 +1,80 @@
 package org.example.productservice.controllers;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotBlank;
 import org.example.productservice.dto.AddReviewBody;
 import org.example.productservice.dto.CategoryUpdateBody;
+import org.example.productservice.dto.ProductCacheStats;
 import org.example.productservice.dto.ProductDetailsForOrder;
+import org.example.productservice.dto.ProductFields;
+import org.example.productservice.dto.ProductFilter;
+import org.example.productservice.dto.ProductImportReport;
+import org.example.productservice.dto.StockMovementBody;
+import org.example.productservice.dto.ProductPage;
 import org.example.productservice.dto.ProductUpdateBody;
+import org.example.productservice.dto.ReservationBody;
 import org.example.productservice.exception.customExceptions.BaseException;
 import org.example.productservice.models.Category;
 import org.example.productservice.models.Product;
+import org.example.productservice.models.Reservation;
+import org.example.productservice.models.Review;
+import org.example.productservice.services.ProductImporter;
 import org.example.productservice.services.ProductService;
+import org.example.productservice.services.ReservationService;
+import org.example.productservice.services.StockMovementService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.MultiValueMap;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 
-@CrossOrigin("*")
+@CrossOrigin(value = "*", exposedHeaders = "X-Total-Count")
 @RestController
 @Validated
 @RequestMapping(value = "/products")
 public class ProductController {
     Logger logger = LoggerFactory.getLogger(Logger.class);
 
+    private static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+    private static final String ATTRIBUTE_PARAM_PREFIX = "attr.";
+
+    public static final String NDJSON = "application/x-ndjson";
+    public static final String CSV = "text/csv";
+
     private ProductService productService;
+    private ReservationService reservationService;
+    private ProductImporter productImporter;
+    private StockMovementService stockMovementService;
+    private ObjectMapper objectMapper;
 
-    public ProductController(ProductService productService) {
+    public ProductController(ProductService productService, ReservationService reservationService, ProductImporter productImporter,
+                             StockMovementService stockMovementService, ObjectMapper objectMapper) {
         this.productService = productService;
+        this.reservationService = reservationService;
+        this.productImporter = productImporter;
+        this.stockMovementService = stockMovementService;
+        this.objectMapper = objectMapper;
     }
 
     // add product
@@ -61,16 +100,46 @@ public class ProductController {
 
     }
 
+    // bulk import of a supplier catalog as ndjson or csv, streamed straight into unordered bulk inserts.
+    // the token is checked once for the whole body; rows that could not be imported are listed in the report
+    @PostMapping(value = "/products/import", consumes = {NDJSON, CSV})
+    public ResponseEntity<Object> importProducts(@RequestParam(required = false) String categoryId, HttpServletRequest request) throws IOException {
+
+        try {
+            String token = productService.extractTokenFromRequest(request);
+
+            if (!productService.checkAdmin(token)) {
+                logger.error("importProducts - Authentication Error : Cannot be accessed");
+                throw new BaseException(HttpStatus.UNAUTHORIZED, "Authentication Error : Cannot be accessed");
+            }
+
+            boolean csv = MediaType.parseMediaType(request.getContentType()).isCompatibleWith(MediaType.parseMediaType(CSV));
+            ProductImportReport report = csv
+                    ? productImporter.importCsv(request.getInputStream(), categoryId)
+                    : productImporter.importNdjson(request.getInputStream(), categoryId);
+
+            return ResponseEntity.ok(report);
+        } catch (Exception exception) {
+            logger.error("importProducts - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
     // get product by id
     @GetMapping("/products/{productId}")
     @ResponseBody
-    public ResponseEntity<Object> getProductById(@PathVariable @NotBlank String productId) {
+    public ResponseEntity<Object> getProductById(@PathVariable @NotBlank String productId, WebRequest webRequest) {
 
         try {
+            // a revalidation only needs the version, the product is neither read nor serialized when it still matches
+            if (webRequest.getHeader(HttpHeaders.IF_NONE_MATCH) != null && webRequest.checkNotModified(productService.getProductETag(productId))) {
+                return null;
+            }
+
             Product product = productService.getProductById(productId);
             Map<String, Object> response = new HashMap<>();
             response.put("product", product);
-            return new ResponseEntity<>(response, HttpStatus.OK);
+            return ResponseEntity.ok().eTag(ProductService.versionETag(product.getVersion())).body(response);
         } catch (Exception exception) {
             logger.error("getProductById - {}", exception.getMessage());
             throw exception;
@@ -94,6 +163,22 @@ public class ProductController {
 
     }
 
+    // get details of several products for one order, one lookup for all of them
+    @PostMapping("/products/detailsForOrder")
+    @ResponseBody
+    public ResponseEntity<Object> getProductDetailsForOrderByIds(@RequestBody List<String> productIds) {
+
+        try {
+            List<ProductDetailsForOrder> products = productService.getProductDetailsForOrderByIds(productIds);
+
+            return new ResponseEntity<>(products, HttpStatus.OK);
+        } catch (Exception exception) {
+            logger.error("getProductDetailsForOrderByIds - {}", exception.getMessage());
+            throw exception;
+        }
+
+    }
+
     @PostMapping("/products/{productId}/updateQuantity")
     @ResponseBody
     public ResponseEntity<Object> updateProductQuantity(@PathVariable @NotBlank String productId, @Valid @RequestBody ProductUpdateBody productUpdateBody) {
@@ -123,6 +208,136 @@ public class ProductController {
 
     }
 
+    // take stock for an order in one atomic step, answers the quantity left or 409 when there is not enough
+    @PostMapping("/products/{productId}/decrementQuantity")
+    @ResponseBody
+    public ResponseEntity<Object> decrementProductQuantity(@PathVariable @NotBlank String productId, @Valid @RequestBody ProductUpdateBody productUpdateBody) {
+
+        try {
+            int quantity = productService.decrementProductQuantity(productId, parseQuantity(productUpdateBody));
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("message", "Quantity updated successfully");
+            response.put("quantity", quantity);
+
+            return new ResponseEntity<>(response, HttpStatus.OK);
+        } catch (Exception exception) {
+            logger.error("decrementProductQuantity - {}", exception.getMessage());
+            throw exception;
+        }
+
+    }
+
+    // give back stock taken by decrementQuantity
+    @PostMapping("/products/{productId}/restockQuantity")
+    @ResponseBody
+    public ResponseEntity<Object> restockProductQuantity(@PathVariable @NotBlank String productId, @Valid @RequestBody ProductUpdateBody productUpdateBody) {
+
+        try {
+            int quantity = productService.restockProductQuantity(productId, parseQuantity(productUpdateBody));
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("message", "Quantity updated successfully");
+            response.put("quantity", quantity);
+
+            return new ResponseEntity<>(response, HttpStatus.OK);
+        } catch (Exception exception) {
+            logger.error("restockProductQuantity - {}", exception.getMessage());
+            throw exception;
+        }
+
+    }
+
+    // hold stock for a cart until checkout
+    @PostMapping("/products/{productId}/reservations")
+    public ResponseEntity<Object> reserveProduct(@PathVariable @NotBlank String productId, @Valid @RequestBody ReservationBody reservationBody) {
+
+        try {
+            Reservation reservation = reservationService.reserve(productId, reservationBody.getOwner(), reservationBody.getQuantity());
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("message", "Stock reserved successfully");
+            response.put("reservation", reservation);
+
+            return new ResponseEntity<>(response, HttpStatus.CREATED);
+        } catch (Exception exception) {
+            logger.error("reserveProduct - {}", exception.getMessage());
+            throw exception;
+        }
+
+    }
+
+    // an order takes the held stock
+    @PostMapping("/products/{productId}/reservations/confirm")
+    public ResponseEntity<Object> confirmReservation(@PathVariable @NotBlank String productId, @Valid @RequestBody ReservationBody reservationBody) {
+
+        try {
+            reservationService.confirm(productId, reservationBody.getOwner(), reservationBody.getQuantity());
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("message", "Reservation confirmed successfully");
+
+            return new ResponseEntity<>(response, HttpStatus.OK);
+        } catch (Exception exception) {
+            logger.error("confirmReservation - {}", exception.getMessage());
+            throw exception;
+        }
+
+    }
+
+    // give held stock back
+    @PostMapping("/products/{productId}/reservations/release")
+    public ResponseEntity<Object> releaseReservation(@PathVariable @NotBlank String productId, @Valid @RequestBody ReservationBody reservationBody) {
+
+        try {
+            int released = reservationService.release(productId, reservationBody.getOwner(), reservationBody.getQuantity());
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("message", "Reservation released successfully");
+            response.put("released", released);
+
+            return new ResponseEntity<>(response, HttpStatus.OK);
+        } catch (Exception exception) {
+            logger.error("releaseReservation - {}", exception.getMessage());
+            throw exception;
+        }
+
+    }
+
+    // stock movements of one product relayed from the order-service outbox, answered with the outcome of each
+    @PostMapping("/products/{productId}/stockMovements")
+    public ResponseEntity<Object> applyStockMovements(@PathVariable @NotBlank String productId, @RequestBody List<StockMovementBody> movements) {
+
+        try {
+            Map<String, String> outcomes = stockMovementService.apply(productId, movements);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("message", "Stock movements applied successfully");
+            response.put("outcomes", outcomes);
+
+            return new ResponseEntity<>(response, HttpStatus.OK);
+        } catch (Exception exception) {
+            logger.error("applyStockMovements - {}", exception.getMessage());
+            throw exception;
+        }
+
+    }
+
+    // Helper method to read the quantity of a ProductUpdateBody
+    private int parseQuantity(ProductUpdateBody productUpdateBody) {
+        if (productUpdateBody.getQuantity() == null) {
+            logger.error("parseQuantity - Quantity cannot be null");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Quantity cannot be null");
+        }
+
+        try {
+            return Integer.parseInt(productUpdateBody.getQuantity());
+        } catch (NumberFormatException exception) {
+            logger.error("parseQuantity - {}", exception.getMessage());
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Quantity should be an integer");
+        }
+    }
+
     // get product quantity by id
     @GetMapping("/products/{productId}/quantity")
     @ResponseBody
@@ -146,7 +361,14 @@ public class ProductController {
             @RequestParam(required = false) Double maxPrice,
             @RequestParam(required = false) String keyword,
             @RequestParam(required = false) String categoryId,
-    @RequestParam(required = false) ArrayList<String> gender) {
+    @RequestParam(required = false) ArrayList<String> gender,
+            @RequestParam(required = false) String sort,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Boolean facets,
+            @RequestParam(required = false) String fields,
+            @RequestParam(required = false) String view,
+            @RequestParam MultiValueMap<String, String> params) {
 
         try {
 
@@ -173,11 +395,28 @@ public class ProductController {
                 gender = new ArrayList<>();
             }
 
+            Map<String, List<String>> attributes = attributeFilters(params);
+            ProductFields productFields = ProductFields.parse(fields, view);
+
+            // paged mode as soon as the client asks for a sort, a limit, the next page or the facets (facets=false is not asking)
+            if (sort != null || limit != null || cursor != null || Boolean.TRUE.equals(facets)) {
+                ProductPage page = productService.getFilteredProductsPage(minPrice, maxPrice, keyword, categoryId, gender, attributes, productFields,
+                        sort == null ? "id" : sort, limit == null ? ProductService.DEFAULT_PAGE_SIZE : limit, cursor);
+
+                Map<String, Object> response = new HashMap<>();
+                response.put("products", select(page.getProducts(), productFields));
+                response.put("next", page.getNext());
+                if (Boolean.TRUE.equals(facets)) {
+                    // counts for the filter sidebar, without shipping every matching product
+                    response.put("facets", productService.getProductFacets(minPrice, maxPrice, keyword, categoryId, gender, attributes));
+                }
+                return ResponseEntity.ok(response);
+            }
 
             List<Product> filteredProducts = productService.getFilteredProducts(
-                    minPrice, maxPrice, keyword,categoryId,gender);
+                    minPrice, maxPrice, keyword,categoryId,gender, attributes, productFields);
 
-            return ResponseEntity.ok(filteredProducts);
+            return ResponseEntity.ok(select(filteredProducts, productFields));
         } catch (Exception exception) {
             logger.error("getAllProducts - {}", exception.getMessage());
             throw exception;
@@ -185,15 +424,108 @@ public class ProductController {
     }
 
 
+    // stream every matching product as newline delimited json (Accept: application/x-ndjson).
+    // written straight from the mongo cursor to the response, so a full catalog export runs in constant memory
+    @GetMapping(value = "/products", produces = NDJSON)
+    public void streamAllProducts(
+            @RequestParam(required = false) Double minPrice,
+            @RequestParam(required = false) Double maxPrice,
+            @RequestParam(required = false) String keyword,
+            @RequestParam(required = false) String categoryId,
+            @RequestParam(required = false) ArrayList<String> gender,
+            @RequestParam(required = false) String fields,
+            @RequestParam(required = false) String view,
+            @RequestParam MultiValueMap<String, String> params,
+            HttpServletResponse response) throws IOException {
+
+        try {
+            // a bad param still gets the usual json error, nothing of the stream is written before it is checked
+            ProductFields productFields = ProductFields.parse(fields, view);
+            ProductFilter filter = productService.getListingFilter(
+                    minPrice == null ? 0.0 : minPrice,
+                    maxPrice == null ? Double.MAX_VALUE : maxPrice,
+                    keyword == null ? "" : keyword,
+                    categoryId == null ? "" : categoryId,
+                    gender == null ? new ArrayList<>() : gender,
+                    attributeFilters(params),
+                    productFields);
+
+            response.setContentType(NDJSON);
+            OutputStream outputStream = response.getOutputStream();
+
+            productService.streamFilteredProducts(filter, product -> {
+                try {
+                    outputStream.write(objectMapper.writeValueAsBytes(productFields == null ? product : select(product, productFields)));
+                    outputStream.write('\n');
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+
+            outputStream.flush();
+        } catch (Exception exception) {
+            logger.error("streamAllProducts - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+
+    // typeahead for the search box
+    @GetMapping("/products/suggestions")
+    @ResponseBody
+    public ResponseEntity<Object> getSuggestions(@RequestParam(defaultValue = "") String prefix,
+                                                 @RequestParam(defaultValue = "10") int limit) {
+        try {
+            return ResponseEntity.ok(productService.getSuggestions(prefix, limit));
+        } catch (Exception exception) {
+            logger.error("getSuggestions - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+
+    // attr.<name>=<value> params, repeated for several accepted values of one attribute
+    private Map<String, List<String>> attributeFilters(MultiValueMap<String, String> params) {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        params.forEach((param, values) -> {
+            if (param.startsWith(ATTRIBUTE_PARAM_PREFIX) && param.length() > ATTRIBUTE_PARAM_PREFIX.length()) {
+                attributes.put(param.substring(ATTRIBUTE_PARAM_PREFIX.length()), values);
+            }
+        });
+        return attributes;
+    }
+
+
+    // products cut down to the asked for fields, whole products when none were asked for
+    private Object select(List<Product> products, ProductFields fields) {
+        if (fields == null) {
+            return products;
+        }
+        return products.stream().map(product -> select(product, fields)).toList();
+    }
+
+    private Map<String, Object> select(Product product, ProductFields fields) {
+        return fields.select(objectMapper.convertValue(product, new TypeReference<Map<String, Object>>() {}));
+    }
+
+
     // get all products of a category
     @GetMapping("/products/category/{categoryId}")
     @ResponseBody
-    public ResponseEntity<Object> getProductsByCategory(@PathVariable @NotBlank String categoryId) {
+    public ResponseEntity<Object> getProductsByCategory(@PathVariable @NotBlank String categoryId,
+                                                        @RequestParam(defaultValue = "0") int page,
+                                                        @RequestParam(defaultValue = "20") int size,
+                                                        @RequestParam(defaultValue = "id") String sort,
+                                                        @RequestParam(required = false) String fields,
+                                                        @RequestParam(required = false) String view) {
 
         try {
-            List<Product> products = productService.getProductsByCategory(categoryId);
+            ProductFields productFields = ProductFields.parse(fields, view);
+            Page<Product> products = productService.getProductsByCategory(categoryId, page, size, sort, productFields);
 
-            return new ResponseEntity<>(products, HttpStatus.OK);
+            return ResponseEntity.ok()
+                    .header(TOTAL_COUNT_HEADER, String.valueOf(products.getTotalElements()))
+                    .body(select(products.getContent(), productFields));
         } catch (Exception exception) {
             logger.error("getProductsByCategory - {}", exception.getMessage());
             throw exception;
@@ -202,16 +534,46 @@ public class ProductController {
     }
 
 
+    // product cache hit/miss/eviction counters
+    @GetMapping("/cache/stats")
+    public ResponseEntity<Object> getProductCacheStats(HttpServletRequest request) {
+
+        try {
+            String token = productService.extractTokenFromRequest(request);
+
+            if (!productService.checkAdmin(token)) {
+                logger.error("getProductCacheStats - Authentication Error : Cannot be accessed");
+                throw new BaseException(HttpStatus.UNAUTHORIZED, "Authentication Error : Cannot be accessed");
+            }
+
+            ProductCacheStats stats = productService.getProductCacheStats();
+
+            return new ResponseEntity<>(stats, HttpStatus.OK);
+        } catch (Exception exception) {
+            logger.error("getProductCacheStats - {}", exception.getMessage());
+            throw exception;
+        }
+
+    }
+
+
     //get all categories
 
     @GetMapping("/categories")
     @ResponseBody
-    public ResponseEntity<Object> getAllCategories() {
+    public ResponseEntity<Object> getAllCategories(WebRequest webRequest) {
 
         try {
+            // tag first, so a write in between can only make the client fetch again, never cache new categories under an old tag
+            String eTag = productService.getCategoriesETag();
+            if (eTag != null && webRequest.checkNotModified(eTag)) {
+                // 304 with the etag, written by spring
+                return null;
+            }
+
             List<Category> categories = productService.getAllCategories();
 
-            return new ResponseEntity<>(categories, HttpStatus.OK);
+            return ResponseEntity.ok().eTag(eTag).body(categories);
         } catch (Exception exception) {
             logger.error("getAllCategory - {}", exception.getMessage());
             throw exception;
@@ -221,7 +583,8 @@ public class ProductController {
 
     // update product by id
     @PatchMapping("/product/{id}")
-    public ResponseEntity<Object> updateProduct(@PathVariable @NotBlank String id, @RequestBody @Valid ProductUpdateBody updatedProduct, HttpServletRequest request) {
+    public ResponseEntity<Object> updateProduct(@PathVariable @NotBlank String id, @RequestBody @Valid ProductUpdateBody updatedProduct,
+                                                @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch, HttpServletRequest request) {
 
         try {
             String token = productService.extractTokenFromRequest(request);
@@ -231,7 +594,8 @@ public class ProductController {
                 throw new BaseException(HttpStatus.UNAUTHORIZED, "Authentication Error : Cannot be accessed");
             }
 
-            Product product = productService.updateProduct(id, updatedProduct);
+            // the etag the admin edited, a product changed since then is not overwritten
+            Product product = productService.updateProduct(id, updatedProduct, ProductService.versionFromETag(ifMatch));
 
             Map<String, Object> response = new HashMap<>();
             response.put("message", "Product updated successfully");
@@ -295,16 +659,21 @@ public class ProductController {
 
     // get category
     @GetMapping("/category/{categoryId}")
-    public ResponseEntity<Object> getCategoryById(@PathVariable @NotBlank String categoryId) {
+    public ResponseEntity<Object> getCategoryById(@PathVariable @NotBlank String categoryId, WebRequest webRequest) {
 
         try {
             Category category = productService.getCategoryById(categoryId);
+            String eTag = ProductService.versionETag(category.getVersion());
+            if (webRequest.checkNotModified(eTag)) {
+                return null;
+            }
+
             Map<String, Object> response = new HashMap<>();
 
             response.put("category", category);
 
 
-            return new ResponseEntity<>(response, HttpStatus.OK);
+            return ResponseEntity.ok().eTag(eTag).body(response);
         } catch (Exception exception) {
             logger.error("getCategoryById - {}", exception.getMessage());
             throw exception;
@@ -381,5 +750,24 @@ public class ProductController {
 
     }
 
+    // reviews of a product, newest first, a page at a time
+    @GetMapping("/product/{id}/reviews")
+    public ResponseEntity<Object> getReviews(@PathVariable @NotBlank String id,
+                                             @RequestParam(defaultValue = "0") int page,
+                                             @RequestParam(defaultValue = "20") int size) {
+
+        try {
+            Page<Review> reviews = productService.getReviews(id, page, size);
+
+            return ResponseEntity.ok()
+                    .header(TOTAL_COUNT_HEADER, String.valueOf(reviews.getTotalElements()))
+                    .body(reviews.getContent());
+        } catch (Exception exception) {
+            logger.error("getReviews - {}", exception.getMessage());
+            throw exception;
+        }
+
+    }
+
 
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+package org.example.productservice.dto;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class ProductCacheStats {
+
+    private long hits;
+
+    private long misses;
+
+    // dropped to stay under maxSize
+    private long evictions;
+
+    // dropped because they outlived the ttl
+    private long expirations;
+
+    private int size;
+
+    private int maxSize;
+
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+}
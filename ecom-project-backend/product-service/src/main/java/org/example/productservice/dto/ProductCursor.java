@@ -0,0 +1,46 @@
+package org.example.productservice.dto;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.example.productservice.exception.customExceptions.BaseException;
+import org.springframework.http.HttpStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// position after the last product of a page: sort field value and id of that product.
+// handed to clients as an opaque url-safe string
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductCursor {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private String sort;
+
+    private String direction;
+
+    private Object value;
+
+    private String id;
+
+    public String encode() {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(objectMapper.writeValueAsBytes(this));
+        } catch (Exception exception) {
+            throw new IllegalStateException("Cursor could not be encoded", exception);
+        }
+    }
+
+    public static ProductCursor decode(String cursor) {
+        try {
+            return objectMapper.readValue(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8), ProductCursor.class);
+        } catch (Exception exception) {
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Invalid cursor");
+        }
+    }
+
+}
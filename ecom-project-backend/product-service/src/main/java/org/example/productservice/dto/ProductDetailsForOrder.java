@@ -5,6 +5,7 @@ import lombok.Data;
 
 @Data
 public class ProductDetailsForOrder {
+    private String id;
     private String name;
     private String category;
     private String img;
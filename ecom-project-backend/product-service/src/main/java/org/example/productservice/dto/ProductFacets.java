@@ -0,0 +1,46 @@
+package org.example.productservice.dto;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// counts of the products matching a listing filter, per gender, category and price range
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductFacets {
+
+    private long total;
+
+    private Map<String, Long> gender = new LinkedHashMap<>();
+
+    private List<CategoryCount> categories = new ArrayList<>();
+
+    private List<PriceBucket> price = new ArrayList<>();
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class CategoryCount {
+        private String id;
+        private String name;
+        private long count;
+    }
+
+    // min inclusive, max exclusive; max is null for the last, open ended bucket
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class PriceBucket {
+        private double min;
+        private Double max;
+        private long count;
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.example.productservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.example.productservice.exception.customExceptions.BaseException;
+import org.springframework.http.HttpStatus;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// the fields a listing returns, asked for with fields=name,price,... and/or view=summary.
+// turned into a mongo projection by ProductRepositoryCustomImpl, so left out fields are neither read nor sent
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductFields {
+
+    public static final List<String> ALLOWED = List.of("id", "name", "description", "attributes", "price", "category", "quantity",
+            "imgLinks", "gender", "rating", "ratingCount", "ratingSum", "ratingHistogram");
+
+    public static final String SUMMARY_VIEW = "summary";
+
+    // what a product card shows, with the first image only
+    public static final List<String> SUMMARY = List.of("id", "name", "price", "quantity", "gender", "imgLinks", "rating", "ratingCount");
+
+    // always holds id
+    private Set<String> names;
+
+    private boolean firstImageOnly;
+
+    // null when neither is given, the listing then returns whole products
+    public static ProductFields parse(String fields, String view) {
+        boolean hasFields = fields != null && !fields.isBlank();
+        boolean hasView = view != null && !view.isBlank();
+        if (!hasFields && !hasView) {
+            return null;
+        }
+
+        Set<String> names = new LinkedHashSet<>();
+        names.add("id");
+        boolean firstImageOnly = false;
+
+        if (hasView) {
+            if (!SUMMARY_VIEW.equals(view.trim())) {
+                throw new BaseException(HttpStatus.BAD_REQUEST, "View should be " + SUMMARY_VIEW);
+            }
+            names.addAll(SUMMARY);
+            firstImageOnly = true;
+        }
+
+        if (hasFields) {
+            for (String field : fields.split(",")) {
+                String name = field.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                if (!ALLOWED.contains(name)) {
+                    throw new BaseException(HttpStatus.BAD_REQUEST, "Unknown field : " + name);
+                }
+                names.add(name);
+            }
+        }
+
+        return new ProductFields(names, firstImageOnly);
+    }
+
+    // the serialized product cut down to the asked for fields, in the order they were asked for
+    public Map<String, Object> select(Map<String, Object> product) {
+        Map<String, Object> selected = new LinkedHashMap<>();
+        for (String name : names) {
+            if (product.containsKey(name)) {
+                selected.put(name, product.get(name));
+            }
+        }
+        return selected;
+    }
+
+}
@@ -0,0 +1,44 @@
+package org.example.productservice.dto;
+
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// every listing filter, turned into a single $match by ProductRepositoryCustomImpl
+@Data
+@NoArgsConstructor
+public class ProductFilter {
+
+    private Double minPrice;
+
+    private Double maxPrice;
+
+    private String keyword;
+
+    private String categoryId;
+
+    private List<String> gender = new ArrayList<>();
+
+    // attribute name -> accepted values; a product needs one of the values for every attribute
+    private Map<String, List<String>> attributes = new LinkedHashMap<>();
+
+    // most products returned, 0 for all of them
+    private int limit;
+
+    // projection of the returned products, null for whole products
+    private ProductFields fields;
+
+    public ProductFilter(Double minPrice, Double maxPrice, String keyword, String categoryId, List<String> gender) {
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        this.keyword = keyword;
+        this.categoryId = categoryId;
+        this.gender = gender;
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.example.productservice.dto;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// outcome of a bulk import. rows are numbered from 1 in the order they were sent, a csv header is not a row
+@Data
+@NoArgsConstructor
+public class ProductImportReport {
+
+    private long rows;
+
+    private long imported;
+
+    private long failed;
+
+    // the first failures only, failed has the count of all of them
+    private List<RowError> errors = new ArrayList<>();
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class RowError {
+        private long row;
+        private String message;
+    }
+
+}
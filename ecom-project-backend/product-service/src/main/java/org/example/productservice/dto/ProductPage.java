@@ -0,0 +1,21 @@
+package org.example.productservice.dto;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.example.productservice.models.Product;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductPage {
+
+    private List<Product> products;
+
+    // cursor of the following page, null on the last one
+    private String next;
+
+}
@@ -0,0 +1,16 @@
+package org.example.productservice.dto;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotBlank;
+import lombok.Data;
+
+@Data
+public class ReservationBody {
+
+    @NotBlank(message = "Owner cannot be empty")
+    private String owner;
+
+    @Min(value = 1, message = "Quantity should be greater than 0")
+    private int quantity;
+
+}
@@ -0,0 +1,30 @@
+package org.example.productservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// one stock movement relayed by order-service. the id is the sender's key for it, a movement with an id that was
+// applied before is not applied again
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockMovementBody {
+
+    public enum Type {
+        // take stock for an order out of the owner's hold, like a reservation confirm
+        CONFIRM,
+        // give stock back to the product
+        RESTOCK
+    }
+
+    private String id;
+
+    private Type type;
+
+    // the hold a confirm takes from, not used by a restock
+    private String owner;
+
+    private int quantity;
+
+}
@@ -5,6 +5,7 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -29,4 +30,8 @@ public class Category {
     @NotBlank
     private String imgLink;
 
+    // counted up by every write of the category, its etag. saves are only applied to the version they read
+    @Version
+    private long version;
+
 }
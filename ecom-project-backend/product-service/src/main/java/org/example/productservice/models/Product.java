@@ -8,16 +8,37 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.experimental.Accessors;
-import org.springframework.data.mongodb.core.mapping.DBRef;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.FieldType;
 import org.springframework.data.mongodb.core.mapping.MongoId;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 @Document(collection = "products")
+// equality fields first, price range last, so every listing filter combination is served by an index.
+// the category_* indexes serve the paginated category listing for each of its sort options, ties broken by _id,
+// the <field>_id indexes the keyset pagination of the product listing (and price ranges)
+@CompoundIndexes({
+        @CompoundIndex(name = "category_gender_price", def = "{'category._id': 1, 'gender': 1, 'price': 1}"),
+        @CompoundIndex(name = "gender_price", def = "{'gender': 1, 'price': 1}"),
+        @CompoundIndex(name = "category_id", def = "{'category._id': 1, '_id': 1}"),
+        @CompoundIndex(name = "category_price_id", def = "{'category._id': 1, 'price': 1, '_id': 1}"),
+        @CompoundIndex(name = "category_name_id", def = "{'category._id': 1, 'name': 1, '_id': 1}"),
+        @CompoundIndex(name = "price_id", def = "{'price': 1, '_id': 1}"),
+        @CompoundIndex(name = "name_id", def = "{'name': 1, '_id': 1}"),
+        @CompoundIndex(name = "rating_id", def = "{'rating': 1, '_id': 1}"),
+        @CompoundIndex(name = "attribute_value", def = "{'attributes.name': 1, 'attributes.value': 1}"),
+        @CompoundIndex(name = "category_attribute_value", def = "{'category._id': 1, 'attributes.name': 1, 'attributes.value': 1}"),
+        // searchTerms is written by ProductSearchTermsCallback, keyword filters match it with anchored prefixes
+        @CompoundIndex(name = "search_terms", def = "{'searchTerms': 1}")
+})
 @Accessors(chain = true)
 @NoArgsConstructor
 @Data
@@ -40,18 +61,48 @@ public class Product {
     @Positive(message = "Price must be greater than 0")
     private Double price;
 
-    @DBRef
-    private Category category;
+    // embedded copy of the category, so reading products never needs a second lookup; updateCategoryById keeps it current
+    private CategoryInfo category;
 
     @Positive(message = "Quantity must be greater than 0")
     private int quantity;
 
     private List<String> imgLinks = new ArrayList<>();
 
-    private List<Review> reviews = new ArrayList<>();
-
     @NotBlank(message="Gender must not be blank")
     private String gender;
+
+    // average of the review ratings, derived from ratingSum and ratingCount so listings can sort on it
+    private double rating;
+
+    // review aggregates, counted in by addReview with one atomic update. the reviews themselves live in their own collection
+    private long ratingCount;
+
+    private double ratingSum;
+
+    // number of reviews per star, keyed "1" to "5"
+    private Map<String, Long> ratingHistogram = new HashMap<>();
+
+    // counted up by every write of the product, its etag. saves are only applied to the version they read
+    @Version
+    private long version;
+
+    // the fields of Category a product carries. a type of its own so the indexes of the categories collection
+    // (unique name) are not resolved onto products
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class CategoryInfo {
+        private String id;
+        private String name;
+        private List<String> attributes;
+        private String imgLink;
+
+        public static CategoryInfo from(Category category) {
+            return new CategoryInfo(category.getId(), category.getName(), category.getAttributes(), category.getImgLink());
+        }
+    }
+
     @Data
     public static class Attribute {
         private String name;
@@ -64,12 +115,4 @@ public class Product {
 
     }
 
-    @Data
-    public static class Review {
-        private int userId;
-        private String description;
-        private double rating;
-    }
-
-
 }
@@ -0,0 +1,48 @@
+package org.example.productservice.models;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+import org.springframework.data.mongodb.core.mapping.MongoId;
+
+import java.time.Instant;
+
+
+// stock held for an owner (a cart) until it is confirmed by an order, released, or expires.
+// the held quantity is already taken off Product.quantity, so the product document only ever carries what is available
+@Document(collection = "reservations")
+@CompoundIndex(name = "product_owner", def = "{'productId': 1, 'owner': 1}", unique = true)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Reservation {
+
+    @MongoId(FieldType.OBJECT_ID)
+    private String id;
+
+    private String productId;
+
+    private String owner;
+
+    private int quantity;
+
+    // the sweep gives the stock of expired holds back to the product
+    @Indexed
+    private Instant expiresAt;
+
+    // stock of an expired hold the sweep has taken out of quantity and not given back to the product yet.
+    // releasingAt is when it was taken, so a sweep that died halfway is picked up again once it is stale
+    private int releasing;
+
+    private Instant releasingAt;
+
+    public Reservation(String id, String productId, String owner, int quantity, Instant expiresAt) {
+        this(id, productId, owner, quantity, expiresAt, 0, null);
+    }
+
+}
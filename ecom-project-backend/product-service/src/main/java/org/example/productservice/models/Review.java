@@ -0,0 +1,39 @@
+package org.example.productservice.models;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+import org.springframework.data.mongodb.core.mapping.MongoId;
+
+import java.time.Instant;
+
+
+// one review of a product. kept out of the product document so products stay small however many reviews they get;
+// the product only carries the aggregates (Product.ratingCount, ratingSum, ratingHistogram)
+@Document(collection = "reviews")
+// newest first per product, the order the review pages are read in
+@CompoundIndex(name = "product_id", def = "{'productId': 1, '_id': -1}")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Review {
+
+    @MongoId(FieldType.OBJECT_ID)
+    private String id;
+
+    private String productId;
+
+    private int userId;
+
+    private String description;
+
+    private double rating;
+
+    // null for reviews moved over from the old embedded list
+    private Instant createdAt;
+
+}
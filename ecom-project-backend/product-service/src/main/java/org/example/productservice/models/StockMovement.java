@@ -0,0 +1,40 @@
+package org.example.productservice.models;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+
+// a stock movement that was applied, keyed by the sender's id, so a redelivered movement gets its first outcome
+// back instead of moving the stock twice. it is inserted as PENDING before the stock is moved, so of two deliveries
+// arriving at once only the one whose insert went through applies it. kept for a week, far longer than any sender retries
+@Document(collection = "stockMovements")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockMovement {
+
+    // the movement is being applied by the delivery that inserted it
+    public static final String PENDING = "PENDING";
+    public static final String APPLIED = "APPLIED";
+    public static final String INSUFFICIENT_STOCK = "INSUFFICIENT_STOCK";
+    public static final String PRODUCT_NOT_FOUND = "PRODUCT_NOT_FOUND";
+
+    @Id
+    private String id;
+
+    private String productId;
+
+    private String outcome;
+
+    // when the movement was taken on, a PENDING one older than StockMovementService.PENDING_TIMEOUT was abandoned
+    @Indexed(expireAfter = "7d")
+    private Instant appliedAt;
+
+}
@@ -2,9 +2,16 @@ package org.example.productservice.repository;
 
 import org.example.productservice.models.Category;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.Update;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public interface CategoryRepository extends MongoRepository<Category, String> {
 
+    // gives a category written before versioning its first version. 0 when it has one, another write got there first
+    @Query("{ '_id': ?0, 'version': { '$exists': false } }")
+    @Update("{ '$set': { 'version': 1 } }")
+    long initializeVersion(String categoryId);
+
 }
\ No newline at end of file
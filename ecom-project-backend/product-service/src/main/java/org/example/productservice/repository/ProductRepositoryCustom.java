@@ -0,0 +1,57 @@
+package org.example.productservice.repository;
+
+import org.bson.Document;
+import org.example.productservice.dto.ProductCursor;
+import org.example.productservice.dto.ProductFacets;
+import org.example.productservice.dto.ProductFields;
+import org.example.productservice.dto.ProductFilter;
+import org.example.productservice.models.Category;
+import org.example.productservice.models.Product;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+
+public interface ProductRepositoryCustom {
+
+    List<Product> findFilteredProducts(ProductFilter filter);
+
+    ProductFacets findFacets(ProductFilter filter);
+
+    Stream<Product> streamFilteredProducts(ProductFilter filter);
+
+    Long findVersionById(String productId);
+
+    boolean initializeVersion(String productId);
+
+    Page<Product> findByCategoryId(String categoryId, Pageable pageable, ProductFields fields);
+
+    List<Product> findFilteredProductsAfter(ProductFilter filter, String sortField, Sort.Direction direction, ProductCursor after, int limit);
+
+    List<Product> findForOrderByIds(Collection<String> productIds);
+
+    Map<Integer, String> insertUnordered(List<Product> products);
+
+    List<Product> deleteByCategoryId(String categoryId);
+
+    long updateCategory(Category category);
+
+    Product decrementQuantity(String productId, int amount);
+
+    Product incrementQuantity(String productId, int amount);
+
+    void incrementQuantities(Map<String, Integer> amounts);
+
+    Product addRatings(String productId, long count, double sum, Map<String, Long> histogram);
+
+    Document claimLegacyReviews(Instant now, Instant claimedUntil);
+
+    boolean mergeLegacyRatings(String productId, Instant claimedUntil, long count, double sum, Map<String, Long> histogram);
+
+}
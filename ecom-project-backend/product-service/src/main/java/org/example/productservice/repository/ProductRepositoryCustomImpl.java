@@ -0,0 +1,515 @@
+package org.example.productservice.repository;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.example.productservice.dto.ProductCursor;
+import org.example.productservice.dto.ProductFacets;
+import org.example.productservice.dto.ProductFields;
+import org.example.productservice.dto.ProductFilter;
+import org.example.productservice.models.Category;
+import org.example.productservice.models.Product;
+import org.example.productservice.utils.SearchTokenizer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.aggregation.FacetOperation;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.support.PageableExecutionUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+
+public class ProductRepositoryCustomImpl implements ProductRepositoryCustom {
+
+    private static final int STREAM_BATCH_SIZE = 500;
+    // lower bounds of the price facet, everything from the last one up goes into one open ended bucket
+    static final List<Double> PRICE_BUCKETS = List.of(0.0, 1000.0, 2500.0, 5000.0, 10000.0);
+
+    // terms of a keyword beyond this are ignored, every term is one more clause
+    static final int MAX_KEYWORD_TERMS = 8;
+    private static final long DEFAULT_MAX_TIME_MS = 2000;
+
+    // Product.version, counted up by every update here the same way the service counts it up on a save
+    static final String VERSION = "version";
+    // set on a product while one instance moves its embedded reviews out
+    static final String REVIEWS_CLAIMED_UNTIL = "reviewsClaimedUntil";
+
+    private final MongoTemplate mongoTemplate;
+    // server side budget of the listing queries, mongo kills them once it is used up
+    private final Duration maxTime;
+
+    public ProductRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this(mongoTemplate, DEFAULT_MAX_TIME_MS);
+    }
+
+    @Autowired
+    public ProductRepositoryCustomImpl(MongoTemplate mongoTemplate, @Value("${product.search.max-time-ms:2000}") long maxTimeMs) {
+        this.mongoTemplate = mongoTemplate;
+        this.maxTime = Duration.ofMillis(maxTimeMs);
+    }
+
+    @Override
+    public List<Product> findFilteredProducts(ProductFilter filter) {
+        Query query = buildFilterQuery(filter).limit(filter.getLimit()).maxTime(maxTime);
+        return withinBudget(() -> mongoTemplate.find(query, Product.class));
+    }
+
+    // every facet of the filter without shipping product documents. facets are disjunctive: each one is counted under every
+    // filter except its own dimension, so selecting MEN still shows how many WOMEN there are. the top $match keeps the
+    // filters all facets share (with the category, the listing's leading index field), the $facet pipelines apply the rest.
+    // only the category facet has to drop the category filter, it is a second aggregation when one is set
+    @Override
+    public ProductFacets findFacets(ProductFilter filter) {
+        AggregationOptions options = AggregationOptions.builder().maxTime(maxTime).build();
+        Document result = withinBudget(() -> mongoTemplate.aggregate(facetAggregation(filter).withOptions(options), Document.class).getUniqueMappedResult());
+
+        ProductFacets facets = new ProductFacets();
+        if (result == null) {
+            return facets;
+        }
+
+        for (Document total : result.getList("total", Document.class)) {
+            facets.setTotal(total.get("count", Number.class).longValue());
+        }
+
+        for (Document gender : result.getList("gender", Document.class)) {
+            if (gender.get("_id") != null) {
+                facets.getGender().put(gender.get("_id").toString(), gender.get("count", Number.class).longValue());
+            }
+        }
+
+        List<Document> categories = categoryCriteria(filter) == null ? result.getList("categories", Document.class)
+                : withinBudget(() -> mongoTemplate.aggregate(categoryFacetAggregation(filter).withOptions(options), Document.class).getMappedResults());
+        for (Document category : categories) {
+            if (category.get("_id") != null) {
+                facets.getCategories().add(new ProductFacets.CategoryCount(category.get("_id").toString(),
+                        category.getString("name"), category.get("count", Number.class).longValue()));
+            }
+        }
+
+        for (Document bucket : result.getList("price", Document.class)) {
+            // the last boundary is the open ended bucket, named by $bucket's default
+            double min = bucket.get("_id") instanceof Number number ? number.doubleValue() : PRICE_BUCKETS.get(PRICE_BUCKETS.size() - 1);
+            int next = PRICE_BUCKETS.indexOf(min) + 1;
+            Double max = next > 0 && next < PRICE_BUCKETS.size() ? PRICE_BUCKETS.get(next) : null;
+            facets.getPrice().add(new ProductFacets.PriceBucket(min, max, bucket.get("count", Number.class).longValue()));
+        }
+
+        return facets;
+    }
+
+    static TypedAggregation<Product> facetAggregation(ProductFilter filter) {
+        Criteria category = categoryCriteria(filter);
+        Criteria gender = genderCriteria(filter);
+        Criteria price = priceCriteria(filter);
+
+        List<Criteria> shared = sharedCriteria(filter);
+        if (category != null) {
+            shared.add(0, category);
+        }
+
+        List<AggregationOperation> operations = new ArrayList<>();
+        if (!shared.isEmpty()) {
+            operations.add(Aggregation.match(new Criteria().andOperator(shared)));
+        }
+
+        FacetOperation facets = Aggregation.facet(facetPipeline(List.of(Aggregation.count().as("count")), gender, price)).as("total")
+                .and(facetPipeline(List.of(Aggregation.group("gender").count().as("count"), Aggregation.sort(Sort.Direction.DESC, "count")), price))
+                .as("gender");
+        if (category == null) {
+            facets = facets.and(facetPipeline(categoryGroup(), gender, price)).as("categories");
+        }
+        facets = facets.and(facetPipeline(List.of(Aggregation.bucket("price")
+                        .withBoundaries(PRICE_BUCKETS.toArray())
+                        .withDefaultBucket("last")
+                        .andOutputCount().as("count")), gender))
+                .as("price");
+        operations.add(facets);
+
+        return Aggregation.newAggregation(Product.class, operations);
+    }
+
+    // the category facet under every filter but the category
+    static TypedAggregation<Product> categoryFacetAggregation(ProductFilter filter) {
+        List<Criteria> criteria = sharedCriteria(filter);
+        Stream.of(genderCriteria(filter), priceCriteria(filter)).filter(Objects::nonNull).forEach(criteria::add);
+
+        List<AggregationOperation> operations = new ArrayList<>();
+        if (!criteria.isEmpty()) {
+            operations.add(Aggregation.match(new Criteria().andOperator(criteria)));
+        }
+        operations.addAll(categoryGroup());
+
+        return Aggregation.newAggregation(Product.class, operations);
+    }
+
+    private static List<AggregationOperation> categoryGroup() {
+        return List.of(Aggregation.group("category.id").first("category.name").as("name").count().as("count"),
+                Aggregation.sort(Sort.Direction.DESC, "count"));
+    }
+
+    // the stages of one facet, behind a $match of the filters it is counted under
+    private static AggregationOperation[] facetPipeline(List<AggregationOperation> stages, Criteria... filters) {
+        List<Criteria> criteria = Stream.of(filters).filter(Objects::nonNull).toList();
+
+        List<AggregationOperation> operations = new ArrayList<>();
+        if (!criteria.isEmpty()) {
+            operations.add(Aggregation.match(new Criteria().andOperator(criteria)));
+        }
+        operations.addAll(stages);
+        return operations.toArray(new AggregationOperation[0]);
+    }
+
+    // backed by a mongo cursor, documents are read in batches while the caller consumes them. caller closes the stream.
+    // no time budget, a full export is expected to take a while
+    @Override
+    public Stream<Product> streamFilteredProducts(ProductFilter filter) {
+        Query query = buildFilterQuery(filter);
+        query.cursorBatchSize(STREAM_BATCH_SIZE);
+
+        return mongoTemplate.stream(query, Product.class);
+    }
+
+    // keyset page: everything strictly after (sort value, id) of the cursor, in (sort field, id) order.
+    // served by the <field>_id indexes on Product, so a deep page costs the same as the first one
+    @Override
+    public List<Product> findFilteredProductsAfter(ProductFilter filter, String sortField, Sort.Direction direction, ProductCursor after, int limit) {
+        List<Criteria> criteria = buildFilterCriteria(filter);
+
+        if (after != null) {
+            criteria.add(afterCursor(sortField, direction, after));
+        }
+
+        Query query = new Query();
+        if (!criteria.isEmpty()) {
+            query.addCriteria(new Criteria().andOperator(criteria));
+        }
+
+        Sort sort = "id".equals(sortField) ? Sort.by(direction, "id") : Sort.by(direction, sortField).and(Sort.by(direction, "id"));
+        query.with(sort).limit(limit).maxTime(maxTime);
+        // the next cursor is made of the sort value of the last product, so it is read even when not asked for
+        project(query, filter.getFields(), sortField);
+
+        return withinBudget(() -> mongoTemplate.find(query, Product.class));
+    }
+
+    private static Criteria afterCursor(String sortField, Sort.Direction direction, ProductCursor after) {
+        boolean ascending = direction.isAscending();
+        Criteria idAfter = ascending ? Criteria.where("id").gt(after.getId()) : Criteria.where("id").lt(after.getId());
+
+        if ("id".equals(sortField)) {
+            return idAfter;
+        }
+
+        Criteria valueAfter = ascending ? Criteria.where(sortField).gt(after.getValue()) : Criteria.where(sortField).lt(after.getValue());
+        return new Criteria().orOperator(
+                valueAfter,
+                new Criteria().andOperator(Criteria.where(sortField).is(after.getValue()), idAfter));
+    }
+
+    // one page of a category, served by the category_* indexes on Product; the count is skipped when the page says it all
+    @Override
+    public Page<Product> findByCategoryId(String categoryId, Pageable pageable, ProductFields fields) {
+        Query query = project(new Query(Criteria.where("category._id").is(categoryObjectId(categoryId))).with(pageable), fields, null);
+
+        List<Product> products = mongoTemplate.find(query, Product.class);
+
+        return PageableExecutionUtils.getPage(products, pageable,
+                () -> mongoTemplate.count(Query.of(query).limit(-1).skip(-1), Product.class));
+    }
+
+    // only the version of the product, enough to answer a conditional read. null when it does not exist
+    @Override
+    public Long findVersionById(String productId) {
+        Query query = new Query(Criteria.where("id").is(productId));
+        query.fields().include(VERSION);
+
+        Product product = mongoTemplate.findOne(query, Product.class);
+        return product == null ? null : product.getVersion();
+    }
+
+    // gives a product written before versioning its first version. false when it has one, another write got there first
+    @Override
+    public boolean initializeVersion(String productId) {
+        Query query = new Query(Criteria.where("id").is(productId).and(VERSION).exists(false));
+
+        return mongoTemplate.updateFirst(query, new Update().set(VERSION, 1), Product.class).getModifiedCount() > 0;
+    }
+
+    // what an order needs of several products in one $in, projected to those fields
+    @Override
+    public List<Product> findForOrderByIds(Collection<String> productIds) {
+        List<ObjectId> ids = productIds.stream().filter(ObjectId::isValid).map(ObjectId::new).distinct().toList();
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Query query = new Query(Criteria.where("id").in(ids));
+        query.fields().include("name", "price", "quantity", "category.name").slice("imgLinks", 1);
+
+        return mongoTemplate.find(query, Product.class);
+    }
+
+    // one unordered bulk insert: a document that fails (a duplicate id) does not stop the others.
+    // returns the error of every product that was not written, by its index in products
+    @Override
+    public Map<Integer, String> insertUnordered(List<Product> products) {
+        if (products.isEmpty()) {
+            return Map.of();
+        }
+
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Product.class).insert(products).execute();
+            return Map.of();
+        } catch (BulkOperationException exception) {
+            Map<Integer, String> failures = new HashMap<>();
+            exception.getErrors().forEach(error -> failures.put(error.getIndex(), error.getMessage()));
+            return failures;
+        }
+    }
+
+    // removes every product of the category and returns them, so their reviews and index entries can go too
+    @Override
+    public List<Product> deleteByCategoryId(String categoryId) {
+        Query query = new Query(Criteria.where("category._id").is(categoryObjectId(categoryId)));
+        query.fields().include("id");
+
+        return mongoTemplate.findAllAndRemove(query, Product.class);
+    }
+
+    // rewrites the embedded copy of the category on all of its products
+    @Override
+    public long updateCategory(Category category) {
+        Query query = new Query(Criteria.where("category._id").is(categoryObjectId(category.getId())));
+
+        Update update = new Update().set("category", Product.CategoryInfo.from(category)).inc(VERSION, 1);
+
+        return mongoTemplate.updateMulti(query, update, Product.class).getModifiedCount();
+    }
+
+    // $inc guarded by quantity >= amount in a single findAndModify, so concurrent checkouts can never take stock below zero
+    // and nothing is read before the write. null when the product does not exist or has less than amount left
+    @Override
+    public Product decrementQuantity(String productId, int amount) {
+        Query query = new Query(Criteria.where("id").is(productId).and("quantity").gte(amount));
+        return modifyQuantity(query, -amount);
+    }
+
+    // gives back stock taken by decrementQuantity. null when the product does not exist
+    @Override
+    public Product incrementQuantity(String productId, int amount) {
+        return modifyQuantity(new Query(Criteria.where("id").is(productId)), amount);
+    }
+
+    // gives back stock to many products in one unordered bulk write
+    @Override
+    public void incrementQuantities(Map<String, Integer> amounts) {
+        if (amounts.isEmpty()) {
+            return;
+        }
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Product.class);
+        amounts.forEach((productId, amount) ->
+                bulk.updateOne(new Query(Criteria.where("id").is(productId)), new Update().inc("quantity", amount).inc(VERSION, 1)));
+        bulk.execute();
+    }
+
+    // counts ratings into the aggregates of the product in one pipeline update: the counters are incremented and the
+    // average derived from the new sum and count in the same statement, so concurrent reviews never lose each other.
+    // returns the product as written, null when it does not exist
+    @Override
+    public Product addRatings(String productId, long count, double sum, Map<String, Long> histogram) {
+        return mongoTemplate.findAndModify(new Query(Criteria.where("id").is(productId)), ratingUpdate(count, sum, histogram),
+                FindAndModifyOptions.options().returnNew(true), Product.class);
+    }
+
+    // claims the next product that still embeds reviews and nobody else is migrating, until claimedUntil.
+    // returns its id and reviews, null when there is none left
+    @Override
+    public Document claimLegacyReviews(Instant now, Instant claimedUntil) {
+        Query query = new Query(Criteria.where("reviews").exists(true)
+                .orOperator(Criteria.where(REVIEWS_CLAIMED_UNTIL).exists(false), Criteria.where(REVIEWS_CLAIMED_UNTIL).lt(now)));
+        query.fields().include("reviews");
+
+        return mongoTemplate.findAndModify(query, new Update().set(REVIEWS_CLAIMED_UNTIL, claimedUntil),
+                FindAndModifyOptions.options().returnNew(true), Document.class, mongoTemplate.getCollectionName(Product.class));
+    }
+
+    // adds the aggregates of the old embedded reviews and drops the list in the same update, so it is applied exactly once,
+    // and only by the run whose claim still holds
+    @Override
+    public boolean mergeLegacyRatings(String productId, Instant claimedUntil, long count, double sum, Map<String, Long> histogram) {
+        Query query = new Query(Criteria.where("id").is(productId).and("reviews").exists(true).and(REVIEWS_CLAIMED_UNTIL).is(claimedUntil));
+
+        return mongoTemplate.updateFirst(query, ratingUpdate(count, sum, histogram).unset("reviews", REVIEWS_CLAIMED_UNTIL), Product.class)
+                .getModifiedCount() > 0;
+    }
+
+    static AggregationUpdate ratingUpdate(long count, double sum, Map<String, Long> histogram) {
+        AggregationUpdate update = AggregationUpdate.update()
+                .set("ratingCount").toValue(increment("ratingCount", count))
+                .set("ratingSum").toValue(increment("ratingSum", sum));
+
+        histogram.forEach((stars, starCount) -> update.set("ratingHistogram." + stars).toValue(increment("ratingHistogram." + stars, starCount)));
+
+        update.set(VERSION).toValue(increment(VERSION, 1));
+
+        return update.set("rating").toValue(ConditionalOperators.when(ComparisonOperators.valueOf("ratingCount").equalToValue(0))
+                .then(0)
+                .otherwiseValueOf(ArithmeticOperators.valueOf("ratingSum").divideBy("ratingCount")));
+    }
+
+    private static AggregationExpression increment(String field, Number amount) {
+        return ArithmeticOperators.valueOf(ConditionalOperators.ifNull(field).then(0)).add(amount);
+    }
+
+    // a query mongo stopped at its maxTimeMS comes out as a QueryTimeoutException, so callers can tell it from a failure
+    private <T> T withinBudget(Supplier<T> query) {
+        try {
+            return query.get();
+        } catch (RuntimeException exception) {
+            for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+                if (cause instanceof MongoExecutionTimeoutException) {
+                    throw new QueryTimeoutException("Query exceeded " + maxTime.toMillis() + " ms", exception);
+                }
+            }
+            throw exception;
+        }
+    }
+
+    private Product modifyQuantity(Query query, int delta) {
+        query.fields().include("quantity");
+
+        return mongoTemplate.findAndModify(query, new Update().inc("quantity", delta).inc(VERSION, 1),
+                FindAndModifyOptions.options().returnNew(true), Product.class);
+    }
+
+    // the embedded category keeps its id as an ObjectId, like the categories collection
+    private static Object categoryObjectId(String categoryId) {
+        return ObjectId.isValid(categoryId) ? new ObjectId(categoryId) : categoryId;
+    }
+
+    // builds one query out of every filter so that mongo only returns matching documents.
+    // equality fields (category, gender) come before the price range to line up with the compound indexes on Product
+    public static Query buildFilterQuery(ProductFilter filter) {
+        List<Criteria> criteria = buildFilterCriteria(filter);
+
+        Query query = new Query();
+        if (!criteria.isEmpty()) {
+            query.addCriteria(new Criteria().andOperator(criteria));
+        }
+        return project(query, filter.getFields(), null);
+    }
+
+    // only the asked for fields leave mongo, plus the sort field when given. no fields means whole products
+    static Query project(Query query, ProductFields fields, String sortField) {
+        if (fields == null) {
+            return query;
+        }
+
+        for (String name : fields.getNames()) {
+            if ("imgLinks".equals(name) && fields.isFirstImageOnly()) {
+                query.fields().slice("imgLinks", 1);
+            } else {
+                query.fields().include(name);
+            }
+        }
+        if (sortField != null) {
+            query.fields().include(sortField);
+        }
+        return query;
+    }
+
+    private static List<Criteria> buildFilterCriteria(ProductFilter filter) {
+        List<Criteria> criteria = new ArrayList<>();
+        Stream.of(categoryCriteria(filter), genderCriteria(filter), priceCriteria(filter)).filter(Objects::nonNull).forEach(criteria::add);
+        criteria.addAll(sharedCriteria(filter));
+        return criteria;
+    }
+
+    // the dimensions the facets count by, null when the filter does not narrow them
+    private static Criteria categoryCriteria(ProductFilter filter) {
+        if (filter.getCategoryId() == null || filter.getCategoryId().isBlank()) {
+            return null;
+        }
+        return Criteria.where("category._id").is(categoryObjectId(filter.getCategoryId()));
+    }
+
+    private static Criteria genderCriteria(ProductFilter filter) {
+        if (filter.getGender() == null || filter.getGender().isEmpty()) {
+            return null;
+        }
+        return Criteria.where("gender").in(filter.getGender());
+    }
+
+    private static Criteria priceCriteria(ProductFilter filter) {
+        if (filter.getMinPrice() == null && filter.getMaxPrice() == null) {
+            return null;
+        }
+
+        Criteria price = Criteria.where("price");
+        if (filter.getMinPrice() != null) {
+            price = price.gte(filter.getMinPrice());
+        }
+        if (filter.getMaxPrice() != null) {
+            price = price.lte(filter.getMaxPrice());
+        }
+        return price;
+    }
+
+    // the filters every facet is counted under
+    private static List<Criteria> sharedCriteria(ProductFilter filter) {
+        List<Criteria> criteria = new ArrayList<>();
+
+        // $elemMatch so name and value have to match on the same attribute, which is also what lets mongo
+        // use both fields of the multikey attribute indexes
+        if (filter.getAttributes() != null) {
+            filter.getAttributes().forEach((name, values) ->
+                    criteria.add(Criteria.where("attributes").elemMatch(Criteria.where("name").is(name).and("value").in(values))));
+        }
+
+        // the keyword is never used as a pattern: it is split into the same tokens as searchTerms and every token has to
+        // start one of them. tokens are letters and digits only, so ^token is a plain prefix that runs as an index range scan
+        if (filter.getKeyword() != null && !filter.getKeyword().isBlank()) {
+            List<String> terms = SearchTokenizer.tokenize(filter.getKeyword()).stream().distinct().limit(MAX_KEYWORD_TERMS).toList();
+            if (terms.isEmpty()) {
+                // nothing searchable in it, so nothing matches
+                criteria.add(Criteria.where(ProductSearchTermsCallback.SEARCH_TERMS).in(List.of()));
+            }
+            for (String term : terms) {
+                criteria.add(Criteria.where(ProductSearchTermsCallback.SEARCH_TERMS).regex("^" + term));
+            }
+        }
+
+        return criteria;
+    }
+
+}
@@ -0,0 +1,22 @@
+package org.example.productservice.repository;
+
+import org.bson.Document;
+import org.example.productservice.models.Product;
+import org.example.productservice.utils.SearchTokenizer;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveCallback;
+import org.springframework.stereotype.Component;
+
+// writes the normalized tokens of name and description into every saved product document as searchTerms,
+// the field keyword filters match with anchored prefixes. not a property of Product, clients never see it
+@Component
+public class ProductSearchTermsCallback implements BeforeSaveCallback<Product> {
+
+    public static final String SEARCH_TERMS = "searchTerms";
+
+    @Override
+    public Product onBeforeSave(Product product, Document document, String collection) {
+        document.put(SEARCH_TERMS, SearchTokenizer.searchTerms(product.getName(), product.getDescription()));
+        return product;
+    }
+
+}
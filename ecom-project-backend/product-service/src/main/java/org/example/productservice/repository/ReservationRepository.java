@@ -0,0 +1,11 @@
+package org.example.productservice.repository;
+
+import org.example.productservice.models.Reservation;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+
+@Repository
+public interface ReservationRepository extends MongoRepository<Reservation, String>, ReservationRepositoryCustom {
+
+}
@@ -0,0 +1,25 @@
+package org.example.productservice.repository;
+
+import org.example.productservice.models.Reservation;
+
+import java.time.Instant;
+import java.util.List;
+
+
+public interface ReservationRepositoryCustom {
+
+    Reservation addToHold(String productId, String owner, int quantity, Instant expiresAt);
+
+    Reservation takeFromHold(String productId, String owner, int quantity);
+
+    Reservation removeHold(String productId, String owner);
+
+    void removeIfEmpty(String reservationId);
+
+    List<Reservation> findExpired(Instant now, Instant staleBefore, int limit);
+
+    Reservation claimExpired(Reservation reservation, Instant now);
+
+    void finishRelease(String reservationId, Instant releasingAt);
+
+}
@@ -0,0 +1,108 @@
+package org.example.productservice.repository;
+
+import org.example.productservice.models.Reservation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Instant;
+import java.util.List;
+
+
+// every change to a hold is a single atomic statement on its own document, so confirm, release and the expiry sweep
+// can race on the same hold and exactly one of them gets each unit of stock
+public class ReservationRepositoryCustomImpl implements ReservationRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public ReservationRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    // adds to the owner's hold on the product (creating it) and pushes its expiry out
+    @Override
+    public Reservation addToHold(String productId, String owner, int quantity, Instant expiresAt) {
+        Update update = new Update().inc("quantity", quantity).set("expiresAt", expiresAt);
+
+        return mongoTemplate.findAndModify(holdQuery(productId, owner), update,
+                FindAndModifyOptions.options().upsert(true).returnNew(true), Reservation.class);
+    }
+
+    // takes quantity out of the hold, null when the hold is missing or smaller
+    @Override
+    public Reservation takeFromHold(String productId, String owner, int quantity) {
+        Query query = holdQuery(productId, owner).addCriteria(Criteria.where("quantity").gte(quantity));
+
+        return mongoTemplate.findAndModify(query, new Update().inc("quantity", -quantity),
+                FindAndModifyOptions.options().returnNew(true), Reservation.class);
+    }
+
+    // empties the hold and returns it as it was, so the caller can give its stock back. stock the sweep is
+    // releasing stays on the document for the sweep
+    @Override
+    public Reservation removeHold(String productId, String owner) {
+        Query query = holdQuery(productId, owner).addCriteria(Criteria.where("quantity").gt(0));
+
+        Reservation removed = mongoTemplate.findAndModify(query, new Update().set("quantity", 0), Reservation.class);
+        if (removed != null) {
+            removeIfEmpty(removed.getId());
+        }
+        return removed;
+    }
+
+    // drops an emptied hold, unless something was added to it or the sweep is still giving its stock back
+    @Override
+    public void removeIfEmpty(String reservationId) {
+        Query query = new Query(Criteria.where("id").is(reservationId).and("quantity").lte(0).and("releasingAt").is(null));
+
+        mongoTemplate.remove(query, Reservation.class);
+    }
+
+    // expired holds nobody is releasing, and holds whose release was started before staleBefore and never finished
+    @Override
+    public List<Reservation> findExpired(Instant now, Instant staleBefore, int limit) {
+        Criteria criteria = new Criteria().orOperator(
+                Criteria.where("expiresAt").lt(now).and("releasingAt").is(null),
+                Criteria.where("releasingAt").lt(staleBefore));
+        Query query = new Query(criteria).with(Sort.by("expiresAt")).limit(limit);
+
+        return mongoTemplate.find(query, Reservation.class);
+    }
+
+    // moves the quantity of an expired hold into releasing, or takes over a stale release. null when the hold was
+    // confirmed, released, extended or claimed by another sweep since it was read
+    @Override
+    public Reservation claimExpired(Reservation reservation, Instant now) {
+        Query query = new Query(Criteria.where("id").is(reservation.getId()));
+        Update update = new Update().set("releasingAt", now);
+
+        if (reservation.getReleasingAt() != null) {
+            // unchanged since it was read as stale
+            query.addCriteria(Criteria.where("releasingAt").is(reservation.getReleasingAt()));
+        } else {
+            query.addCriteria(Criteria.where("expiresAt").lt(now).and("releasingAt").is(null).and("quantity").is(reservation.getQuantity()));
+            update.set("quantity", 0).set("releasing", reservation.getQuantity());
+        }
+
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Reservation.class);
+    }
+
+    // the stock is back on the product: clear the release and drop the hold if nothing was added to it since
+    @Override
+    public void finishRelease(String reservationId, Instant releasingAt) {
+        Query query = new Query(Criteria.where("id").is(reservationId).and("releasingAt").is(releasingAt));
+
+        mongoTemplate.updateFirst(query, new Update().set("releasing", 0).unset("releasingAt"), Reservation.class);
+        removeIfEmpty(reservationId);
+    }
+
+    private static Query holdQuery(String productId, String owner) {
+        return new Query(Criteria.where("productId").is(productId).and("owner").is(owner));
+    }
+
+}
@@ -0,0 +1,21 @@
+package org.example.productservice.repository;
+
+import org.example.productservice.models.Review;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+
+
+@Repository
+public interface ReviewRepository extends MongoRepository<Review, String> {
+
+    Page<Review> findByProductId(String productId, Pageable pageable);
+
+    void deleteByProductIdAndCreatedAtIsNull(String productId);
+
+    void deleteByProductIdIn(Collection<String> productIds);
+
+}
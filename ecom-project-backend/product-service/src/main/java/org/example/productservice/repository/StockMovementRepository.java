@@ -0,0 +1,29 @@
+package org.example.productservice.repository;
+
+import org.example.productservice.models.StockMovement;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.Update;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+
+
+@Repository
+public interface StockMovementRepository extends MongoRepository<StockMovement, String> {
+
+    // records the outcome of a movement this delivery owns. 0 when another delivery took the marker over meanwhile
+    @Query("{ '_id': ?0, 'outcome': 'PENDING', 'appliedAt': ?1 }")
+    @Update("{ '$set': { 'outcome': ?2 } }")
+    long complete(String movementId, Instant pendingSince, String outcome);
+
+    // takes over a marker left behind by a delivery that died while applying. 0 when another delivery got there first
+    @Query("{ '_id': ?0, 'outcome': 'PENDING', 'appliedAt': ?1 }")
+    @Update("{ '$set': { 'appliedAt': ?2 } }")
+    long takeOver(String movementId, Instant pendingSince, Instant now);
+
+    // drops the marker of a movement that failed to apply, so a retry applies it right away
+    @Query(value = "{ '_id': ?0, 'outcome': 'PENDING', 'appliedAt': ?1 }", delete = true)
+    long release(String movementId, Instant pendingSince);
+
+}
@@ -0,0 +1,83 @@
+package org.example.productservice.services;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.example.productservice.models.Category;
+import org.example.productservice.models.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+// rewrites products that still point at their category with a DBRef to carry the embedded copy instead,
+// one category and a batch of products at a time. a product is only rewritten while it still holds the DBRef,
+// so the job can be stopped and started again at any point
+@Component
+public class CategoryMigration {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final MongoTemplate mongoTemplate;
+    private final ProductCache productCache;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public CategoryMigration(MongoTemplate mongoTemplate, ProductCache productCache) {
+        this.mongoTemplate = mongoTemplate;
+        this.productCache = productCache;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateInBackground() {
+        Thread migration = new Thread(this::migrate, "category-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    public void migrate() {
+        try {
+            String collection = mongoTemplate.getCollectionName(Product.class);
+            long migrated = 0;
+
+            for (Category category : mongoTemplate.findAll(Category.class)) {
+                Object categoryId = ObjectId.isValid(category.getId()) ? new ObjectId(category.getId()) : category.getId();
+                Document embedded = new Document("_id", categoryId)
+                        .append("name", category.getName())
+                        .append("attributes", category.getAttributes())
+                        .append("imgLink", category.getImgLink());
+
+                Query batchQuery = new Query(Criteria.where("category.$id").is(categoryId)).limit(BATCH_SIZE);
+                batchQuery.fields().include("_id");
+
+                List<Object> ids;
+                while (!(ids = mongoTemplate.find(batchQuery, Document.class, collection).stream().map(product -> product.get("_id")).toList()).isEmpty()) {
+                    Query update = new Query(Criteria.where("_id").in(ids).and("category.$id").is(categoryId));
+                    migrated += mongoTemplate.updateMulti(update, new Update().set("category", embedded).inc("version", 1), collection).getModifiedCount();
+                }
+            }
+
+            long dangling = mongoTemplate.count(new Query(Criteria.where("category.$ref").exists(true)), collection);
+            if (dangling > 0) {
+                logger.warn("migrateCategories - {} products point at a category that no longer exists", dangling);
+            }
+
+            if (migrated > 0) {
+                productCache.invalidateAll();
+                logger.info("migrateCategories - embedded the category of {} products", migrated);
+            }
+        } catch (Exception exception) {
+            // the remaining products are picked up at the next start
+            logger.error("migrateCategories - {}", exception.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package org.example.productservice.services;
+
+import org.example.productservice.models.Category;
+import org.example.productservice.repository.CategoryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+// All categories held in memory as one immutable snapshot, so category reads never go to mongo.
+// Writes of this instance swap in a new snapshot right away; the periodic refresh picks up writes of other instances.
+@Component
+public class CategoryRegistry {
+
+    private final CategoryRepository categoryRepository;
+
+    private volatile Snapshot snapshot;
+    // bumped by every local write, a refresh that read mongo before one of them must not overwrite it
+    private long writes;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    // categories keep their mongo order, allowed attributes are precomputed per category,
+    // attributeNames maps the lower case name of every attribute of any category to its spelling in the category
+    private record Snapshot(long version, String etag, Map<String, Category> categories, Map<String, Set<String>> attributes,
+                            Map<String, String> attributeNames) {
+    }
+
+    @Autowired
+    public CategoryRegistry(CategoryRepository categoryRepository) {
+        this.categoryRepository = categoryRepository;
+    }
+
+
+    public Optional<Category> find(String categoryId) {
+        Category category = current().categories().get(categoryId);
+        return category == null ? Optional.empty() : Optional.of(copy(category));
+    }
+
+    public boolean contains(String categoryId) {
+        return current().categories().containsKey(categoryId);
+    }
+
+    public List<Category> findAll() {
+        return current().categories().values().stream().map(CategoryRegistry::copy).toList();
+    }
+
+    // empty for an unknown category
+    public Set<String> allowedAttributes(String categoryId) {
+        return current().attributes().getOrDefault(categoryId, Set.of());
+    }
+
+    // the attribute as spelled by the categories, empty when no category has it
+    public Optional<String> attributeName(String name) {
+        return Optional.ofNullable(current().attributeNames().get(name.toLowerCase(Locale.ROOT)));
+    }
+
+    public long version() {
+        return current().version();
+    }
+
+    // digest of the contents, so every instance holding the same categories hands out the same etag
+    public String etag() {
+        return current().etag();
+    }
+
+    public void put(Category category) {
+        synchronized (this) {
+            Map<String, Category> categories = new LinkedHashMap<>(current().categories());
+            categories.put(category.getId(), copy(category));
+            swap(categories);
+        }
+    }
+
+    public void remove(String categoryId) {
+        synchronized (this) {
+            Map<String, Category> categories = new LinkedHashMap<>(current().categories());
+            if (categories.remove(categoryId) != null) {
+                swap(categories);
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${product.categories.refresh-interval-ms:60000}",
+            initialDelayString = "${product.categories.refresh-interval-ms:60000}")
+    public void refresh() {
+        try {
+            long writesBefore;
+            synchronized (this) {
+                writesBefore = writes;
+            }
+
+            List<Category> loaded = categoryRepository.findAll();
+
+            synchronized (this) {
+                if (writes != writesBefore) {
+                    // a local write landed meanwhile, the next refresh reads it back
+                    return;
+                }
+                Map<String, Category> categories = new LinkedHashMap<>();
+                loaded.forEach(category -> categories.put(category.getId(), copy(category)));
+
+                Snapshot current = snapshot;
+                if (current == null || !current.etag().equals(etagOf(categories.values()))) {
+                    swap(categories);
+                }
+            }
+        } catch (Exception exception) {
+            // readers keep the last snapshot
+            logger.error("refreshCategories - {}", exception.getMessage());
+        }
+    }
+
+
+    // loaded on first use, the registry never serves an empty snapshot because mongo was slow at startup
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (snapshot == null) {
+                Map<String, Category> categories = new LinkedHashMap<>();
+                categoryRepository.findAll().forEach(category -> categories.put(category.getId(), copy(category)));
+                swap(categories);
+            }
+            return snapshot;
+        }
+    }
+
+    // callers hold the lock
+    private void swap(Map<String, Category> updated) {
+        Map<String, Category> categories = new LinkedHashMap<>(updated);
+        Map<String, Set<String>> attributes = new LinkedHashMap<>();
+        Map<String, String> attributeNames = new HashMap<>();
+        categories.forEach((categoryId, category) -> {
+            Set<String> allowed = category.getAttributes() == null ? Set.of() : Set.copyOf(category.getAttributes());
+            attributes.put(categoryId, allowed);
+            allowed.forEach(name -> attributeNames.putIfAbsent(name.toLowerCase(Locale.ROOT), name));
+        });
+
+        long version = snapshot == null ? 1 : snapshot.version() + 1;
+        writes++;
+        snapshot = new Snapshot(version, etagOf(categories.values()), Collections.unmodifiableMap(categories), Collections.unmodifiableMap(attributes),
+                Collections.unmodifiableMap(attributeNames));
+    }
+
+    private static String etagOf(Collection<Category> categories) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Category category : categories) {
+                digest.update(String.valueOf(category).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return "\"" + HexFormat.of().formatHex(digest.digest(), 0, 12) + "\"";
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    // snapshots are shared between threads, nobody outside gets to mutate the categories in them
+    private static Category copy(Category category) {
+        List<String> attributes = category.getAttributes() == null ? null : new ArrayList<>(category.getAttributes());
+        return new Category(category.getId(), category.getName(), attributes, category.getImgLink(), category.getVersion());
+    }
+
+}
@@ -0,0 +1,53 @@
+package org.example.productservice.services;
+
+import org.example.productservice.models.Category;
+import org.example.productservice.models.Product;
+import org.example.productservice.models.Reservation;
+import org.example.productservice.models.Review;
+import org.example.productservice.models.StockMovement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+// boot 3 no longer creates the indexes declared on the documents (auto-index-creation defaults to false), so they are
+// ensured here at every start. ensureIndex leaves an index that already exists alone, so this is cheap once they are built
+@Component
+public class IndexMigration {
+
+    private static final List<Class<?>> DOCUMENTS = List.of(Product.class, Category.class, Review.class, Reservation.class, StockMovement.class);
+
+    private final MongoTemplate mongoTemplate;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public IndexMigration(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        MongoPersistentEntityIndexResolver resolver = new MongoPersistentEntityIndexResolver(mongoTemplate.getConverter().getMappingContext());
+        for (Class<?> document : DOCUMENTS) {
+            try {
+                IndexOperations indexOps = mongoTemplate.indexOps(document);
+                for (IndexDefinition index : resolver.resolveIndexFor(document)) {
+                    indexOps.ensureIndex(index);
+                }
+            } catch (Exception exception) {
+                // the other documents still get theirs, the missing ones are tried again at the next start
+                logger.error("migrateIndexes - {} - {}", document.getSimpleName(), exception.getMessage());
+            }
+        }
+    }
+
+}
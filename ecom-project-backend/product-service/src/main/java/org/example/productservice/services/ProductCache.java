@@ -0,0 +1,175 @@
+package org.example.productservice.services;
+
+import org.example.productservice.dto.ProductCacheStats;
+import org.example.productservice.models.Product;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+// Read-through cache for single product reads, bounded by size (least recently used goes first) and by time.
+// Writes invalidate by leaving a tombstone, so a read that started before the write cannot put the old product back.
+// Tombstones are kept apart from the cached products, they take no cache slot and are never counted as evictions.
+// Callers get their own copy of a cached product, changing it does not change the cache.
+@Component
+public class ProductCache {
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    private final LinkedHashMap<String, Entry> entries;
+    // oldest first, every invalidate moves its product to the end
+    private final LinkedHashMap<String, Tombstone> tombstones = new LinkedHashMap<>();
+    // reads started before this are not cached: the cache was cleared, or a tombstone they may race with was dropped
+    private long clearedAt;
+
+    private record Entry(Product product, long expiresAt) {
+    }
+
+    // invalidatedAt is the sequence of the write that left it
+    private record Tombstone(long invalidatedAt, long expiresAt) {
+    }
+
+    @Autowired
+    public ProductCache(@Value("${product.cache.max-size:10000}") int maxSize,
+                        @Value("${product.cache.ttl-seconds:60}") long ttlSeconds) {
+        this(maxSize, Duration.ofSeconds(ttlSeconds), System::nanoTime);
+    }
+
+    ProductCache(int maxSize, Duration ttl, LongSupplier clock) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ProductCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    // a copy of the cached product, null when it is not cached or has expired
+    public Product get(String productId) {
+        synchronized (entries) {
+            Entry entry = entries.get(productId);
+
+            if (entry != null && entry.expiresAt() - clock.getAsLong() <= 0) {
+                entries.remove(productId);
+                expirations.incrementAndGet();
+                entry = null;
+            }
+
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            hits.incrementAndGet();
+            return copy(entry.product());
+        }
+    }
+
+    // taken before reading from mongo and handed back to put
+    public long loadStamp() {
+        return sequence.get();
+    }
+
+    // keeps a copy, the caller may go on changing its product
+    public void put(String productId, Product product, long loadStamp) {
+        synchronized (entries) {
+            Tombstone tombstone = tombstones.get(productId);
+            if (clearedAt > loadStamp || tombstone != null && tombstone.invalidatedAt() > loadStamp) {
+                // written after this read started, the product we have may already be stale
+                return;
+            }
+            entries.put(productId, new Entry(copy(product), clock.getAsLong() + ttlNanos));
+        }
+    }
+
+    public void invalidate(String productId) {
+        synchronized (entries) {
+            entries.remove(productId);
+            tombstones.remove(productId);
+            tombstones.put(productId, new Tombstone(sequence.incrementAndGet(), clock.getAsLong() + ttlNanos));
+            pruneTombstones();
+        }
+    }
+
+    // for writes that touch products we cannot name one by one (category changes)
+    public void invalidateAll() {
+        synchronized (entries) {
+            clearedAt = sequence.incrementAndGet();
+            entries.clear();
+            tombstones.clear();
+        }
+    }
+
+    public ProductCacheStats stats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new ProductCacheStats(hits.get(), misses.get(), evictions.get(), expirations.get(), size, maxSize);
+    }
+
+    // drops expired tombstones and the oldest ones beyond maxSize. a read older than a dropped tombstone is refused by
+    // clearedAt instead, so dropping one never lets a stale product in
+    private void pruneTombstones() {
+        long now = clock.getAsLong();
+        Iterator<Tombstone> oldest = tombstones.values().iterator();
+        while (oldest.hasNext()) {
+            Tombstone tombstone = oldest.next();
+            if (tombstones.size() <= maxSize && tombstone.expiresAt() - now > 0) {
+                return;
+            }
+            clearedAt = Math.max(clearedAt, tombstone.invalidatedAt());
+            oldest.remove();
+        }
+    }
+
+    // deep enough that nothing of the copy is shared with the original
+    static Product copy(Product product) {
+        Product copy = new Product();
+        copy.setId(product.getId());
+        copy.setName(product.getName());
+        copy.setDescription(product.getDescription());
+        copy.setAttributes(product.getAttributes() == null ? null : product.getAttributes().stream()
+                .map(attribute -> new Product.Attribute(attribute.getName(), attribute.getValue()))
+                .collect(Collectors.toCollection(ArrayList::new)));
+        copy.setPrice(product.getPrice());
+        Product.CategoryInfo category = product.getCategory();
+        copy.setCategory(category == null ? null : new Product.CategoryInfo(category.getId(), category.getName(),
+                category.getAttributes() == null ? null : new ArrayList<>(category.getAttributes()), category.getImgLink()));
+        copy.setQuantity(product.getQuantity());
+        copy.setImgLinks(product.getImgLinks() == null ? null : new ArrayList<>(product.getImgLinks()));
+        copy.setGender(product.getGender());
+        copy.setRating(product.getRating());
+        copy.setRatingCount(product.getRatingCount());
+        copy.setRatingSum(product.getRatingSum());
+        copy.setRatingHistogram(product.getRatingHistogram() == null ? null : new HashMap<>(product.getRatingHistogram()));
+        copy.setVersion(product.getVersion());
+        return copy;
+    }
+
+}
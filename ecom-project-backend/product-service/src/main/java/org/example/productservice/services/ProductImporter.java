@@ -0,0 +1,290 @@
+package org.example.productservice.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import org.bson.types.ObjectId;
+import org.example.productservice.dto.ProductImportReport;
+import org.example.productservice.exception.customExceptions.BaseException;
+import org.example.productservice.models.Category;
+import org.example.productservice.models.Product;
+import org.example.productservice.repository.CategoryRepository;
+import org.example.productservice.repository.ProductRepository;
+import org.example.productservice.utils.CsvReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// Bulk import of a supplier catalog. The body is read row by row while it streams in, every row is checked like a single
+// add (category, validation, attribute filter) against categories looked up once per import, and valid rows are written
+// in unordered bulk inserts of IMPORT_BATCH_SIZE, so a bad row costs its own report entry and nothing else.
+@Service
+public class ProductImporter {
+
+    static final int IMPORT_BATCH_SIZE = 1000;
+    static final int MAX_REPORTED_ERRORS = 1000;
+
+    public static final String CATEGORY_COLUMN = "categoryId";
+    private static final String ATTRIBUTE_COLUMN_PREFIX = "attr.";
+    private static final String IMAGE_SEPARATOR = "|";
+    private static final Set<String> CSV_COLUMNS = Set.of("name", "description", "price", "quantity", "gender", "imgLinks", CATEGORY_COLUMN);
+
+    private final ProductRepository productRepository;
+    private final CategoryRepository categoryRepository;
+    private final CategoryRegistry categoryRegistry;
+    private final ProductSearchIndex productSearchIndex;
+    private final ProductSuggestIndex productSuggestIndex;
+    private final Validator validator;
+    private final ObjectMapper objectMapper;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public ProductImporter(ProductRepository productRepository, CategoryRepository categoryRepository, CategoryRegistry categoryRegistry,
+                           ProductSearchIndex productSearchIndex, ProductSuggestIndex productSuggestIndex, Validator validator, ObjectMapper objectMapper) {
+        this.productRepository = productRepository;
+        this.categoryRepository = categoryRepository;
+        this.categoryRegistry = categoryRegistry;
+        this.productSearchIndex = productSearchIndex;
+        this.productSuggestIndex = productSuggestIndex;
+        this.validator = validator;
+        this.objectMapper = objectMapper;
+    }
+
+
+    // one product json per line, with its categoryId; rows without one go to defaultCategoryId
+    public ProductImportReport importNdjson(InputStream body, String defaultCategoryId) throws IOException {
+        Import run = new Import(defaultCategoryId);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+            long row = run.report.getRows() + 1;
+            run.report.setRows(row);
+
+            JsonNode node;
+            Product product;
+            try {
+                node = objectMapper.readTree(line);
+                if (!(node instanceof ObjectNode object)) {
+                    run.fail(row, "Row should be a json object");
+                    continue;
+                }
+                JsonNode categoryId = object.remove(CATEGORY_COLUMN);
+                product = objectMapper.treeToValue(object, Product.class);
+                run.add(row, product, categoryId == null || categoryId.isNull() ? null : categoryId.asText());
+            } catch (JsonProcessingException exception) {
+                run.fail(row, "Invalid json : " + exception.getOriginalMessage());
+            }
+        }
+
+        return run.finish();
+    }
+
+    // a header row naming the columns: name, description, price, quantity, gender, imgLinks (separated by |), categoryId
+    // and attr.<attribute name> for every attribute
+    public ProductImportReport importCsv(InputStream body, String defaultCategoryId) throws IOException {
+        CsvReader reader = new CsvReader(new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8)));
+
+        List<String> header = reader.next();
+        if (header == null) {
+            return new ProductImportReport();
+        }
+        for (String column : header) {
+            if (!CSV_COLUMNS.contains(column) && !(column.startsWith(ATTRIBUTE_COLUMN_PREFIX) && column.length() > ATTRIBUTE_COLUMN_PREFIX.length())) {
+                logger.error("importCsv - Unknown column {}", column);
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Unknown column : " + column);
+            }
+        }
+
+        Import run = new Import(defaultCategoryId);
+        List<String> record;
+        while ((record = reader.next()) != null) {
+            if (record.stream().allMatch(String::isBlank)) {
+                continue;
+            }
+            long row = run.report.getRows() + 1;
+            run.report.setRows(row);
+
+            if (record.size() != header.size()) {
+                run.fail(row, "Row has " + record.size() + " columns, the header " + header.size());
+                continue;
+            }
+
+            Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < header.size(); i++) {
+                values.put(header.get(i), record.get(i).trim());
+            }
+
+            try {
+                run.add(row, fromCsv(header, values), values.get(CATEGORY_COLUMN));
+            } catch (NumberFormatException exception) {
+                run.fail(row, "Price and quantity should be numbers");
+            }
+        }
+
+        return run.finish();
+    }
+
+    private Product fromCsv(List<String> header, Map<String, String> values) {
+        Product product = new Product();
+        product.setName(values.get("name"));
+        product.setDescription(values.get("description"));
+        product.setGender(values.get("gender"));
+
+        String price = values.get("price");
+        product.setPrice(price == null || price.isEmpty() ? null : Double.valueOf(price));
+        String quantity = values.get("quantity");
+        product.setQuantity(quantity == null || quantity.isEmpty() ? 0 : Integer.parseInt(quantity));
+
+        String imgLinks = values.get("imgLinks");
+        if (imgLinks != null && !imgLinks.isEmpty()) {
+            product.setImgLinks(Arrays.stream(imgLinks.split("\\" + IMAGE_SEPARATOR)).map(String::trim).filter(link -> !link.isEmpty())
+                    .collect(Collectors.toCollection(ArrayList::new)));
+        }
+
+        List<Product.Attribute> attributes = new ArrayList<>();
+        for (String column : header) {
+            String value = values.get(column);
+            if (column.startsWith(ATTRIBUTE_COLUMN_PREFIX) && value != null && !value.isEmpty()) {
+                attributes.add(new Product.Attribute(column.substring(ATTRIBUTE_COLUMN_PREFIX.length()), value));
+            }
+        }
+        product.setAttributes(attributes);
+
+        return product;
+    }
+
+
+    // the state of one import: its report, the rows waiting for the next bulk insert and the categories seen so far
+    private class Import {
+
+        private final String defaultCategoryId;
+        private final ProductImportReport report = new ProductImportReport();
+        private final List<Product> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+        private final List<Long> batchRows = new ArrayList<>(IMPORT_BATCH_SIZE);
+        private final Map<String, Optional<Category>> categories = new HashMap<>();
+
+        private Import(String defaultCategoryId) {
+            this.defaultCategoryId = defaultCategoryId;
+        }
+
+        // the same checks and defaults as a single add
+        private void add(long row, Product product, String categoryId) {
+            String rowCategoryId = categoryId == null || categoryId.isBlank() ? defaultCategoryId : categoryId.trim();
+            if (rowCategoryId == null || rowCategoryId.isBlank()) {
+                fail(row, "Category is required");
+                return;
+            }
+
+            Optional<Category> category = categories.computeIfAbsent(rowCategoryId, this::findCategory);
+            if (category.isEmpty()) {
+                fail(row, "Category not found : " + rowCategoryId);
+                return;
+            }
+
+            Set<ConstraintViolation<Product>> violations = validator.validate(product);
+            if (!violations.isEmpty()) {
+                fail(row, violations.stream().map(ConstraintViolation::getMessage).sorted().collect(Collectors.joining("; ")));
+                return;
+            }
+
+            // ids are given here, so the inserted products can be indexed without reading them back
+            product.setId(new ObjectId().toHexString());
+            product.setCategory(Product.CategoryInfo.from(category.get()));
+            Set<String> allowedAttributes = category.get().getAttributes() == null ? Set.of() : Set.copyOf(category.get().getAttributes());
+            product.setAttributes(product.getAttributes() == null ? new ArrayList<>() : product.getAttributes().stream()
+                    .filter(attribute -> allowedAttributes.contains(attribute.getName()))
+                    .collect(Collectors.toList()));
+            if (product.getImgLinks() == null) {
+                product.setImgLinks(new ArrayList<>());
+            }
+            product.setRating(0);
+            product.setRatingCount(0);
+            product.setRatingSum(0);
+            product.setRatingHistogram(new HashMap<>());
+            // bulk inserts do not initialize the version like a save does
+            product.setVersion(1);
+
+            batch.add(product);
+            batchRows.add(row);
+            if (batch.size() == IMPORT_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        // read from mongo, once per import: the registry snapshot can miss what another instance created, renamed or
+        // deleted since its last refresh
+        private Optional<Category> findCategory(String categoryId) {
+            if (!ObjectId.isValid(categoryId)) {
+                return Optional.empty();
+            }
+
+            Optional<Category> stored = categoryRepository.findById(categoryId);
+            if (stored.isPresent()) {
+                categoryRegistry.put(stored.get());
+            } else {
+                categoryRegistry.remove(categoryId);
+            }
+            return stored;
+        }
+
+        private void fail(long row, String message) {
+            report.setFailed(report.getFailed() + 1);
+            if (report.getErrors().size() < MAX_REPORTED_ERRORS) {
+                report.getErrors().add(new ProductImportReport.RowError(row, message));
+            }
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            Map<Integer, String> failures = productRepository.insertUnordered(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                if (failures.containsKey(i)) {
+                    fail(batchRows.get(i), failures.get(i));
+                    continue;
+                }
+                report.setImported(report.getImported() + 1);
+                productSearchIndex.index(batch.get(i));
+                productSuggestIndex.index(batch.get(i));
+            }
+
+            batch.clear();
+            batchRows.clear();
+        }
+
+        private ProductImportReport finish() {
+            flush();
+            // a failed insert is only known once its batch is written, after later rows of the batch were checked
+            report.getErrors().sort((first, second) -> Long.compare(first.getRow(), second.getRow()));
+            logger.info("importProducts - {} rows, {} imported, {} failed", report.getRows(), report.getImported(), report.getFailed());
+            return report;
+        }
+    }
+
+}
@@ -0,0 +1,380 @@
+package org.example.productservice.services;
+
+import org.example.productservice.models.Product;
+import org.example.productservice.utils.SearchTokenizer;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-process inverted index over product name and description, ranked with BM25.
+// Products get dense int doc ids so postings are plain int arrays; removing or re-indexing a product
+// tombstones its old doc id and the index compacts itself once too many of them pile up.
+// Writes of this instance are indexed right away; ProductSearchIndexLoader syncs it with mongo periodically, which picks
+// up the writes of other instances.
+@Component
+public class ProductSearchIndex {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final double MAX_DELETED_RATIO = 0.25;
+    private static final int MIN_DOCS_TO_COMPACT = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+    private String[] productIds = new String[1024];
+    private int[] lengths = new int[1024];
+    // of the indexed name and description, so a sync only re-indexes products whose text changed
+    private int[] hashes = new int[1024];
+    private int nextDocId;
+    private int deletedCount;
+    private long totalLength;
+
+    private volatile boolean ready;
+
+    // products written by this instance since the running sync started, null when none is running
+    private Set<String> writtenDuringSync;
+
+    private static class Postings {
+        private int[] docs = new int[2];
+        private int[] freqs = new int[2];
+        private int size;
+
+        private void add(int doc, int freq) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = freq;
+            size++;
+        }
+
+        // doc ids are appended in increasing order, so postings stay sorted
+        private int indexOf(int doc) {
+            return Arrays.binarySearch(docs, 0, size, doc);
+        }
+    }
+
+    private record Hit(int doc, double score) {
+    }
+
+
+    // set once the startup load is done; until then keyword listings keep the order mongo returns
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void markReady() {
+        ready = true;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // add or replace a product
+    public void index(Product product) {
+        lock.writeLock().lock();
+        try {
+            written(product.getId());
+            removeLocked(product.getId());
+            addLocked(product);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String productId) {
+        lock.writeLock().lock();
+        try {
+            written(productId);
+            removeLocked(productId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // a sync reads every product from mongo between beginSync and endSync. what this instance writes in the meantime is
+    // newer than what the sync may have read, so the sync leaves those products alone
+    public void beginSync() {
+        lock.writeLock().lock();
+        try {
+            writtenDuringSync = new HashSet<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // the product as the sync read it from mongo
+    public void sync(Product product) {
+        lock.writeLock().lock();
+        try {
+            if (writtenDuringSync == null || writtenDuringSync.contains(product.getId())) {
+                return;
+            }
+            Integer doc = docIds.get(product.getId());
+            if (doc != null && hashes[doc] == hash(product)) {
+                return;
+            }
+            removeLocked(product.getId());
+            addLocked(product);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // seen holds every product the sync read, the others were deleted. null when the sync failed, nothing is removed then
+    public void endSync(Set<String> seen) {
+        lock.writeLock().lock();
+        try {
+            if (seen != null && writtenDuringSync != null) {
+                for (String productId : new ArrayList<>(docIds.keySet())) {
+                    if (!seen.contains(productId) && !writtenDuringSync.contains(productId)) {
+                        removeLocked(productId);
+                    }
+                }
+            }
+            writtenDuringSync = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // product ids containing every term of the query, best BM25 score first
+    public List<String> search(String query, int limit) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(SearchTokenizer.tokenize(query)));
+        if (terms.isEmpty() || limit < 1) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Postings> termPostings = new ArrayList<>();
+            for (String term : terms) {
+                Postings termPosting = postings.get(term);
+                if (termPosting == null) {
+                    return new ArrayList<>();
+                }
+                termPostings.add(termPosting);
+            }
+            termPostings.sort(Comparator.comparingInt(termPosting -> termPosting.size));
+
+            int liveDocs = docIds.size();
+            double averageLength = liveDocs == 0 ? 1.0 : Math.max(1.0, (double) totalLength / liveDocs);
+
+            double[] idf = new double[termPostings.size()];
+            for (int i = 0; i < idf.length; i++) {
+                int documentFrequency = termPostings.get(i).size;
+                idf[i] = Math.log(1 + (liveDocs - documentFrequency + 0.5) / (documentFrequency + 0.5));
+            }
+
+            PriorityQueue<Hit> top = new PriorityQueue<>(Comparator.comparingDouble(Hit::score));
+            Postings shortest = termPostings.get(0);
+
+            for (int i = 0; i < shortest.size; i++) {
+                int doc = shortest.docs[i];
+                if (deleted.get(doc)) {
+                    continue;
+                }
+
+                double norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+                double score = 0;
+                boolean matchesAll = true;
+
+                for (int t = 0; t < termPostings.size(); t++) {
+                    Postings termPosting = termPostings.get(t);
+                    int position = t == 0 ? i : termPosting.indexOf(doc);
+                    if (position < 0) {
+                        matchesAll = false;
+                        break;
+                    }
+                    int frequency = termPosting.freqs[position];
+                    score += idf[t] * frequency * (K1 + 1) / (frequency + norm);
+                }
+
+                if (matchesAll) {
+                    top.offer(new Hit(doc, score));
+                    if (top.size() > limit) {
+                        top.poll();
+                    }
+                }
+            }
+
+            List<Hit> hits = new ArrayList<>(top);
+            hits.sort(Comparator.comparingDouble(Hit::score).reversed());
+
+            List<String> rankedIds = new ArrayList<>(hits.size());
+            for (Hit hit : hits) {
+                rankedIds.add(productIds[hit.doc()]);
+            }
+            return rankedIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the given products, best BM25 score first. the keyword filter itself runs in mongo, this only orders what it
+    // matched: a product scores on the query terms it has as whole tokens, one that only has them as prefixes (or is not
+    // indexed) scores 0. equal scores keep the given order
+    public List<String> rank(String query, List<String> productIds) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(SearchTokenizer.tokenize(query)));
+        if (terms.isEmpty() || productIds.size() < 2) {
+            return new ArrayList<>(productIds);
+        }
+
+        Map<String, Double> scores = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            int liveDocs = docIds.size();
+            double averageLength = liveDocs == 0 ? 1.0 : Math.max(1.0, (double) totalLength / liveDocs);
+
+            List<Postings> termPostings = new ArrayList<>();
+            List<Double> idf = new ArrayList<>();
+            for (String term : terms) {
+                Postings termPosting = postings.get(term);
+                if (termPosting != null) {
+                    termPostings.add(termPosting);
+                    idf.add(Math.log(1 + (liveDocs - termPosting.size + 0.5) / (termPosting.size + 0.5)));
+                }
+            }
+
+            for (String productId : productIds) {
+                Integer doc = docIds.get(productId);
+                if (doc == null) {
+                    continue;
+                }
+
+                double norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+                double score = 0;
+                for (int t = 0; t < termPostings.size(); t++) {
+                    int position = termPostings.get(t).indexOf(doc);
+                    if (position >= 0) {
+                        int frequency = termPostings.get(t).freqs[position];
+                        score += idf.get(t) * frequency * (K1 + 1) / (frequency + norm);
+                    }
+                }
+                scores.put(productId, score);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<String> ranked = new ArrayList<>(productIds);
+        ranked.sort(Comparator.comparingDouble((String productId) -> scores.getOrDefault(productId, 0.0)).reversed());
+        return ranked;
+    }
+
+
+    private void addLocked(Product product) {
+        List<String> tokens = new ArrayList<>(SearchTokenizer.tokenize(product.getName()));
+        tokens.addAll(SearchTokenizer.tokenize(product.getDescription()));
+
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String token : tokens) {
+            frequencies.merge(token, 1, Integer::sum);
+        }
+
+        int doc = nextDocId++;
+        if (doc == productIds.length) {
+            productIds = Arrays.copyOf(productIds, doc * 2);
+            lengths = Arrays.copyOf(lengths, doc * 2);
+            hashes = Arrays.copyOf(hashes, doc * 2);
+        }
+        productIds[doc] = product.getId();
+        lengths[doc] = tokens.size();
+        hashes[doc] = hash(product);
+        totalLength += tokens.size();
+        docIds.put(product.getId(), doc);
+
+        frequencies.forEach((term, frequency) -> postings.computeIfAbsent(term, key -> new Postings()).add(doc, frequency));
+    }
+
+    private void written(String productId) {
+        if (writtenDuringSync != null) {
+            writtenDuringSync.add(productId);
+        }
+    }
+
+    private static int hash(Product product) {
+        return Objects.hash(product.getName(), product.getDescription());
+    }
+
+    private void removeLocked(String productId) {
+        Integer doc = docIds.remove(productId);
+        if (doc == null) {
+            return;
+        }
+
+        deleted.set(doc);
+        deletedCount++;
+        totalLength -= lengths[doc];
+        productIds[doc] = null;
+
+        if (nextDocId >= MIN_DOCS_TO_COMPACT && deletedCount > nextDocId * MAX_DELETED_RATIO) {
+            compactLocked();
+        }
+    }
+
+    // renumber live docs densely and drop tombstoned entries from every postings list
+    private void compactLocked() {
+        int[] remap = new int[nextDocId];
+        int live = 0;
+        for (int doc = 0; doc < nextDocId; doc++) {
+            if (deleted.get(doc)) {
+                remap[doc] = -1;
+            } else {
+                remap[doc] = live;
+                productIds[live] = productIds[doc];
+                lengths[live] = lengths[doc];
+                hashes[live] = hashes[doc];
+                live++;
+            }
+        }
+
+        Iterator<Postings> iterator = postings.values().iterator();
+        while (iterator.hasNext()) {
+            Postings termPosting = iterator.next();
+            int kept = 0;
+            for (int i = 0; i < termPosting.size; i++) {
+                int doc = remap[termPosting.docs[i]];
+                if (doc >= 0) {
+                    termPosting.docs[kept] = doc;
+                    termPosting.freqs[kept] = termPosting.freqs[i];
+                    kept++;
+                }
+            }
+            termPosting.size = kept;
+            if (kept == 0) {
+                iterator.remove();
+            }
+        }
+
+        docIds.replaceAll((productId, doc) -> remap[doc]);
+        Arrays.fill(productIds, live, nextDocId, null);
+        deleted.clear();
+        deletedCount = 0;
+        nextDocId = live;
+    }
+
+}
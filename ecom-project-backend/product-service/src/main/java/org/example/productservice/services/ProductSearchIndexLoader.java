@@ -0,0 +1,91 @@
+package org.example.productservice.services;
+
+import org.example.productservice.models.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+// fills the search and suggestion indexes from mongo once the application is up, without holding up startup. the
+// indexes are per instance and only see the writes made on it, so both are synced with mongo again periodically:
+// products written on other instances are re-indexed and deleted ones dropped
+@Component
+public class ProductSearchIndexLoader {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final MongoTemplate mongoTemplate;
+    private final ProductSearchIndex productSearchIndex;
+    private final ProductSuggestIndex productSuggestIndex;
+    // the startup load and the periodic sync never run at the same time
+    private final ReentrantLock running = new ReentrantLock();
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public ProductSearchIndexLoader(MongoTemplate mongoTemplate, ProductSearchIndex productSearchIndex, ProductSuggestIndex productSuggestIndex) {
+        this.mongoTemplate = mongoTemplate;
+        this.productSearchIndex = productSearchIndex;
+        this.productSuggestIndex = productSuggestIndex;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadInBackground() {
+        Thread loader = new Thread(this::load, "product-search-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    @Scheduled(fixedDelayString = "${product.search.sync-interval-ms:300000}",
+            initialDelayString = "${product.search.sync-interval-ms:300000}")
+    public void sync() {
+        load();
+    }
+
+    public void load() {
+        if (!running.tryLock()) {
+            return;
+        }
+        try {
+            Query query = new Query();
+            query.fields().include("name", "description", "ratingCount");
+            query.cursorBatchSize(BATCH_SIZE);
+
+            Set<String> seen = new HashSet<>();
+            productSearchIndex.beginSync();
+            productSuggestIndex.beginSync();
+            try (Stream<Product> products = mongoTemplate.stream(query, Product.class)) {
+                products.forEach(product -> {
+                    seen.add(product.getId());
+                    productSearchIndex.sync(product);
+                    productSuggestIndex.sync(product);
+                });
+            } catch (Exception exception) {
+                productSearchIndex.endSync(null);
+                productSuggestIndex.endSync(null);
+                throw exception;
+            }
+            productSearchIndex.endSync(seen);
+            productSuggestIndex.endSync(seen);
+
+            productSearchIndex.markReady();
+            logger.info("loadSearchIndex - indexed {} products, {} suggestions", productSearchIndex.size(), productSuggestIndex.size());
+        } catch (Exception exception) {
+            // the indexes keep what they have until the next sync
+            logger.error("loadSearchIndex - {}", exception.getMessage());
+        } finally {
+            running.unlock();
+        }
+    }
+
+}
@@ -5,41 +5,86 @@ import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
 import org.example.productservice.dto.AddReviewBody;
 import org.example.productservice.dto.CategoryUpdateBody;
+import org.example.productservice.dto.ProductCacheStats;
+import org.example.productservice.dto.ProductCursor;
 import org.example.productservice.dto.ProductDetailsForOrder;
+import org.example.productservice.dto.ProductFacets;
+import org.example.productservice.dto.ProductFields;
+import org.example.productservice.dto.ProductFilter;
+import org.example.productservice.dto.ProductPage;
 import org.example.productservice.dto.ProductUpdateBody;
 import org.example.productservice.exception.customExceptions.BaseException;
 import org.example.productservice.models.Category;
 import org.example.productservice.models.Product;
+import org.example.productservice.models.Review;
 import org.example.productservice.repository.CategoryRepository;
 import org.example.productservice.repository.ProductRepository;
+import org.example.productservice.repository.ReviewRepository;
 import org.example.productservice.utils.JwtTokenUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.convert.ConversionFailedException;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class ProductService {
 
     ProductRepository productRepository;
     CategoryRepository categoryRepository;
+    ProductSearchIndex productSearchIndex;
+    ProductSuggestIndex productSuggestIndex;
+    ProductCache productCache;
+    ReviewRepository reviewRepository;
+    CategoryRegistry categoryRegistry;
+    RatingMigration ratingMigration;
 
     Logger logger = LoggerFactory.getLogger(Logger.class);
 
+    public static final int MAX_PAGE_SIZE = 100;
+    // page size when the client asks for none, also the most products of a plain listing
+    public static final int DEFAULT_PAGE_SIZE = 20;
+    private static final List<String> CATEGORY_SORT_FIELDS = List.of("id", "price", "name");
+    private static final List<String> LISTING_SORT_FIELDS = List.of("id", "price", "name", "rating");
+    // most products a keyword listing returns in one go, ranked by the search index
+    static final int MAX_SEARCH_HITS = 1000;
+    private static final String SEARCH_TIMEOUT_MESSAGE = "Search took too long, try a narrower filter";
+    // attempts of a versioned save before a concurrent write is reported as a conflict
+    static final int MAX_WRITE_ATTEMPTS = 3;
+    private static final String PRODUCT_CONFLICT_MESSAGE = "Product was changed meanwhile, reload it and try again";
+    private static final String CATEGORY_CONFLICT_MESSAGE = "Category was changed meanwhile, reload it and try again";
+
     @Autowired
-    public ProductService(ProductRepository productRepository, CategoryRepository categoryRepository) {
+    public ProductService(ProductRepository productRepository, CategoryRepository categoryRepository, ProductSearchIndex productSearchIndex, ProductCache productCache, ReviewRepository reviewRepository, CategoryRegistry categoryRegistry, ProductSuggestIndex productSuggestIndex, RatingMigration ratingMigration) {
         this.productRepository = productRepository;
+        this.ratingMigration = ratingMigration;
         this.categoryRepository = categoryRepository;
+        this.productSearchIndex = productSearchIndex;
+        this.productCache = productCache;
+        this.reviewRepository = reviewRepository;
+        this.categoryRegistry = categoryRegistry;
+        this.productSuggestIndex = productSuggestIndex;
     }
 
 
@@ -102,7 +147,7 @@ public class ProductService {
     @Transactional
     public Product addProduct(Product product, String categoryId) {
         try {
-            Optional<Category> categoryData = categoryRepository.findById(categoryId);
+            Optional<Category> categoryData = findCategoryForWrite(categoryId);
 
             if (categoryData.isEmpty()) {
                 logger.error("addProduct - Category not found");
@@ -110,13 +155,25 @@ public class ProductService {
             }
 
             Category category = categoryData.get();
-            product.setCategory(category);
+            product.setCategory(Product.CategoryInfo.from(category));
+
+            // the review aggregates are only ever counted up by addReview
+            product.setRating(0);
+            product.setRatingCount(0);
+            product.setRatingSum(0);
+            product.setRatingHistogram(new HashMap<>());
+            // version 0 is what makes spring data insert it, as version 1
+            product.setVersion(0);
 
             // Filter product attributes based on category attribute names
-            List<Product.Attribute> filteredAttributes = filterAttributes(product.getAttributes(), category.getAttributes());
+            List<Product.Attribute> filteredAttributes = filterAttributes(product.getAttributes(), allowedAttributes(category));
             product.setAttributes(filteredAttributes);
 
-            return productRepository.save(product);
+            Product savedProduct = productRepository.save(product);
+            productSearchIndex.index(savedProduct);
+            productSuggestIndex.index(savedProduct);
+
+            return savedProduct;
 
         } catch (BaseException exception) {
             throw exception;
@@ -127,65 +184,113 @@ public class ProductService {
     }
 
     // Helper method to filter attributes based on category attribute names
-    private List<Product.Attribute> filterAttributes(List<Product.Attribute> allAttributes, List<String> allowedAttributes) {
+    private List<Product.Attribute> filterAttributes(List<Product.Attribute> allAttributes, Set<String> allowedAttributes) {
         return allAttributes.stream()
                 .filter(attribute -> allowedAttributes.contains(attribute.getName()))
                 .collect(Collectors.toList());
     }
 
+    private static Set<String> allowedAttributes(Category category) {
+        return category.getAttributes() == null ? Set.of() : Set.copyOf(category.getAttributes());
+    }
+
 
-    // update product by id
-    public Product updateProduct(String id, ProductUpdateBody updatedProduct) {
+    // update product by id. expectedVersion is the version the admin edited (If-Match); when the product changed since,
+    // the edit is refused instead of overwriting what the admin never saw. without it, a save that lost to a concurrent
+    // write is redone on a fresh read
+    public Product updateProduct(String id, ProductUpdateBody updatedProduct, Long expectedVersion) {
         try {
-            Optional<Product> product = productRepository.findById(id);
+            return retryOnConflict("updateProduct", () -> applyProductUpdate(id, updatedProduct, expectedVersion));
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("updateProduct - {}", exception.getMessage());
+            throw exception;
+        }
+    }
 
-            if (product.isEmpty()) {
-                logger.error("updateProduct - Product not found");
-                throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
-            }
+    private Product applyProductUpdate(String id, ProductUpdateBody updatedProduct, Long expectedVersion) {
+        Optional<Product> product = productRepository.findById(id);
 
-            // Update the product properties
-            Product existingProduct = product.get();
+        if (product.isEmpty()) {
+            logger.error("updateProduct - Product not found");
+            throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
+        }
 
+        // Update the product properties
+        Product existingProduct = product.get();
 
-            if (updatedProduct.getName() != null && updatedProduct.getName().length() >= 3) {
-                existingProduct.setName(updatedProduct.getName());
-            }
+        if (expectedVersion != null && existingProduct.getVersion() != expectedVersion) {
+            logger.error("updateProduct - Product changed since version {}", expectedVersion);
+            throw new BaseException(HttpStatus.CONFLICT, PRODUCT_CONFLICT_MESSAGE);
+        }
 
-            if (updatedProduct.getDescription() != null) {
-                existingProduct.setDescription(updatedProduct.getDescription());
-            }
 
+        if (updatedProduct.getName() != null && updatedProduct.getName().length() >= 3) {
+            existingProduct.setName(updatedProduct.getName());
+        }
 
-            if (updatedProduct.getPrice() != null) {
-                if (updatedProduct.getPrice() <= 0) {
-                    throw new BaseException(HttpStatus.BAD_REQUEST, "Price should be greater than 0");
-                } else {
-                    existingProduct.setPrice(updatedProduct.getPrice());
-                }
-            }
+        if (updatedProduct.getDescription() != null) {
+            existingProduct.setDescription(updatedProduct.getDescription());
+        }
 
-            if (updatedProduct.getAttributes() != null) {
-                existingProduct.setAttributes(filterAttributes(updatedProduct.getAttributes(), existingProduct.getCategory().getAttributes()));
-            }
 
-            if (updatedProduct.getQuantity() != null) {
-                existingProduct.setQuantity(Integer.parseInt(updatedProduct.getQuantity()));
+        if (updatedProduct.getPrice() != null) {
+            if (updatedProduct.getPrice() <= 0) {
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Price should be greater than 0");
+            } else {
+                existingProduct.setPrice(updatedProduct.getPrice());
             }
+        }
 
+        if (updatedProduct.getAttributes() != null) {
+            // read like every other write, so attributes another instance just added to the category are not dropped
+            Set<String> allowed = findCategoryForWrite(existingProduct.getCategory().getId()).map(ProductService::allowedAttributes).orElse(Set.of());
+            existingProduct.setAttributes(filterAttributes(updatedProduct.getAttributes(), allowed));
+        }
 
-            // Save the updated product
-            productRepository.save(existingProduct);
+        if (updatedProduct.getQuantity() != null) {
+            existingProduct.setQuantity(Integer.parseInt(updatedProduct.getQuantity()));
+        }
 
-            return existingProduct;
-        } catch (BaseException exception) {
-            throw exception;
-        } catch (Exception exception) {
-            logger.error("updateProduct - {}", exception.getMessage());
-            throw exception;
+
+        // Save the updated product, only if nobody else wrote it since it was read
+        versionLegacyProduct(existingProduct);
+        productRepository.save(existingProduct);
+        productCache.invalidate(id);
+        productSearchIndex.index(existingProduct);
+        productSuggestIndex.index(existingProduct);
+
+        return existingProduct;
+    }
+
+    // Helper method to run a read-modify-save again on a fresh read when its save lost to a concurrent write,
+    // a bounded number of times before giving up with a 409
+    private <T> T retryOnConflict(String operation, Supplier<T> write) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return write.get();
+            } catch (OptimisticLockingFailureException exception) {
+                if (attempt >= MAX_WRITE_ATTEMPTS) {
+                    logger.error("{} - Gave up after {} concurrent writes", operation, attempt);
+                    throw new BaseException(HttpStatus.CONFLICT, PRODUCT_CONFLICT_MESSAGE);
+                }
+            }
         }
     }
 
+    // Helper method for products written before they had a version: they load as version 0, which spring data takes for
+    // a new product and would insert. they get version 1 first, unless another write versioned them since the read
+    private void versionLegacyProduct(Product product) {
+        if (product.getVersion() != 0) {
+            return;
+        }
+        if (!productRepository.initializeVersion(product.getId())) {
+            throw new OptimisticLockingFailureException("Product " + product.getId() + " was written concurrently");
+        }
+        product.setVersion(1);
+    }
+
     // delete product by id
 
     public void deleteProduct(String id) {
@@ -198,6 +303,10 @@ public class ProductService {
             }
 
             productRepository.deleteById(id);
+            reviewRepository.deleteByProductIdIn(List.of(id));
+            productCache.invalidate(id);
+            productSearchIndex.remove(id);
+            productSuggestIndex.remove(id);
         } catch (ConversionFailedException exception) {
             logger.error("deleteProductById - Invalid product id");
             throw new BaseException(HttpStatus.BAD_REQUEST, "Invalid product id");
@@ -213,7 +322,11 @@ public class ProductService {
     // add category
     public Category addCategory(Category categoryBody) {
         try {
-            return categoryRepository.save(categoryBody);
+            // version 0 is what makes spring data insert it, as version 1
+            categoryBody.setVersion(0);
+            Category savedCategory = categoryRepository.save(categoryBody);
+            categoryRegistry.put(savedCategory);
+            return savedCategory;
         } catch (Exception exception) {
             logger.error("add category - {}", exception.getMessage());
             throw exception;
@@ -221,15 +334,21 @@ public class ProductService {
     }
 
 
-    // get products by category
-    public List<Product> getProductsByCategory(String categoryId) {
+    // get products by category, one page at a time
+    public Page<Product> getProductsByCategory(String categoryId, int page, int size, String sort, ProductFields fields) {
         try {
-            List<Product> products = productRepository.findAll();
-            products = products.stream()
-                    .filter(product -> product.getCategory().getId().equals(categoryId))
-                    .toList();
+            if (page < 0 || size < 1 || size > MAX_PAGE_SIZE) {
+                logger.error("getProductsByCategory - Invalid page request");
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Page should be at least 0 and size between 1 and " + MAX_PAGE_SIZE);
+            }
+
+            // ties of the sort field are ordered by id, so no product shows up on two pages or on none
+            Sort.Order order = parseSort(sort, CATEGORY_SORT_FIELDS).iterator().next();
+            Sort pageSort = "id".equals(order.getProperty()) ? Sort.by(order) : Sort.by(order, new Sort.Order(order.getDirection(), "id"));
+
+            Page<Product> products = productRepository.findByCategoryId(categoryId, PageRequest.of(page, size, pageSort), fields);
 
-            if (products.isEmpty()) {
+            if (products.getTotalElements() == 0) {
                 logger.error("getProductsByCategory - Category not found");
                 throw new BaseException(HttpStatus.NOT_FOUND, "Category not found");
             }
@@ -246,36 +365,215 @@ public class ProductService {
         }
     }
 
-    public List<Product> getFilteredProducts(Double minPrice, Double maxPrice, String keyword,String categoryId,ArrayList<String> gender) {
+    // Helper method to turn "field" or "field,asc|desc" into a sort on one of the indexed fields
+    private Sort parseSort(String sort, List<String> allowedFields) {
+        String[] parts = sort.split(",");
+        String field = parts[0].trim();
+
+        if (!allowedFields.contains(field)) {
+            logger.error("parseSort - Invalid sort field {}", field);
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Sort should be one of " + allowedFields);
+        }
+
+        Sort.Direction direction = Sort.Direction.ASC;
+        if (parts.length > 1) {
+            direction = Sort.Direction.fromOptionalString(parts[1].trim())
+                    .orElseThrow(() -> new BaseException(HttpStatus.BAD_REQUEST, "Sort direction should be asc or desc"));
+        }
+
+        return Sort.by(direction, field);
+    }
+
+    public List<Product> getFilteredProducts(Double minPrice, Double maxPrice, String keyword,String categoryId,ArrayList<String> gender, Map<String, List<String>> attributes, ProductFields fields) {
         try {
 
-            List<Product> products = productRepository.findFilteredProducts(minPrice, maxPrice, keyword);
-            if(!categoryId.isBlank()) {
-                Optional<Category> category = categoryRepository.findById(categoryId);
-                if (category.isEmpty()) {
-                    throw new BaseException(HttpStatus.NOT_FOUND, "Category not found");
-                }
+            ProductFilter filter = buildFilter(minPrice, maxPrice, keyword, categoryId, gender, attributes);
+            filter.setFields(fields);
 
+            // bounded like a page, the whole catalog is for the paged mode or the ndjson stream. a keyword search keeps
+            // its own bound, it is the only listing ranked by relevance and the paged mode cannot carry that on
+            boolean keywordSearch = !keyword.isBlank();
+            filter.setLimit(keywordSearch ? MAX_SEARCH_HITS : DEFAULT_PAGE_SIZE);
 
-                products = products.stream().filter(product -> product.getCategory().getId().equals(categoryId)).toList();
-            }
+            List<Product> products = productRepository.findFilteredProducts(filter);
 
-            if(!gender.isEmpty()) {
-                products = products.stream().filter(product -> gender.contains(product.getGender())).toList();
+            if (!keywordSearch || !productSearchIndex.isReady()) {
+                return products;
             }
 
-            return products;
+            // mongo decided what matches, the search index only puts the most relevant of it first
+            Map<String, Product> byId = new LinkedHashMap<>();
+            products.forEach(product -> byId.put(product.getId(), product));
+            return productSearchIndex.rank(keyword, new ArrayList<>(byId.keySet())).stream().map(byId::get).toList();
 
+        } catch (QueryTimeoutException exception) {
+            logger.error("getFilteredProducts - {}", exception.getMessage());
+            throw new BaseException(HttpStatus.SERVICE_UNAVAILABLE, SEARCH_TIMEOUT_MESSAGE);
         } catch (Exception exception) {
             logger.error("getFilteredProducts - {}", exception.getMessage());
             throw exception;
         }
     }
 
+    // get filtered products one keyset page at a time, ordered by (sort field, id)
+    public ProductPage getFilteredProductsPage(Double minPrice, Double maxPrice, String keyword, String categoryId, ArrayList<String> gender, Map<String, List<String>> attributes, ProductFields fields, String sort, int limit, String cursor) {
+        try {
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                logger.error("getFilteredProductsPage - Invalid limit");
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Limit should be between 1 and " + MAX_PAGE_SIZE);
+            }
+
+            Sort.Order order = parseSort(sort, LISTING_SORT_FIELDS).iterator().next();
+            String sortField = order.getProperty();
+
+            if ("rating".equals(sortField) && !ratingMigration.isDone()) {
+                logger.error("getFilteredProductsPage - Ratings are still being migrated");
+                throw new BaseException(HttpStatus.SERVICE_UNAVAILABLE, "Sorting by rating is not available yet, try again shortly");
+            }
+
+            ProductCursor after = null;
+            if (cursor != null && !cursor.isBlank()) {
+                after = ProductCursor.decode(cursor);
+                if (!sortField.equals(after.getSort()) || !order.getDirection().name().equals(after.getDirection()) || after.getId() == null) {
+                    logger.error("getFilteredProductsPage - Cursor does not belong to this sort");
+                    throw new BaseException(HttpStatus.BAD_REQUEST, "Invalid cursor");
+                }
+            }
+
+            ProductFilter filter = buildFilter(minPrice, maxPrice, keyword, categoryId, gender, attributes);
+            filter.setFields(fields);
+
+            // one extra product tells whether there is a next page
+            List<Product> products = productRepository.findFilteredProductsAfter(filter, sortField, order.getDirection(), after, limit + 1);
+
+            String next = null;
+            if (products.size() > limit) {
+                products = products.subList(0, limit);
+                Product last = products.get(limit - 1);
+                next = new ProductCursor(sortField, order.getDirection().name(), sortValue(last, sortField), last.getId()).encode();
+            }
+
+            return new ProductPage(products, next);
+
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (QueryTimeoutException exception) {
+            logger.error("getFilteredProductsPage - {}", exception.getMessage());
+            throw new BaseException(HttpStatus.SERVICE_UNAVAILABLE, SEARCH_TIMEOUT_MESSAGE);
+        } catch (Exception exception) {
+            logger.error("getFilteredProductsPage - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    // counts per gender, category and price bucket of every product matching the listing filter, counted by mongo
+    public ProductFacets getProductFacets(Double minPrice, Double maxPrice, String keyword, String categoryId, ArrayList<String> gender, Map<String, List<String>> attributes) {
+        try {
+            ProductFilter filter = buildFilter(minPrice, maxPrice, keyword, categoryId, gender, attributes);
+            return productRepository.findFacets(filter);
+
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (QueryTimeoutException exception) {
+            logger.error("getProductFacets - {}", exception.getMessage());
+            throw new BaseException(HttpStatus.SERVICE_UNAVAILABLE, SEARCH_TIMEOUT_MESSAGE);
+        } catch (Exception exception) {
+            logger.error("getProductFacets - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    // the filter of a listing with its params checked, so a stream is only started once they can no longer fail it
+    public ProductFilter getListingFilter(Double minPrice, Double maxPrice, String keyword, String categoryId, ArrayList<String> gender, Map<String, List<String>> attributes, ProductFields fields) {
+        try {
+            ProductFilter filter = buildFilter(minPrice, maxPrice, keyword, categoryId, gender, attributes);
+            filter.setFields(fields);
+            return filter;
+
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("getListingFilter - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    // hand every matching product to the consumer as it is read from the mongo cursor, nothing is collected in memory
+    public void streamFilteredProducts(ProductFilter filter, Consumer<Product> consumer) {
+        try (Stream<Product> products = productRepository.streamFilteredProducts(filter)) {
+            products.forEach(consumer);
+        } catch (Exception exception) {
+            logger.error("streamFilteredProducts - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    private Object sortValue(Product product, String sortField) {
+        return switch (sortField) {
+            case "price" -> product.getPrice();
+            case "name" -> product.getName();
+            case "rating" -> product.getRating();
+            default -> null;
+        };
+    }
+
+    // completions for the search box, answered from memory so typing never reaches mongo
+    public List<String> getSuggestions(String prefix, int limit) {
+        if (limit < 1 || limit > ProductSuggestIndex.MAX_SUGGESTIONS) {
+            logger.error("getSuggestions - Invalid limit");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Limit should be between 1 and " + ProductSuggestIndex.MAX_SUGGESTIONS);
+        }
+
+        return productSuggestIndex.suggest(prefix == null ? "" : prefix, limit);
+    }
+
+    // Helper method to turn the listing params into one filter
+    private ProductFilter buildFilter(Double minPrice, Double maxPrice, String keyword, String categoryId, List<String> gender, Map<String, List<String>> attributes) {
+        if(!categoryId.isBlank()) {
+            if (!categoryRegistry.contains(categoryId)) {
+                throw new BaseException(HttpStatus.NOT_FOUND, "Category not found");
+            }
+        }
+
+        // every filter, the keyword too, is part of the query so only matching products leave mongo. the keyword matches
+        // the indexed searchTerms by prefix on every path, so a listing, its pages and its facets agree on what it finds
+        ProductFilter filter = new ProductFilter(minPrice, maxPrice, keyword, categoryId, gender);
+        filter.setAttributes(resolveAttributes(attributes));
+        return filter;
+    }
+
+    // Helper method to match attribute names case-insensitively against the category attributes, so the filter
+    // uses the stored spelling and stays on the attribute indexes; values are matched as given
+    private Map<String, List<String>> resolveAttributes(Map<String, List<String>> attributes) {
+        Map<String, List<String>> resolved = new LinkedHashMap<>();
+        if (attributes == null) {
+            return resolved;
+        }
+
+        attributes.forEach((name, values) -> {
+            List<String> acceptedValues = values == null ? List.of() : values.stream()
+                    .filter(value -> value != null && !value.isBlank())
+                    .map(String::trim)
+                    .toList();
+            if (acceptedValues.isEmpty()) {
+                return;
+            }
+
+            String attributeName = categoryRegistry.attributeName(name.trim()).orElseThrow(() -> {
+                logger.error("buildFilter - Unknown attribute {}", name);
+                return new BaseException(HttpStatus.BAD_REQUEST, "Unknown attribute : " + name);
+            });
+            List<String> merged = resolved.computeIfAbsent(attributeName, key -> new ArrayList<>());
+            acceptedValues.stream().filter(value -> !merged.contains(value)).forEach(merged::add);
+        });
+
+        return resolved;
+    }
+
     // get product by id
     public Product getProductById(String productId) {
         try {
-            Optional<Product> product = productRepository.findById(productId);
+            Optional<Product> product = findProductCached(productId);
             if (product.isEmpty()) {
                 logger.error("getProductById - Product not found");
                 throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
@@ -294,28 +592,79 @@ public class ProductService {
 
     }
 
-    public ProductDetailsForOrder getProductDetailsForOrderById(String productId) {
+    // etag of the product for a conditional read: its version, read alone from mongo. not from the cache, which is per
+    // instance and would hand out the etag of a version another instance has already replaced
+    public String getProductETag(String productId) {
         try {
-            Optional<Product> product = productRepository.findById(productId);
-            if (product.isEmpty()) {
-                logger.error("getProductById - Product not found");
+            Long version = productRepository.findVersionById(productId);
+            if (version == null) {
+                logger.error("getProductETag - Product not found");
                 throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
             }
 
-            ProductDetailsForOrder productDetails = new ProductDetailsForOrder();
-            productDetails.setName(product.get().getName());
-            productDetails.setCategory(product.get().getCategory().getName());
-            productDetails.setQuantity(product.get().getQuantity());
-            productDetails.setPrice(product.get().getPrice());
+            // a cached copy of another version is stale, the full read that follows a mismatch has to go to mongo
+            Product cached = productCache.get(productId);
+            if (cached != null && cached.getVersion() != version) {
+                productCache.invalidate(productId);
+            }
+
+            return versionETag(version);
+        } catch (ConversionFailedException exception) {
+            logger.error("getProductETag - Invalid product id");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Invalid product id");
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("getProductETag - {}", exception.getMessage());
+            throw exception;
+        }
+    }
 
-            List<String> imgLinks = product.get().getImgLinks();
+    // strong etag of a product or category version
+    public static String versionETag(long version) {
+        return "\"" + version + "\"";
+    }
 
-            if (imgLinks == null) {
-                imgLinks = new ArrayList<>();
+    // the version of an If-Match etag, null when any version will do
+    public static Long versionFromETag(String eTag) {
+        if (eTag == null || eTag.isBlank() || eTag.trim().equals("*")) {
+            return null;
+        }
+
+        String version = eTag.trim();
+        if (version.startsWith("W/")) {
+            version = version.substring(2);
+        }
+        try {
+            return Long.parseLong(version.replace("\"", ""));
+        } catch (NumberFormatException exception) {
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Invalid If-Match");
+        }
+    }
+
+    // Helper method for the single product reads, served from the cache when possible
+    private Optional<Product> findProductCached(String productId) {
+        Product cached = productCache.get(productId);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+
+        long loadStamp = productCache.loadStamp();
+        Optional<Product> product = productRepository.findById(productId);
+        product.ifPresent(found -> productCache.put(productId, found, loadStamp));
+
+        return product;
+    }
+
+    public ProductDetailsForOrder getProductDetailsForOrderById(String productId) {
+        try {
+            Optional<Product> product = findProductCached(productId);
+            if (product.isEmpty()) {
+                logger.error("getProductById - Product not found");
+                throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
             }
-            productDetails.setImg(imgLinks.isEmpty() ? "default-link" : imgLinks.get(0));
 
-            return productDetails;
+            return toDetailsForOrder(product.get());
         } catch (ConversionFailedException exception) {
             logger.error("getProductById - Invalid product id");
             throw new BaseException(HttpStatus.BAD_REQUEST, "Invalid product id");
@@ -327,10 +676,58 @@ public class ProductService {
         }
     }
 
+
+    // details of several products for one order, in the order they were asked for
+    public List<ProductDetailsForOrder> getProductDetailsForOrderByIds(List<String> productIds) {
+        try {
+            if (productIds == null || productIds.isEmpty()) {
+                logger.error("getProductDetailsForOrderByIds - Product ids cannot be empty");
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Product ids cannot be empty");
+            }
+
+            Map<String, Product> products = new HashMap<>();
+            for (Product product : productRepository.findForOrderByIds(productIds)) {
+                products.put(product.getId(), product);
+            }
+
+            List<String> missingIds = productIds.stream().filter(productId -> !products.containsKey(productId)).distinct().toList();
+            if (!missingIds.isEmpty()) {
+                logger.error("getProductDetailsForOrderByIds - Products not found {}", missingIds);
+                throw new BaseException(HttpStatus.NOT_FOUND, "Products not found : " + String.join(", ", missingIds));
+            }
+
+            return productIds.stream().distinct().map(productId -> toDetailsForOrder(products.get(productId))).toList();
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("getProductDetailsForOrderByIds - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    // Helper method to map a product to what order-service keeps on an order item
+    private ProductDetailsForOrder toDetailsForOrder(Product product) {
+        ProductDetailsForOrder productDetails = new ProductDetailsForOrder();
+        productDetails.setId(product.getId());
+        productDetails.setName(product.getName());
+        productDetails.setCategory(product.getCategory() == null ? null : product.getCategory().getName());
+        productDetails.setQuantity(product.getQuantity());
+        productDetails.setPrice(product.getPrice());
+
+        List<String> imgLinks = product.getImgLinks();
+
+        if (imgLinks == null) {
+            imgLinks = new ArrayList<>();
+        }
+        productDetails.setImg(imgLinks.isEmpty() ? "default-link" : imgLinks.get(0));
+
+        return productDetails;
+    }
+
     // get product quantity by id
     public int getProductQuantityById(String productId) {
         try {
-            Optional<Product> product = productRepository.findById(productId);
+            Optional<Product> product = findProductCached(productId);
             if (product.isEmpty()) {
                 logger.error("getProductQuantityById - Product not found");
                 throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
@@ -348,18 +745,23 @@ public class ProductService {
         }
     }
 
+    // a stock update concurrent with a checkout or a review is simply redone on top of it
     public void updateProductQuantity(String productId, int quantity) {
         try {
-            Optional<Product> productDetails = productRepository.findById(productId);
-            if (productDetails.isEmpty()) {
-                logger.error("getProductQuantityById - Product not found");
-                throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
-            }
+            retryOnConflict("updateProductQuantity", () -> {
+                Optional<Product> productDetails = productRepository.findById(productId);
+                if (productDetails.isEmpty()) {
+                    logger.error("getProductQuantityById - Product not found");
+                    throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
+                }
 
-            Product product = productDetails.get();
-            product.setQuantity(quantity);
+                Product product = productDetails.get();
+                product.setQuantity(quantity);
 
-            productRepository.save(product);
+                versionLegacyProduct(product);
+                return productRepository.save(product);
+            });
+            productCache.invalidate(productId);
 
         } catch (DataIntegrityViolationException exception) {
             logger.error("getProductQuantityById - Invalid quantity entered");
@@ -376,10 +778,82 @@ public class ProductService {
         }
     }
 
+    // take stock for an order, returns what is left. 409 when there is not enough
+    public int decrementProductQuantity(String productId, int quantity) {
+        try {
+            if (quantity < 1) {
+                logger.error("decrementProductQuantity - Quantity should be greater than 0");
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Quantity should be greater than 0");
+            }
+
+            Product product = productRepository.decrementQuantity(productId, quantity);
+            if (product == null) {
+                // only a failed decrement looks the product up, to tell a missing product from a short one
+                if (!productRepository.existsById(productId)) {
+                    logger.error("decrementProductQuantity - Product not found");
+                    throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
+                }
+                logger.error("decrementProductQuantity - Insufficient stock");
+                throw new BaseException(HttpStatus.CONFLICT, "Insufficient stock");
+            }
+
+            productCache.invalidate(productId);
+
+            return product.getQuantity();
+        } catch (ConversionFailedException exception) {
+            logger.error("decrementProductQuantity - Invalid product id");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Invalid product id");
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("decrementProductQuantity - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    // give back stock taken by decrementProductQuantity, returns the new quantity
+    public int restockProductQuantity(String productId, int quantity) {
+        try {
+            if (quantity < 1) {
+                logger.error("restockProductQuantity - Quantity should be greater than 0");
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Quantity should be greater than 0");
+            }
+
+            Product product = productRepository.incrementQuantity(productId, quantity);
+            if (product == null) {
+                logger.error("restockProductQuantity - Product not found");
+                throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
+            }
+
+            productCache.invalidate(productId);
+
+            return product.getQuantity();
+        } catch (ConversionFailedException exception) {
+            logger.error("restockProductQuantity - Invalid product id");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Invalid product id");
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("restockProductQuantity - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    // give back stock to several products at once, used by the reservation sweep
+    public void restockProductQuantities(Map<String, Integer> quantities) {
+        try {
+            productRepository.incrementQuantities(quantities);
+            quantities.keySet().forEach(productCache::invalidate);
+        } catch (Exception exception) {
+            logger.error("restockProductQuantities - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
     // get category by id
     public Category getCategoryById(String categoryId) {
         try {
-            Optional<Category> category = categoryRepository.findById(categoryId);
+            Optional<Category> category = categoryRegistry.find(categoryId);
             if (category.isEmpty()) {
                 logger.error("getCategoryById - Category not found");
                 throw new BaseException(HttpStatus.NOT_FOUND, "Category not found");
@@ -403,7 +877,7 @@ public class ProductService {
     // update category by id
     public Category updateCategoryById(String categoryId, CategoryUpdateBody updatedCategory) {
         try {
-            Optional<Category> category = categoryRepository.findById(categoryId);
+            Optional<Category> category = findCategoryForWrite(categoryId);
 
             if (category.isEmpty()) {
                 logger.error("updateCategoryById - Category not found");
@@ -417,8 +891,21 @@ public class ProductService {
                 existingCategory.setName(updatedCategory.getName());
             }
 
+            // saved only if nobody else wrote the category since it was read
+            Category savedCategory;
+            try {
+                versionLegacyCategory(existingCategory);
+                savedCategory = categoryRepository.save(existingCategory);
+            } catch (OptimisticLockingFailureException exception) {
+                logger.error("updateCategoryById - {}", CATEGORY_CONFLICT_MESSAGE);
+                throw new BaseException(HttpStatus.CONFLICT, CATEGORY_CONFLICT_MESSAGE);
+            }
+            categoryRegistry.put(savedCategory);
+            productRepository.updateCategory(savedCategory);
+            // cached products carry the category
+            productCache.invalidateAll();
 
-            return categoryRepository.save(existingCategory);
+            return savedCategory;
         } catch (BaseException exception) {
             throw exception;
         } catch (Exception exception) {
@@ -429,10 +916,33 @@ public class ProductService {
 
     }
 
+    // Helper method for categories written before they had a version, the same as versionLegacyProduct
+    private void versionLegacyCategory(Category category) {
+        if (category.getVersion() != 0) {
+            return;
+        }
+        if (categoryRepository.initializeVersion(category.getId()) == 0) {
+            throw new OptimisticLockingFailureException("Category " + category.getId() + " was written concurrently");
+        }
+        category.setVersion(1);
+    }
+
+    // writes read the category from mongo: the registry is a snapshot that can miss what another instance created,
+    // renamed or deleted since our last refresh. the snapshot is brought up to date with what was read
+    private Optional<Category> findCategoryForWrite(String categoryId) {
+        Optional<Category> stored = categoryRepository.findById(categoryId);
+        if (stored.isPresent()) {
+            categoryRegistry.put(stored.get());
+        } else {
+            categoryRegistry.remove(categoryId);
+        }
+        return stored;
+    }
+
     // delete category by id
     public void deleteCategoryById(String categoryId) {
         try {
-            Optional<Category> category = categoryRepository.findById(categoryId);
+            Optional<Category> category = findCategoryForWrite(categoryId);
 
             if (category.isEmpty()) {
                 logger.error("deleteCategoryById - Category not found");
@@ -440,7 +950,16 @@ public class ProductService {
             }
 
             categoryRepository.deleteById(categoryId);
-            productRepository.deleteByCategory(category.get());
+            categoryRegistry.remove(categoryId);
+            List<Product> deletedProducts = productRepository.deleteByCategoryId(categoryId);
+            if (deletedProducts != null && !deletedProducts.isEmpty()) {
+                reviewRepository.deleteByProductIdIn(deletedProducts.stream().map(Product::getId).toList());
+                deletedProducts.forEach(product -> {
+                    productCache.invalidate(product.getId());
+                    productSearchIndex.remove(product.getId());
+                    productSuggestIndex.remove(product.getId());
+                });
+            }
 
         } catch (ConversionFailedException exception) {
             logger.error("deleteCategoryById - Invalid category id");
@@ -454,9 +973,19 @@ public class ProductService {
     }
 
 
+    // digest of the category snapshot, changes whenever the categories do
+    public String getCategoriesETag() {
+        return categoryRegistry.etag();
+    }
+
+    public ProductCacheStats getProductCacheStats() {
+        return productCache.stats();
+    }
+
+
     public List<Category> getAllCategories() {
         try {
-            return categoryRepository.findAll();
+            return categoryRegistry.findAll();
 
         } catch (Exception exception) {
             logger.error(" getAllCategories - {}", exception.getMessage());
@@ -464,37 +993,65 @@ public class ProductService {
         }
     }
 
+    // the review goes to its own collection and is counted into the aggregates of the product with one atomic update,
+    // the product document is never read or rewritten
     public Product addReview(String id, AddReviewBody addReviewBody, int userId) {
         try {
-            Optional<Product> productDetails = productRepository.findById(id);
-            if (productDetails.isEmpty()) {
-                logger.error("addReview - Product not found");
-                throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
-            }
-
-            Product product = productDetails.get();
-
-            Product.Review review = new Product.Review();
+            Review review = new Review();
+            review.setProductId(id);
             review.setUserId(userId);
             review.setRating(addReviewBody.getRating());
             review.setDescription(addReviewBody.getDescription());
+            review.setCreatedAt(Instant.now());
 
-            List<Product.Review> reviews = product.getReviews();
-            reviews.add(review);
-            product.setReviews(reviews);
-
-            productRepository.save(product);
+            Review savedReview = reviewRepository.save(review);
 
-            return product;
+            String stars = String.valueOf(Math.max(1, Math.min(5, Math.round(addReviewBody.getRating()))));
+            Product product;
+            try {
+                product = productRepository.addRatings(id, 1, addReviewBody.getRating(), Map.of(stars, 1L));
+            } catch (Exception exception) {
+                reviewRepository.deleteById(savedReview.getId());
+                throw exception;
+            }
 
+            if (product == null) {
+                reviewRepository.deleteById(savedReview.getId());
+                logger.error("addReview - Product not found");
+                throw new BaseException(HttpStatus.NOT_FOUND, "Product not found");
+            }
 
+            productCache.invalidate(id);
 
+            return product;
+        } catch (ConversionFailedException exception) {
+            logger.error("addReview - Invalid product id");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Invalid product id");
+        } catch (BaseException exception) {
+            throw exception;
         } catch (Exception exception) {
             logger.error("addReview - {}", exception.getMessage());
             throw exception;
         }
     }
 
+    // one page of the reviews of a product, newest first
+    public Page<Review> getReviews(String productId, int page, int size) {
+        try {
+            if (page < 0 || size < 1 || size > MAX_PAGE_SIZE) {
+                logger.error("getReviews - Invalid page request");
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Page should be at least 0 and size between 1 and " + MAX_PAGE_SIZE);
+            }
+
+            return reviewRepository.findByProductId(productId, PageRequest.of(page, size, Sort.by(Sort.Direction.DESC, "id")));
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("getReviews - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
 
 
 }
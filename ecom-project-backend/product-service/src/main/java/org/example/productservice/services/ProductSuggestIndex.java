@@ -0,0 +1,370 @@
+package org.example.productservice.services;
+
+import org.example.productservice.models.Product;
+import org.example.productservice.utils.SearchTokenizer;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+// In-process typeahead over product names. Every name is reachable from the start of each of its words, and every trie node
+// keeps the best MAX_SUGGESTIONS names below it, so a lookup is a walk down the typed prefix plus a copy of that list.
+// Names shared by several products are one suggestion; popularity is one per product plus its review count.
+// Like ProductSearchIndex it takes the writes of this instance right away and is synced with mongo periodically.
+@Component
+public class ProductSuggestIndex {
+
+    public static final int MAX_SUGGESTIONS = 10;
+    // prefixes are indexed up to this many characters, longer ones are checked against the full name
+    private static final int MAX_KEY_LENGTH = 24;
+
+    private static final Comparator<Suggestion> BEST_FIRST = Comparator.comparingLong((Suggestion suggestion) -> suggestion.weight).reversed()
+            .thenComparing(suggestion -> suggestion.normalized);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Node root = new Node();
+    private final Map<String, Suggestion> suggestions = new HashMap<>();
+    // what each product added, so an update or delete can take exactly that back out
+    private final Map<String, Contribution> contributions = new HashMap<>();
+    // products written by this instance since the running sync started, null when none is running
+    private Set<String> writtenDuringSync;
+
+    private static final class Suggestion {
+        private final String text;
+        private final String normalized;
+        private long weight;
+
+        private Suggestion(String text, String normalized) {
+            this.text = text;
+            this.normalized = normalized;
+        }
+    }
+
+    private record Contribution(String normalized, long weight) {
+    }
+
+    // children are kept in two parallel arrays sorted by character, top is best first
+    private static final class Node {
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+        private Suggestion[] top = new Suggestion[0];
+        // suggestions whose key ends here, only set on those nodes
+        private List<Suggestion> ending;
+
+        private Node child(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            return index < 0 ? null : children[index];
+        }
+
+        private Node addChild(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            if (index >= 0) {
+                return children[index];
+            }
+
+            int insertAt = -index - 1;
+            Node child = new Node();
+            labels = insert(labels, insertAt, label);
+            Node[] grown = new Node[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, insertAt);
+            grown[insertAt] = child;
+            System.arraycopy(children, insertAt, grown, insertAt + 1, children.length - insertAt);
+            children = grown;
+            return child;
+        }
+
+        private void removeChild(Node child) {
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] == child) {
+                    char[] shrunkLabels = new char[labels.length - 1];
+                    Node[] shrunk = new Node[children.length - 1];
+                    System.arraycopy(labels, 0, shrunkLabels, 0, i);
+                    System.arraycopy(labels, i + 1, shrunkLabels, i, labels.length - i - 1);
+                    System.arraycopy(children, 0, shrunk, 0, i);
+                    System.arraycopy(children, i + 1, shrunk, i, children.length - i - 1);
+                    labels = shrunkLabels;
+                    children = shrunk;
+                    return;
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            return children.length == 0 && (ending == null || ending.isEmpty());
+        }
+
+        // a heavier suggestion can only move up, so it is enough to offer it to the current list
+        private void offer(Suggestion suggestion) {
+            List<Suggestion> candidates = new ArrayList<>(Arrays.asList(top));
+            if (!candidates.contains(suggestion)) {
+                candidates.add(suggestion);
+            }
+            candidates.sort(BEST_FIRST);
+            top = candidates.subList(0, Math.min(MAX_SUGGESTIONS, candidates.size())).toArray(new Suggestion[0]);
+        }
+
+        // after a suggestion got lighter or went away: the best of this node are the best of its children and its own.
+        // a name repeating a word reaches this node through more than one key, hence the set
+        private void recompute() {
+            Set<Suggestion> unique = new LinkedHashSet<>();
+            if (ending != null) {
+                unique.addAll(ending);
+            }
+            for (Node child : children) {
+                unique.addAll(Arrays.asList(child.top));
+            }
+            List<Suggestion> candidates = new ArrayList<>(unique);
+            candidates.sort(BEST_FIRST);
+            top = candidates.subList(0, Math.min(MAX_SUGGESTIONS, candidates.size())).toArray(new Suggestion[0]);
+        }
+
+        private boolean holds(Suggestion suggestion) {
+            for (Suggestion held : top) {
+                if (held == suggestion) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return suggestions.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // add or replace a product
+    public void index(Product product) {
+        lock.writeLock().lock();
+        try {
+            written(product.getId());
+            removeLocked(product.getId());
+            addLocked(product);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String productId) {
+        lock.writeLock().lock();
+        try {
+            written(productId);
+            removeLocked(productId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // the same sync as ProductSearchIndex: what this instance writes while it runs is left alone
+    public void beginSync() {
+        lock.writeLock().lock();
+        try {
+            writtenDuringSync = new HashSet<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // the product as the sync read it from mongo, re-indexed only when its name or review count changed
+    public void sync(Product product) {
+        lock.writeLock().lock();
+        try {
+            if (writtenDuringSync == null || writtenDuringSync.contains(product.getId())) {
+                return;
+            }
+            Contribution current = contributions.get(product.getId());
+            if (current != null && current.equals(new Contribution(normalize(product.getName(), false), weight(product)))) {
+                return;
+            }
+            removeLocked(product.getId());
+            addLocked(product);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // seen holds every product the sync read, the others were deleted. null when the sync failed, nothing is removed then
+    public void endSync(Set<String> seen) {
+        lock.writeLock().lock();
+        try {
+            if (seen != null && writtenDuringSync != null) {
+                for (String productId : new ArrayList<>(contributions.keySet())) {
+                    if (!seen.contains(productId) && !writtenDuringSync.contains(productId)) {
+                        removeLocked(productId);
+                    }
+                }
+            }
+            writtenDuringSync = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // names with a word starting with the prefix, most popular first
+    public List<String> suggest(String prefix, int limit) {
+        String normalized = normalize(prefix, true);
+        if (normalized.isBlank() || limit < 1) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            String key = normalized.substring(0, Math.min(normalized.length(), MAX_KEY_LENGTH));
+            for (int i = 0; i < key.length() && node != null; i++) {
+                node = node.child(key.charAt(i));
+            }
+            if (node == null) {
+                return new ArrayList<>();
+            }
+
+            if (normalized.length() > MAX_KEY_LENGTH) {
+                // the node's top list is cut before the rest of the prefix is checked, so every name ending here is looked at.
+                // keys stop at MAX_KEY_LENGTH, so that is all of them, and names sharing that long a start are few
+                return node.ending == null ? new ArrayList<>() : node.ending.stream()
+                        .filter(suggestion -> matches(suggestion.normalized, normalized))
+                        .sorted(BEST_FIRST)
+                        .limit(limit)
+                        .map(suggestion -> suggestion.text)
+                        .collect(Collectors.toList());
+            }
+
+            List<String> texts = new ArrayList<>();
+            for (Suggestion suggestion : node.top) {
+                if (texts.size() == limit) {
+                    break;
+                }
+                texts.add(suggestion.text);
+            }
+            return texts;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private void addLocked(Product product) {
+        String normalized = normalize(product.getName(), false);
+        if (product.getId() == null || normalized.isEmpty()) {
+            return;
+        }
+
+        long weight = weight(product);
+        contributions.put(product.getId(), new Contribution(normalized, weight));
+
+        Suggestion suggestion = suggestions.computeIfAbsent(normalized, key -> new Suggestion(product.getName().trim(), key));
+        boolean added = suggestion.weight == 0;
+        suggestion.weight += weight;
+
+        for (String key : keys(normalized)) {
+            Node node = root;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.addChild(key.charAt(i));
+                node.offer(suggestion);
+            }
+            if (added) {
+                if (node.ending == null) {
+                    node.ending = new ArrayList<>(1);
+                }
+                node.ending.add(suggestion);
+            }
+        }
+    }
+
+    private void written(String productId) {
+        if (writtenDuringSync != null) {
+            writtenDuringSync.add(productId);
+        }
+    }
+
+    private static long weight(Product product) {
+        return 1 + Math.max(0, product.getRatingCount());
+    }
+
+    private void removeLocked(String productId) {
+        Contribution contribution = contributions.remove(productId);
+        if (contribution == null) {
+            return;
+        }
+
+        Suggestion suggestion = suggestions.get(contribution.normalized());
+        suggestion.weight -= contribution.weight();
+        boolean removed = suggestion.weight <= 0;
+        if (removed) {
+            suggestions.remove(contribution.normalized());
+        }
+
+        for (String key : keys(contribution.normalized())) {
+            Node[] path = new Node[key.length() + 1];
+            path[0] = root;
+            for (int i = 0; i < key.length(); i++) {
+                path[i + 1] = path[i].child(key.charAt(i));
+            }
+
+            Node end = path[key.length()];
+            if (removed) {
+                end.ending.remove(suggestion);
+            }
+
+            // deepest first, so every node recomputes from children that are already up to date
+            for (int depth = key.length(); depth > 0; depth--) {
+                Node node = path[depth];
+                if (node.holds(suggestion)) {
+                    node.recompute();
+                }
+                if (node.isEmpty()) {
+                    path[depth - 1].removeChild(node);
+                }
+            }
+        }
+    }
+
+    // the name from the start of every word, cut to MAX_KEY_LENGTH
+    private static Set<String> keys(String normalized) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (int start = 0; start < normalized.length(); start++) {
+            if (start == 0 || normalized.charAt(start - 1) == ' ') {
+                keys.add(normalized.substring(start, Math.min(normalized.length(), start + MAX_KEY_LENGTH)));
+            }
+        }
+        return keys;
+    }
+
+    private static boolean matches(String normalizedName, String normalizedPrefix) {
+        return normalizedName.startsWith(normalizedPrefix) || normalizedName.contains(" " + normalizedPrefix);
+    }
+
+    // tokens as the search index sees them, joined by single spaces. a prefix keeps a trailing space,
+    // so "air " only completes names where air is a whole word
+    private static String normalize(String text, boolean prefix) {
+        String normalized = String.join(" ", SearchTokenizer.tokenize(text));
+        if (prefix && !normalized.isEmpty() && !Character.isLetterOrDigit(text.charAt(text.length() - 1))) {
+            normalized += " ";
+        }
+        return normalized;
+    }
+
+    private static char[] insert(char[] array, int index, char value) {
+        char[] grown = new char[array.length + 1];
+        System.arraycopy(array, 0, grown, 0, index);
+        grown[index] = value;
+        System.arraycopy(array, index, grown, index + 1, array.length - index);
+        return grown;
+    }
+
+}
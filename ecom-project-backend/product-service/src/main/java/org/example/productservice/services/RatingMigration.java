@@ -0,0 +1,59 @@
+package org.example.productservice.services;
+
+import org.example.productservice.models.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+// gives products saved before ratings were aggregated a rating of 0. they read as 0 already, but mongo sorts a missing
+// field before every number, where a rating cursor never finds them, so sorting by rating waits until this is done.
+// only products still missing the field are written, so the job can be stopped and started again at any point
+@Component
+public class RatingMigration {
+
+    private final MongoTemplate mongoTemplate;
+
+    private volatile boolean done;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public RatingMigration(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateInBackground() {
+        Thread migration = new Thread(this::migrate, "rating-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    public void migrate() {
+        try {
+            long migrated = mongoTemplate.updateMulti(new Query(Criteria.where("rating").exists(false)), new Update().set("rating", 0.0), Product.class)
+                    .getModifiedCount();
+            done = true;
+
+            if (migrated > 0) {
+                logger.info("migrateRatings - gave {} products a rating", migrated);
+            }
+        } catch (Exception exception) {
+            // the remaining products are picked up at the next start
+            logger.error("migrateRatings - {}", exception.getMessage());
+        }
+    }
+
+    // every product has a rating, a keyset page sorted by it sees all of them
+    public boolean isDone() {
+        return done;
+    }
+
+}
@@ -0,0 +1,195 @@
+package org.example.productservice.services;
+
+import org.example.productservice.exception.customExceptions.BaseException;
+import org.example.productservice.models.Reservation;
+import org.example.productservice.repository.ReservationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+// Holds stock for a cart between add-to-cart and checkout.
+// A hold takes its quantity off the product right away (the same guarded decrement as checkout), so the product quantity
+// stays the one number to look at for availability and a confirmed hold can never oversell.
+@Service
+public class ReservationService {
+
+    private static final int SWEEP_BATCH_SIZE = 500;
+    // how long a started release may take before another sweep takes it over
+    static final Duration RELEASE_LEASE = Duration.ofMinutes(5);
+
+    private final ReservationRepository reservationRepository;
+    private final ProductService productService;
+    private final Duration holdTtl;
+    private final Clock clock;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public ReservationService(ReservationRepository reservationRepository, ProductService productService,
+                              @Value("${product.reservation.ttl-minutes:15}") long ttlMinutes) {
+        this(reservationRepository, productService, Duration.ofMinutes(ttlMinutes), Clock.systemUTC());
+    }
+
+    ReservationService(ReservationRepository reservationRepository, ProductService productService, Duration holdTtl, Clock clock) {
+        this.reservationRepository = reservationRepository;
+        this.productService = productService;
+        this.holdTtl = holdTtl;
+        this.clock = clock;
+    }
+
+
+    // take stock for the owner, adding to any hold it already has on the product. 409 when there is not enough
+    public Reservation reserve(String productId, String owner, int quantity) {
+        try {
+            productService.decrementProductQuantity(productId, quantity);
+
+            try {
+                return addToHold(productId, owner, quantity);
+            } catch (Exception exception) {
+                productService.restockProductQuantity(productId, quantity);
+                throw exception;
+            }
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("reserve - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    private Reservation addToHold(String productId, String owner, int quantity) {
+        Instant expiresAt = clock.instant().plus(holdTtl);
+        try {
+            return reservationRepository.addToHold(productId, owner, quantity, expiresAt);
+        } catch (DuplicateKeyException exception) {
+            // two first holds of the same owner raced on the upsert and the other one created the document
+            return reservationRepository.addToHold(productId, owner, quantity, expiresAt);
+        }
+    }
+
+    // an order takes the stock out of the owner's hold. without a big enough hold (never made, or expired)
+    // the stock is taken from the product instead, still guarded, so a checkout without a hold cannot oversell either
+    public void confirm(String productId, String owner, int quantity) {
+        try {
+            if (quantity < 1) {
+                logger.error("confirm - Quantity should be greater than 0");
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Quantity should be greater than 0");
+            }
+
+            Reservation reservation = reservationRepository.takeFromHold(productId, owner, quantity);
+            if (reservation != null) {
+                removeIfEmpty(reservation);
+                return;
+            }
+
+            productService.decrementProductQuantity(productId, quantity);
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("confirm - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    // give held stock back to the product, at most what the owner holds. returns how much was given back
+    public int release(String productId, String owner, int quantity) {
+        try {
+            if (quantity < 1) {
+                logger.error("release - Quantity should be greater than 0");
+                throw new BaseException(HttpStatus.BAD_REQUEST, "Quantity should be greater than 0");
+            }
+
+            int released;
+            Reservation reservation = reservationRepository.takeFromHold(productId, owner, quantity);
+            if (reservation != null) {
+                removeIfEmpty(reservation);
+                released = quantity;
+            } else {
+                Reservation removed = reservationRepository.removeHold(productId, owner);
+                released = removed == null ? 0 : removed.getQuantity();
+            }
+
+            if (released > 0) {
+                productService.restockProductQuantity(productId, released);
+            }
+            return released;
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("release - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    private void removeIfEmpty(Reservation reservation) {
+        if (reservation.getQuantity() <= 0) {
+            reservationRepository.removeIfEmpty(reservation.getId());
+        }
+    }
+
+
+    @Scheduled(fixedDelayString = "${product.reservation.sweep-interval-ms:30000}",
+            initialDelayString = "${product.reservation.sweep-interval-ms:30000}")
+    public void sweepExpired() {
+        try {
+            int swept = sweepExpired(clock.instant());
+            if (swept > 0) {
+                logger.info("sweepExpired - released {} expired holds", swept);
+            }
+        } catch (Exception exception) {
+            // whatever is left is picked up by the next run
+            logger.error("sweepExpired - {}", exception.getMessage());
+        }
+    }
+
+    // expired holds are read a batch at a time and each one is claimed by moving its quantity into releasing (so a
+    // confirm racing the sweep keeps its stock). the stock of the batch goes back to the products in one bulk write,
+    // and only then are the claims cleared. a run that fails before that leaves its claims behind, and once they are
+    // stale the next run gives their stock back. a crash between the restock and the clear gives it back twice
+    public int sweepExpired(Instant now) {
+        int swept = 0;
+
+        while (true) {
+            List<Reservation> expired = reservationRepository.findExpired(now, now.minus(RELEASE_LEASE), SWEEP_BATCH_SIZE);
+
+            List<Reservation> claims = new ArrayList<>();
+            Map<String, Integer> restock = new HashMap<>();
+            for (Reservation reservation : expired) {
+                Reservation claimed = reservationRepository.claimExpired(reservation, now);
+                if (claimed != null) {
+                    claims.add(claimed);
+                    if (claimed.getReleasing() > 0) {
+                        restock.merge(claimed.getProductId(), claimed.getReleasing(), Integer::sum);
+                    }
+                }
+            }
+
+            if (!restock.isEmpty()) {
+                productService.restockProductQuantities(restock);
+            }
+            for (Reservation claimed : claims) {
+                reservationRepository.finishRelease(claimed.getId(), claimed.getReleasingAt());
+            }
+            swept += claims.size();
+
+            if (expired.size() < SWEEP_BATCH_SIZE) {
+                return swept;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package org.example.productservice.services;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.example.productservice.models.Review;
+import org.example.productservice.repository.ProductRepository;
+import org.example.productservice.repository.ReviewRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// moves reviews still embedded in product documents into the reviews collection, one product at a time.
+// every instance runs it at start, so each product is claimed first and the others skip it while the claim holds.
+// a product is done once its aggregates are merged and the list is dropped (one update, only under the claim), so a run
+// cut short is picked up again once its claim runs out: the reviews copied for the unfinished product are deleted and copied again
+@Component
+public class ReviewMigration {
+
+    // far longer than copying the reviews of one product takes
+    private static final Duration CLAIM_DURATION = Duration.ofMinutes(5);
+
+    private final ProductRepository productRepository;
+    private final ReviewRepository reviewRepository;
+    private final ProductCache productCache;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public ReviewMigration(ProductRepository productRepository, ReviewRepository reviewRepository, ProductCache productCache) {
+        this.productRepository = productRepository;
+        this.reviewRepository = reviewRepository;
+        this.productCache = productCache;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateInBackground() {
+        Thread migration = new Thread(this::migrate, "review-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    public void migrate() {
+        try {
+            int migrated = 0;
+            while (true) {
+                // mongo keeps milliseconds, the merge matches the claim by this exact value
+                Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+                Instant claimedUntil = now.plus(CLAIM_DURATION);
+
+                Document product = productRepository.claimLegacyReviews(now, claimedUntil);
+                if (product == null) {
+                    break;
+                }
+                if (migrateProduct(product, claimedUntil)) {
+                    migrated++;
+                }
+            }
+
+            if (migrated > 0) {
+                logger.info("migrateReviews - moved the reviews of {} products", migrated);
+            }
+        } catch (Exception exception) {
+            // the remaining products are picked up at the next start
+            logger.error("migrateReviews - {}", exception.getMessage());
+        }
+    }
+
+    private boolean migrateProduct(Document product, Instant claimedUntil) {
+        String productId = product.get("_id") instanceof ObjectId objectId ? objectId.toHexString() : String.valueOf(product.get("_id"));
+        List<Document> embedded = product.getList("reviews", Document.class, new ArrayList<>());
+
+        List<Review> reviews = new ArrayList<>();
+        double sum = 0;
+        Map<String, Long> histogram = new HashMap<>();
+        for (Document embeddedReview : embedded) {
+            double rating = embeddedReview.get("rating") instanceof Number number ? number.doubleValue() : 0;
+
+            Review review = new Review();
+            review.setProductId(productId);
+            review.setUserId(embeddedReview.get("userId") instanceof Number number ? number.intValue() : 0);
+            review.setDescription(embeddedReview.getString("description"));
+            review.setRating(rating);
+            reviews.add(review);
+
+            sum += rating;
+            histogram.merge(String.valueOf(Math.max(1, Math.min(5, Math.round(rating)))), 1L, Long::sum);
+        }
+
+        // copies left by a run that stopped before this product was done
+        reviewRepository.deleteByProductIdAndCreatedAtIsNull(productId);
+        List<Review> copies = reviewRepository.saveAll(reviews);
+
+        if (!productRepository.mergeLegacyRatings(productId, claimedUntil, reviews.size(), sum, histogram)) {
+            // the claim ran out and another instance took the product over, its copies replace these
+            logger.error("migrateReviews - lost the claim on product {}", productId);
+            reviewRepository.deleteAllById(copies.stream().map(Review::getId).toList());
+            return false;
+        }
+        productCache.invalidate(productId);
+        return true;
+    }
+
+}
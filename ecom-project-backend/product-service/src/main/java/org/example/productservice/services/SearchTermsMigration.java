@@ -0,0 +1,70 @@
+package org.example.productservice.services;
+
+import org.bson.Document;
+import org.example.productservice.models.Product;
+import org.example.productservice.repository.ProductSearchTermsCallback;
+import org.example.productservice.utils.SearchTokenizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+// fills searchTerms on products saved before keyword filters matched on it, a batch of products per bulk write.
+// only products still missing the field are picked up, so the job can be stopped and started again at any point
+@Component
+public class SearchTermsMigration {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final MongoTemplate mongoTemplate;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public SearchTermsMigration(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateInBackground() {
+        Thread migration = new Thread(this::migrate, "search-terms-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    public void migrate() {
+        try {
+            String collection = mongoTemplate.getCollectionName(Product.class);
+            Query batchQuery = new Query(Criteria.where(ProductSearchTermsCallback.SEARCH_TERMS).exists(false)).limit(BATCH_SIZE);
+            batchQuery.fields().include("name", "description");
+
+            long migrated = 0;
+            List<Document> products;
+            while (!(products = mongoTemplate.find(batchQuery, Document.class, collection)).isEmpty()) {
+                BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collection);
+                for (Document product : products) {
+                    List<String> terms = SearchTokenizer.searchTerms(product.getString("name"), product.getString("description"));
+                    bulk.updateOne(new Query(Criteria.where("_id").is(product.get("_id"))), new Update().set(ProductSearchTermsCallback.SEARCH_TERMS, terms));
+                }
+                migrated += bulk.execute().getModifiedCount();
+            }
+
+            if (migrated > 0) {
+                logger.info("migrateSearchTerms - filled the search terms of {} products", migrated);
+            }
+        } catch (Exception exception) {
+            // the remaining products are picked up at the next start
+            logger.error("migrateSearchTerms - {}", exception.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.example.productservice.services;
+
+import org.example.productservice.dto.StockMovementBody;
+import org.example.productservice.exception.customExceptions.BaseException;
+import org.example.productservice.models.StockMovement;
+import org.example.productservice.repository.StockMovementRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+
+// Applies the stock movements order-service relays from its outbox, a batch per product.
+// The sender retries until it gets an answer, so every movement is applied once per id: a PENDING marker is inserted under
+// the id before applying and the outcome written into it after, a redelivery is answered from there. A delivery that finds
+// the marker still pending is refused with a 409 and retried by the sender. Only a marker abandoned for PENDING_TIMEOUT
+// (its delivery died while applying) is taken over and applied again.
+@Service
+public class StockMovementService {
+
+    // far longer than applying one movement takes
+    static final Duration PENDING_TIMEOUT = Duration.ofMinutes(1);
+
+    private final StockMovementRepository stockMovementRepository;
+    private final ReservationService reservationService;
+    private final ProductService productService;
+    private final Clock clock;
+
+    Logger logger = LoggerFactory.getLogger(Logger.class);
+
+    @Autowired
+    public StockMovementService(StockMovementRepository stockMovementRepository, ReservationService reservationService, ProductService productService) {
+        this(stockMovementRepository, reservationService, productService, Clock.systemUTC());
+    }
+
+    StockMovementService(StockMovementRepository stockMovementRepository, ReservationService reservationService, ProductService productService, Clock clock) {
+        this.stockMovementRepository = stockMovementRepository;
+        this.reservationService = reservationService;
+        this.productService = productService;
+        this.clock = clock;
+    }
+
+
+    // the outcome of every movement by its id. a movement that cannot be applied for lack of stock or of the product is
+    // answered as such and counts as done; anything else fails the request, and the ones applied so far are kept
+    public Map<String, String> apply(String productId, List<StockMovementBody> movements) {
+        try {
+            for (StockMovementBody movement : movements) {
+                validate(movement);
+            }
+
+            // redeliveries of finished movements are answered without a write
+            Map<String, String> applied = stockMovementRepository.findAllById(movements.stream().map(StockMovementBody::getId).toList()).stream()
+                    .filter(movement -> !StockMovement.PENDING.equals(movement.getOutcome()))
+                    .collect(Collectors.toMap(StockMovement::getId, StockMovement::getOutcome));
+
+            Map<String, String> outcomes = new LinkedHashMap<>();
+            for (StockMovementBody movement : movements) {
+                String outcome = applied.get(movement.getId());
+                if (outcome == null) {
+                    outcome = applyOnce(productId, movement);
+                    applied.put(movement.getId(), outcome);
+                }
+                outcomes.put(movement.getId(), outcome);
+            }
+
+            return outcomes;
+        } catch (BaseException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            logger.error("apply - {}", exception.getMessage());
+            throw exception;
+        }
+    }
+
+    private String applyOnce(String productId, StockMovementBody movement) {
+        // mongo keeps milliseconds, the marker is matched by this exact value
+        Instant now = clock.instant().truncatedTo(ChronoUnit.MILLIS);
+
+        try {
+            stockMovementRepository.insert(new StockMovement(movement.getId(), productId, StockMovement.PENDING, now));
+        } catch (DuplicateKeyException exception) {
+            StockMovement existing = stockMovementRepository.findById(movement.getId()).orElse(null);
+            if (existing != null && !StockMovement.PENDING.equals(existing.getOutcome())) {
+                return existing.getOutcome();
+            }
+            if (existing == null || existing.getAppliedAt().isAfter(now.minus(PENDING_TIMEOUT))
+                    || stockMovementRepository.takeOver(movement.getId(), existing.getAppliedAt(), now) == 0) {
+                logger.error("apply - Stock movement {} is being applied", movement.getId());
+                throw new BaseException(HttpStatus.CONFLICT, "Stock movement is being applied, try again later");
+            }
+        }
+
+        String outcome;
+        try {
+            outcome = applyOne(productId, movement);
+        } catch (Exception exception) {
+            stockMovementRepository.release(movement.getId(), now);
+            throw exception;
+        }
+
+        if (stockMovementRepository.complete(movement.getId(), now, outcome) == 0) {
+            logger.error("apply - Stock movement {} was taken over while it was applied", movement.getId());
+        }
+        return outcome;
+    }
+
+    private String applyOne(String productId, StockMovementBody movement) {
+        try {
+            if (movement.getType() == StockMovementBody.Type.CONFIRM) {
+                reservationService.confirm(productId, movement.getOwner(), movement.getQuantity());
+            } else {
+                productService.restockProductQuantity(productId, movement.getQuantity());
+            }
+            return StockMovement.APPLIED;
+        } catch (BaseException exception) {
+            if (exception.getStatus() == HttpStatus.CONFLICT) {
+                return StockMovement.INSUFFICIENT_STOCK;
+            }
+            if (exception.getStatus() == HttpStatus.NOT_FOUND) {
+                return StockMovement.PRODUCT_NOT_FOUND;
+            }
+            throw exception;
+        }
+    }
+
+    private void validate(StockMovementBody movement) {
+        if (movement.getId() == null || movement.getId().isBlank()) {
+            logger.error("apply - Movement id cannot be empty");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Movement id cannot be empty");
+        }
+        if (movement.getType() == null) {
+            logger.error("apply - Movement type cannot be empty");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Movement type cannot be empty");
+        }
+        if (movement.getType() == StockMovementBody.Type.CONFIRM && (movement.getOwner() == null || movement.getOwner().isBlank())) {
+            logger.error("apply - Owner cannot be empty");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Owner cannot be empty");
+        }
+        if (movement.getQuantity() < 1) {
+            logger.error("apply - Quantity should be greater than 0");
+            throw new BaseException(HttpStatus.BAD_REQUEST, "Quantity should be greater than 0");
+        }
+    }
+
+}
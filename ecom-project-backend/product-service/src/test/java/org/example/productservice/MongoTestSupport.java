@@ -0,0 +1,35 @@
+package org.example.productservice;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+
+// tests that need a real mongod (query plans, atomic updates) use the same localhost instance as application-test.properties
+// and are skipped when it is not running
+public class MongoTestSupport {
+
+    private static final String CONNECTION_STRING = "mongodb://localhost:27017";
+    private static final String DATABASE = "product_service_test";
+
+    public static MongoTemplate mongoTemplateOrNull() {
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(CONNECTION_STRING))
+                .applyToClusterSettings(cluster -> cluster.serverSelectionTimeout(500, TimeUnit.MILLISECONDS))
+                .build();
+        MongoClient client = MongoClients.create(settings);
+        try {
+            client.getDatabase(DATABASE).runCommand(new Document("ping", 1));
+            return new MongoTemplate(client, DATABASE);
+        } catch (Exception exception) {
+            client.close();
+            return null;
+        }
+    }
+
+}
@@ -5,11 +5,22 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import org.example.productservice.dto.AddReviewBody;
 import org.example.productservice.dto.CategoryUpdateBody;
 import org.example.productservice.dto.ProductDetailsForOrder;
+import org.example.productservice.dto.ProductFacets;
+import org.example.productservice.dto.ProductFields;
+import org.example.productservice.dto.ProductFilter;
+import org.example.productservice.dto.ProductImportReport;
+import org.example.productservice.dto.ProductPage;
 import org.example.productservice.dto.ProductUpdateBody;
+import org.example.productservice.dto.ReservationBody;
 import org.example.productservice.exception.customExceptions.BaseException;
 import org.example.productservice.models.Category;
 import org.example.productservice.models.Product;
+import org.example.productservice.models.Reservation;
+import org.example.productservice.models.Review;
+import org.example.productservice.services.ProductImporter;
 import org.example.productservice.services.ProductService;
+import org.example.productservice.services.StockMovementService;
+import org.example.productservice.services.ReservationService;
 import org.hamcrest.Matchers;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -17,6 +28,8 @@ import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
@@ -24,13 +37,19 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -40,6 +59,15 @@ class ProductControllerTest {
     @MockBean
     private ProductService productService;
 
+    @MockBean
+    private ReservationService reservationService;
+
+    @MockBean
+    private ProductImporter productImporter;
+
+    @MockBean
+    private StockMovementService stockMovementService;
+
     @Autowired
     private MockMvc mockMvc;
 
@@ -57,12 +85,11 @@ class ProductControllerTest {
         List<Product.Attribute> attributes = new ArrayList<>();
         attributes.add(new Product.Attribute("Material", "Sustainable Materials"));
 
-        Category category = new Category();
+        Product.CategoryInfo category = new Product.CategoryInfo();
         List<String> imgLinks = new ArrayList<>();
-        List<Product.Review> reviews = new ArrayList<>();
 
 
-        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, reviews,"gender");
+        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, "gender", 0.0, 0, 0.0, new HashMap<>(), 1);
 
         when(productService.addProduct(any(), anyString())).thenReturn(product);
 
@@ -79,12 +106,11 @@ class ProductControllerTest {
         List<Product.Attribute> attributes = new ArrayList<>();
         attributes.add(new Product.Attribute("Material", "Sustainable Materials"));
 
-        Category category = new Category();
+        Product.CategoryInfo category = new Product.CategoryInfo();
         List<String> imgLinks = new ArrayList<>();
-        List<Product.Review> reviews = new ArrayList<>();
 
 
-        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, reviews,"gender");
+        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, "gender", 0.0, 0, 0.0, new HashMap<>(), 1);
 
 
         when(productService.addProduct(any(), anyString())).thenReturn(product);
@@ -102,13 +128,12 @@ class ProductControllerTest {
         List<Product.Attribute> attributes = new ArrayList<>();
         attributes.add(new Product.Attribute("Material", "Sustainable Materials"));
 
-        Category category = new Category();
+        Product.CategoryInfo category = new Product.CategoryInfo();
         List<String> imgLinks = new ArrayList<>();
 
-        List<Product.Review> reviews = new ArrayList<>();
 
 
-        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, reviews,"gender");
+        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, "gender", 0.0, 0, 0.0, new HashMap<>(), 1);
 
 
         when(productService.addProduct(any(), anyString())).thenReturn(product);
@@ -127,12 +152,11 @@ class ProductControllerTest {
         List<Product.Attribute> attributes = new ArrayList<>();
         attributes.add(new Product.Attribute("Material", "Sustainable Materials"));
 
-        Category category = new Category();
+        Product.CategoryInfo category = new Product.CategoryInfo();
         List<String> imgLinks = new ArrayList<>();
-        List<Product.Review> reviews = new ArrayList<>();
 
 
-        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, reviews,"gender");
+        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, "gender", 0.0, 0, 0.0, new HashMap<>(), 1);
 
 //        when(productService.addProduct(any(), anyString())).thenReturn(product);
 //
@@ -150,13 +174,12 @@ class ProductControllerTest {
         List<Product.Attribute> attributes = new ArrayList<>();
         attributes.add(new Product.Attribute("Material", "Sustainable Materials"));
 
-        Category category = new Category();
+        Product.CategoryInfo category = new Product.CategoryInfo();
         List<String> imgLinks = new ArrayList<>();
 
-        List<Product.Review> reviews = new ArrayList<>();
 
 
-        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, reviews,"gender");
+        Product product = new Product("1", "Luka 2 PF", "You bring the speed", attributes, 1100.00, category, 100, imgLinks, "gender", 0.0, 0, 0.0, new HashMap<>(), 1);
 
 
         when(productService.getProductById(any())).thenReturn(product);
@@ -165,6 +188,31 @@ class ProductControllerTest {
 
     }
 
+    // a matching If-None-Match is answered from the version alone
+    @Test
+    void getProductById_notModified() throws Exception {
+        when(productService.getProductETag("1")).thenReturn("\"3\"");
+
+        this.mockMvc.perform(get("/products/products/1").header("If-None-Match", "\"3\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "\"3\""));
+
+        Mockito.verify(productService, Mockito.never()).getProductById(anyString());
+    }
+
+    @Test
+    void getProductById_changed() throws Exception {
+        Product product = new Product();
+        product.setVersion(4);
+        when(productService.getProductETag("1")).thenReturn("\"4\"");
+        when(productService.getProductById("1")).thenReturn(product);
+
+        this.mockMvc.perform(get("/products/products/1").header("If-None-Match", "\"3\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"4\""))
+                .andExpect(jsonPath("$.product.version").value(4));
+    }
+
     @Test
     void getProductById_notFound() throws Exception {
 
@@ -228,6 +276,60 @@ class ProductControllerTest {
 
     }
 
+    // decrement quantity for product
+    @Test
+    void decrementProductQuantity_success() throws Exception {
+
+        ProductUpdateBody productUpdateBody = new ProductUpdateBody();
+        productUpdateBody.setQuantity("2");
+
+        when(productService.decrementProductQuantity("something", 2)).thenReturn(8);
+
+        this.mockMvc.perform(post("/products/products/something/decrementQuantity").contentType(MediaType.APPLICATION_JSON).content(objectWriter.writeValueAsString(productUpdateBody)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.quantity", Matchers.is(8)));
+    }
+
+    @Test
+    void decrementProductQuantity_conflict() throws Exception {
+
+        ProductUpdateBody productUpdateBody = new ProductUpdateBody();
+        productUpdateBody.setQuantity("2");
+
+        when(productService.decrementProductQuantity("something", 2)).thenThrow(new BaseException(HttpStatus.CONFLICT, "Insufficient stock"));
+
+        this.mockMvc.perform(post("/products/products/something/decrementQuantity").contentType(MediaType.APPLICATION_JSON).content(objectWriter.writeValueAsString(productUpdateBody)))
+                .andExpect(status().isConflict())
+                .andExpect(jsonPath("$.message", Matchers.is("Insufficient stock")));
+    }
+
+    // reserve stock for a cart
+    @Test
+    void reserveProduct_success() throws Exception {
+
+        ReservationBody reservationBody = new ReservationBody();
+        reservationBody.setOwner("user:1");
+        reservationBody.setQuantity(2);
+
+        when(reservationService.reserve("something", "user:1", 2)).thenReturn(new Reservation("r", "something", "user:1", 2, null));
+
+        this.mockMvc.perform(post("/products/products/something/reservations").contentType(MediaType.APPLICATION_JSON).content(objectWriter.writeValueAsString(reservationBody)))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.reservation.quantity", Matchers.is(2)));
+    }
+
+    @Test
+    void reserveProduct_badRequest() throws Exception {
+
+        ReservationBody reservationBody = new ReservationBody();
+        reservationBody.setQuantity(0);
+
+        this.mockMvc.perform(post("/products/products/something/reservations").contentType(MediaType.APPLICATION_JSON).content(objectWriter.writeValueAsString(reservationBody)))
+                .andExpect(status().isBadRequest());
+
+        Mockito.verify(reservationService, Mockito.times(0)).reserve(anyString(), anyString(), anyInt());
+    }
+
     // get product by id for order
     @Test
     void getProductDetailsForOrderById_success() throws Exception {
@@ -243,6 +345,27 @@ class ProductControllerTest {
 
     }
 
+    // get details of several products for an order
+    @Test
+    void getProductDetailsForOrderByIds_success() throws Exception {
+
+        ProductDetailsForOrder first = new ProductDetailsForOrder();
+        first.setId("1");
+        ProductDetailsForOrder second = new ProductDetailsForOrder();
+        second.setId("2");
+
+        when(productService.getProductDetailsForOrderByIds(List.of("1", "2"))).thenReturn(List.of(first, second));
+
+
+        mockMvc.perform(post("/products/products/detailsForOrder")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[\"1\", \"2\"]"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].id").value("1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[1].id").value("2"));
+
+    }
+
     @Test
     void getProductDetailsForOrderById_invalidParameter() throws Exception {
 
@@ -344,6 +467,19 @@ class ProductControllerTest {
                 .andExpect(jsonPath("$.product").exists());
     }
 
+    // reviews of a product, a page at a time
+    @Test
+    void getReviews_success() throws Exception {
+        Review review = new Review("r", "something", 1, "Great", 5, null);
+
+        when(productService.getReviews("something", 0, 20)).thenReturn(new PageImpl<>(List.of(review), PageRequest.of(0, 20), 1));
+
+        mockMvc.perform(get("/products/product/something/reviews"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Total-Count", "1"))
+                .andExpect(jsonPath("$[0].description").value("Great"));
+    }
+
     // Update category by ID
     @Test
     void updateCategoryById_success() throws Exception {
@@ -423,6 +559,57 @@ class ProductControllerTest {
                 .andExpect(jsonPath("$.size()").value(categories.size()));
     }
 
+    // the client already has the current categories
+    @Test
+    void getAllCategories_notModified() throws Exception {
+        when(productService.getCategoriesETag()).thenReturn("\"abc\"");
+
+        mockMvc.perform(get("/products/categories").header("If-None-Match", "\"abc\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "\"abc\""));
+
+        Mockito.verify(productService, Mockito.never()).getAllCategories();
+    }
+
+    @Test
+    void getCategoryById_notModified() throws Exception {
+        Category category = new Category("1", "Shoes", new ArrayList<>(), "img", 2);
+        when(productService.getCategoryById("1")).thenReturn(category);
+
+        mockMvc.perform(get("/products/category/1").header("If-None-Match", "\"2\""))
+                .andExpect(status().isNotModified());
+
+        mockMvc.perform(get("/products/category/1").header("If-None-Match", "\"1\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"2\""))
+                .andExpect(jsonPath("$.category.name").value("Shoes"));
+    }
+
+    @Test
+    void getAllCategories_changed() throws Exception {
+        when(productService.getCategoriesETag()).thenReturn("\"def\"");
+        when(productService.getAllCategories()).thenReturn(new ArrayList<>());
+
+        mockMvc.perform(get("/products/categories").header("If-None-Match", "\"abc\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"def\""));
+    }
+
+
+    // the etag of If-Match is the version the edit was made on, a changed product comes back as 409
+    @Test
+    void updateProduct_ifMatchConflict() throws Exception {
+        when(productService.extractTokenFromRequest(any())).thenReturn("correctToken");
+        when(productService.checkAdmin("correctToken")).thenReturn(true);
+        when(productService.updateProduct(anyString(), any(ProductUpdateBody.class), Mockito.eq(3L)))
+                .thenThrow(new BaseException(HttpStatus.CONFLICT, "Product was changed meanwhile, reload it and try again"));
+
+        mockMvc.perform(patch("/products/product/{id}", "productId")
+                        .header("If-Match", "\"3\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectWriter.writeValueAsString(new ProductUpdateBody())))
+                .andExpect(status().isConflict());
+    }
 
     // Update product by ID
     @Test
@@ -435,7 +622,7 @@ class ProductControllerTest {
 
 
         Product updatedProduct = new Product();
-        when(productService.updateProduct(anyString(), any(ProductUpdateBody.class))).thenReturn(updatedProduct);
+        when(productService.updateProduct(anyString(), any(ProductUpdateBody.class), any())).thenReturn(updatedProduct);
 
         mockMvc.perform(patch("/products/product/{id}", "productId")
                         .contentType(MediaType.APPLICATION_JSON)
@@ -455,7 +642,7 @@ class ProductControllerTest {
 
 
         Product updatedProduct = new Product();
-        when(productService.updateProduct(anyString(), any(ProductUpdateBody.class))).thenReturn(updatedProduct);
+        when(productService.updateProduct(anyString(), any(ProductUpdateBody.class), any())).thenReturn(updatedProduct);
 
         mockMvc.perform(patch("/products/product/{id}", "productId")
                         .contentType(MediaType.APPLICATION_JSON)
@@ -475,7 +662,7 @@ class ProductControllerTest {
 
 
         Product updatedProduct = new Product();
-        when(productService.updateProduct(anyString(), any(ProductUpdateBody.class))).thenReturn(updatedProduct);
+        when(productService.updateProduct(anyString(), any(ProductUpdateBody.class), any())).thenReturn(updatedProduct);
 
         mockMvc.perform(patch("/products/product/    ", "productId")
                         .contentType(MediaType.APPLICATION_JSON)
@@ -512,17 +699,19 @@ class ProductControllerTest {
     @Test
     void getProductsByCategory_success() throws Exception {
         List<Product> products = new ArrayList<>();
-        when(productService.getProductsByCategory(anyString())).thenReturn(products);
+        products.add(new Product());
+        when(productService.getProductsByCategory(anyString(), anyInt(), anyInt(), anyString(), any())).thenReturn(new PageImpl<>(products, PageRequest.of(1, 1), 3));
 
-        mockMvc.perform(get("/products/products/category/{categoryId}", "categoryId"))
+        mockMvc.perform(get("/products/products/category/{categoryId}", "categoryId").param("page", "1").param("size", "1"))
                 .andExpect(status().isOk())
+                .andExpect(header().string("X-Total-Count", "3"))
                 .andExpect(jsonPath("$.size()").value(products.size()));
     }
 
     @Test
     void getProductsByCategory_invalidParameter() throws Exception {
         List<Product> products = new ArrayList<>();
-        when(productService.getProductsByCategory(anyString())).thenReturn(products);
+        when(productService.getProductsByCategory(anyString(), anyInt(), anyInt(), anyString(), any())).thenReturn(new PageImpl<>(products));
 
         mockMvc.perform(get("/products/products/category/    ", "categoryId"))
                 .andExpect(status().isInternalServerError());
@@ -534,11 +723,191 @@ class ProductControllerTest {
     @Test
     void getAllProducts_success() throws Exception {
         List<Product> products = new ArrayList<>();  // Create mock products as needed
-        when(productService.getFilteredProducts(Mockito.anyDouble(),Mockito.anyDouble(), anyString(), anyString(),new ArrayList<>())).thenReturn(products);
+        when(productService.getFilteredProducts(Mockito.anyDouble(),Mockito.anyDouble(), anyString(), anyString(),any(), any(), any())).thenReturn(products);
 
         mockMvc.perform(get("/products/products"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.size()").value(products.size()));
     }
 
-}
\ No newline at end of file
+    // the summary view leaves out everything a product card does not show
+    @Test
+    void getAllProducts_summaryView() throws Exception {
+        Product product = new Product();
+        product.setId("1");
+        product.setName("Air Max");
+        product.setPrice(100.0);
+        product.setDescription("not asked for");
+        product.setImgLinks(List.of("first"));
+        when(productService.getFilteredProducts(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any(),
+                Mockito.eq(ProductFields.parse(null, "summary")))).thenReturn(List.of(product));
+
+        mockMvc.perform(get("/products/products").param("view", "summary"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].name").value("Air Max"))
+                .andExpect(jsonPath("$[0].imgLinks[0]").value("first"))
+                .andExpect(jsonPath("$[0].description").doesNotExist())
+                .andExpect(jsonPath("$[0].ratingHistogram").doesNotExist());
+    }
+
+    @Test
+    void getAllProducts_unknownField() throws Exception {
+        mockMvc.perform(get("/products/products").param("fields", "name,secret"))
+                .andExpect(status().isBadRequest());
+
+        Mockito.verify(productService, Mockito.never()).getFilteredProducts(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any(), any());
+    }
+
+    // the body format follows the content type, the token is checked once for the whole import
+    @Test
+    void importProducts_csv() throws Exception {
+        ProductImportReport report = new ProductImportReport();
+        report.setRows(2);
+        report.setImported(1);
+        report.setFailed(1);
+        report.getErrors().add(new ProductImportReport.RowError(2, "Name cannot be empty"));
+
+        when(productService.extractTokenFromRequest(any())).thenReturn("token");
+        when(productService.checkAdmin("token")).thenReturn(true);
+        when(productImporter.importCsv(any(), Mockito.eq("65dc544c00c5d91fb6192dd4"))).thenReturn(report);
+
+        mockMvc.perform(post("/products/products/import").param("categoryId", "65dc544c00c5d91fb6192dd4")
+                        .contentType("text/csv").content("name,price,quantity,gender\nTee,20,3,Men\n,20,3,Men\n"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.imported").value(1))
+                .andExpect(jsonPath("$.errors[0].row").value(2));
+
+        Mockito.verify(productImporter, Mockito.never()).importNdjson(any(), any());
+    }
+
+    @Test
+    void importProducts_notAdmin() throws Exception {
+        when(productService.extractTokenFromRequest(any())).thenReturn("token");
+        when(productService.checkAdmin("token")).thenReturn(false);
+
+        mockMvc.perform(post("/products/products/import").contentType("application/x-ndjson").content("{}\n"))
+                .andExpect(status().isUnauthorized());
+
+        Mockito.verify(productImporter, Mockito.never()).importNdjson(any(), any());
+    }
+
+    // attr.<name> params become the attribute filter, repeated params are alternatives
+    @Test
+    void getAllProducts_attributeFilters() throws Exception {
+        when(productService.getFilteredProducts(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(),
+                Mockito.eq(Map.of("color", List.of("red", "blue"), "size", List.of("M"))), any())).thenReturn(List.of(new Product()));
+
+        mockMvc.perform(get("/products/products").param("attr.color", "red", "blue").param("attr.size", "M").param("keyword", "shoe"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.size()").value(1));
+    }
+
+    @Test
+    void getSuggestions_success() throws Exception {
+        when(productService.getSuggestions("ai", 10)).thenReturn(List.of("Air Max", "Air Jordan"));
+
+        mockMvc.perform(get("/products/products/suggestions").param("prefix", "ai"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0]").value("Air Max"))
+                .andExpect(jsonPath("$.size()").value(2));
+    }
+
+    // Stream all products - one json document per line
+    @Test
+    void streamAllProducts_ndjson() throws Exception {
+        Product first = new Product();
+        first.setName("First");
+        Product second = new Product();
+        second.setName("Second");
+
+        when(productService.getListingFilter(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any(), any())).thenReturn(new ProductFilter());
+        Mockito.doAnswer(invocation -> {
+            Consumer<Product> consumer = invocation.getArgument(1);
+            consumer.accept(first);
+            consumer.accept(second);
+            return null;
+        }).when(productService).streamFilteredProducts(any(), any());
+
+        String body = mockMvc.perform(get("/products/products").accept(ProductController.NDJSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.content().contentType(ProductController.NDJSON))
+                .andReturn().getResponse().getContentAsString();
+
+        String[] lines = body.split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("First", objectMapper.readTree(lines[0]).get("name").asText());
+        assertEquals("Second", objectMapper.readTree(lines[1]).get("name").asText());
+    }
+
+    // a bad param is answered with the json error, before anything of the stream is written
+    @Test
+    void streamAllProducts_badParam() throws Exception {
+        when(productService.getListingFilter(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any(), any()))
+                .thenThrow(new BaseException(HttpStatus.NOT_FOUND, "Category not found"));
+
+        mockMvc.perform(get("/products/products").param("categoryId", "missing").accept(ProductController.NDJSON))
+                .andExpect(status().isNotFound())
+                .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.message").value("Category not found"));
+
+        Mockito.verify(productService, Mockito.never()).streamFilteredProducts(any(), any());
+    }
+
+    // browsers asking for json still get the plain list
+    @Test
+    void getAllProducts_jsonAcceptStaysList() throws Exception {
+        when(productService.getFilteredProducts(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any(), any())).thenReturn(new ArrayList<>());
+
+        mockMvc.perform(get("/products/products").header("Accept", "application/json, text/plain, */*"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.size()").value(0));
+
+        Mockito.verify(productService, Mockito.never()).streamFilteredProducts(any(), any());
+    }
+
+    // Get all products - keyset page
+    @Test
+    void getAllProducts_page() throws Exception {
+        List<Product> products = new ArrayList<>();
+        products.add(new Product());
+        when(productService.getFilteredProductsPage(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any(), any(), Mockito.eq("price,desc"), Mockito.eq(1), Mockito.eq("cursor")))
+                .thenReturn(new ProductPage(products, "nextCursor"));
+
+        mockMvc.perform(get("/products/products").param("sort", "price,desc").param("limit", "1").param("cursor", "cursor"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.products.size()").value(1))
+                .andExpect(jsonPath("$.next").value("nextCursor"));
+    }
+
+    // facets come with the first page, the products themselves stay paged
+    @Test
+    void getAllProducts_facets() throws Exception {
+        ProductFacets facets = new ProductFacets();
+        facets.setTotal(3);
+        facets.getGender().put("MEN", 3L);
+        when(productService.getFilteredProductsPage(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any(), any(), Mockito.eq("id"), anyInt(), Mockito.isNull()))
+                .thenReturn(new ProductPage(new ArrayList<>(), null));
+        when(productService.getProductFacets(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any())).thenReturn(facets);
+
+        mockMvc.perform(get("/products/products").param("facets", "true"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.facets.total").value(3))
+                .andExpect(jsonPath("$.facets.gender.MEN").value(3));
+    }
+
+    // facets=false asks for nothing, the listing stays the plain array
+    @Test
+    void getAllProducts_facetsFalse() throws Exception {
+        when(productService.getFilteredProducts(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any(), any()))
+                .thenReturn(new ArrayList<>());
+
+        mockMvc.perform(get("/products/products").param("facets", "false"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$").isArray());
+
+        Mockito.verify(productService, Mockito.never()).getFilteredProductsPage(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(),
+                any(), any(), any(), anyString(), anyInt(), any());
+        Mockito.verify(productService, Mockito.never()).getProductFacets(Mockito.anyDouble(), Mockito.anyDouble(), anyString(), anyString(), any(), any());
+    }
+
+}
@@ -0,0 +1,591 @@
+package org.example.productservice.repository;
+
+import org.bson.BsonRegularExpression;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.example.productservice.MongoTestSupport;
+import org.example.productservice.dto.ProductCursor;
+import org.example.productservice.dto.ProductFacets;
+import org.example.productservice.dto.ProductFields;
+import org.example.productservice.dto.ProductFilter;
+import org.example.productservice.models.Category;
+import org.example.productservice.models.Product;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.TypeBasedAggregationOperationContext;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ProductRepositoryCustomImplTest {
+
+    private final MongoMappingContext mappingContext = new MongoMappingContext();
+    private final QueryMapper queryMapper = new QueryMapper(new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext));
+
+    private Document mappedFilter(ProductFilter filter) {
+        Query query = ProductRepositoryCustomImpl.buildFilterQuery(filter);
+        return queryMapper.getMappedObject(query.getQueryObject(), mappingContext.getPersistentEntity(Product.class));
+    }
+
+    private static String regex(Document clause, String field) {
+        Object value = clause.get(field);
+        return value instanceof Pattern pattern ? pattern.pattern() : ((BsonRegularExpression) value).getPattern();
+    }
+
+    private List<Document> indexKeys() {
+        Iterable<? extends IndexDefinition> indexes = IndexResolver.create(mappingContext).resolveIndexFor(Product.class);
+        return StreamSupport.stream(indexes.spliterator(), false).map(IndexDefinition::getIndexKeys).toList();
+    }
+
+
+    // all filters end up in one query
+    @Test
+    void buildFilterQuery_allFilters() {
+        String categoryId = "65dc544c00c5d91fb6192dd4";
+        ProductFilter filter = new ProductFilter(10.0, 100.0, "shoes", categoryId, List.of("MEN", "UNISEX"));
+
+        Document mapped = mappedFilter(filter);
+        List<Document> clauses = mapped.getList("$and", Document.class);
+
+        assertEquals(4, clauses.size());
+        assertEquals(new ObjectId(categoryId), clauses.get(0).get("category._id"));
+        assertEquals(List.of("MEN", "UNISEX"), clauses.get(1).get("gender", Document.class).get("$in"));
+        assertEquals(10.0, clauses.get(2).get("price", Document.class).get("$gte"));
+        assertEquals(100.0, clauses.get(2).get("price", Document.class).get("$lte"));
+        assertEquals("^shoes", regex(clauses.get(3), "searchTerms"));
+    }
+
+    // the keyword is tokenized, never used as a pattern: every token becomes an anchored prefix on searchTerms
+    @Test
+    void buildFilterQuery_keywordIsLiteral() {
+        ProductFilter filter = new ProductFilter(null, null, "(a+)+$ Air.*MAX", "", new ArrayList<>());
+
+        List<Document> clauses = mappedFilter(filter).getList("$and", Document.class);
+
+        assertEquals(List.of("^a", "^air", "^max"), clauses.stream().map(clause -> regex(clause, "searchTerms")).toList());
+    }
+
+    // a keyword without letters or digits matches nothing instead of everything
+    @Test
+    void buildFilterQuery_keywordWithoutTerms() {
+        ProductFilter filter = new ProductFilter(null, null, ".*", "", new ArrayList<>());
+
+        Document clause = mappedFilter(filter).getList("$and", Document.class).get(0);
+
+        assertEquals(List.of(), clause.get("searchTerms", Document.class).get("$in"));
+    }
+
+    @Test
+    void buildFilterQuery_keywordTermsBounded() {
+        ProductFilter filter = new ProductFilter(null, null, "a b c d e f g h i j k", "", new ArrayList<>());
+
+        assertEquals(ProductRepositoryCustomImpl.MAX_KEYWORD_TERMS, mappedFilter(filter).getList("$and", Document.class).size());
+    }
+
+    // every saved product carries the tokens of its name and description
+    @Test
+    void searchTermsCallback_writesTerms() {
+        Product product = new Product();
+        product.setName("Air Max 90");
+        product.setDescription("Air cushioned, running-shoe");
+        Document document = new Document();
+
+        new ProductSearchTermsCallback().onBeforeSave(product, document, "products");
+
+        assertEquals(List.of("air", "max", "90", "cushioned", "running", "shoe"), document.get("searchTerms"));
+    }
+
+    // the summary view reads only what a product card shows, with the first image sliced off in mongo
+    @Test
+    void buildFilterQuery_summaryProjection() {
+        ProductFilter filter = new ProductFilter(null, null, "", "", new ArrayList<>());
+        filter.setFields(ProductFields.parse(null, ProductFields.SUMMARY_VIEW));
+
+        Document fields = ProductRepositoryCustomImpl.buildFilterQuery(filter).getFieldsObject();
+
+        assertEquals(1, fields.get("name"));
+        assertEquals(1, fields.get("price"));
+        assertEquals(new Document("$slice", 1), fields.get("imgLinks"));
+        assertFalse(fields.containsKey("description"));
+        assertFalse(fields.containsKey("attributes"));
+    }
+
+    // a keyset page always reads its sort field, the next cursor is made of it
+    @Test
+    void project_includesSortField() {
+        Document fields = ProductRepositoryCustomImpl.project(new Query(), ProductFields.parse("name", null), "price").getFieldsObject();
+
+        assertEquals(Set.of("id", "name", "price"), fields.keySet());
+        assertTrue(ProductRepositoryCustomImpl.project(new Query(), null, "price").getFieldsObject().isEmpty());
+    }
+
+    // the shared filters and the category go in the top $match, every facet then filters by the other dimensions only
+    @Test
+    void facetAggregation_disjunctive() {
+        String categoryId = "65dc544c00c5d91fb6192dd4";
+        ProductFilter filter = new ProductFilter(10.0, 100.0, "air", categoryId, List.of("MEN"));
+        TypeBasedAggregationOperationContext context = new TypeBasedAggregationOperationContext(Product.class, mappingContext, queryMapper);
+
+        List<Document> pipeline = ProductRepositoryCustomImpl.facetAggregation(filter).toPipeline(context);
+
+        assertEquals(2, pipeline.size());
+        List<Document> clauses = pipeline.get(0).get("$match", Document.class).getList("$and", Document.class);
+        assertEquals(2, clauses.size());
+        assertEquals(new ObjectId(categoryId), clauses.get(0).get("category._id"));
+
+        Document facets = pipeline.get(1).get("$facet", Document.class);
+        // with a category selected, the category facet is counted by its own aggregation
+        assertEquals(List.of("total", "gender", "price"), new ArrayList<>(facets.keySet()));
+        assertEquals(Set.of("gender", "price"), matchedFields(facets.getList("total", Document.class).get(0)));
+        assertEquals(Set.of("price"), matchedFields(facets.getList("gender", Document.class).get(0)));
+        assertEquals(Set.of("gender"), matchedFields(facets.getList("price", Document.class).get(0)));
+
+        List<Document> categoryPipeline = ProductRepositoryCustomImpl.categoryFacetAggregation(filter).toPipeline(context);
+        assertEquals(List.of("searchTerms", "gender", "price"), matchedFieldList(categoryPipeline.get(0)));
+        assertEquals("$category._id", categoryPipeline.get(1).get("$group", Document.class).get("_id"));
+
+        // no category selected: all four in the one aggregation
+        filter.setCategoryId("");
+        Document allFacets = ProductRepositoryCustomImpl.facetAggregation(filter).toPipeline(context).get(1).get("$facet", Document.class);
+        assertEquals(List.of("total", "gender", "categories", "price"), new ArrayList<>(allFacets.keySet()));
+        assertEquals(Set.of("gender", "price"), matchedFields(allFacets.getList("categories", Document.class).get(0)));
+    }
+
+    private static Set<String> matchedFields(Document match) {
+        return Set.copyOf(matchedFieldList(match));
+    }
+
+    private static List<String> matchedFieldList(Document match) {
+        return match.get("$match", Document.class).getList("$and", Document.class).stream()
+                .map(clause -> clause.keySet().iterator().next()).toList();
+    }
+
+    // name and value have to match on the same attribute, one $elemMatch per attribute
+    @Test
+    void buildFilterQuery_attributes() {
+        ProductFilter filter = new ProductFilter(null, null, "", "", new ArrayList<>());
+        filter.setAttributes(Map.of("Color", List.of("red", "blue")));
+
+        Document elemMatch = mappedFilter(filter).getList("$and", Document.class).get(0)
+                .get("attributes", Document.class).get("$elemMatch", Document.class);
+
+        assertEquals("Color", elemMatch.get("name"));
+        assertEquals(List.of("red", "blue"), elemMatch.get("value", Document.class).get("$in"));
+    }
+
+    @Test
+    void indexes_coverAttributeFilters() {
+        List<Document> keys = indexKeys();
+
+        assertTrue(keys.contains(new Document("searchTerms", 1)));
+
+        assertTrue(keys.contains(new Document("attributes.name", 1).append("attributes.value", 1)));
+        assertTrue(keys.contains(new Document("category._id", 1).append("attributes.name", 1).append("attributes.value", 1)));
+    }
+
+    @Test
+    void buildFilterQuery_noFilters() {
+        Document mapped = mappedFilter(new ProductFilter(null, null, "", "", new ArrayList<>()));
+
+        assertTrue(mapped.isEmpty());
+    }
+
+
+    // the compound indexes have the equality fields of the query as prefix and price last
+    @Test
+    void indexes_coverFilterFields() {
+        List<Document> keys = indexKeys();
+
+        assertTrue(keys.contains(new Document("category._id", 1).append("gender", 1).append("price", 1)));
+        assertTrue(keys.contains(new Document("gender", 1).append("price", 1)));
+        assertTrue(keys.contains(new Document("price", 1).append("_id", 1)));
+    }
+
+    // every sort option of the category listing has an index starting with the category and ending with the _id tie-breaker
+    @Test
+    void indexes_coverCategorySorts() {
+        List<Document> keys = indexKeys();
+
+        assertTrue(keys.contains(new Document("category._id", 1).append("_id", 1)));
+        assertTrue(keys.contains(new Document("category._id", 1).append("price", 1).append("_id", 1)));
+        assertTrue(keys.contains(new Document("category._id", 1).append("name", 1).append("_id", 1)));
+    }
+
+
+    // the embedded category copy must not carry the unique name index of the categories collection
+    @Test
+    void indexes_noCategoryNameIndex() {
+        List<Document> keys = indexKeys();
+
+        assertFalse(keys.stream().anyMatch(key -> key.containsKey("category.name")));
+    }
+
+
+    // every keyset sort of the listing has a (field, _id) index
+    @Test
+    void indexes_coverKeysetSorts() {
+        List<Document> keys = indexKeys();
+
+        assertTrue(keys.contains(new Document("price", 1).append("_id", 1)));
+        assertTrue(keys.contains(new Document("name", 1).append("_id", 1)));
+        assertTrue(keys.contains(new Document("rating", 1).append("_id", 1)));
+    }
+
+
+    // walking every page with the cursor returns each product exactly once, in order
+    @Test
+    void findFilteredProductsAfter_walksAllPages() {
+        MongoTemplate mongoTemplate = MongoTestSupport.mongoTemplateOrNull();
+        Assumptions.assumeTrue(mongoTemplate != null, "mongod not available");
+
+        try {
+            mongoTemplate.dropCollection(Product.class);
+            for (int i = 0; i < 95; i++) {
+                Product product = new Product();
+                product.setName("Product " + i);
+                product.setPrice((double) (i % 10));
+                mongoTemplate.insert(product);
+            }
+
+            ProductRepositoryCustomImpl repository = new ProductRepositoryCustomImpl(mongoTemplate);
+            ProductFilter filter = new ProductFilter(null, null, "", "", new ArrayList<>());
+            List<Product> seen = new ArrayList<>();
+            ProductCursor after = null;
+
+            while (true) {
+                List<Product> page = repository.findFilteredProductsAfter(filter, "price", Sort.Direction.ASC, after, 10);
+                seen.addAll(page);
+                if (page.size() < 10) {
+                    break;
+                }
+                Product last = page.get(page.size() - 1);
+                after = new ProductCursor("price", "ASC", last.getPrice(), last.getId());
+            }
+
+            assertEquals(95, seen.size());
+            assertEquals(95, seen.stream().map(Product::getId).distinct().count());
+            for (int i = 1; i < seen.size(); i++) {
+                assertTrue(seen.get(i - 1).getPrice() <= seen.get(i).getPrice());
+            }
+        } finally {
+            mongoTemplate.dropCollection(Product.class);
+        }
+    }
+
+
+    // a review is one pipeline update: counters and version first, then the average from the updated sum and count
+    @Test
+    void ratingUpdate_pipeline() {
+        List<Document> pipeline = ProductRepositoryCustomImpl.ratingUpdate(1, 4.0, Map.of("4", 1L)).toPipeline(Aggregation.DEFAULT_CONTEXT);
+
+        List<String> fields = pipeline.stream().map(stage -> stage.get("$set", Document.class).keySet().iterator().next()).toList();
+        assertEquals(List.of("ratingCount", "ratingSum", "ratingHistogram.4", "version", "rating"), fields);
+        assertEquals(new Document("$add", List.of(new Document("$ifNull", List.of("$ratingCount", 0)), 1L)),
+                pipeline.get(0).get("$set", Document.class).get("ratingCount"));
+    }
+
+
+    // order details come back with their category name, unknown and malformed ids are left out
+    @Test
+    void findForOrderByIds_resolvesCategories() {
+        MongoTemplate mongoTemplate = MongoTestSupport.mongoTemplateOrNull();
+        Assumptions.assumeTrue(mongoTemplate != null, "mongod not available");
+
+        try {
+            mongoTemplate.dropCollection(Product.class);
+            Category category = mongoTemplate.insert(new Category(null, "Shoes", new ArrayList<>(), "img", 1));
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Product product = new Product();
+                product.setName("Product " + i);
+                product.setPrice(10.0);
+                product.setQuantity(i);
+                product.setCategory(Product.CategoryInfo.from(category));
+                product.setImgLinks(List.of("first-" + i, "second-" + i));
+                ids.add(mongoTemplate.insert(product).getId());
+            }
+            ids.add(new ObjectId().toHexString());
+            ids.add("not-an-id");
+
+            List<Product> products = new ProductRepositoryCustomImpl(mongoTemplate).findForOrderByIds(ids);
+
+            assertEquals(3, products.size());
+            for (Product product : products) {
+                assertEquals("Shoes", product.getCategory().getName());
+                assertEquals(1, product.getImgLinks().size());
+                assertNull(product.getDescription());
+            }
+        } finally {
+            mongoTemplate.dropCollection(Product.class);
+            mongoTemplate.dropCollection(Category.class);
+        }
+    }
+
+
+    // a save of a copy read before another write is rejected; a product from before versioning is versioned once
+    @Test
+    void versionedSave_rejectsStaleCopy() {
+        MongoTemplate mongoTemplate = MongoTestSupport.mongoTemplateOrNull();
+        Assumptions.assumeTrue(mongoTemplate != null, "mongod not available");
+
+        try {
+            mongoTemplate.dropCollection(Product.class);
+            Product product = mongoTemplate.insert(new Product().setName("Pegasus").setQuantity(5));
+            assertEquals(1, product.getVersion());
+
+            ProductRepositoryCustomImpl repository = new ProductRepositoryCustomImpl(mongoTemplate);
+            Product stale = mongoTemplate.findById(product.getId(), Product.class);
+            repository.decrementQuantity(product.getId(), 1);
+
+            stale.setName("Pegasus 41");
+            assertThrows(OptimisticLockingFailureException.class, () -> mongoTemplate.save(stale));
+            assertEquals(4, mongoTemplate.findById(product.getId(), Product.class).getQuantity());
+
+            ObjectId legacyId = new ObjectId();
+            mongoTemplate.getCollection(mongoTemplate.getCollectionName(Product.class)).insertOne(new Document("_id", legacyId).append("name", "Legacy"));
+            assertTrue(repository.initializeVersion(legacyId.toHexString()));
+            assertFalse(repository.initializeVersion(legacyId.toHexString()));
+            assertEquals(1L, repository.findVersionById(legacyId.toHexString()));
+        } finally {
+            mongoTemplate.dropCollection(Product.class);
+        }
+    }
+
+
+    // categories are versioned the same way, a category from before versioning gets its first version once
+    @Test
+    void versionedSave_rejectsStaleCategory() {
+        MongoTemplate mongoTemplate = MongoTestSupport.mongoTemplateOrNull();
+        Assumptions.assumeTrue(mongoTemplate != null, "mongod not available");
+
+        try {
+            mongoTemplate.dropCollection(Category.class);
+            CategoryRepository repository = new MongoRepositoryFactory(mongoTemplate).getRepository(CategoryRepository.class);
+
+            Category category = repository.save(new Category(null, "Shoes", new ArrayList<>(), "img", 0));
+            assertEquals(1, category.getVersion());
+
+            Category stale = repository.findById(category.getId()).orElseThrow();
+            category.setName("Sneakers");
+            repository.save(category);
+
+            stale.setImgLink("new-img");
+            assertThrows(OptimisticLockingFailureException.class, () -> repository.save(stale));
+            assertEquals("Sneakers", repository.findById(category.getId()).orElseThrow().getName());
+
+            ObjectId legacyId = new ObjectId();
+            mongoTemplate.getCollection(mongoTemplate.getCollectionName(Category.class)).insertOne(new Document("_id", legacyId).append("name", "Legacy"));
+            assertEquals(1, repository.initializeVersion(legacyId.toHexString()));
+            assertEquals(0, repository.initializeVersion(legacyId.toHexString()));
+            assertEquals(1, repository.findById(legacyId.toHexString()).orElseThrow().getVersion());
+        } finally {
+            mongoTemplate.dropCollection(Category.class);
+        }
+    }
+
+    // a product with embedded reviews is handed to one migration run at a time, and only that run can merge it
+    @Test
+    void claimLegacyReviews_oneRunPerProduct() {
+        MongoTemplate mongoTemplate = MongoTestSupport.mongoTemplateOrNull();
+        Assumptions.assumeTrue(mongoTemplate != null, "mongod not available");
+
+        try {
+            mongoTemplate.dropCollection(Product.class);
+            ObjectId legacyId = new ObjectId();
+            mongoTemplate.getCollection(mongoTemplate.getCollectionName(Product.class)).insertOne(new Document("_id", legacyId)
+                    .append("name", "Legacy").append("reviews", List.of(new Document("userId", 1).append("rating", 4.0))));
+
+            ProductRepositoryCustomImpl repository = new ProductRepositoryCustomImpl(mongoTemplate);
+            Instant now = Instant.parse("2024-03-01T10:00:00Z");
+            Instant claimedUntil = now.plusSeconds(300);
+
+            Document claimed = repository.claimLegacyReviews(now, claimedUntil);
+            assertEquals(legacyId, claimed.get("_id"));
+            assertEquals(1, claimed.getList("reviews", Document.class).size());
+            assertNull(repository.claimLegacyReviews(now.plusSeconds(1), now.plusSeconds(301)));
+
+            // the claim ran out: another run takes the product over, and the first one can no longer merge it
+            Instant takenOver = now.plusSeconds(600);
+            assertNotNull(repository.claimLegacyReviews(now.plusSeconds(301), takenOver));
+            assertFalse(repository.mergeLegacyRatings(legacyId.toHexString(), claimedUntil, 1, 4.0, Map.of("4", 1L)));
+            assertTrue(repository.mergeLegacyRatings(legacyId.toHexString(), takenOver, 1, 4.0, Map.of("4", 1L)));
+
+            Document merged = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Product.class)).find(new Document("_id", legacyId)).first();
+            assertFalse(merged.containsKey("reviews"));
+            assertFalse(merged.containsKey(ProductRepositoryCustomImpl.REVIEWS_CLAIMED_UNTIL));
+            assertEquals(1L, ((Number) merged.get("ratingCount")).longValue());
+            assertNull(repository.claimLegacyReviews(takenOver, takenOver.plusSeconds(300)));
+        } finally {
+            mongoTemplate.dropCollection(Product.class);
+        }
+    }
+
+
+    @Test
+    void findFacets_counts() {
+        MongoTemplate mongoTemplate = MongoTestSupport.mongoTemplateOrNull();
+        Assumptions.assumeTrue(mongoTemplate != null, "mongod not available");
+
+        try {
+            mongoTemplate.dropCollection(Product.class);
+            Category category = mongoTemplate.insert(new Category(null, "Shoes", new ArrayList<>(), "img", 1));
+            double[] prices = {500.0, 1500.0, 1600.0, 20000.0};
+            String[] genders = {"MEN", "MEN", "WOMEN", "UNISEX"};
+            for (int i = 0; i < prices.length; i++) {
+                Product product = new Product();
+                product.setName("Product " + i);
+                product.setPrice(prices[i]);
+                product.setGender(genders[i]);
+                product.setCategory(Product.CategoryInfo.from(category));
+                mongoTemplate.insert(product);
+            }
+
+            ProductFacets facets = new ProductRepositoryCustomImpl(mongoTemplate)
+                    .findFacets(new ProductFilter(0.0, Double.MAX_VALUE, "", "", new ArrayList<>()));
+
+            assertEquals(4, facets.getTotal());
+            assertEquals(Map.of("MEN", 2L, "WOMEN", 1L, "UNISEX", 1L), facets.getGender());
+            assertEquals(List.of(new ProductFacets.CategoryCount(category.getId(), "Shoes", 4)), facets.getCategories());
+            assertEquals(List.of(new ProductFacets.PriceBucket(0.0, 1000.0, 1), new ProductFacets.PriceBucket(1000.0, 2500.0, 2),
+                    new ProductFacets.PriceBucket(10000.0, null, 1)), facets.getPrice());
+
+            // a selected gender and category still show the counts of the others
+            Category other = mongoTemplate.insert(new Category(null, "Shirts", new ArrayList<>(), "img", 1));
+            Product shirt = new Product();
+            shirt.setName("Shirt");
+            shirt.setPrice(800.0);
+            shirt.setGender("MEN");
+            shirt.setCategory(Product.CategoryInfo.from(other));
+            mongoTemplate.insert(shirt);
+
+            ProductFacets selected = new ProductRepositoryCustomImpl(mongoTemplate)
+                    .findFacets(new ProductFilter(0.0, 2000.0, "", category.getId(), new ArrayList<>(List.of("MEN"))));
+
+            assertEquals(2, selected.getTotal());
+            assertEquals(Map.of("MEN", 2L, "WOMEN", 1L), selected.getGender());
+            assertEquals(List.of(new ProductFacets.CategoryCount(category.getId(), "Shoes", 2), new ProductFacets.CategoryCount(other.getId(), "Shirts", 1)),
+                    selected.getCategories());
+            assertEquals(List.of(new ProductFacets.PriceBucket(0.0, 1000.0, 1), new ProductFacets.PriceBucket(1000.0, 2500.0, 1)), selected.getPrice());
+        } finally {
+            mongoTemplate.dropCollection(Product.class);
+            mongoTemplate.dropCollection(Category.class);
+        }
+    }
+
+
+    // many threads checking out the same product: exactly the stock on hand is sold, never more
+    @Test
+    void decrementQuantity_neverOversells() throws Exception {
+        MongoTemplate mongoTemplate = MongoTestSupport.mongoTemplateOrNull();
+        Assumptions.assumeTrue(mongoTemplate != null, "mongod not available");
+
+        int stock = 100;
+        int threads = 32;
+        int attemptsPerThread = 20;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            mongoTemplate.dropCollection(Product.class);
+            Product product = new Product();
+            product.setName("Limited");
+            product.setPrice(10.0);
+            product.setQuantity(stock);
+            String productId = mongoTemplate.insert(product).getId();
+
+            ProductRepositoryCustomImpl repository = new ProductRepositoryCustomImpl(mongoTemplate);
+            AtomicInteger sold = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> workers = new ArrayList<>();
+
+            for (int t = 0; t < threads; t++) {
+                workers.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < attemptsPerThread; i++) {
+                        Product remaining = repository.decrementQuantity(productId, 1);
+                        if (remaining != null) {
+                            assertTrue(remaining.getQuantity() >= 0);
+                            sold.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get(30, TimeUnit.SECONDS);
+            }
+
+            assertEquals(stock, sold.get());
+            assertEquals(0, mongoTemplate.findById(productId, Product.class).getQuantity());
+            assertNull(repository.decrementQuantity(productId, 1));
+            assertEquals(1, repository.incrementQuantity(productId, 1).getQuantity());
+        } finally {
+            executor.shutdownNow();
+            mongoTemplate.dropCollection(Product.class);
+        }
+    }
+
+
+    // with a running mongod the winning plan of a filtered listing is an index scan
+    @Test
+    void findFilteredProducts_usesIndex() {
+        MongoTemplate mongoTemplate = MongoTestSupport.mongoTemplateOrNull();
+        Assumptions.assumeTrue(mongoTemplate != null, "mongod not available");
+
+        try {
+            mongoTemplate.dropCollection(Product.class);
+            IndexResolver.create(mappingContext).resolveIndexFor(Product.class)
+                    .forEach(index -> mongoTemplate.indexOps(Product.class).ensureIndex(index));
+
+            Category category = mongoTemplate.insert(new Category(null, "Shoes", new ArrayList<>(), "img", 1));
+            for (int i = 0; i < 200; i++) {
+                Product product = new Product();
+                product.setName("Product " + i);
+                product.setPrice(10.0 * (i + 1));
+                product.setGender(i % 2 == 0 ? "MEN" : "WOMEN");
+                product.setCategory(Product.CategoryInfo.from(category));
+                mongoTemplate.insert(product);
+            }
+
+            ProductFilter filter = new ProductFilter(100.0, 500.0, "", category.getId(), List.of("MEN"));
+            Document explain = mongoTemplate.getCollection("products").find(mappedFilter(filter)).explain();
+            String winningPlan = explain.get("queryPlanner", Document.class).get("winningPlan", Document.class).toJson();
+
+            assertTrue(winningPlan.contains("IXSCAN"));
+            assertFalse(winningPlan.contains("COLLSCAN"));
+
+            List<Product> products = new ProductRepositoryCustomImpl(mongoTemplate).findFilteredProducts(filter);
+            assertEquals(21, products.size());
+        } finally {
+            mongoTemplate.dropCollection(Product.class);
+            mongoTemplate.dropCollection(Category.class);
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package org.example.productservice.services;
+
+import org.example.productservice.models.Category;
+import org.example.productservice.repository.CategoryRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class CategoryRegistryTest {
+
+    private final CategoryRepository categoryRepository = Mockito.mock(CategoryRepository.class);
+
+    private final CategoryRegistry categoryRegistry = new CategoryRegistry(categoryRepository);
+
+    private Category category(String id, String name, String... attributes) {
+        return new Category(id, name, new ArrayList<>(List.of(attributes)), "img", 1);
+    }
+
+
+    // mongo is read once, every read after that is served from the snapshot
+    @Test
+    void reads_loadOnce() {
+        Mockito.when(categoryRepository.findAll()).thenReturn(List.of(category("1", "Shoes", "Size"), category("2", "Shirts")));
+
+        assertTrue(categoryRegistry.contains("1"));
+        assertEquals("Shirts", categoryRegistry.find("2").orElseThrow().getName());
+        assertTrue(categoryRegistry.find("3").isEmpty());
+        assertEquals(List.of("Shoes", "Shirts"), categoryRegistry.findAll().stream().map(Category::getName).toList());
+
+        Mockito.verify(categoryRepository, Mockito.times(1)).findAll();
+    }
+
+    @Test
+    void allowedAttributes_precomputed() {
+        Mockito.when(categoryRepository.findAll()).thenReturn(List.of(category("1", "Shoes", "Size", "Material")));
+
+        assertEquals(Set.of("Size", "Material"), categoryRegistry.allowedAttributes("1"));
+        assertEquals(Set.of(), categoryRegistry.allowedAttributes("2"));
+    }
+
+    @Test
+    void attributeName_caseInsensitive() {
+        Mockito.when(categoryRepository.findAll()).thenReturn(List.of(category("1", "Shoes", "Size", "Material"), category("2", "Shirts", "Size")));
+
+        assertEquals("Material", categoryRegistry.attributeName("material").orElseThrow());
+        assertEquals("Size", categoryRegistry.attributeName("SIZE").orElseThrow());
+        assertTrue(categoryRegistry.attributeName("weight").isEmpty());
+    }
+
+    // callers get copies, changing one does not change the snapshot
+    @Test
+    void find_returnsCopy() {
+        Mockito.when(categoryRepository.findAll()).thenReturn(List.of(category("1", "Shoes", "Size")));
+
+        categoryRegistry.find("1").orElseThrow().setName("Changed");
+        categoryRegistry.findAll().get(0).getAttributes().add("Color");
+
+        assertEquals("Shoes", categoryRegistry.find("1").orElseThrow().getName());
+        assertEquals(Set.of("Size"), categoryRegistry.allowedAttributes("1"));
+    }
+
+    @Test
+    void writes_swapSnapshot() {
+        Mockito.when(categoryRepository.findAll()).thenReturn(List.of(category("1", "Shoes")));
+        long version = categoryRegistry.version();
+        String etag = categoryRegistry.etag();
+
+        categoryRegistry.put(category("2", "Shirts", "Fit"));
+
+        assertTrue(categoryRegistry.version() > version);
+        assertNotEquals(etag, categoryRegistry.etag());
+        assertEquals(Set.of("Fit"), categoryRegistry.allowedAttributes("2"));
+
+        categoryRegistry.remove("2");
+
+        assertFalse(categoryRegistry.contains("2"));
+        // same categories, same etag
+        assertEquals(etag, categoryRegistry.etag());
+    }
+
+    // the refresh picks up categories written by another instance, and keeps the snapshot when nothing changed
+    @Test
+    void refresh_picksUpRemoteWrites() {
+        Mockito.when(categoryRepository.findAll()).thenReturn(List.of(category("1", "Shoes")));
+        long version = categoryRegistry.version();
+
+        categoryRegistry.refresh();
+        assertEquals(version, categoryRegistry.version());
+
+        Mockito.when(categoryRepository.findAll()).thenReturn(List.of(category("1", "Shoes"), category("2", "Shirts")));
+        categoryRegistry.refresh();
+
+        assertTrue(categoryRegistry.contains("2"));
+        assertTrue(categoryRegistry.version() > version);
+    }
+
+    // a failing refresh leaves the last snapshot in place
+    @Test
+    void refresh_failureKeepsSnapshot() {
+        Mockito.when(categoryRepository.findAll()).thenReturn(List.of(category("1", "Shoes")));
+        assertTrue(categoryRegistry.contains("1"));
+
+        Mockito.when(categoryRepository.findAll()).thenThrow(new RuntimeException("mongo down"));
+        categoryRegistry.refresh();
+
+        assertTrue(categoryRegistry.contains("1"));
+    }
+
+}
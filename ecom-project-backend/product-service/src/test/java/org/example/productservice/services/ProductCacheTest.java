@@ -0,0 +1,145 @@
+package org.example.productservice.services;
+
+import org.example.productservice.dto.ProductCacheStats;
+import org.example.productservice.models.Product;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ProductCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final ProductCache productCache = new ProductCache(2, Duration.ofSeconds(60), now::get);
+
+    private Product product(String id) {
+        Product product = new Product();
+        product.setId(id);
+        return product;
+    }
+
+
+    @Test
+    void get_readThrough() {
+        assertNull(productCache.get("1"));
+
+        Product product = product("1");
+        productCache.put("1", product, productCache.loadStamp());
+
+        assertEquals(product, productCache.get("1"));
+
+        ProductCacheStats stats = productCache.stats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getSize());
+        assertEquals(0.5, stats.getHitRate());
+    }
+
+    @Test
+    void put_evictsLeastRecentlyUsed() {
+        productCache.put("1", product("1"), productCache.loadStamp());
+        productCache.put("2", product("2"), productCache.loadStamp());
+        productCache.get("1");
+        productCache.put("3", product("3"), productCache.loadStamp());
+
+        assertNotNull(productCache.get("1"));
+        assertNull(productCache.get("2"));
+        assertNotNull(productCache.get("3"));
+        assertEquals(1, productCache.stats().getEvictions());
+    }
+
+    @Test
+    void get_expiresAfterTtl() {
+        productCache.put("1", product("1"), productCache.loadStamp());
+
+        now.addAndGet(Duration.ofSeconds(61).toNanos());
+
+        assertNull(productCache.get("1"));
+        assertEquals(1, productCache.stats().getExpirations());
+        assertEquals(0, productCache.stats().getSize());
+    }
+
+    @Test
+    void put_ignoresReadStartedBeforeInvalidate() {
+        long loadStamp = productCache.loadStamp();
+        productCache.invalidate("1");
+
+        productCache.put("1", product("1"), loadStamp);
+        assertNull(productCache.get("1"));
+
+        productCache.put("1", product("1"), productCache.loadStamp());
+        assertNotNull(productCache.get("1"));
+    }
+
+    @Test
+    void put_ignoresReadStartedBeforeInvalidateAll() {
+        productCache.put("1", product("1"), productCache.loadStamp());
+        long loadStamp = productCache.loadStamp();
+        productCache.invalidateAll();
+
+        assertNull(productCache.get("1"));
+        productCache.put("2", product("2"), loadStamp);
+        assertNull(productCache.get("2"));
+    }
+
+    // callers get copies, changing one changes neither the cache nor what the next caller gets
+    @Test
+    void get_returnsCopy() {
+        Product product = product("1");
+        product.setName("Air Max");
+        product.setImgLinks(new ArrayList<>(List.of("a.png")));
+        product.setAttributes(new ArrayList<>(List.of(new Product.Attribute("Size", "42"))));
+        productCache.put("1", product, productCache.loadStamp());
+        product.setName("changed after put");
+
+        Product first = productCache.get("1");
+        first.setName("changed by a caller");
+        first.getImgLinks().add("b.png");
+        first.getAttributes().get(0).setValue("43");
+
+        Product second = productCache.get("1");
+        assertNotSame(first, second);
+        assertEquals("Air Max", second.getName());
+        assertEquals(List.of("a.png"), second.getImgLinks());
+        assertEquals("42", second.getAttributes().get(0).getValue());
+    }
+
+    // tombstones take no slot of the cached products and are not evictions
+    @Test
+    void invalidate_tombstonesKeptApart() {
+        productCache.put("1", product("1"), productCache.loadStamp());
+        productCache.put("2", product("2"), productCache.loadStamp());
+        for (int i = 10; i < 20; i++) {
+            productCache.invalidate(String.valueOf(i));
+        }
+
+        assertNotNull(productCache.get("1"));
+        assertNotNull(productCache.get("2"));
+        assertEquals(0, productCache.stats().getEvictions());
+        assertEquals(2, productCache.stats().getSize());
+
+        productCache.invalidate("1");
+        assertNull(productCache.get("1"));
+        assertEquals(0, productCache.stats().getEvictions());
+        assertEquals(1, productCache.stats().getSize());
+    }
+
+    // a read older than a tombstone dropped to stay bounded is still refused
+    @Test
+    void put_ignoresReadOlderThanDroppedTombstone() {
+        long loadStamp = productCache.loadStamp();
+        productCache.invalidate("1");
+        productCache.invalidate("2");
+        productCache.invalidate("3");
+
+        productCache.put("1", product("1"), loadStamp);
+        assertNull(productCache.get("1"));
+    }
+
+}
@@ -0,0 +1,192 @@
+package org.example.productservice.services;
+
+import org.example.productservice.MongoTestSupport;
+import org.example.productservice.dto.ProductUpdateBody;
+import org.example.productservice.exception.customExceptions.BaseException;
+import org.example.productservice.models.Product;
+import org.example.productservice.repository.CategoryRepository;
+import org.example.productservice.repository.ProductRepository;
+import org.example.productservice.repository.ProductRepositoryCustomImpl;
+import org.example.productservice.repository.ReviewRepository;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+import org.springframework.data.repository.core.support.RepositoryComposition;
+import org.springframework.http.HttpStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+// admin edits, stock updates and checkouts racing on one product, against a store that checks versions like mongo does,
+// and against mongod itself when one is running
+class ProductConcurrencyTest {
+
+    private static final String PRODUCT_ID = "1";
+    private static final int INITIAL_QUANTITY = 100000;
+
+    private final ProductRepository productRepository = Mockito.mock(ProductRepository.class);
+
+    private final ProductService productService = new ProductService(productRepository, Mockito.mock(CategoryRepository.class), new ProductSearchIndex(),
+            new ProductCache(100, 60), Mockito.mock(ReviewRepository.class), Mockito.mock(CategoryRegistry.class), new ProductSuggestIndex(),
+            Mockito.mock(RatingMigration.class));
+
+    // the stored document, guarded by the test
+    private Product stored;
+
+    private Product copy(Product product) {
+        return new Product(product.getId(), product.getName(), product.getDescription(), product.getAttributes(), product.getPrice(), product.getCategory(),
+                product.getQuantity(), product.getImgLinks(), product.getGender(), product.getRating(), product.getRatingCount(), product.getRatingSum(),
+                product.getRatingHistogram(), product.getVersion());
+    }
+
+    @BeforeEach
+    void setUp() {
+        stored = new Product().setId(PRODUCT_ID).setName("Pegasus").setQuantity(INITIAL_QUANTITY).setVersion(1).setCategory(new Product.CategoryInfo());
+
+        Mockito.when(productRepository.findById(PRODUCT_ID)).thenAnswer(invocation -> {
+            synchronized (this) {
+                return Optional.of(copy(stored));
+            }
+        });
+
+        // a save only lands on the version it read and counts it up
+        Mockito.when(productRepository.save(Mockito.any(Product.class))).thenAnswer(invocation -> {
+            Product product = invocation.getArgument(0);
+            synchronized (this) {
+                if (product.getVersion() != stored.getVersion()) {
+                    throw new OptimisticLockingFailureException("Version " + product.getVersion() + " is not current");
+                }
+                product.setVersion(product.getVersion() + 1);
+                stored = copy(product);
+                return product;
+            }
+        });
+
+        // one guarded $inc of quantity and version, like the repository
+        Mockito.when(productRepository.decrementQuantity(Mockito.eq(PRODUCT_ID), Mockito.anyInt())).thenAnswer(invocation -> {
+            int amount = invocation.getArgument(1);
+            synchronized (this) {
+                if (stored.getQuantity() < amount) {
+                    return null;
+                }
+                stored.setQuantity(stored.getQuantity() - amount);
+                stored.setVersion(stored.getVersion() + 1);
+                return copy(stored);
+            }
+        });
+    }
+
+
+    // every checkout and every admin edit either lands or is reported as a conflict, none is silently overwritten
+    @Test
+    void concurrentWrites_noneLost() throws Exception {
+        Outcome outcome = race(productService, PRODUCT_ID, 8, 200);
+
+        // no admin save wrote back a quantity it had read before a checkout
+        assertEquals(INITIAL_QUANTITY - outcome.checkouts(), stored.getQuantity());
+        assertEquals(4 * 200, outcome.edits() + outcome.conflicts());
+        // every write that reported success counted the version up exactly once
+        assertEquals(1 + outcome.checkouts() + outcome.edits(), stored.getVersion());
+        assertTrue(outcome.edits() > 0);
+    }
+
+    // the same race against a real mongod, so it is mongo's version check and guarded $inc that are proven, not the stub's
+    @Test
+    void concurrentWrites_noneLost_mongo() throws Exception {
+        MongoTemplate mongoTemplate = MongoTestSupport.mongoTemplateOrNull();
+        Assumptions.assumeTrue(mongoTemplate != null, "mongod not available");
+
+        try {
+            mongoTemplate.dropCollection(Product.class);
+            ProductRepository mongoRepository = new MongoRepositoryFactory(mongoTemplate)
+                    .getRepository(ProductRepository.class, RepositoryComposition.RepositoryFragments.just(new ProductRepositoryCustomImpl(mongoTemplate)));
+            ProductService mongoProductService = new ProductService(mongoRepository, Mockito.mock(CategoryRepository.class), new ProductSearchIndex(),
+                    new ProductCache(100, 60), Mockito.mock(ReviewRepository.class), Mockito.mock(CategoryRegistry.class), new ProductSuggestIndex(),
+                    Mockito.mock(RatingMigration.class));
+
+            Product product = mongoTemplate.insert(new Product().setName("Pegasus").setQuantity(INITIAL_QUANTITY).setCategory(new Product.CategoryInfo()));
+            assertEquals(1, product.getVersion());
+
+            Outcome outcome = race(mongoProductService, product.getId(), 4, 50);
+
+            Product written = mongoTemplate.findById(product.getId(), Product.class);
+            assertEquals(INITIAL_QUANTITY - outcome.checkouts(), written.getQuantity());
+            assertEquals(2 * 50, outcome.edits() + outcome.conflicts());
+            assertEquals(1 + outcome.checkouts() + outcome.edits(), written.getVersion());
+            assertTrue(outcome.edits() > 0);
+        } finally {
+            mongoTemplate.dropCollection(Product.class);
+        }
+    }
+
+    private record Outcome(int checkouts, int edits, int conflicts) {
+    }
+
+    // half the threads check out one unit at a time, the other half edit the description without a pinned version
+    private Outcome race(ProductService service, String productId, int threads, int writesPerThread) throws Exception {
+        AtomicInteger checkouts = new AtomicInteger();
+        AtomicInteger edits = new AtomicInteger();
+        AtomicInteger conflicts = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            boolean admin = thread % 2 == 0;
+            int threadNumber = thread;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < writesPerThread; i++) {
+                    if (!admin) {
+                        service.decrementProductQuantity(productId, 1);
+                        checkouts.incrementAndGet();
+                        continue;
+                    }
+
+                    ProductUpdateBody updateBody = new ProductUpdateBody();
+                    updateBody.setDescription("edit " + threadNumber + "-" + i);
+                    try {
+                        service.updateProduct(productId, updateBody, null);
+                        edits.incrementAndGet();
+                    } catch (BaseException exception) {
+                        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+                        conflicts.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        return new Outcome(checkouts.get(), edits.get(), conflicts.get());
+    }
+
+    // an edit pinned to the version the admin saw is refused once anything else was written
+    @Test
+    void staleEdit_conflict() {
+        long seen = stored.getVersion();
+        productService.decrementProductQuantity(PRODUCT_ID, 1);
+
+        ProductUpdateBody updateBody = new ProductUpdateBody();
+        updateBody.setQuantity("5");
+
+        BaseException exception = assertThrows(BaseException.class, () -> productService.updateProduct(PRODUCT_ID, updateBody, seen));
+
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+        assertEquals(INITIAL_QUANTITY - 1, stored.getQuantity());
+    }
+
+}
@@ -0,0 +1,191 @@
+package org.example.productservice.services;
+
+import jakarta.validation.Validation;
+import org.example.productservice.dto.ProductImportReport;
+import org.example.productservice.exception.customExceptions.BaseException;
+import org.example.productservice.models.Category;
+import org.example.productservice.models.Product;
+import org.example.productservice.repository.CategoryRepository;
+import org.example.productservice.repository.ProductRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ProductImporterTest {
+
+    private static final String SHOES = "65dc544c00c5d91fb6192dd4";
+    private static final String SHIRTS = "65dc544c00c5d91fb6192dd5";
+
+    private final ProductRepository productRepository = Mockito.mock(ProductRepository.class);
+    private final CategoryRepository categoryRepository = Mockito.mock(CategoryRepository.class);
+    private final CategoryRegistry categoryRegistry = new CategoryRegistry(categoryRepository);
+    private final ProductSearchIndex productSearchIndex = new ProductSearchIndex();
+    private final ProductSuggestIndex productSuggestIndex = new ProductSuggestIndex();
+
+    private final ProductImporter productImporter = new ProductImporter(productRepository, categoryRepository, categoryRegistry,
+            productSearchIndex, productSuggestIndex,
+            Validation.buildDefaultValidatorFactory().getValidator(), Jackson2ObjectMapperBuilder.json().build());
+
+    // every batch handed to the repository, copied since the importer reuses its list
+    private final List<List<Product>> inserted = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        Mockito.when(categoryRepository.findAll()).thenReturn(List.of(new Category(SHOES, "Shoes", new ArrayList<>(List.of("Size")), "img", 1)));
+        Mockito.when(categoryRepository.findById(SHOES)).thenReturn(Optional.of(new Category(SHOES, "Shoes", new ArrayList<>(List.of("Size")), "img", 1)));
+        Mockito.when(productRepository.insertUnordered(ArgumentMatchers.anyList())).thenAnswer(invocation -> {
+            inserted.add(new ArrayList<>(invocation.getArgument(0)));
+            return Map.of();
+        });
+    }
+
+    private InputStream body(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String ndjsonRow(String name) {
+        return "{\"name\":\"" + name + "\",\"price\":10,\"quantity\":5,\"gender\":\"Men\"}\n";
+    }
+
+
+    // valid rows are written with the same defaults as a single add, every bad row gets its own entry
+    @Test
+    void importNdjson_rowErrors() throws Exception {
+        String ndjson = "{\"name\":\"Air Max\",\"price\":120,\"quantity\":3,\"gender\":\"Men\",\"ratingCount\":50,"
+                + "\"attributes\":[{\"name\":\"Size\",\"value\":\"42\"},{\"name\":\"Unknown\",\"value\":\"x\"}]}\n"
+                + "\n"
+                + "{\"name\":\"\",\"price\":-1,\"quantity\":3,\"gender\":\"Men\"}\n"
+                + "not json\n"
+                + "{\"name\":\"Tee\",\"price\":20,\"quantity\":3,\"gender\":\"Men\",\"categoryId\":\"" + SHIRTS + "\"}\n"
+                + "[1, 2]\n";
+
+        ProductImportReport report = productImporter.importNdjson(body(ndjson), SHOES);
+
+        assertEquals(5, report.getRows());
+        assertEquals(1, report.getImported());
+        assertEquals(4, report.getFailed());
+        assertEquals(List.of(2L, 3L, 4L, 5L), report.getErrors().stream().map(ProductImportReport.RowError::getRow).toList());
+        assertEquals("Name cannot be empty; Price must be greater than 0", report.getErrors().get(0).getMessage());
+        assertTrue(report.getErrors().get(1).getMessage().startsWith("Invalid json"));
+        assertEquals("Category not found : " + SHIRTS, report.getErrors().get(2).getMessage());
+
+        Product product = inserted.get(0).get(0);
+        assertNotNull(product.getId());
+        assertEquals(SHOES, product.getCategory().getId());
+        assertEquals(List.of("Size"), product.getAttributes().stream().map(Product.Attribute::getName).toList());
+        assertEquals(0, product.getRatingCount());
+        assertEquals(1, product.getVersion());
+        assertEquals(List.of("Air Max"), productSuggestIndex.suggest("air", 10));
+    }
+
+    // rows are written in batches, and the category lookup is shared by the whole import
+    @Test
+    void importNdjson_batches() throws Exception {
+        int rows = ProductImporter.IMPORT_BATCH_SIZE * 2 + 1;
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            ndjson.append(ndjsonRow("Product " + i));
+        }
+
+        ProductImportReport report = productImporter.importNdjson(body(ndjson.toString()), SHOES);
+
+        assertEquals(rows, report.getImported());
+        assertEquals(List.of(ProductImporter.IMPORT_BATCH_SIZE, ProductImporter.IMPORT_BATCH_SIZE, 1), inserted.stream().map(List::size).toList());
+        Mockito.verify(categoryRepository, Mockito.times(1)).findById(SHOES);
+    }
+
+    // the category is read from mongo, not from the registry snapshot, which may not have it yet or hold an old copy
+    @Test
+    void importNdjson_categoryFromRepository() throws Exception {
+        Mockito.when(categoryRepository.findById(SHIRTS)).thenReturn(Optional.of(new Category(SHIRTS, "Shirts", new ArrayList<>(), "img", 1)));
+        Mockito.when(categoryRepository.findById(SHOES)).thenReturn(Optional.of(new Category(SHOES, "Sneakers", new ArrayList<>(), "img", 2)));
+
+        ProductImportReport report = productImporter.importNdjson(body(ndjsonRow("Tee") + ndjsonRow("Polo")), SHIRTS);
+        assertEquals(2, report.getImported());
+        Mockito.verify(categoryRepository, Mockito.times(1)).findById(SHIRTS);
+
+        productImporter.importNdjson(body("{\"name\":\"Air Max\",\"price\":10,\"quantity\":5,\"gender\":\"Men\","
+                + "\"attributes\":[{\"name\":\"Size\",\"value\":\"42\"}]}\n"), SHOES);
+        Product product = inserted.get(1).get(0);
+        assertEquals("Sneakers", product.getCategory().getName());
+        assertTrue(product.getAttributes().isEmpty());
+    }
+
+    // rows mongo rejected are reported, the rest of the batch is still written and indexed
+    @Test
+    void importNdjson_insertFailures() throws Exception {
+        Mockito.when(productRepository.insertUnordered(ArgumentMatchers.anyList())).thenReturn(Map.of(1, "E11000 duplicate key"));
+
+        ProductImportReport report = productImporter.importNdjson(body(ndjsonRow("Tee") + "bad\n" + ndjsonRow("Polo") + ndjsonRow("Tank")), SHOES);
+
+        assertEquals(2, report.getImported());
+        assertEquals(List.of(2L, 3L), report.getErrors().stream().map(ProductImportReport.RowError::getRow).toList());
+        assertEquals("E11000 duplicate key", report.getErrors().get(1).getMessage());
+        assertEquals(List.of("Tank"), productSuggestIndex.suggest("tank", 10));
+        assertTrue(productSuggestIndex.suggest("polo", 10).isEmpty());
+    }
+
+    @Test
+    void importNdjson_errorsCapped() throws Exception {
+        int rows = ProductImporter.MAX_REPORTED_ERRORS + 5;
+        ProductImportReport report = productImporter.importNdjson(body("bad\n".repeat(rows)), SHOES);
+
+        assertEquals(rows, report.getFailed());
+        assertEquals(ProductImporter.MAX_REPORTED_ERRORS, report.getErrors().size());
+        Mockito.verify(productRepository, Mockito.never()).insertUnordered(ArgumentMatchers.anyList());
+    }
+
+    // quoted values may hold the separator, quotes and line breaks
+    @Test
+    void importCsv_rows() throws Exception {
+        String csv = "name,description,price,quantity,gender,imgLinks,attr.Size\r\n"
+                + "\"Air Max, 90\",\"The \"\"classic\"\"\nrunner\",120,3,Men,a.png|b.png,42\r\n"
+                + "Tee,,abc,3,Men,,\r\n"
+                + "Polo,,20,3\r\n";
+
+        ProductImportReport report = productImporter.importCsv(body(csv), SHOES);
+
+        assertEquals(3, report.getRows());
+        assertEquals(1, report.getImported());
+        assertEquals("Price and quantity should be numbers", report.getErrors().get(0).getMessage());
+        assertEquals("Row has 4 columns, the header 7", report.getErrors().get(1).getMessage());
+
+        Product product = inserted.get(0).get(0);
+        assertEquals("Air Max, 90", product.getName());
+        assertEquals("The \"classic\"\nrunner", product.getDescription());
+        assertEquals(List.of("a.png", "b.png"), product.getImgLinks());
+        assertEquals("42", product.getAttributes().get(0).getValue());
+    }
+
+    @Test
+    void importCsv_unknownColumn() {
+        BaseException exception = assertThrows(BaseException.class, () -> productImporter.importCsv(body("name,colour\nTee,red\n"), SHOES));
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        assertEquals("Unknown column : colour", exception.getMessage());
+    }
+
+    @Test
+    void importCsv_categoryRequired() throws Exception {
+        ProductImportReport report = productImporter.importCsv(body("name,price,quantity,gender,categoryId\nTee,20,3,Men,\nPolo,20,3,Men," + SHOES + "\n"), null);
+
+        assertEquals(1, report.getImported());
+        assertEquals("Category is required", report.getErrors().get(0).getMessage());
+        assertEquals(SHOES, inserted.get(0).get(0).getCategory().getId());
+    }
+
+}
@@ -0,0 +1,136 @@
+package org.example.productservice.services;
+
+import org.example.productservice.models.Product;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ProductSearchIndexTest {
+
+    private final ProductSearchIndex productSearchIndex = new ProductSearchIndex();
+
+    private Product product(String id, String name, String description) {
+        Product product = new Product();
+        product.setId(id);
+        product.setName(name);
+        product.setDescription(description);
+        return product;
+    }
+
+
+    @Test
+    void search_ranksByTermFrequency() {
+        productSearchIndex.index(product("1", "Luka 2 PF", "Basketball shoes"));
+        productSearchIndex.index(product("2", "Air Zoom", "Running shoes built for running, light running"));
+        productSearchIndex.index(product("3", "Pegasus", "Running shoes"));
+
+        assertEquals(List.of("2", "3"), productSearchIndex.search("running", 10));
+        assertEquals(List.of("1"), productSearchIndex.search("BASKETBALL shoes", 10));
+        assertEquals(3, productSearchIndex.search("shoes", 10).size());
+    }
+
+    @Test
+    void search_requiresEveryTerm() {
+        productSearchIndex.index(product("1", "Running shoes", "Blue"));
+        productSearchIndex.index(product("2", "Running shorts", "Red"));
+
+        assertEquals(List.of("1"), productSearchIndex.search("running shoes", 10));
+        assertTrue(productSearchIndex.search("running boots", 10).isEmpty());
+        assertTrue(productSearchIndex.search("  ", 10).isEmpty());
+    }
+
+    @Test
+    void search_respectsLimit() {
+        for (int i = 0; i < 50; i++) {
+            productSearchIndex.index(product("" + i, "Shoe " + i, "shoe"));
+        }
+
+        assertEquals(5, productSearchIndex.search("shoe", 5).size());
+    }
+
+    // orders what the keyword filter matched, products without the terms as whole tokens keep their place after the rest
+    @Test
+    void rank_ordersGivenProducts() {
+        productSearchIndex.index(product("1", "Luka 2 PF", "Basketball shoes"));
+        productSearchIndex.index(product("2", "Air Zoom", "Running shoes built for running, light running"));
+        productSearchIndex.index(product("3", "Pegasus", "Running shoes"));
+        productSearchIndex.index(product("4", "Trail runner", "Shoes"));
+
+        assertEquals(List.of("2", "3", "4", "5"), productSearchIndex.rank("running", List.of("4", "3", "5", "2")));
+        assertEquals(List.of("4", "1"), productSearchIndex.rank("run", List.of("4", "1")));
+        assertEquals(List.of("3", "2"), productSearchIndex.rank("  ", List.of("3", "2")));
+    }
+
+    @Test
+    void index_replacesAndRemoves() {
+        productSearchIndex.index(product("1", "Running shoes", ""));
+        productSearchIndex.index(product("1", "Walking shoes", ""));
+
+        assertTrue(productSearchIndex.search("running", 10).isEmpty());
+        assertEquals(List.of("1"), productSearchIndex.search("walking", 10));
+
+        productSearchIndex.remove("1");
+
+        assertTrue(productSearchIndex.search("walking", 10).isEmpty());
+        assertEquals(0, productSearchIndex.size());
+    }
+
+    // a sync takes over what mongo has: changed products are re-indexed and deleted ones dropped
+    @Test
+    void sync_followsMongo() {
+        productSearchIndex.index(product("1", "Running shoes", ""));
+        productSearchIndex.index(product("2", "Walking shoes", ""));
+
+        productSearchIndex.beginSync();
+        productSearchIndex.sync(product("1", "Trail shoes", ""));
+        productSearchIndex.sync(product("3", "Hiking boots", ""));
+        productSearchIndex.endSync(Set.of("1", "3"));
+
+        assertTrue(productSearchIndex.search("running", 10).isEmpty());
+        assertEquals(List.of("1"), productSearchIndex.search("trail", 10));
+        assertEquals(List.of("3"), productSearchIndex.search("boots", 10));
+        assertTrue(productSearchIndex.search("walking", 10).isEmpty());
+        assertEquals(2, productSearchIndex.size());
+    }
+
+    // what this instance writes while a sync runs is newer than what the sync read, the sync must not undo it
+    @Test
+    void sync_keepsWritesMadeMeanwhile() {
+        productSearchIndex.index(product("1", "Running shoes", ""));
+
+        productSearchIndex.beginSync();
+        productSearchIndex.index(product("1", "Walking shoes", ""));
+        productSearchIndex.index(product("2", "Trail shoes", ""));
+        productSearchIndex.sync(product("1", "Running shoes", ""));
+        productSearchIndex.endSync(Set.of("1"));
+
+        assertEquals(List.of("1"), productSearchIndex.search("walking", 10));
+        assertEquals(List.of("2"), productSearchIndex.search("trail", 10));
+
+        // a failed sync removes nothing
+        productSearchIndex.beginSync();
+        productSearchIndex.endSync(null);
+        assertEquals(2, productSearchIndex.size());
+    }
+
+    // enough re-indexing to trigger compaction several times, results stay correct
+    @Test
+    void compaction_keepsLiveDocuments() {
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 2000; i++) {
+                productSearchIndex.index(product("" + i, "Shoe " + i + " round" + round, "shoe"));
+            }
+        }
+
+        assertEquals(2000, productSearchIndex.size());
+        assertEquals(2000, productSearchIndex.search("shoe", 5000).size());
+        assertEquals(List.of("1234"), productSearchIndex.search("1234", 10));
+        assertTrue(productSearchIndex.search("round0", 10).isEmpty());
+        assertEquals(2000, productSearchIndex.search("round4", 5000).size());
+    }
+
+}
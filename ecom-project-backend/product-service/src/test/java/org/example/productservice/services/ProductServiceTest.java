@@ -3,23 +3,42 @@ package org.example.productservice.services;
 import org.example.productservice.dto.AddReviewBody;
 import org.example.productservice.dto.CategoryUpdateBody;
 import org.example.productservice.dto.ProductDetailsForOrder;
+import org.example.productservice.dto.ProductCursor;
+import org.example.productservice.dto.ProductFacets;
+import org.example.productservice.dto.ProductFields;
+import org.example.productservice.dto.ProductFilter;
+import org.example.productservice.dto.ProductPage;
 import org.example.productservice.dto.ProductUpdateBody;
 import org.example.productservice.exception.customExceptions.BaseException;
 import org.example.productservice.models.Category;
 import org.example.productservice.models.Product;
+import org.example.productservice.models.Review;
 import org.example.productservice.repository.CategoryRepository;
 import org.example.productservice.repository.ProductRepository;
+import org.example.productservice.repository.ReviewRepository;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.http.HttpStatus;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -33,6 +52,24 @@ class ProductServiceTest {
     @Mock
     private CategoryRepository categoryRepository;
 
+    @Spy
+    private ProductSearchIndex productSearchIndex = new ProductSearchIndex();
+
+    @Spy
+    private ProductSuggestIndex productSuggestIndex = new ProductSuggestIndex();
+
+    @Mock
+    private ReviewRepository reviewRepository;
+
+    @Mock
+    private CategoryRegistry categoryRegistry;
+
+    @Spy
+    private ProductCache productCache = new ProductCache(100, 60);
+
+    @Mock
+    private RatingMigration ratingMigration;
+
 
     @InjectMocks
     private ProductService productService;
@@ -68,7 +105,7 @@ class ProductServiceTest {
         Product savedProduct = productService.addProduct(product, categoryId);
 
         assertNotNull(savedProduct);
-        assertEquals(mockCategory, savedProduct.getCategory());
+        assertEquals(Product.CategoryInfo.from(mockCategory), savedProduct.getCategory());
 
         Mockito.verify(productRepository, Mockito.times(1)).save(product);
     }
@@ -82,16 +119,39 @@ class ProductServiceTest {
         updatedProduct.setName("Updated Product");
 
         Product existingProduct = new Product();
+        existingProduct.setVersion(1);
         Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(existingProduct));
         Mockito.when(productRepository.save(existingProduct)).thenReturn(existingProduct);
 
-        Product resultProduct = productService.updateProduct(productId, updatedProduct);
+        Product resultProduct = productService.updateProduct(productId, updatedProduct, null);
 
         assertNotNull(resultProduct);
         assertEquals(updatedProduct.getName(), resultProduct.getName());
     }
 
 
+    // the attributes are filtered by the category as stored, the registry snapshot may not know an attribute added elsewhere
+    @Test
+    void updateProduct_attributesOfStoredCategory() {
+        String productId = "123";
+        ProductUpdateBody updatedProduct = new ProductUpdateBody();
+        updatedProduct.setAttributes(List.of(new Product.Attribute("Size", "42"), new Product.Attribute("Color", "red")));
+
+        Product existingProduct = new Product();
+        existingProduct.setVersion(1);
+        existingProduct.setCategory(new Product.CategoryInfo("c", "Shoes", List.of("Size"), "img"));
+        Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(existingProduct));
+        Mockito.when(productRepository.save(existingProduct)).thenReturn(existingProduct);
+        Category stored = new Category("c", "Shoes", new ArrayList<>(List.of("Size", "Color")), "img", 2);
+        Mockito.when(categoryRepository.findById("c")).thenReturn(Optional.of(stored));
+
+        Product resultProduct = productService.updateProduct(productId, updatedProduct, null);
+
+        assertEquals(updatedProduct.getAttributes(), resultProduct.getAttributes());
+        Mockito.verify(categoryRegistry).put(stored);
+        Mockito.verify(categoryRegistry, Mockito.never()).allowedAttributes(Mockito.any());
+    }
+
     @Test
     void updateProduct_notFound() {
         String productId = "123";
@@ -102,7 +162,7 @@ class ProductServiceTest {
         Mockito.when(productRepository.findById(productId)).thenReturn(Optional.empty());
         Mockito.when(productRepository.save(existingProduct)).thenReturn(existingProduct);
 
-        BaseException expectedException = assertThrows(BaseException.class, () -> productService.updateProduct(productId, updatedProduct));
+        BaseException expectedException = assertThrows(BaseException.class, () -> productService.updateProduct(productId, updatedProduct, null));
 
         assertEquals("Product not found", expectedException.getMessage());
         assertEquals(HttpStatus.NOT_FOUND, expectedException.getStatus());
@@ -120,6 +180,7 @@ class ProductServiceTest {
         assertDoesNotThrow(() -> productService.deleteProduct(productId));
 
         Mockito.verify(productRepository, Mockito.times(1)).deleteById(productId);
+        Mockito.verify(productSearchIndex, Mockito.times(1)).remove(productId);
     }
 
     // Delete product - not found
@@ -149,6 +210,7 @@ class ProductServiceTest {
 
         assertNotNull(resultCategory);
         assertEquals(savedCategory, resultCategory);
+        Mockito.verify(categoryRegistry, Mockito.times(1)).put(savedCategory);
     }
 
 
@@ -160,18 +222,21 @@ class ProductServiceTest {
         categoryBody.setId(categoryId);
 
         Product product = new Product();
-        product.setCategory(categoryBody);
+        product.setCategory(Product.CategoryInfo.from(categoryBody));
 
 
         List<Product> products = new ArrayList<>();
         products.add(product);
 
-        Mockito.when(productRepository.findAll()).thenReturn(products);
+        PageRequest pageRequest = PageRequest.of(0, 20, Sort.by(Sort.Direction.DESC, "price", "id"));
+        Mockito.when(productRepository.findByCategoryId(categoryId, pageRequest, null)).thenReturn(new PageImpl<>(products, pageRequest, 41));
 
-        List<Product> resultProducts = productService.getProductsByCategory(categoryId);
+        Page<Product> resultProducts = productService.getProductsByCategory(categoryId, 0, 20, "price,desc", null);
 
         assertNotNull(resultProducts);
         assertTrue(!resultProducts.isEmpty());
+        assertEquals(41, resultProducts.getTotalElements());
+        Mockito.verify(productRepository, Mockito.never()).findAll();
     }
 
 
@@ -183,11 +248,9 @@ class ProductServiceTest {
 
 
 
-        List<Product> products = new ArrayList<>();
-
-        Mockito.when(productRepository.findAll()).thenReturn(products);
+        Mockito.when(productRepository.findByCategoryId(Mockito.eq(categoryId), Mockito.any(), Mockito.any())).thenReturn(Page.empty());
 
-        BaseException expectedException = assertThrows(BaseException.class, () -> productService.getProductsByCategory(categoryId));
+        BaseException expectedException = assertThrows(BaseException.class, () -> productService.getProductsByCategory(categoryId, 0, 20, "id", null));
 
 
         assertEquals("Category not found", expectedException.getMessage());
@@ -195,6 +258,19 @@ class ProductServiceTest {
     }
 
 
+    @Test
+    void getProductsByCategory_invalidPageRequest() {
+        String categoryId = "65dc544c00c5d91fb6192dd4";
+
+        BaseException pageException = assertThrows(BaseException.class, () -> productService.getProductsByCategory(categoryId, 0, ProductService.MAX_PAGE_SIZE + 1, "id", null));
+        BaseException sortException = assertThrows(BaseException.class, () -> productService.getProductsByCategory(categoryId, 0, 20, "description", null));
+
+        assertEquals(HttpStatus.BAD_REQUEST, pageException.getStatus());
+        assertEquals(HttpStatus.BAD_REQUEST, sortException.getStatus());
+        Mockito.verify(productRepository, Mockito.never()).findByCategoryId(Mockito.any(), Mockito.any(), Mockito.any());
+    }
+
+
     // Get filtered products - success
     @Test
     void getFilteredProducts_success() {
@@ -203,21 +279,136 @@ class ProductServiceTest {
         String keyword = "shoes";
         String categoryId = "65dc544c00c5d91fb6192dd4";
 
-        Category category = new Category();
-        category.setId(categoryId);
-
-        Mockito.when(categoryRepository.findById(categoryId)).thenReturn(Optional.of(category));
+        Mockito.when(categoryRegistry.contains(categoryId)).thenReturn(true);
 
         List<Product> products = new ArrayList<>();
 
-        Mockito.when(productRepository.findFilteredProducts(minPrice, maxPrice, keyword)).thenReturn(products);
+        Mockito.when(productRepository.findFilteredProducts(new ProductFilter(minPrice, maxPrice, keyword, categoryId, new ArrayList<>()))).thenReturn(products);
 
-        List<Product> resultProducts = productService.getFilteredProducts(minPrice, maxPrice, keyword, categoryId,new ArrayList<>());
+        List<Product> resultProducts = productService.getFilteredProducts(minPrice, maxPrice, keyword, categoryId,new ArrayList<>(), Map.of(), null);
 
         assertNotNull(resultProducts);
     }
 
 
+    // Get filtered products - category and gender go to the repository instead of being filtered in memory
+    @Test
+    void getFilteredProducts_filtersPushedToRepository() {
+        String categoryId = "65dc544c00c5d91fb6192dd4";
+        ArrayList<String> gender = new ArrayList<>(List.of("MEN"));
+
+        Mockito.when(categoryRegistry.contains(categoryId)).thenReturn(true);
+
+        ProductFilter expectedFilter = new ProductFilter(10.0, 100.0, "", categoryId, gender);
+        expectedFilter.setLimit(ProductService.DEFAULT_PAGE_SIZE);
+        List<Product> products = List.of(new Product());
+        Mockito.when(productRepository.findFilteredProducts(expectedFilter)).thenReturn(products);
+
+        List<Product> resultProducts = productService.getFilteredProducts(10.0, 100.0, "", categoryId, gender, Map.of(), null);
+
+        assertEquals(products, resultProducts);
+        Mockito.verify(productRepository, Mockito.never()).findAll();
+    }
+
+
+    // the asked for fields travel with the filter so the repository can project them
+    @Test
+    void getFilteredProducts_fieldsPushedToRepository() {
+        ProductFields fields = ProductFields.parse("name,price", null);
+
+        ProductFilter expectedFilter = new ProductFilter(0.0, 100.0, "", "", new ArrayList<>());
+        expectedFilter.setFields(fields);
+        expectedFilter.setLimit(ProductService.DEFAULT_PAGE_SIZE);
+        List<Product> products = List.of(new Product());
+        Mockito.when(productRepository.findFilteredProducts(expectedFilter)).thenReturn(products);
+
+        assertEquals(products, productService.getFilteredProducts(0.0, 100.0, "", "", new ArrayList<>(), Map.of(), fields));
+    }
+
+    // attribute names are taken in the spelling of the categories, values as given
+    @Test
+    void getFilteredProducts_attributeFilters() {
+        Mockito.when(categoryRegistry.attributeName("color")).thenReturn(Optional.of("Color"));
+        Mockito.when(categoryRegistry.attributeName("COLOUR")).thenReturn(Optional.of("Color"));
+
+        ProductFilter expectedFilter = new ProductFilter(0.0, 100.0, "", "", new ArrayList<>());
+        expectedFilter.setAttributes(Map.of("Color", List.of("red", "blue")));
+        expectedFilter.setLimit(ProductService.DEFAULT_PAGE_SIZE);
+        List<Product> products = List.of(new Product());
+        Mockito.when(productRepository.findFilteredProducts(expectedFilter)).thenReturn(products);
+
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("color", List.of("red", " "));
+        attributes.put("COLOUR", List.of("blue", "red"));
+
+        assertEquals(products, productService.getFilteredProducts(0.0, 100.0, "", "", new ArrayList<>(), attributes, null));
+    }
+
+    // a query mongo stopped at its time budget is a clean 503, not a 500
+    @Test
+    void getFilteredProducts_timeout() {
+        Mockito.when(productRepository.findFilteredProducts(Mockito.any())).thenThrow(new QueryTimeoutException("Query exceeded 2000 ms"));
+
+        BaseException exception = assertThrows(BaseException.class,
+                () -> productService.getFilteredProducts(0.0, 100.0, "shoe", "", new ArrayList<>(), Map.of(), null));
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatus());
+    }
+
+    @Test
+    void getFilteredProducts_unknownAttribute() {
+        BaseException exception = assertThrows(BaseException.class,
+                () -> productService.getFilteredProducts(0.0, 100.0, "", "", new ArrayList<>(), Map.of("weight", List.of("1kg")), null));
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        Mockito.verify(productRepository, Mockito.never()).findFilteredProducts(Mockito.any());
+    }
+
+    // suggestions come from memory and follow product writes
+    @Test
+    void getSuggestions_followsWrites() {
+        Product product = new Product();
+        product.setId("1");
+        product.setName("Air Max");
+        product.setAttributes(new ArrayList<>());
+        Mockito.when(categoryRepository.findById("c")).thenReturn(Optional.of(new Category("c", "Shoes", new ArrayList<>(), "img", 1)));
+        Mockito.when(productRepository.save(product)).thenReturn(product);
+
+        productService.addProduct(product, "c");
+        assertEquals(List.of("Air Max"), productService.getSuggestions("ai", 5));
+
+        Mockito.when(productRepository.findById("1")).thenReturn(Optional.of(product));
+        productService.deleteProduct("1");
+        assertTrue(productService.getSuggestions("ai", 5).isEmpty());
+
+        BaseException exception = assertThrows(BaseException.class, () -> productService.getSuggestions("ai", 0));
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+    }
+
+    // facets of a keyword are counted by mongo under the same keyword filter as the listing, not from search index hits
+    @Test
+    void getProductFacets_keywordInMongo() {
+        productSearchIndex.markReady();
+        Mockito.when(productRepository.findFacets(Mockito.any())).thenReturn(new ProductFacets());
+
+        productService.getProductFacets(0.0, 100.0, "run", "", new ArrayList<>(), Map.of());
+
+        ArgumentCaptor<ProductFilter> filter = ArgumentCaptor.forClass(ProductFilter.class);
+        Mockito.verify(productRepository).findFacets(filter.capture());
+        assertEquals("run", filter.getValue().getKeyword());
+    }
+
+    @Test
+    void getProductFacets_success() {
+        ArrayList<String> gender = new ArrayList<>(List.of("MEN"));
+        ProductFacets facets = new ProductFacets();
+        facets.setTotal(2);
+        Mockito.when(productRepository.findFacets(new ProductFilter(10.0, 100.0, "", "", gender))).thenReturn(facets);
+
+        assertSame(facets, productService.getProductFacets(10.0, 100.0, "", "", gender, Map.of()));
+    }
+
+
     @Test
     void getFilteredProducts_categoryNotFound() {
         Double minPrice = 10.0;
@@ -227,13 +418,13 @@ class ProductServiceTest {
 
 
 
-        Mockito.when(categoryRepository.findById(categoryId)).thenReturn(Optional.empty());
+        Mockito.when(categoryRegistry.contains(categoryId)).thenReturn(false);
 
         List<Product> products = new ArrayList<>();
 
-        Mockito.when(productRepository.findFilteredProducts(minPrice, maxPrice, keyword)).thenReturn(products);
+        Mockito.when(productRepository.findFilteredProducts(Mockito.any())).thenReturn(products);
 
-        BaseException expectedException = assertThrows(BaseException.class, () -> productService.getFilteredProducts(minPrice, maxPrice, keyword, categoryId,new ArrayList<>()));
+        BaseException expectedException = assertThrows(BaseException.class, () -> productService.getFilteredProducts(minPrice, maxPrice, keyword, categoryId,new ArrayList<>(), Map.of(), null));
 
 
         assertEquals("Category not found", expectedException.getMessage());
@@ -241,6 +432,133 @@ class ProductServiceTest {
     }
 
 
+    // Get filtered products - mongo matches the keyword, the search index orders what it matched
+    @Test
+    void getFilteredProducts_keywordRankedBySearchIndex() {
+        Product runningShoe = new Product();
+        runningShoe.setId("65dc544c00c5d91fb6192dd1");
+        runningShoe.setName("Running shoes");
+        runningShoe.setDescription("Light running shoes for running");
+
+        Product trailShoe = new Product();
+        trailShoe.setId("65dc544c00c5d91fb6192dd2");
+        trailShoe.setName("Trail shoes");
+        trailShoe.setDescription("Grip for running off road");
+
+        productSearchIndex.index(runningShoe);
+        productSearchIndex.index(trailShoe);
+        productSearchIndex.markReady();
+
+        Mockito.when(productRepository.findFilteredProducts(Mockito.any())).thenReturn(List.of(trailShoe, runningShoe));
+
+        List<Product> resultProducts = productService.getFilteredProducts(0.0, Double.MAX_VALUE, "running", "", new ArrayList<>(List.of("Women")), Map.of(), null);
+
+        assertEquals(List.of(runningShoe, trailShoe), resultProducts);
+
+        ArgumentCaptor<ProductFilter> filter = ArgumentCaptor.forClass(ProductFilter.class);
+        Mockito.verify(productRepository).findFilteredProducts(filter.capture());
+        assertEquals("running", filter.getValue().getKeyword());
+        assertEquals(List.of("Women"), filter.getValue().getGender());
+        assertEquals(ProductService.MAX_SEARCH_HITS, filter.getValue().getLimit());
+    }
+
+    // a prefix is no token of the search index, whatever mongo matched comes back in mongo's order
+    @Test
+    void getFilteredProducts_keywordPrefixFromMongo() {
+        Product runner = new Product();
+        runner.setId("65dc544c00c5d91fb6192dd1");
+        runner.setName("Trail runner");
+        Product running = new Product();
+        running.setId("65dc544c00c5d91fb6192dd2");
+        running.setName("Running shoes");
+
+        productSearchIndex.index(runner);
+        productSearchIndex.index(running);
+        productSearchIndex.markReady();
+        Mockito.when(productRepository.findFilteredProducts(Mockito.any())).thenReturn(List.of(runner, running));
+
+        assertEquals(List.of(runner, running), productService.getFilteredProducts(0.0, Double.MAX_VALUE, "run", "", new ArrayList<>(), Map.of(), null));
+    }
+
+
+    // Get filtered products page - one extra product means there is a next page
+    @Test
+    void getFilteredProductsPage_nextCursor() {
+        Product first = new Product();
+        first.setId("65dc544c00c5d91fb6192dd1");
+        first.setPrice(20.0);
+        Product second = new Product();
+        second.setId("65dc544c00c5d91fb6192dd2");
+        second.setPrice(10.0);
+
+        Mockito.when(productRepository.findFilteredProductsAfter(Mockito.any(), Mockito.eq("price"), Mockito.eq(Sort.Direction.DESC), Mockito.isNull(), Mockito.eq(2)))
+                .thenReturn(new ArrayList<>(List.of(first, second)));
+
+        ProductPage page = productService.getFilteredProductsPage(0.0, Double.MAX_VALUE, "", "", new ArrayList<>(), Map.of(), null, "price,desc", 1, null);
+
+        assertEquals(List.of(first), page.getProducts());
+        ProductCursor next = ProductCursor.decode(page.getNext());
+        assertEquals("price", next.getSort());
+        assertEquals("DESC", next.getDirection());
+        assertEquals(20.0, next.getValue());
+        assertEquals(first.getId(), next.getId());
+
+        Mockito.when(productRepository.findFilteredProductsAfter(Mockito.any(), Mockito.eq("price"), Mockito.eq(Sort.Direction.DESC), Mockito.eq(next), Mockito.eq(2)))
+                .thenReturn(new ArrayList<>(List.of(second)));
+
+        ProductPage lastPage = productService.getFilteredProductsPage(0.0, Double.MAX_VALUE, "", "", new ArrayList<>(), Map.of(), null, "price,desc", 1, page.getNext());
+
+        assertEquals(List.of(second), lastPage.getProducts());
+        assertNull(lastPage.getNext());
+    }
+
+    // until every product has a rating, mongo sorts the ones without before all others where no cursor reaches them
+    @Test
+    void getFilteredProductsPage_ratingSortWaitsForMigration() {
+        BaseException exception = assertThrows(BaseException.class, () -> productService.getFilteredProductsPage(0.0, Double.MAX_VALUE, "", "", new ArrayList<>(), Map.of(), null, "rating,desc", 10, null));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatus());
+
+        Mockito.when(ratingMigration.isDone()).thenReturn(true);
+        Mockito.when(productRepository.findFilteredProductsAfter(Mockito.any(), Mockito.eq("rating"), Mockito.eq(Sort.Direction.DESC), Mockito.isNull(), Mockito.eq(11)))
+                .thenReturn(new ArrayList<>());
+
+        assertTrue(productService.getFilteredProductsPage(0.0, Double.MAX_VALUE, "", "", new ArrayList<>(), Map.of(), null, "rating,desc", 10, null).getProducts().isEmpty());
+    }
+
+    @Test
+    void getFilteredProductsPage_invalidRequest() {
+        String priceCursor = new ProductCursor("price", "ASC", 10.0, "65dc544c00c5d91fb6192dd1").encode();
+
+        BaseException limitException = assertThrows(BaseException.class, () -> productService.getFilteredProductsPage(0.0, Double.MAX_VALUE, "", "", new ArrayList<>(), Map.of(), null, "price", 0, null));
+        BaseException sortException = assertThrows(BaseException.class, () -> productService.getFilteredProductsPage(0.0, Double.MAX_VALUE, "", "", new ArrayList<>(), Map.of(), null, "quantity", 10, null));
+        BaseException cursorException = assertThrows(BaseException.class, () -> productService.getFilteredProductsPage(0.0, Double.MAX_VALUE, "", "", new ArrayList<>(), Map.of(), null, "name", 10, priceCursor));
+        BaseException garbageException = assertThrows(BaseException.class, () -> productService.getFilteredProductsPage(0.0, Double.MAX_VALUE, "", "", new ArrayList<>(), Map.of(), null, "price", 10, "not a cursor"));
+
+        assertEquals(HttpStatus.BAD_REQUEST, limitException.getStatus());
+        assertEquals(HttpStatus.BAD_REQUEST, sortException.getStatus());
+        assertEquals(HttpStatus.BAD_REQUEST, cursorException.getStatus());
+        assertEquals(HttpStatus.BAD_REQUEST, garbageException.getStatus());
+    }
+
+
+    // Stream filtered products - every product reaches the consumer and the cursor is closed
+    @Test
+    void streamFilteredProducts_success() {
+        Product first = new Product();
+        Product second = new Product();
+        AtomicBoolean closed = new AtomicBoolean(false);
+
+        Mockito.when(productRepository.streamFilteredProducts(Mockito.any()))
+                .thenReturn(Stream.of(first, second).onClose(() -> closed.set(true)));
+
+        List<Product> streamed = new ArrayList<>();
+        productService.streamFilteredProducts(productService.getListingFilter(0.0, Double.MAX_VALUE, "", "", new ArrayList<>(), Map.of(), null), streamed::add);
+
+        assertEquals(List.of(first, second), streamed);
+        assertTrue(closed.get());
+    }
+
+
     // Get product by ID - success
     @Test
     void getProductById_success() {
@@ -256,6 +574,116 @@ class ProductServiceTest {
     }
 
 
+    // the etag comes from the version alone, read from mongo even when the product is cached
+    @Test
+    void getProductETag_versionOnly() {
+        Product cachedProduct = new Product();
+        cachedProduct.setVersion(7);
+        Mockito.when(productRepository.findById("cached")).thenReturn(Optional.of(cachedProduct));
+        productService.getProductById("cached");
+        // written on another instance since it was cached
+        Mockito.when(productRepository.findVersionById("cached")).thenReturn(8L);
+        Mockito.when(productRepository.findVersionById("other")).thenReturn(3L);
+        Mockito.when(productRepository.findVersionById("missing")).thenReturn(null);
+
+        assertEquals("\"8\"", productService.getProductETag("cached"));
+        assertEquals("\"3\"", productService.getProductETag("other"));
+        Mockito.verify(productRepository, Mockito.never()).findById("other");
+        // the stale copy is dropped, so the body that goes with the new etag is read again
+        Mockito.verify(productCache).invalidate("cached");
+
+        BaseException expectedException = assertThrows(BaseException.class, () -> productService.getProductETag("missing"));
+        assertEquals(HttpStatus.NOT_FOUND, expectedException.getStatus());
+    }
+
+    // an admin edit of a version that is no longer current is refused, nothing is saved
+    @Test
+    void updateProduct_staleVersion() {
+        Product existingProduct = new Product();
+        existingProduct.setVersion(2);
+        Mockito.when(productRepository.findById("1")).thenReturn(Optional.of(existingProduct));
+
+        BaseException expectedException = assertThrows(BaseException.class, () -> productService.updateProduct("1", new ProductUpdateBody(), 1L));
+
+        assertEquals(HttpStatus.CONFLICT, expectedException.getStatus());
+        Mockito.verify(productRepository, Mockito.never()).save(Mockito.any());
+    }
+
+    // a save that lost to a concurrent write is redone on a fresh read, a bounded number of times
+    @Test
+    void updateProduct_retriesConcurrentWrite() {
+        Mockito.when(productRepository.findById("1")).thenAnswer(invocation -> Optional.of(new Product().setId("1").setVersion(4)));
+        Mockito.when(productRepository.save(Mockito.any()))
+                .thenThrow(new OptimisticLockingFailureException("changed"))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        ProductUpdateBody updateBody = new ProductUpdateBody();
+        updateBody.setDescription("new");
+
+        assertEquals("new", productService.updateProduct("1", updateBody, null).getDescription());
+        Mockito.verify(productRepository, Mockito.times(2)).findById("1");
+
+        Mockito.when(productRepository.save(Mockito.any())).thenThrow(new OptimisticLockingFailureException("changed"));
+
+        BaseException expectedException = assertThrows(BaseException.class, () -> productService.updateProduct("1", updateBody, null));
+        assertEquals(HttpStatus.CONFLICT, expectedException.getStatus());
+        Mockito.verify(productRepository, Mockito.times(2 + ProductService.MAX_WRITE_ATTEMPTS)).findById("1");
+    }
+
+    // a product from before versioning gets version 1 before the checked save
+    @Test
+    void updateProductQuantity_legacyProduct() {
+        Product existingProduct = new Product().setId("1");
+        Mockito.when(productRepository.findById("1")).thenReturn(Optional.of(existingProduct));
+        Mockito.when(productRepository.initializeVersion("1")).thenReturn(true);
+
+        productService.updateProductQuantity("1", 5);
+
+        assertEquals(1, existingProduct.getVersion());
+        Mockito.verify(productRepository).save(existingProduct);
+    }
+
+    // Repeated reads are served from the cache
+    @Test
+    void getProductById_cached() {
+        String productId = "123";
+
+        Product existingProduct = new Product();
+        existingProduct.setCategory(new Product.CategoryInfo());
+        existingProduct.setPrice(100.0);
+        Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(existingProduct));
+
+        productService.getProductById(productId);
+        productService.getProductDetailsForOrderById(productId);
+        productService.getProductQuantityById(productId);
+
+        Mockito.verify(productRepository, Mockito.times(1)).findById(productId);
+        assertEquals(2, productService.getProductCacheStats().getHits());
+    }
+
+
+    // A write drops the cached product so the next read goes back to mongo
+    @Test
+    void updateProductQuantity_invalidatesCache() {
+        String productId = "123";
+
+        Product existingProduct = new Product();
+        existingProduct.setQuantity(10);
+        existingProduct.setVersion(1);
+        Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(existingProduct));
+
+        assertEquals(10, productService.getProductQuantityById(productId));
+
+        productService.updateProductQuantity(productId, 4);
+        Product updatedProduct = new Product();
+        updatedProduct.setQuantity(4);
+        Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(updatedProduct));
+
+        assertEquals(4, productService.getProductQuantityById(productId));
+        Mockito.verify(productCache).invalidate(productId);
+    }
+
+
     // Get product quantity by ID - success
     @Test
     void getProductQuantityById_success() {
@@ -263,6 +691,7 @@ class ProductServiceTest {
 
         Product existingProduct = new Product();
         existingProduct.setQuantity(10);
+        existingProduct.setVersion(1);
         Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(existingProduct));
 
         int resultQuantity = productService.getProductQuantityById(productId);
@@ -272,6 +701,36 @@ class ProductServiceTest {
 
 
 
+    // Details for several products come from one repository call, in the requested order
+    @Test
+    void getProductDetailsForOrderByIds_success() {
+        Product first = new Product().setId("1").setName("First").setPrice(10.0).setQuantity(3);
+        Product second = new Product().setId("2").setName("Second").setPrice(20.0).setQuantity(5);
+        second.setImgLinks(List.of("img-2"));
+        second.setCategory(new Product.CategoryInfo("c", "Shoes", null, null));
+        Mockito.when(productRepository.findForOrderByIds(List.of("2", "1", "2"))).thenReturn(List.of(first, second));
+
+        List<ProductDetailsForOrder> details = productService.getProductDetailsForOrderByIds(List.of("2", "1", "2"));
+
+        assertEquals(List.of("2", "1"), details.stream().map(ProductDetailsForOrder::getId).toList());
+        assertEquals("Shoes", details.get(0).getCategory());
+        assertEquals("img-2", details.get(0).getImg());
+        assertEquals("default-link", details.get(1).getImg());
+        Mockito.verify(productRepository, Mockito.never()).findById(Mockito.anyString());
+    }
+
+
+    @Test
+    void getProductDetailsForOrderByIds_notFound() {
+        Mockito.when(productRepository.findForOrderByIds(List.of("1", "2"))).thenReturn(List.of(new Product().setId("1")));
+
+        BaseException exception = assertThrows(BaseException.class, () -> productService.getProductDetailsForOrderByIds(List.of("1", "2")));
+
+        assertEquals(HttpStatus.NOT_FOUND, exception.getStatus());
+        assertTrue(exception.getMessage().contains("2"));
+    }
+
+
     // Update product quantity - success
     @Test
     void updateProductQuantity_success() {
@@ -279,6 +738,7 @@ class ProductServiceTest {
         int quantity = 20;
 
         Product existingProduct = new Product();
+        existingProduct.setVersion(1);
         Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(existingProduct));
         Mockito.when(productRepository.save(existingProduct)).thenReturn(existingProduct);
 
@@ -289,13 +749,47 @@ class ProductServiceTest {
 
 
 
+    // Decrement quantity - one guarded update, no read before it
+    @Test
+    void decrementProductQuantity_success() {
+        String productId = "123";
+
+        Mockito.when(productRepository.decrementQuantity(productId, 3)).thenReturn(new Product().setId(productId).setQuantity(7));
+
+        assertEquals(7, productService.decrementProductQuantity(productId, 3));
+        Mockito.verify(productRepository, Mockito.never()).findById(productId);
+        Mockito.verify(productCache).invalidate(productId);
+    }
+
+
+    @Test
+    void decrementProductQuantity_insufficientStock() {
+        String productId = "123";
+
+        Mockito.when(productRepository.decrementQuantity(productId, 3)).thenReturn(null);
+        Mockito.when(productRepository.existsById(productId)).thenReturn(true);
+
+        BaseException conflict = assertThrows(BaseException.class, () -> productService.decrementProductQuantity(productId, 3));
+        assertEquals(HttpStatus.CONFLICT, conflict.getStatus());
+
+        Mockito.when(productRepository.existsById(productId)).thenReturn(false);
+
+        BaseException notFound = assertThrows(BaseException.class, () -> productService.decrementProductQuantity(productId, 3));
+        assertEquals(HttpStatus.NOT_FOUND, notFound.getStatus());
+
+        BaseException badRequest = assertThrows(BaseException.class, () -> productService.decrementProductQuantity(productId, 0));
+        assertEquals(HttpStatus.BAD_REQUEST, badRequest.getStatus());
+    }
+
+
+
     // Get category by ID - success
     @Test
     void getCategoryById_success() {
         String categoryId = "65dc544c00c5d91fb6192dd4";
 
         Category existingCategory = new Category();
-        Mockito.when(categoryRepository.findById(categoryId)).thenReturn(Optional.of(existingCategory));
+        Mockito.when(categoryRegistry.find(categoryId)).thenReturn(Optional.of(existingCategory));
 
         Category resultCategory = productService.getCategoryById(categoryId);
 
@@ -313,16 +807,73 @@ class ProductServiceTest {
         updatedCategory.setName("Updated Category");
 
         Category existingCategory = new Category();
+        existingCategory.setId(categoryId);
         Mockito.when(categoryRepository.findById(categoryId)).thenReturn(Optional.of(existingCategory));
+        Mockito.when(categoryRepository.initializeVersion(categoryId)).thenReturn(1L);
         Mockito.when(categoryRepository.save(existingCategory)).thenReturn(existingCategory);
 
         Category resultCategory = productService.updateCategoryById(categoryId, updatedCategory);
 
         assertNotNull(resultCategory);
         assertEquals(updatedCategory.getName(), resultCategory.getName());
+        // written before categories were versioned, it gets its first version before the versioned save
+        assertEquals(1, resultCategory.getVersion());
+        Mockito.verify(productRepository, Mockito.times(1)).updateCategory(existingCategory);
+        Mockito.verify(categoryRegistry, Mockito.atLeastOnce()).put(existingCategory);
+    }
+
+
+
+    // the edit starts from the category in mongo, not from the registry snapshot that may predate another instance's write
+    @Test
+    void updateCategoryById_readsFromMongo() {
+        String categoryId = "65dc544c00c5d91fb6192dd4";
+        CategoryUpdateBody updatedCategory = new CategoryUpdateBody();
+        updatedCategory.setName("Sneakers");
+
+        Category stored = new Category(categoryId, "Shoes", new ArrayList<>(List.of("Size", "Color")), "new-img", 3);
+        Mockito.when(categoryRegistry.find(categoryId)).thenReturn(Optional.of(new Category(categoryId, "Shoes", new ArrayList<>(List.of("Size")), "old-img", 2)));
+        Mockito.when(categoryRepository.findById(categoryId)).thenReturn(Optional.of(stored));
+        Mockito.when(categoryRepository.save(Mockito.any())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        Category result = productService.updateCategoryById(categoryId, updatedCategory);
+
+        assertEquals("Sneakers", result.getName());
+        assertEquals("new-img", result.getImgLink());
+        assertEquals(List.of("Size", "Color"), result.getAttributes());
+    }
+
+    // a save that lost to another write of the category is refused, the products keep the category they had
+    @Test
+    void updateCategoryById_conflict() {
+        String categoryId = "65dc544c00c5d91fb6192dd4";
+        CategoryUpdateBody updatedCategory = new CategoryUpdateBody();
+        updatedCategory.setName("Sneakers");
+
+        Category stored = new Category(categoryId, "Shoes", new ArrayList<>(), "img", 3);
+        Mockito.when(categoryRepository.findById(categoryId)).thenReturn(Optional.of(stored));
+        Mockito.when(categoryRepository.save(stored)).thenThrow(new OptimisticLockingFailureException("version 3 is gone"));
+
+        BaseException exception = assertThrows(BaseException.class, () -> productService.updateCategoryById(categoryId, updatedCategory));
+
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+        Mockito.verify(productRepository, Mockito.never()).updateCategory(Mockito.any());
+        Mockito.verify(categoryRepository, Mockito.never()).initializeVersion(categoryId);
     }
 
+    // a category deleted on another instance is gone for writes even while the registry still lists it
+    @Test
+    void deleteCategoryById_missingInMongo() {
+        String categoryId = "65dc544c00c5d91fb6192dd4";
+        Mockito.when(categoryRegistry.find(categoryId)).thenReturn(Optional.of(new Category()));
+        Mockito.when(categoryRepository.findById(categoryId)).thenReturn(Optional.empty());
 
+        BaseException exception = assertThrows(BaseException.class, () -> productService.deleteCategoryById(categoryId));
+
+        assertEquals(HttpStatus.NOT_FOUND, exception.getStatus());
+        Mockito.verify(categoryRegistry).remove(categoryId);
+        Mockito.verify(productRepository, Mockito.never()).deleteByCategoryId(categoryId);
+    }
 
     // Delete category by ID - success
     @Test
@@ -335,7 +886,8 @@ class ProductServiceTest {
         assertDoesNotThrow(() -> productService.deleteCategoryById(categoryId));
 
         Mockito.verify(categoryRepository, Mockito.times(1)).deleteById(categoryId);
-        Mockito.verify(productRepository, Mockito.times(1)).deleteByCategory(existingCategory);
+        Mockito.verify(categoryRegistry, Mockito.times(1)).remove(categoryId);
+        Mockito.verify(productRepository, Mockito.times(1)).deleteByCategoryId(categoryId);
     }
 
 
@@ -344,7 +896,7 @@ class ProductServiceTest {
     @Test
     void getAllCategories_success() {
         List<Category> categories = new ArrayList<>();
-        Mockito.when(categoryRepository.findAll()).thenReturn(categories);
+        Mockito.when(categoryRegistry.findAll()).thenReturn(categories);
 
         List<Category> resultCategories = productService.getAllCategories();
 
@@ -362,16 +914,51 @@ class ProductServiceTest {
         addReviewBody.setRating(5);
         addReviewBody.setDescription("Great product!");
 
-        Product existingProduct = new Product();
-        Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(existingProduct));
-        Mockito.when(productRepository.save(existingProduct)).thenReturn(existingProduct);
+        Product updatedProduct = new Product().setId(productId).setRatingCount(1).setRatingSum(5).setRating(5);
+        Mockito.when(reviewRepository.save(Mockito.any(Review.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        Mockito.when(productRepository.addRatings(productId, 1, 5.0, Map.of("5", 1L))).thenReturn(updatedProduct);
 
         Product resultProduct = productService.addReview(productId, addReviewBody, 1);
 
-        assertNotNull(resultProduct);
-        assertFalse(resultProduct.getReviews().isEmpty());
-        assertEquals(addReviewBody.getRating(), resultProduct.getReviews().get(0).getRating());
-        assertEquals(addReviewBody.getDescription(), resultProduct.getReviews().get(0).getDescription());
+        assertEquals(updatedProduct, resultProduct);
+
+        ArgumentCaptor<Review> review = ArgumentCaptor.forClass(Review.class);
+        Mockito.verify(reviewRepository).save(review.capture());
+        assertEquals(productId, review.getValue().getProductId());
+        assertEquals(addReviewBody.getDescription(), review.getValue().getDescription());
+        assertNotNull(review.getValue().getCreatedAt());
+
+        // the product document is never loaded or rewritten
+        Mockito.verify(productRepository, Mockito.never()).findById(productId);
+        Mockito.verify(productRepository, Mockito.never()).save(Mockito.any());
+    }
+
+
+    // Add review - product not found, the review is taken back
+    @Test
+    void addReview_productNotFound() {
+        AddReviewBody addReviewBody = new AddReviewBody();
+        addReviewBody.setRating(3.6);
+
+        Mockito.when(reviewRepository.save(Mockito.any(Review.class))).thenAnswer(invocation -> {
+            Review review = invocation.getArgument(0);
+            review.setId("r");
+            return review;
+        });
+        Mockito.when(productRepository.addRatings("123", 1, 3.6, Map.of("4", 1L))).thenReturn(null);
+
+        BaseException exception = assertThrows(BaseException.class, () -> productService.addReview("123", addReviewBody, 1));
+
+        assertEquals(HttpStatus.NOT_FOUND, exception.getStatus());
+        Mockito.verify(reviewRepository).deleteById("r");
+    }
+
+
+    @Test
+    void getReviews_invalidPageRequest() {
+        BaseException exception = assertThrows(BaseException.class, () -> productService.getReviews("123", 0, 500));
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
     }
 
 
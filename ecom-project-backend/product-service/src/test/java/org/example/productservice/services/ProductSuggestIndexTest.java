@@ -0,0 +1,171 @@
+package org.example.productservice.services;
+
+import org.example.productservice.models.Product;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ProductSuggestIndexTest {
+
+    private final ProductSuggestIndex productSuggestIndex = new ProductSuggestIndex();
+
+    private Product product(String id, String name, long ratingCount) {
+        Product product = new Product();
+        product.setId(id);
+        product.setName(name);
+        product.setRatingCount(ratingCount);
+        return product;
+    }
+
+
+    // a name is found from the start of any of its words, the most reviewed first
+    @Test
+    void suggest_anyWordByPopularity() {
+        productSuggestIndex.index(product("1", "Nike Air Max", 2));
+        productSuggestIndex.index(product("2", "Air Jordan 1", 10));
+        productSuggestIndex.index(product("3", "Pegasus Trail", 0));
+
+        assertEquals(List.of("Air Jordan 1", "Nike Air Max"), productSuggestIndex.suggest("ai", 10));
+        assertEquals(List.of("Nike Air Max"), productSuggestIndex.suggest("NIKE a", 10));
+        assertEquals(List.of("Pegasus Trail"), productSuggestIndex.suggest("tra", 10));
+        assertEquals(List.of("Air Jordan 1"), productSuggestIndex.suggest("a", 1));
+        assertTrue(productSuggestIndex.suggest("xyz", 10).isEmpty());
+        assertTrue(productSuggestIndex.suggest("  ", 10).isEmpty());
+    }
+
+    // a trailing space means the word is complete
+    @Test
+    void suggest_trailingSpaceEndsWord() {
+        productSuggestIndex.index(product("1", "Air Max", 0));
+        productSuggestIndex.index(product("2", "Airflow Runner", 0));
+
+        assertEquals(2, productSuggestIndex.suggest("air", 10).size());
+        assertEquals(List.of("Air Max"), productSuggestIndex.suggest("air ", 10));
+    }
+
+    // products sharing a name are one suggestion; renames and deletes take their share back out
+    @Test
+    void index_updatesAndRemoves() {
+        productSuggestIndex.index(product("1", "Luka 2", 0));
+        productSuggestIndex.index(product("2", "luka 2", 0));
+        productSuggestIndex.index(product("3", "Lunar Glide", 1));
+
+        assertEquals(List.of("Luka 2", "Lunar Glide"), productSuggestIndex.suggest("lu", 10));
+        assertEquals(2, productSuggestIndex.size());
+
+        productSuggestIndex.remove("1");
+        assertEquals(List.of("Lunar Glide", "Luka 2"), productSuggestIndex.suggest("lu", 10));
+
+        productSuggestIndex.index(product("2", "Zoom Fly", 0));
+        assertEquals(List.of("Lunar Glide"), productSuggestIndex.suggest("lu", 10));
+        assertEquals(List.of("Zoom Fly"), productSuggestIndex.suggest("fly", 10));
+
+        productSuggestIndex.remove("2");
+        productSuggestIndex.remove("3");
+        assertTrue(productSuggestIndex.suggest("l", 10).isEmpty());
+        assertEquals(0, productSuggestIndex.size());
+    }
+
+    // a sync brings in names and review counts written on other instances and drops deleted products, but does not
+    // overwrite what this instance wrote meanwhile
+    @Test
+    void sync_followsMongo() {
+        productSuggestIndex.index(product("1", "Air Max", 0));
+        productSuggestIndex.index(product("2", "Air Force", 0));
+        productSuggestIndex.index(product("3", "Old Name", 0));
+
+        productSuggestIndex.beginSync();
+        productSuggestIndex.index(product("4", "New Name", 0));
+        productSuggestIndex.sync(product("1", "Air Max", 0));
+        productSuggestIndex.sync(product("2", "Air Force", 5));
+        productSuggestIndex.sync(product("5", "Air Zoom", 0));
+        productSuggestIndex.endSync(Set.of("1", "2", "5"));
+
+        assertEquals(List.of("Air Force", "Air Max", "Air Zoom"), productSuggestIndex.suggest("air", 10));
+        assertEquals(List.of("New Name"), productSuggestIndex.suggest("n", 10));
+        assertTrue(productSuggestIndex.suggest("old", 10).isEmpty());
+    }
+
+    // prefixes longer than what the trie holds are still checked against the whole name
+    @Test
+    void suggest_longPrefix() {
+        productSuggestIndex.index(product("1", "Ultraboost Lightweight Running Shoe", 0));
+        productSuggestIndex.index(product("2", "Ultraboost Lightweight Running Sock", 0));
+
+        assertEquals(List.of("Ultraboost Lightweight Running Shoe"), productSuggestIndex.suggest("ultraboost lightweight running sh", 10));
+    }
+
+    // more than MAX_SUGGESTIONS names share the indexed start, and the most popular of them do not match the long prefix
+    @Test
+    void suggest_longPrefixBeyondTopList() {
+        for (int i = 0; i < 5; i++) {
+            productSuggestIndex.index(product("jacket" + i, "Ultraboost Lightweight Running Jacket " + i, 100));
+        }
+        for (int i = 0; i < 12; i++) {
+            productSuggestIndex.index(product("shoe" + i, "Ultraboost Lightweight Running Shoe " + (char) ('a' + i), 12 - i));
+        }
+
+        List<String> suggestions = productSuggestIndex.suggest("ultraboost lightweight running sh", ProductSuggestIndex.MAX_SUGGESTIONS);
+
+        assertEquals(ProductSuggestIndex.MAX_SUGGESTIONS, suggestions.size());
+        assertEquals("Ultraboost Lightweight Running Shoe a", suggestions.get(0));
+        assertEquals("Ultraboost Lightweight Running Shoe j", suggestions.get(9));
+        assertEquals(List.of("Ultraboost Lightweight Running Jacket 1"), productSuggestIndex.suggest("ultraboost lightweight running jacket 1", 10));
+    }
+
+    // random adds, renames and deletes always give the same answers as scanning every live product
+    @Test
+    void suggest_matchesBruteForce() {
+        String[] words = {"air", "airflow", "max", "zoom", "zoomx", "fly", "run", "runner", "trail", "pro"};
+        Random random = new Random(42);
+        Map<String, Product> live = new HashMap<>();
+
+        for (int step = 0; step < 2000; step++) {
+            String id = String.valueOf(random.nextInt(60));
+            if (random.nextInt(4) == 0) {
+                productSuggestIndex.remove(id);
+                live.remove(id);
+            } else {
+                String name = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)];
+                Product product = product(id, name, random.nextInt(5));
+                productSuggestIndex.index(product);
+                live.put(id, product);
+            }
+
+            if (step % 50 == 0) {
+                for (String prefix : List.of("a", "air", "z", "zoom ", "r", "run", "max", "p")) {
+                    assertEquals(bruteForce(live, prefix, 5), productSuggestIndex.suggest(prefix, 5), prefix);
+                }
+            }
+        }
+    }
+
+    private List<String> bruteForce(Map<String, Product> live, String prefix, int limit) {
+        Map<String, Long> weights = new HashMap<>();
+        for (Product product : live.values()) {
+            weights.merge(product.getName().toLowerCase(Locale.ROOT), 1 + product.getRatingCount(), Long::sum);
+        }
+
+        List<Map.Entry<String, Long>> matching = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : weights.entrySet()) {
+            if (entry.getKey().startsWith(prefix) || entry.getKey().contains(" " + prefix)) {
+                matching.add(entry);
+            }
+        }
+        matching.sort(Comparator.comparing((Map.Entry<String, Long> entry) -> entry.getValue()).reversed()
+                .thenComparing(Map.Entry::getKey));
+
+        return matching.stream().limit(limit).map(Map.Entry::getKey).toList();
+    }
+
+}
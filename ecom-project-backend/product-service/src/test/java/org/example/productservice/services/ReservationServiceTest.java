@@ -0,0 +1,166 @@
+package org.example.productservice.services;
+
+import org.example.productservice.exception.customExceptions.BaseException;
+import org.example.productservice.models.Reservation;
+import org.example.productservice.repository.ReservationRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+@ExtendWith(SpringExtension.class)
+class ReservationServiceTest {
+
+    private static final Instant NOW = Instant.parse("2024-03-01T10:00:00Z");
+
+    @Mock
+    private ReservationRepository reservationRepository;
+
+    @Mock
+    private ProductService productService;
+
+    private ReservationService reservationService;
+
+    @BeforeEach
+    void setUp() {
+        reservationService = new ReservationService(reservationRepository, productService, Duration.ofMinutes(15), Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+
+    // a hold takes the stock off the product first, then records it
+    @Test
+    void reserve_success() {
+        Reservation reservation = new Reservation("r", "p", "user:1", 2, NOW.plus(Duration.ofMinutes(15)));
+        Mockito.when(reservationRepository.addToHold("p", "user:1", 2, NOW.plus(Duration.ofMinutes(15)))).thenReturn(reservation);
+
+        assertEquals(reservation, reservationService.reserve("p", "user:1", 2));
+
+        Mockito.verify(productService).decrementProductQuantity("p", 2);
+    }
+
+    @Test
+    void reserve_insufficientStock() {
+        Mockito.when(productService.decrementProductQuantity("p", 2)).thenThrow(new BaseException(HttpStatus.CONFLICT, "Insufficient stock"));
+
+        BaseException exception = assertThrows(BaseException.class, () -> reservationService.reserve("p", "user:1", 2));
+
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+        Mockito.verifyNoInteractions(reservationRepository);
+    }
+
+    // the stock goes back when the hold cannot be written
+    @Test
+    void reserve_restocksWhenHoldFails() {
+        Mockito.when(reservationRepository.addToHold(Mockito.eq("p"), Mockito.eq("user:1"), Mockito.eq(2), Mockito.any()))
+                .thenThrow(new DuplicateKeyException("duplicate"))
+                .thenThrow(new IllegalStateException("down"));
+
+        assertThrows(IllegalStateException.class, () -> reservationService.reserve("p", "user:1", 2));
+
+        Mockito.verify(productService).restockProductQuantity("p", 2);
+    }
+
+
+    @Test
+    void confirm_fromHold() {
+        Mockito.when(reservationRepository.takeFromHold("p", "user:1", 2)).thenReturn(new Reservation("r", "p", "user:1", 0, NOW));
+
+        reservationService.confirm("p", "user:1", 2);
+
+        Mockito.verify(reservationRepository).removeIfEmpty("r");
+        Mockito.verify(productService, Mockito.never()).decrementProductQuantity(Mockito.anyString(), Mockito.anyInt());
+    }
+
+    // no hold left (never made or swept): the order takes the stock from the product instead
+    @Test
+    void confirm_withoutHold() {
+        Mockito.when(reservationRepository.takeFromHold("p", "user:1", 2)).thenReturn(null);
+
+        reservationService.confirm("p", "user:1", 2);
+
+        Mockito.verify(productService).decrementProductQuantity("p", 2);
+    }
+
+
+    @Test
+    void release_givesBackAtMostTheHold() {
+        Mockito.when(reservationRepository.takeFromHold("p", "user:1", 5)).thenReturn(null);
+        Mockito.when(reservationRepository.removeHold("p", "user:1")).thenReturn(new Reservation("r", "p", "user:1", 3, NOW));
+
+        assertEquals(3, reservationService.release("p", "user:1", 5));
+
+        Mockito.verify(productService).restockProductQuantity("p", 3);
+    }
+
+    @Test
+    void release_nothingHeld() {
+        assertEquals(0, reservationService.release("p", "user:1", 5));
+
+        Mockito.verifyNoInteractions(productService);
+    }
+
+
+    // expired holds are swept batch by batch and their stock given back per product in one call
+    @Test
+    void sweepExpired_restocksClaimedHolds() {
+        List<Reservation> firstBatch = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            firstBatch.add(new Reservation("r" + i, i % 2 == 0 ? "a" : "b", "user:" + i, 1, NOW.minusSeconds(1)));
+        }
+        List<Reservation> secondBatch = List.of(new Reservation("last", "a", "user:last", 4, NOW.minusSeconds(1)));
+
+        Mockito.when(reservationRepository.findExpired(NOW, NOW.minus(ReservationService.RELEASE_LEASE), 500)).thenReturn(firstBatch, secondBatch);
+        Mockito.when(reservationRepository.claimExpired(Mockito.any(), Mockito.eq(NOW))).thenAnswer(invocation -> {
+            Reservation reservation = invocation.getArgument(0);
+            if (reservation.getId().equals("last")) {
+                return null;
+            }
+            return new Reservation(reservation.getId(), reservation.getProductId(), reservation.getOwner(), 0, reservation.getExpiresAt(), reservation.getQuantity(), NOW);
+        });
+
+        assertEquals(500, reservationService.sweepExpired(NOW));
+
+        Mockito.verify(productService).restockProductQuantities(Map.of("a", 250, "b", 250));
+        Mockito.verify(productService, Mockito.times(1)).restockProductQuantities(Mockito.anyMap());
+        Mockito.verify(reservationRepository).finishRelease("r0", NOW);
+        Mockito.verify(reservationRepository, Mockito.never()).finishRelease(Mockito.eq("last"), Mockito.any());
+    }
+
+    // a failed restock keeps the claims, so their stock is given back once they are stale instead of being lost
+    @Test
+    void sweepExpired_failedRestockKeepsClaims() {
+        Reservation expired = new Reservation("r", "a", "user:1", 2, NOW.minusSeconds(1));
+        Mockito.when(reservationRepository.findExpired(Mockito.any(), Mockito.any(), Mockito.eq(500))).thenReturn(List.of(expired));
+        Mockito.when(reservationRepository.claimExpired(expired, NOW)).thenReturn(new Reservation("r", "a", "user:1", 0, expired.getExpiresAt(), 2, NOW));
+        Mockito.doThrow(new IllegalStateException("down")).when(productService).restockProductQuantities(Map.of("a", 2));
+
+        assertThrows(IllegalStateException.class, () -> reservationService.sweepExpired(NOW));
+        Mockito.verify(reservationRepository, Mockito.never()).finishRelease(Mockito.anyString(), Mockito.any());
+
+        // the next run finds the stale release and takes it over
+        Instant later = NOW.plus(ReservationService.RELEASE_LEASE).plusSeconds(1);
+        Reservation stale = new Reservation("r", "a", "user:1", 0, expired.getExpiresAt(), 2, NOW);
+        Mockito.when(reservationRepository.findExpired(later, later.minus(ReservationService.RELEASE_LEASE), 500)).thenReturn(List.of(stale));
+        Mockito.when(reservationRepository.claimExpired(stale, later)).thenReturn(new Reservation("r", "a", "user:1", 0, expired.getExpiresAt(), 2, later));
+        Mockito.doNothing().when(productService).restockProductQuantities(Map.of("a", 2));
+
+        assertEquals(1, reservationService.sweepExpired(later));
+        Mockito.verify(reservationRepository).finishRelease("r", later);
+    }
+
+}
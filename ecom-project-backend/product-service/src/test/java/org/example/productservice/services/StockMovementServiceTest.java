@@ -0,0 +1,135 @@
+package org.example.productservice.services;
+
+import org.example.productservice.dto.StockMovementBody;
+import org.example.productservice.exception.customExceptions.BaseException;
+import org.example.productservice.models.StockMovement;
+import org.example.productservice.repository.StockMovementRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpStatus;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class StockMovementServiceTest {
+
+    private static final Instant NOW = Instant.parse("2024-03-01T10:00:00Z");
+
+    private final StockMovementRepository stockMovementRepository = Mockito.mock(StockMovementRepository.class);
+    private final ReservationService reservationService = Mockito.mock(ReservationService.class);
+    private final ProductService productService = Mockito.mock(ProductService.class);
+
+    private final StockMovementService stockMovementService = new StockMovementService(stockMovementRepository, reservationService, productService,
+            Clock.fixed(NOW, ZoneOffset.UTC));
+
+
+    // every movement is taken on with a PENDING marker, applied, and its outcome stored in the marker. a short one is answered as such
+    @Test
+    void apply_storesOutcomes() {
+        Mockito.when(stockMovementRepository.findAllById(List.of("m1", "m2", "m3"))).thenReturn(new ArrayList<>());
+        Mockito.doThrow(new BaseException(HttpStatus.CONFLICT, "Insufficient stock")).when(reservationService).confirm("p", "user:2", 5);
+
+        Map<String, String> outcomes = stockMovementService.apply("p", List.of(
+                new StockMovementBody("m1", StockMovementBody.Type.CONFIRM, "user:1", 2),
+                new StockMovementBody("m2", StockMovementBody.Type.CONFIRM, "user:2", 5),
+                new StockMovementBody("m3", StockMovementBody.Type.RESTOCK, null, 1)));
+
+        assertEquals(Map.of("m1", StockMovement.APPLIED, "m2", StockMovement.INSUFFICIENT_STOCK, "m3", StockMovement.APPLIED), outcomes);
+        Mockito.verify(reservationService).confirm("p", "user:1", 2);
+        Mockito.verify(productService).restockProductQuantity("p", 1);
+        Mockito.verify(stockMovementRepository).insert(new StockMovement("m2", "p", StockMovement.PENDING, NOW));
+        Mockito.verify(stockMovementRepository).complete("m2", NOW, StockMovement.INSUFFICIENT_STOCK);
+    }
+
+    // a redelivered movement gets its first outcome and moves no stock
+    @Test
+    void apply_redeliveryNotReapplied() {
+        Mockito.when(stockMovementRepository.findAllById(List.of("m1", "m1")))
+                .thenReturn(List.of(new StockMovement("m1", "p", StockMovement.APPLIED, NOW)));
+
+        Map<String, String> outcomes = stockMovementService.apply("p", List.of(
+                new StockMovementBody("m1", StockMovementBody.Type.CONFIRM, "user:1", 2),
+                new StockMovementBody("m1", StockMovementBody.Type.CONFIRM, "user:1", 2)));
+
+        assertEquals(Map.of("m1", StockMovement.APPLIED), outcomes);
+        Mockito.verifyNoInteractions(reservationService, productService);
+        Mockito.verify(stockMovementRepository, Mockito.never()).insert(Mockito.any(StockMovement.class));
+    }
+
+    // a delivery racing another one for the same movement finds its marker and is refused, the stock moves once
+    @Test
+    void apply_concurrentDeliveryRefused() {
+        Mockito.when(stockMovementRepository.insert(Mockito.any(StockMovement.class))).thenThrow(new DuplicateKeyException("m1"));
+        Mockito.when(stockMovementRepository.findById("m1")).thenReturn(Optional.of(new StockMovement("m1", "p", StockMovement.PENDING, NOW.minusSeconds(5))));
+
+        BaseException exception = assertThrows(BaseException.class, () -> stockMovementService.apply("p", List.of(
+                new StockMovementBody("m1", StockMovementBody.Type.CONFIRM, "user:1", 2))));
+
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+        Mockito.verifyNoInteractions(reservationService, productService);
+        Mockito.verify(stockMovementRepository, Mockito.never()).takeOver(Mockito.anyString(), Mockito.any(), Mockito.any());
+    }
+
+    // the other delivery finished between our read and our insert: its outcome is the answer
+    @Test
+    void apply_finishedMeanwhile() {
+        Mockito.when(stockMovementRepository.insert(Mockito.any(StockMovement.class))).thenThrow(new DuplicateKeyException("m1"));
+        Mockito.when(stockMovementRepository.findById("m1")).thenReturn(Optional.of(new StockMovement("m1", "p", StockMovement.APPLIED, NOW)));
+
+        assertEquals(Map.of("m1", StockMovement.APPLIED), stockMovementService.apply("p", List.of(
+                new StockMovementBody("m1", StockMovementBody.Type.CONFIRM, "user:1", 2))));
+
+        Mockito.verifyNoInteractions(reservationService, productService);
+    }
+
+    // a marker whose delivery died while applying is taken over once it is older than PENDING_TIMEOUT
+    @Test
+    void apply_abandonedMarkerTakenOver() {
+        Instant abandoned = NOW.minus(StockMovementService.PENDING_TIMEOUT).minusSeconds(1);
+        Mockito.when(stockMovementRepository.insert(Mockito.any(StockMovement.class))).thenThrow(new DuplicateKeyException("m1"));
+        Mockito.when(stockMovementRepository.findById("m1")).thenReturn(Optional.of(new StockMovement("m1", "p", StockMovement.PENDING, abandoned)));
+        Mockito.when(stockMovementRepository.takeOver("m1", abandoned, NOW)).thenReturn(1L);
+        Mockito.when(stockMovementRepository.complete("m1", NOW, StockMovement.APPLIED)).thenReturn(1L);
+
+        assertEquals(Map.of("m1", StockMovement.APPLIED), stockMovementService.apply("p", List.of(
+                new StockMovementBody("m1", StockMovementBody.Type.RESTOCK, null, 2))));
+
+        Mockito.verify(productService).restockProductQuantity("p", 2);
+        Mockito.verify(stockMovementRepository).complete("m1", NOW, StockMovement.APPLIED);
+    }
+
+    // an unexpected failure fails the request, what was applied before it stays recorded for the retry
+    @Test
+    void apply_failureKeepsEarlierOutcomes() {
+        Mockito.when(stockMovementRepository.findAllById(List.of("m1", "m2"))).thenReturn(new ArrayList<>());
+        Mockito.when(productService.restockProductQuantity("p", 3)).thenThrow(new IllegalStateException("down"));
+
+        assertThrows(IllegalStateException.class, () -> stockMovementService.apply("p", List.of(
+                new StockMovementBody("m1", StockMovementBody.Type.CONFIRM, "user:1", 2),
+                new StockMovementBody("m2", StockMovementBody.Type.RESTOCK, null, 3))));
+
+        Mockito.verify(stockMovementRepository).complete("m1", NOW, StockMovement.APPLIED);
+        // the marker of the failed one is dropped, so the retry applies it right away
+        Mockito.verify(stockMovementRepository).release("m2", NOW);
+        Mockito.verify(stockMovementRepository, Mockito.never()).complete(Mockito.eq("m2"), Mockito.any(), Mockito.anyString());
+    }
+
+    @Test
+    void apply_confirmNeedsOwner() {
+        BaseException exception = assertThrows(BaseException.class, () -> stockMovementService.apply("p", List.of(
+                new StockMovementBody("m1", StockMovementBody.Type.CONFIRM, " ", 2))));
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        Mockito.verifyNoInteractions(stockMovementRepository);
+    }
+
+}
@@ -86,16 +86,12 @@ const ProductCard = ({ product, showFilters }) => {
       <div className="card-body">
         <p className="product-card-title">{product.name}</p>
         <p className="product-card-data">
-          {product.reviews.length === 0 ? (
+          {!product.ratingCount ? (
             <span className="just-in">Just In</span>
           ) : (
             <span>
               <i className="bi bi-star-fill pe-1"></i>
-              {(
-                product.reviews.reduce((accumulator, review) => {
-                  return accumulator + review.rating;
-                }, 0) / product.reviews.length
-              ).toFixed(1)}
+              {product.rating.toFixed(1)}
             </span>
           )}
           <span className="dot"></span>
@@ -37,10 +37,13 @@ const PDP = () => {
       setProduct(response.data.product);
       setSelectedImgLink(response.data.product.imgLinks[1]);
 
-      // Traverse over the reviews array of the product
+      // reviews are served separately, newest first
+      response.data.product.reviews = [];
       if (token) {
-        console.log(token);
-        let reviews = response.data.product.reviews;
+        const reviewsResponse = await axios.get(
+          `http://localhost:8060/products/product/${productId}/reviews?page=0&size=20`
+        );
+        let reviews = reviewsResponse.data;
         let userPromises = reviews.map((review) =>
           axios.get(`http://localhost:8080/users/${review.userId}`, config)
         );
@@ -246,7 +249,7 @@ const PDP = () => {
                 }}
               >
                 <p className="head my-3">
-                  Reviews {`(${product?.reviews?.length})`}
+                  Reviews {`(${product?.ratingCount ?? 0})`}
                 </p>
                 <div className="product-reviews-list pe-2">
                   {product?.reviews.map((review, index) => (
@@ -38,6 +38,7 @@ const Products = () => {
             maxPrice: filterState.priceRange.max,
             keyword: filterState.keyword,
             gender: filterState.gender,
+            view: "summary",
           },
           paramsSerializer: (params) =>
             qs.stringify(params, { arrayFormat: "repeat" }),